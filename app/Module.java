@@ -0,0 +1,18 @@
+import com.google.inject.AbstractModule;
+import services.ChatJobWorker;
+import services.ChatPartitionMaintenance;
+
+//--------------------------------------------------------------------------------
+/**
+ * Guice module loaded by Play from the root package. Binds the components that
+ * have to run from application start rather than from their first use.
+ */
+//--------------------------------------------------------------------------------
+public class Module extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(ChatJobWorker.class).asEagerSingleton();
+        bind(ChatPartitionMaintenance.class).asEagerSingleton();
+    }
+}
@@ -0,0 +1,21 @@
+package controllers;
+
+import com.typesafe.config.Config;
+import play.http.HttpErrorHandler;
+import play.mvc.BodyParser;
+
+import javax.inject.Inject;
+
+//--------------------------------------------------------------------------------
+/**
+ * JSON body parser for batch submissions, which may exceed the default
+ * in-memory body limit. The limit is configured by "chat.batch.max-body-size".
+ */
+//--------------------------------------------------------------------------------
+public class ChatBatchBodyParser extends BodyParser.Json {
+
+    @Inject
+    public ChatBatchBodyParser(Config config, HttpErrorHandler errorHandler) {
+        super(config.getBytes("chat.batch.max-body-size"), errorHandler);
+    }
+}
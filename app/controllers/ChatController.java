@@ -1,16 +1,36 @@
 package controllers;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.typesafe.config.Config;
+import dto.ChatHistoryCursor;
 import dto.ChatQueryDTO;
+import org.apache.pekko.stream.javadsl.Source;
+import org.apache.pekko.util.ByteString;
 import play.data.Form;
 import play.data.FormFactory;
+import play.libs.EventSource;
 import play.libs.Json;
+import play.mvc.BodyParser;
 import play.mvc.Controller;
 import play.mvc.Http;
 import play.mvc.Result;
+import services.ChatMetrics;
 import services.ChatService;
+import services.DeadlineExceededException;
+import services.IdempotencyKeyReusedException;
+import services.QuotaExceededException;
+import services.UpstreamSaturatedException;
+import services.UsageQuotas;
 
 import javax.inject.Inject;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 
 //--------------------------------------------------------------------------------
@@ -23,18 +43,52 @@ import java.util.concurrent.CompletionStage;
 //--------------------------------------------------------------------------------
 public class ChatController extends Controller {
 
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    private static final String REQUEST_TIMEOUT = "Request-Timeout";
+    private static final String NDJSON = "application/x-ndjson";
+    private static final ByteString NEWLINE = ByteString.fromString("\n");
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 64;
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    private static final int MAX_PAGE_SIZE = 100;
+    private static final String HISTORY_CACHE_CONTROL = "private, no-cache";
+
     private final ChatService chatService;
     private final FormFactory formFactory;
+    private final ChatMetrics metrics;
+    private final UsageQuotas usageQuotas;
+    private final int maxBatchItems;
+    private final Duration maxJobWait;
+    private final Duration requestDeadline;
+    private final Duration streamDeadline;
 
     @Inject
-    public ChatController(ChatService chatService, FormFactory formFactory) {
+    public ChatController(ChatService chatService, FormFactory formFactory, ChatMetrics metrics,
+                          UsageQuotas usageQuotas, Config config) {
         this.chatService = chatService;
         this.formFactory = formFactory;
+        this.metrics = metrics;
+        this.usageQuotas = usageQuotas;
+        this.maxBatchItems = config.getInt("chat.batch.max-items");
+        this.maxJobWait = config.getDuration("chat.jobs.max-wait");
+        this.requestDeadline = config.getDuration("openai.http.deadline");
+        this.streamDeadline = config.getDuration("openai.http.stream-timeout");
     }
 
     //--------------------------------------------------------------------------------
     /**
-     * Handles submitting a chat query.
+     * Handles submitting a chat query. Responds with 503 Service Unavailable and
+     * a Retry-After header when the upstream API is saturated, and with 429 Too
+     * Many Requests when the user has used up their quota. Retries of a
+     * request with the same Idempotency-Key header get the dialogue saved for
+     * the first one. Upstream calls for the query, including queueing and
+     * retries, have to complete within the configured deadline, which the
+     * Request-Timeout header can shorten; once it has passed the response is
+     * 504 Gateway Timeout, and a malformed Request-Timeout header gets 400 Bad
+     * Request.
+     * <p>
+     * With the "async=true" query parameter the query is queued instead, and the
+     * response is 202 Accepted with the pending job, whose state can be polled
+     * at the URL in the Location header.
      * @param request the HTTP request containing the query.
      * @return a CompletionStage containing the Result of the chat request processing.
      * @throws IllegalArgumentException if the form validation fails or email is
@@ -42,32 +96,161 @@ public class ChatController extends Controller {
      */
     //--------------------------------------------------------------------------------
     public CompletionStage<Result> submitQuery(Http.Request request) {
-        Form<ChatQueryDTO> boundForm = formFactory.form(ChatQueryDTO.class).bindFromRequest(request);
+        long start = System.nanoTime();
+        ChatQueryDTO chatQueryDTO = bindChatQuery(request);
+        String email = resolveEmail(request);
 
-        if (boundForm.hasErrors()) {
-            throw new IllegalArgumentException("Form validation failed: " + boundForm.errorsAsJson());
+        if (request.queryString("async").map(Boolean::parseBoolean).orElse(false)) {
+            return timed("submitJob", start, usageQuotas.admit(email, 1)
+                .thenCompose(admitted -> chatService.submitJob(chatQueryDTO, email))
+                .thenApply(job -> status(ACCEPTED, Json.toJson(job)).withHeader(LOCATION, "/jobs/" + job.getId()))
+                .exceptionally(e -> isQuotaExceeded(e)
+                    ? processingError(e)
+                    : internalServerError("Error queueing request: " + e.getMessage())));
         }
 
-        ChatQueryDTO chatQueryDTO = boundForm.get();
-        Http.Cookie emailCookie = request.cookies().get("email").orElse(null);
-        String email = (emailCookie != null) ? emailCookie.value() : "anonymous";
-
-        return chatService.processChatRequest(chatQueryDTO, email)
+        try {
+            chatQueryDTO.setDeadline(deadline(request, requestDeadline));
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(badRequest("Error: " + e.getMessage() + "."));
+        }
+        return timed("submitQuery", start, usageQuotas.admit(email, 1)
+            .thenCompose(admitted -> chatService.processChatRequest(chatQueryDTO, email))
             .thenApply(chatRequest -> ok(Json.toJson(chatRequest)))
-            .exceptionally(e ->  internalServerError("Error processing request: " + e.getMessage()));
+            .exceptionally(this::processingError));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Handles submitting a chat query in streaming mode. The response is a
+     * Server-Sent-Events stream with one "message" event per response token,
+     * each carrying a JSON object with a "token" field, followed by a single
+     * "done" event once the full response has been received. Retries of a
+     * request with the same Idempotency-Key header replay the saved response.
+     * The Request-Timeout header can shorten the time the upstream response
+     * may take to start; once it has passed the response is 504 Gateway
+     * Timeout, and a malformed header gets 400 Bad Request.
+     *
+     * @param request the HTTP request containing the query.
+     * @return a CompletionStage containing the chunked event stream Result.
+     * @throws IllegalArgumentException if the form validation fails.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletionStage<Result> streamQuery(Http.Request request) {
+        long start = System.nanoTime();
+        ChatQueryDTO chatQueryDTO = bindChatQuery(request);
+        String email = resolveEmail(request);
+
+        try {
+            chatQueryDTO.setDeadline(deadline(request, streamDeadline));
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(badRequest("Error: " + e.getMessage() + "."));
+        }
+        return timed("streamQuery", start, usageQuotas.admit(email, 1)
+            .thenCompose(admitted -> chatService.streamChatRequest(chatQueryDTO, email))
+            .thenApply(tokens -> ok().chunked(toEventStream(tokens)).as(Http.MimeTypes.EVENT_STREAM))
+            .exceptionally(this::processingError));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Handles submitting a batch of chat queries as a JSON array of objects with
+     * the same fields as a single query. The response is newline-delimited JSON
+     * with one object per query, in the order the queries complete. Each object
+     * carries the query's "index" in the array and either the saved "dialogue"
+     * or an "error", so that failed queries do not fail the batch. Only the
+     * queries that carry a question count against the user's request quota.
+     *
+     * @param request the HTTP request containing the queries.
+     * @return a CompletionStage containing the chunked NDJSON Result, a bad
+     *         request response if the body is not a non-empty array of at most
+     *         the configured number of queries, or a 429 response if the
+     *         queries do not fit the user's quota.
+     */
+    //--------------------------------------------------------------------------------
+    @BodyParser.Of(ChatBatchBodyParser.class)
+    public CompletionStage<Result> submitBatch(Http.Request request) {
+        JsonNode body = request.body().asJson();
+        if (body == null || !body.isArray() || body.isEmpty()) {
+            return CompletableFuture.completedFuture(badRequest("Error: A non-empty JSON array of queries is required."));
+        }
+        if (body.size() > maxBatchItems) {
+            return CompletableFuture.completedFuture(badRequest("Error: A batch holds at most " + maxBatchItems + " queries."));
+        }
+
+        List<ChatQueryDTO> queries = new ArrayList<>(body.size());
+        for (JsonNode item : body) {
+            queries.add(toChatQuery(item));
+        }
+
+        String email = resolveEmail(request);
+        ObjectWriter writer = Json.mapper().writer();
+        return usageQuotas.admit(email, countAnswerable(queries))
+            .thenApply(admitted -> {
+                Source<ByteString, ?> results = chatService.processBatch(queries, email)
+                    .map(result -> ByteString.fromArrayUnsafe(writer.writeValueAsBytes(result)).concat(NEWLINE));
+                return ok().chunked(results).as(NDJSON);
+            })
+            .exceptionally(this::processingError);
     }
 
     //--------------------------------------------------------------------------------
     /**
-     * Fetches all chat queries for the logged-in user. This method expects an
+     * Fetches the state of a job queued with "async=true". With the "wait" query
+     * parameter, the response is held for up to that many seconds (at most the
+     * configured maximum) until the job has finished, so that clients can
+     * long-poll instead of polling in a tight loop.
+     *
+     * @param id      the id of the job.
+     * @param request the HTTP request containing cookies.
+     * @return a CompletionStage containing the Result with the job, a not found
+     *         response if the user has no such job, or a bad request response if
+     *         the wait parameter is invalid.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletionStage<Result> getJob(Long id, Http.Request request) {
+        long waitSeconds;
+        try {
+            waitSeconds = request.queryString("wait").filter(value -> !value.isEmpty()).map(Long::parseLong).orElse(0L);
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture(badRequest("Error: Invalid wait parameter."));
+        }
+        if (waitSeconds < 0) {
+            return CompletableFuture.completedFuture(badRequest("Error: wait must not be negative."));
+        }
+
+        Duration wait = Duration.ofSeconds(Math.min(waitSeconds, maxJobWait.toSeconds()));
+        return chatService.getJob(id, resolveEmail(request), wait)
+            .thenApply(job -> job.map(found -> ok(Json.toJson(found))).orElseGet(() -> notFound("Error: Job not found.")))
+            .exceptionally(e -> internalServerError("Error fetching job: " + e.getMessage()));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Fetches chat queries for the logged-in user. This method expects an
      * email cookie to be present in the request, which identifies the user.
      * If the email cookie is missing or empty, the method will return a
      * bad request response with an error message.
+     * <p>
+     * When the "limit" or "before" query parameter is present, a single page of
+     * at most "limit" queries (default {@value #DEFAULT_PAGE_SIZE}, at most
+     * {@value #MAX_PAGE_SIZE}) older than the "before" cursor is returned, newest
+     * first, together with the cursor of the next page. Otherwise the full
+     * history is streamed as a JSON array, once its first query has been read.
+     * <p>
+     * Responses carry an entity tag derived from the version of the user's
+     * history, and must be revalidated before reuse. The version is taken
+     * before the history is read, from the cached dialogues the history is
+     * then served from if there are any, so a tag never describes a newer
+     * history than the body it comes with. A request whose
+     * If-None-Match header holds the current tag gets 304 Not Modified without
+     * the history being read or serialized; the version itself is usually
+     * cached.
      *
      * @param request the HTTP request containing cookies.
-     * @return a CompletionStage containing the Result with the list of queries
-     *         if the email is valid, or a bad request response if the email
-     *         is missing.
+     * @return a CompletionStage containing the Result with the queries if the
+     *         email is valid, or a bad request response if the email is missing
+     *         or the paging parameters are invalid.
      */
     //--------------------------------------------------------------------------------
     public CompletionStage<Result> getAllQueries(Http.Request request) {
@@ -78,10 +261,331 @@ public class ChatController extends Controller {
         }
 
         String email = emailCookie.value();
+        Optional<String> before = request.queryString("before").filter(value -> !value.isEmpty());
+        Optional<String> limit = request.queryString("limit").filter(value -> !value.isEmpty());
+        boolean paged = before.isPresent() || limit.isPresent();
 
-        return chatService.getAllQueriesByUser(email)
-            .thenApply(queries -> ok(Json.toJson(queries)))
+        ChatHistoryCursor cursor;
+        int pageSize;
+        try {
+            cursor = before.map(ChatHistoryCursor::decode).orElse(null);
+            pageSize = limit.map(Integer::parseInt).orElse(DEFAULT_PAGE_SIZE);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(badRequest("Error: Invalid paging parameters."));
+        }
+
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            return CompletableFuture.completedFuture(badRequest("Error: limit must be between 1 and " + MAX_PAGE_SIZE + "."));
+        }
+
+        return chatService.getHistoryVersion(email)
+            .<Result>thenCompose(version -> {
+                String etag = "W/\"" + version.token()
+                    + (paged ? "-" + Integer.toHexString(request.uri().hashCode()) : "") + "\"";
+                if (request.header(IF_NONE_MATCH).map(tags -> matchesETag(tags, etag)).orElse(false)) {
+                    return CompletableFuture.completedFuture(
+                        status(NOT_MODIFIED).withHeaders(ETAG, etag, CACHE_CONTROL, HISTORY_CACHE_CONTROL));
+                }
+
+                CompletionStage<Result> history = paged
+                    ? chatService.getQueriesPageByUser(email, cursor, pageSize)
+                        .thenApply(page -> ok(Json.toJson(page)))
+                    : chatService.getAllQueriesByUser(email)
+                        .thenApply(queries -> ok().chunked(toJsonArray(queries)).as(Http.MimeTypes.JSON));
+                return history.thenApply(result -> result.withHeaders(ETAG, etag, CACHE_CONTROL, HISTORY_CACHE_CONTROL));
+            })
             .exceptionally(e -> internalServerError("Error fetching queries: " + e.getMessage()));
     }
 
+    //--------------------------------------------------------------------------------
+    /**
+     * Searches the chat queries and responses of the logged-in user for the
+     * words in the "q" query parameter. Returns at most "limit" matches
+     * (default {@value #DEFAULT_PAGE_SIZE}, at most {@value #MAX_PAGE_SIZE}),
+     * best first, after skipping "offset" matches, together with the offset of
+     * the next page. Each match carries highlighted snippets of its question and
+     * response.
+     *
+     * @param request the HTTP request containing cookies and the search.
+     * @return a CompletionStage containing the Result with the matches, or a bad
+     *         request response if the email, the search words or the paging
+     *         parameters are missing or invalid.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletionStage<Result> searchQueries(Http.Request request) {
+        Http.Cookie emailCookie = request.cookies().get("email").orElse(null);
+
+        if (emailCookie == null || emailCookie.value().trim().isEmpty()) {
+            return CompletableFuture.completedFuture(badRequest("Error: Email is required and missing in the cookies."));
+        }
+
+        Optional<String> query = request.queryString("q").map(String::trim).filter(value -> !value.isEmpty());
+        if (query.isEmpty()) {
+            return CompletableFuture.completedFuture(badRequest("Error: The search words are missing."));
+        }
+
+        int pageSize;
+        int offset;
+        try {
+            pageSize = request.queryString("limit").filter(value -> !value.isEmpty()).map(Integer::parseInt).orElse(DEFAULT_PAGE_SIZE);
+            offset = request.queryString("offset").filter(value -> !value.isEmpty()).map(Integer::parseInt).orElse(0);
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture(badRequest("Error: Invalid paging parameters."));
+        }
+
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE || offset < 0) {
+            return CompletableFuture.completedFuture(badRequest("Error: limit must be between 1 and " + MAX_PAGE_SIZE + " and offset must not be negative."));
+        }
+
+        return chatService.searchQueriesByUser(emailCookie.value(), query.get(), offset, pageSize)
+            .thenApply(page -> ok(Json.toJson(page)))
+            .exceptionally(e -> internalServerError("Error searching queries: " + e.getMessage()));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Records the latency of a chat request, tagged with its response status.
+     * For streamed responses this is the time until the response headers are
+     * ready.
+     *
+     * @param operation the name of the action.
+     * @param start     the System.nanoTime() at which the request was received.
+     * @param result    the pending Result.
+     * @return the same pending Result.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<Result> timed(String operation, long start, CompletionStage<Result> result) {
+        return result.whenComplete((r, ex) -> metrics.record("chat.request", operation,
+            ex == null ? String.valueOf(r.status()) : "error", System.nanoTime() - start));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Binds and validates the chat query contained in the request body, taking
+     * its idempotency key from the Idempotency-Key header.
+     *
+     * @param request the HTTP request containing the query.
+     * @return the bound ChatQueryDTO.
+     * @throws IllegalArgumentException if the form validation fails or the
+     * idempotency key is blank or too long.
+     */
+    //--------------------------------------------------------------------------------
+    private ChatQueryDTO bindChatQuery(Http.Request request) {
+        Form<ChatQueryDTO> boundForm = formFactory.form(ChatQueryDTO.class).bindFromRequest(request);
+
+        if (boundForm.hasErrors()) {
+            throw new IllegalArgumentException("Form validation failed: " + boundForm.errorsAsJson());
+        }
+
+        Optional<String> idempotencyKey = request.header(IDEMPOTENCY_KEY);
+        if (idempotencyKey.isPresent()
+            && (idempotencyKey.get().trim().isEmpty() || idempotencyKey.get().length() > MAX_IDEMPOTENCY_KEY_LENGTH)) {
+            throw new IllegalArgumentException("Invalid " + IDEMPOTENCY_KEY + " header");
+        }
+
+        ChatQueryDTO chatQueryDTO = boundForm.get();
+        chatQueryDTO.setIdempotencyKey(idempotencyKey.orElse(null));
+        return chatQueryDTO;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Computes when a request has to be answered: after the given time, or
+     * after the number of seconds in the Request-Timeout header if that is
+     * sooner.
+     *
+     * @param request the HTTP request.
+     * @param timeout the longest time the request may take.
+     * @return the deadline.
+     * @throws IllegalArgumentException if the Request-Timeout header is not a
+     * positive number.
+     */
+    //--------------------------------------------------------------------------------
+    static Instant deadline(Http.RequestHeader request, Duration timeout) {
+        Optional<String> header = request.header(REQUEST_TIMEOUT);
+        if (header.isPresent()) {
+            double seconds;
+            try {
+                seconds = Double.parseDouble(header.get().trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + REQUEST_TIMEOUT + " header");
+            }
+            if (!(seconds > 0)) {
+                throw new IllegalArgumentException("Invalid " + REQUEST_TIMEOUT + " header");
+            }
+            if (seconds * 1000 < timeout.toMillis()) {
+                timeout = Duration.ofMillis((long) Math.ceil(seconds * 1000));
+            }
+        }
+        return Instant.now().plus(timeout);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Counts the queries of a batch that are answered, leaving out elements
+     * that are not valid queries and queries without a question, which are
+     * reported as errors without an API call.
+     *
+     * @param queries the queries of the batch, null for invalid elements.
+     * @return the number of queries that are answered.
+     */
+    //--------------------------------------------------------------------------------
+    static int countAnswerable(List<ChatQueryDTO> queries) {
+        int answerable = 0;
+        for (ChatQueryDTO chatQueryDTO : queries) {
+            if (chatQueryDTO != null && chatQueryDTO.getQuestion() != null && !chatQueryDTO.getQuestion().trim().isEmpty()) {
+                answerable++;
+            }
+        }
+        return answerable;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Converts one element of a batch to a chat query. Batched queries carry no
+     * idempotency key.
+     *
+     * @param item the array element.
+     * @return the chat query, or null if the element is not a valid query, which
+     *         is then reported as that item's error.
+     */
+    //--------------------------------------------------------------------------------
+    private static ChatQueryDTO toChatQuery(JsonNode item) {
+        if (!item.isObject()) {
+            return null;
+        }
+        try {
+            ChatQueryDTO chatQueryDTO = Json.fromJson(item, ChatQueryDTO.class);
+            chatQueryDTO.setIdempotencyKey(null);
+            return chatQueryDTO;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Resolves the email of the user making the request from the email cookie.
+     *
+     * @param request the HTTP request containing cookies.
+     * @return the email, or "anonymous" if the cookie is missing.
+     */
+    //--------------------------------------------------------------------------------
+    private String resolveEmail(Http.Request request) {
+        Http.Cookie emailCookie = request.cookies().get("email").orElse(null);
+        return (emailCookie != null) ? emailCookie.value() : "anonymous";
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Tells whether an If-None-Match header matches an entity tag, using the
+     * weak comparison that applies to conditional GET requests.
+     *
+     * @param header the If-None-Match header value.
+     * @param etag   the current entity tag.
+     * @return true if the header is "*" or lists the tag.
+     */
+    //--------------------------------------------------------------------------------
+    static boolean matchesETag(String header, String etag) {
+        String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String tag : header.split(",")) {
+            String candidate = tag.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Encodes response tokens as a Server-Sent-Events stream terminated by a
+     * "done" event.
+     *
+     * @param tokens the response tokens.
+     * @return the encoded event stream.
+     */
+    //--------------------------------------------------------------------------------
+    private Source<ByteString, ?> toEventStream(Source<String, ?> tokens) {
+        return tokens
+            .map(token -> EventSource.Event.event(Json.newObject().put("token", token)))
+            .concat(Source.single(EventSource.Event.event("").withName("done")))
+            .via(EventSource.flow());
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Encodes items as a JSON array written one element per chunk, so that no
+     * tree of the whole array is built in memory. If the items fail after the
+     * response has started, the chunked response is aborted without its last
+     * chunk, so that clients see a broken transfer rather than a truncated
+     * array in a complete 200 response.
+     *
+     * @param items the items to encode.
+     * @return the encoded array.
+     */
+    //--------------------------------------------------------------------------------
+    static <T> Source<ByteString, ?> toJsonArray(Source<T, ?> items) {
+        ObjectWriter writer = Json.mapper().writer();
+        return items
+            .map(item -> ByteString.fromArrayUnsafe(writer.writeValueAsBytes(item)))
+            .intersperse(ByteString.fromString("["), ByteString.fromString(","), ByteString.fromString("]"));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Maps a failure of chat request processing to an error Result. Requests
+     * rejected because the upstream API is saturated get 503 Service Unavailable
+     * and requests over the user's quota 429 Too Many Requests, both with a
+     * Retry-After header, requests whose deadline passed 504 Gateway Timeout,
+     * requests reusing an idempotency key for a different query 422
+     * Unprocessable Entity, anything else 500 Internal Server Error.
+     *
+     * @param e the failure, possibly wrapped in a CompletionException.
+     * @return the error Result.
+     */
+    //--------------------------------------------------------------------------------
+    private Result processingError(Throwable e) {
+        Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+
+        if (cause instanceof UpstreamSaturatedException) {
+            long retryAfterSeconds = Math.max(1, ((UpstreamSaturatedException) cause).getRetryAfter().toSeconds());
+            return status(SERVICE_UNAVAILABLE, "Error: The chat service is busy, please retry later.")
+                .withHeader(RETRY_AFTER, String.valueOf(retryAfterSeconds));
+        }
+        if (cause instanceof QuotaExceededException) {
+            long retryAfterSeconds = Math.max(1, ((QuotaExceededException) cause).getRetryAfter().toSeconds());
+            return status(TOO_MANY_REQUESTS, "Error: " + cause.getMessage() + ", please retry later.")
+                .withHeader(RETRY_AFTER, String.valueOf(retryAfterSeconds));
+        }
+        if (cause instanceof DeadlineExceededException) {
+            return status(GATEWAY_TIMEOUT, "Error: The chat service did not answer in time.");
+        }
+        if (cause instanceof IdempotencyKeyReusedException) {
+            return status(UNPROCESSABLE_ENTITY, "Error: " + cause.getMessage() + ".");
+        }
+
+        return internalServerError("Error processing request: " + e.getMessage());
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Tells whether a request was rejected because the user's quota is used up,
+     * so that queueing a job reports it like a direct request does.
+     *
+     * @param e the failure, possibly wrapped in a CompletionException.
+     * @return true if the cause is a QuotaExceededException.
+     */
+    //--------------------------------------------------------------------------------
+    private static boolean isQuotaExceeded(Throwable e) {
+        Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+        return cause instanceof QuotaExceededException;
+    }
+
 }
@@ -0,0 +1,287 @@
+package controllers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.typesafe.config.Config;
+import dto.ChatDialogueDTO;
+import dto.ChatHistoryCursor;
+import dto.ChatQueryDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pekko.NotUsed;
+import org.apache.pekko.japi.Pair;
+import org.apache.pekko.stream.BoundedSourceQueue;
+import org.apache.pekko.stream.Materializer;
+import org.apache.pekko.stream.OverflowStrategy;
+import org.apache.pekko.stream.javadsl.Flow;
+import org.apache.pekko.stream.javadsl.Source;
+import play.libs.F;
+import play.libs.Json;
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.WebSocket;
+import services.ChatHistoryBus;
+import services.ChatService;
+import services.QuotaExceededException;
+import services.UpstreamSaturatedException;
+import services.UsageQuotas;
+
+import javax.inject.Inject;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+//--------------------------------------------------------------------------------
+/**
+ * Persistent chat channel over a WebSocket, so that a browser sends all its
+ * messages over one connection instead of one HTTP request each. Frames are
+ * JSON objects with a "type" field.
+ * <p>
+ * The client sends "send" frames with the fields of a chat query and an "id"
+ * of its choosing, "history" frames with an optional "before" cursor to fetch
+ * older dialogues, and "ping" frames to keep the socket open. The server
+ * answers a "send" with "token" frames followed by a "done" frame carrying the
+ * saved dialogue, or an "error" frame, all tagged with the same id. On connect
+ * it sends the newest page of history, and afterwards a "saved" frame for
+ * every dialogue saved for the user through any channel, carrying the
+ * idempotency key the dialogue was requested with, so that a client can skip
+ * the dialogues it requested itself.
+ * <p>
+ * Messages are answered one at a time, in order. Tokens are only read from
+ * the upstream API as fast as the client reads them, and once the configured
+ * number of messages is pending the server stops reading from the socket.
+ */
+//--------------------------------------------------------------------------------
+@Slf4j
+public class ChatSocketController extends Controller {
+
+    private final ChatService chatService;
+    private final ChatHistoryBus historyEvents;
+    private final UsageQuotas usageQuotas;
+    private final Materializer materializer;
+    private final Duration heartbeatInterval;
+    private final Duration idleTimeout;
+    private final int maxPendingMessages;
+    private final int pushBufferSize;
+    private final int historyPageSize;
+
+    @Inject
+    public ChatSocketController(ChatService chatService, ChatHistoryBus historyEvents, UsageQuotas usageQuotas,
+                                Materializer materializer, Config config) {
+        this.chatService = chatService;
+        this.historyEvents = historyEvents;
+        this.usageQuotas = usageQuotas;
+        this.materializer = materializer;
+        this.heartbeatInterval = config.getDuration("chat.socket.heartbeat-interval");
+        this.idleTimeout = config.getDuration("chat.socket.idle-timeout");
+        this.maxPendingMessages = config.getInt("chat.socket.max-pending-messages");
+        this.pushBufferSize = config.getInt("chat.socket.push-buffer-size");
+        this.historyPageSize = config.getInt("chat.socket.history-page-size");
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Opens the chat channel for the logged-in user. Connections without an
+     * email cookie, or opened from a page of another origin, are refused, since
+     * browsers send cookies with cross-site WebSocket requests.
+     *
+     * @return the WebSocket.
+     */
+    //--------------------------------------------------------------------------------
+    public WebSocket socket() {
+        return WebSocket.Json.acceptOrResult(request -> {
+            Http.Cookie emailCookie = request.cookies().get("email").orElse(null);
+            if (emailCookie == null || emailCookie.value().trim().isEmpty()) {
+                return CompletableFuture.completedFuture(F.Either.Left(forbidden("Error: Email is required and missing in the cookies.")));
+            }
+            if (!isSameOrigin(request)) {
+                return CompletableFuture.completedFuture(F.Either.Left(forbidden("Error: Cross-origin chat sockets are not allowed.")));
+            }
+            return CompletableFuture.completedFuture(F.Either.Right(chatFlow(emailCookie.value())));
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Builds the flow serving one socket of a user.
+     *
+     * @param email the email of the user.
+     * @return the flow from client frames to server frames.
+     */
+    //--------------------------------------------------------------------------------
+    Flow<JsonNode, JsonNode, NotUsed> chatFlow(String email) {
+        Pair<BoundedSourceQueue<JsonNode>, Source<JsonNode, NotUsed>> updates =
+            Source.<JsonNode>queue(pushBufferSize).preMaterialize(materializer);
+        Runnable unsubscribe = historyEvents.subscribe(email, dialogue ->
+            updates.first().offer(frame("saved")
+                .put("idempotencyKey", dialogue.getIdempotencyKey())
+                .set("dialogue", Json.toJson(dialogue))));
+
+        return Flow.<JsonNode>create()
+            .idleTimeout(idleTimeout)
+            .filter(frame -> !"ping".equals(frame.path("type").asText()))
+            .buffer(maxPendingMessages, OverflowStrategy.backpressure())
+            .mapAsync(1, frame -> handleFrame(email, frame))
+            .<JsonNode, NotUsed>flatMapConcat(frames -> frames.mapMaterializedValue(ignored -> NotUsed.getInstance()))
+            .prepend(Source.completionStage(historyPage(email, null)))
+            .merge(updates.second(), true)
+            .keepAlive(heartbeatInterval, () -> frame("ping"))
+            .watchTermination((notUsed, done) -> {
+                done.whenComplete((ignored, ex) -> {
+                    unsubscribe.run();
+                    updates.first().complete();
+                    if (ex != null) {
+                        log.debug("Chat socket of {} closed: {}", email, ex.getMessage());
+                    }
+                });
+                return notUsed;
+            });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Handles one client frame.
+     *
+     * @param email the email of the user.
+     * @param frame the client frame.
+     * @return a CompletionStage containing the server frames answering it,
+     *         which never fails itself.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<Source<JsonNode, ?>> handleFrame(String email, JsonNode frame) {
+        String type = frame.path("type").asText();
+        String id = frame.path("id").asText(null);
+
+        if ("send".equals(type)) {
+            return send(email, id, frame);
+        }
+        if ("history".equals(type)) {
+            String before = frame.path("before").asText(null);
+            ChatHistoryCursor cursor;
+            try {
+                cursor = before != null ? ChatHistoryCursor.decode(before) : null;
+            } catch (IllegalArgumentException e) {
+                return CompletableFuture.completedFuture(Source.single(errorFrame(id, "Invalid history cursor.")));
+            }
+            return historyPage(email, cursor).<Source<JsonNode, ?>>thenApply(Source::single);
+        }
+        return CompletableFuture.completedFuture(Source.single(errorFrame(id, "Unknown frame type: " + type)));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Answers a "send" frame with the streamed response tokens, followed by the
+     * saved dialogue, if the message fits the user's quota.
+     *
+     * @param email the email of the user.
+     * @param id    the client's id of the message.
+     * @param frame the "send" frame.
+     * @return a CompletionStage containing the server frames, which never fails
+     *         itself.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<Source<JsonNode, ?>> send(String email, String id, JsonNode frame) {
+        String question = frame.path("question").asText("");
+        if (question.trim().isEmpty()) {
+            return CompletableFuture.completedFuture(Source.single(errorFrame(id, "Question is required.")));
+        }
+        String idempotencyKey = frame.path("idempotencyKey").asText(null);
+        if (idempotencyKey != null && (idempotencyKey.trim().isEmpty() || idempotencyKey.length() > 64)) {
+            return CompletableFuture.completedFuture(Source.single(errorFrame(id, "Invalid idempotency key.")));
+        }
+
+        ChatQueryDTO chatQueryDTO = new ChatQueryDTO(
+            frame.path("instruction").asText(""),
+            question,
+            frame.path("threadId").asText(null),
+            idempotencyKey,
+            null
+        );
+
+        return usageQuotas.admit(email, 1)
+            .thenCompose(admitted -> chatService.streamChatRequest(chatQueryDTO, email))
+            .<Source<JsonNode, ?>>thenApply(tokens -> {
+                Pair<CompletionStage<ChatDialogueDTO>, Source<String, NotUsed>> started = tokens.preMaterialize(materializer);
+                return started.second()
+                    .<JsonNode>map(token -> frame("token").put("id", id).put("token", token))
+                    .concat(Source.completionStage(started.first().<JsonNode>handle((dialogue, ex) -> ex == null
+                        ? frame("done").put("id", id).set("dialogue", Json.toJson(dialogue))
+                        : errorFrame(id, "Failed to save the dialogue."))));
+            })
+            .exceptionally(e -> Source.single(processingError(id, e)));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Fetches a page of the user's history as a "history" frame.
+     *
+     * @param email  the email of the user.
+     * @param before the cursor of the page, or null for the newest one.
+     * @return a CompletionStage containing the frame, which never fails itself.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<JsonNode> historyPage(String email, ChatHistoryCursor before) {
+        return chatService.getQueriesPageByUser(email, before, historyPageSize)
+            .<JsonNode>thenApply(page -> frame("history")
+                .setAll((ObjectNode) Json.toJson(page)))
+            .exceptionally(e -> errorFrame(null, "Error fetching queries: " + e.getMessage()));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Maps a failure of chat request processing to an "error" frame. Requests
+     * rejected because the upstream API is saturated or the user's quota is
+     * used up carry the number of seconds after which to retry.
+     *
+     * @param id the client's id of the message.
+     * @param e  the failure, possibly wrapped in a CompletionException.
+     * @return the error frame.
+     */
+    //--------------------------------------------------------------------------------
+    private static JsonNode processingError(String id, Throwable e) {
+        Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+
+        if (cause instanceof UpstreamSaturatedException) {
+            long retryAfterSeconds = Math.max(1, ((UpstreamSaturatedException) cause).getRetryAfter().toSeconds());
+            return errorFrame(id, "The chat service is busy, please retry later.").put("retryAfter", retryAfterSeconds);
+        }
+        if (cause instanceof QuotaExceededException) {
+            long retryAfterSeconds = Math.max(1, ((QuotaExceededException) cause).getRetryAfter().toSeconds());
+            return errorFrame(id, cause.getMessage() + ", please retry later.").put("retryAfter", retryAfterSeconds);
+        }
+
+        return errorFrame(id, "Error processing request: " + cause.getMessage());
+    }
+
+    private static ObjectNode frame(String type) {
+        return Json.newObject().put("type", type);
+    }
+
+    private static ObjectNode errorFrame(String id, String message) {
+        return frame("error").put("id", id).put("message", message);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Tells whether a WebSocket handshake comes from a page of this host.
+     * Handshakes without an Origin header come from non-browser clients, which
+     * do not send cookies on their own, and are allowed.
+     *
+     * @param request the handshake request.
+     * @return false if the Origin header names another host.
+     */
+    //--------------------------------------------------------------------------------
+    static boolean isSameOrigin(Http.RequestHeader request) {
+        Optional<String> origin = request.header(ORIGIN);
+        if (origin.isEmpty()) {
+            return true;
+        }
+        try {
+            return request.host().equalsIgnoreCase(URI.create(origin.get()).getAuthority());
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
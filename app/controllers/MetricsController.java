@@ -0,0 +1,82 @@
+package controllers;
+
+import com.typesafe.config.Config;
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Result;
+import services.ChatMetrics;
+
+import javax.inject.Inject;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+//--------------------------------------------------------------------------------
+/**
+ * Exposes the application metrics for scraping by Prometheus. The metrics
+ * reveal request rates, quotas and upstream endpoint names, so they are only
+ * served to scrapers presenting the bearer token configured as
+ * "chat.metrics.token" or, while no token is configured, to requests from the
+ * loopback interface.
+ */
+//--------------------------------------------------------------------------------
+public class MetricsController extends Controller {
+
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private final ChatMetrics metrics;
+    private final String token;
+
+    @Inject
+    public MetricsController(ChatMetrics metrics, Config config) {
+        this(metrics, config.getString("chat.metrics.token"));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates the controller with an explicit scrape token.
+     *
+     * @param metrics the metrics to render.
+     * @param token   the bearer token scrapers must present, or an empty string
+     *                to serve loopback requests only.
+     */
+    //--------------------------------------------------------------------------------
+    public MetricsController(ChatMetrics metrics, String token) {
+        this.metrics = metrics;
+        this.token = token;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Renders all metrics in the Prometheus text exposition format.
+     *
+     * @param request the HTTP request.
+     * @return a Result containing the current metric values, or 403 Forbidden
+     *         if the request may not read them.
+     */
+    //--------------------------------------------------------------------------------
+    public Result metrics(Http.Request request) {
+        if (!isAllowed(request)) {
+            return forbidden();
+        }
+        return ok(metrics.scrape()).as(PROMETHEUS_CONTENT_TYPE);
+    }
+
+    private boolean isAllowed(Http.Request request) {
+        if (token.isEmpty()) {
+            try {
+                return InetAddress.getByName(request.remoteAddress()).isLoopbackAddress();
+            } catch (UnknownHostException e) {
+                return false;
+            }
+        }
+        return request.header(Http.HeaderNames.AUTHORIZATION)
+            .filter(header -> header.startsWith(BEARER_PREFIX))
+            .map(header -> MessageDigest.isEqual(
+                header.substring(BEARER_PREFIX.length()).trim().getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8)))
+            .orElse(false);
+    }
+}
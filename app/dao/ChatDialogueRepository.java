@@ -1,7 +1,16 @@
 package dao;
 
 import com.google.inject.ImplementedBy;
+import dto.ChatDialogueDTO;
+import dto.ChatHistoryCursor;
+import dto.ChatHistoryVersion;
+import dto.ChatSearchResultDTO;
 import models.ChatDialogue;
+import org.apache.pekko.NotUsed;
+import org.apache.pekko.stream.javadsl.Source;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletionStage;
 import java.util.stream.Stream;
 
@@ -26,11 +35,116 @@ public interface ChatDialogueRepository {
 
     //--------------------------------------------------------------------------------
     /**
-     * Retrieves all chat dialogues for a specific user asynchronously.
+     * Saves several ChatDialogues asynchronously in a single transaction, so
+     * that they are inserted as JDBC batches.
+     *
+     * @param chatDialogues The ChatDialogues to be saved.
+     * @return A CompletionStage that resolves to the saved ChatDialogues, or
+     *         fails without saving any of them.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<List<ChatDialogue>> saveChatDialogues(List<ChatDialogue> chatDialogues);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Streams all chat dialogues of a specific user, oldest first, read
+     * directly into DTOs without loading entities. The rows are read in
+     * keyset-paged chunks as the Source is pulled, each in its own short
+     * read-only transaction, so no connection is held between chunks.
      *
      * @param email the email of the user whose chat dialogues to retrieve.
-     * @return A CompletionStage that contains a stream of ChatDialogues.
+     * @return A Source of the user's ChatDialogueDTOs, which fails if reading
+     *         them fails.
+     */
+    //--------------------------------------------------------------------------------
+    Source<ChatDialogueDTO, NotUsed> getAllByUser(String email);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Retrieves one page of a user's chat dialogues asynchronously, newest first.
+     * Pages are addressed by keyset on (createdAt, id), so fetching a page costs
+     * the same regardless of how deep into the history it is. Dialogues are read
+     * directly into DTOs without loading entities.
+     *
+     * @param email  the email of the user whose chat dialogues to retrieve.
+     * @param before the cursor of the last dialogue of the previous page, or null
+     *               for the newest page.
+     * @param limit  the maximum number of dialogues to retrieve.
+     * @return A CompletionStage that contains a stream of at most limit
+     *         ChatDialogueDTOs ordered by descending (createdAt, id).
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Stream<ChatDialogueDTO>> getPageByUser(String email, ChatHistoryCursor before, int limit);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Retrieves the version of a user's chat history asynchronously, from the
+     * (email, createdAt, id) index alone.
+     *
+     * @param email the email of the user.
+     * @return A CompletionStage that contains the version.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<ChatHistoryVersion> getHistoryVersion(String email);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Retrieves the most recent chat dialogues of a conversation thread
+     * asynchronously, newest first.
+     *
+     * @param email    the email of the user owning the thread.
+     * @param threadId the id of the conversation thread.
+     * @param limit    the maximum number of dialogues to retrieve.
+     * @return A CompletionStage that contains a stream of at most limit
+     *         ChatDialogues ordered by descending (createdAt, id).
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Stream<ChatDialogue>> getRecentByThread(String email, String threadId, int limit);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Retrieves the indexable chat dialogues of all users in creation order,
+     * for building indexes over the whole history incrementally. Ids are
+     * allocated in blocks per instance, so they do not follow the order in
+     * which dialogues are committed and cannot serve as a watermark.
+     *
+     * @param createdAt the creation time to continue after.
+     * @param afterId   the id to continue after among the dialogues created
+     *                  at exactly that time.
+     * @param limit     the maximum number of dialogues to retrieve.
+     * @return A CompletionStage that contains a stream of at most limit
+     *         indexable ChatDialogues after the given position, ordered by
+     *         creation time and id.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Stream<ChatDialogue>> getIndexableAfter(Timestamp createdAt, long afterId, int limit);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Retrieves the chat dialogue a user saved with the given idempotency key
+     * asynchronously.
+     *
+     * @param email          the email of the user.
+     * @param idempotencyKey the idempotency key of the request.
+     * @return A CompletionStage that contains the ChatDialogueDTO, or empty if
+     *         no dialogue was saved with the key.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Optional<ChatDialogueDTO>> getByIdempotencyKey(String email, String idempotencyKey);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Searches the questions and responses of a user's chat dialogues for the
+     * given words, best matches first.
+     *
+     * @param email  the email of the user whose chat dialogues to search.
+     * @param query  the search words; quoted phrases, "or" and "-word" are
+     *               supported.
+     * @param offset the number of best matches to skip.
+     * @param limit  the maximum number of matches to retrieve.
+     * @return A CompletionStage that contains a stream of at most limit ranked
+     *         matches with highlighted snippets.
      */
     //--------------------------------------------------------------------------------
-    CompletionStage<Stream<ChatDialogue>> getAllByUser(String email);
+    CompletionStage<Stream<ChatSearchResultDTO>> search(String email, String query, int offset, int limit);
 }
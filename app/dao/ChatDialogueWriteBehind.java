@@ -0,0 +1,266 @@
+package dao;
+
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+import models.ChatDialogue;
+import org.apache.pekko.actor.ActorSystem;
+import play.db.jpa.JPAApi;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+//--------------------------------------------------------------------------------
+/**
+ * Asynchronous write-behind stage for ChatDialogue inserts. Dialogues are
+ * queued by {@link #enqueue(ChatDialogue)} and persisted by a single flusher
+ * thread in one transaction per batch, so Hibernate can send them as JDBC
+ * batches. A batch is flushed once it reaches the configured size or once the
+ * flush interval has passed since its first dialogue was queued.
+ * <p>
+ * When the queue is full, callers are rejected at once rather than blocking
+ * the thread they were called on. If a batch fails, its dialogues are retried one per
+ * transaction so that a single bad row only fails its own caller.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+@Slf4j
+public class ChatDialogueWriteBehind implements AutoCloseable {
+
+    private static final long IDLE_POLL_MILLIS = 500;
+
+    private final JPAApi jpaApi;
+    private final Executor completionExecutor;
+    private final int batchSize;
+    private final Duration flushInterval;
+    private final BlockingQueue<PendingWrite> queue;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    @Inject
+    public ChatDialogueWriteBehind(JPAApi jpaApi, ActorSystem actorSystem, Config config, ApplicationLifecycle lifecycle) {
+        this(
+            jpaApi,
+            actorSystem.dispatcher(),
+            config.getInt("chat.write-behind.batch-size"),
+            config.getInt("chat.write-behind.queue-capacity"),
+            config.getDuration("chat.write-behind.flush-interval")
+        );
+        lifecycle.addStopHook(() -> CompletableFuture.runAsync(this::close));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates a write-behind stage with explicit settings and starts its flusher
+     * thread.
+     *
+     * @param jpaApi             the JPA API used to persist batches.
+     * @param completionExecutor the executor completing the callers' stages, so
+     *                           that their continuations never run on the
+     *                           flusher thread.
+     * @param batchSize          the maximum number of dialogues per transaction.
+     * @param queueCapacity      the maximum number of queued dialogues.
+     * @param flushInterval      the maximum time a queued dialogue waits for its
+     *                           batch to fill up.
+     */
+    //--------------------------------------------------------------------------------
+    public ChatDialogueWriteBehind(JPAApi jpaApi, Executor completionExecutor, int batchSize, int queueCapacity,
+                                   Duration flushInterval) {
+        this.jpaApi = jpaApi;
+        this.completionExecutor = completionExecutor;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.flusher = new Thread(this::runFlushLoop, "chat-dialogue-write-behind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Queues a ChatDialogue for insertion.
+     *
+     * @param chatDialogue The ChatDialogue to be saved.
+     * @return A CompletionStage that resolves to the saved ChatDialogue once its
+     *         batch has been committed, or fails if the queue was full, the
+     *         stage has been shut down or the insert failed.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletionStage<ChatDialogue> enqueue(ChatDialogue chatDialogue) {
+        PendingWrite pendingWrite = new PendingWrite(chatDialogue);
+
+        if (!running) {
+            pendingWrite.future.completeExceptionally(new RejectedExecutionException("Write-behind stage is shut down"));
+            return pendingWrite.future;
+        }
+
+        if (!queue.offer(pendingWrite)) {
+            pendingWrite.future.completeExceptionally(
+                new RejectedExecutionException("Write-behind queue is full, dialogue was not saved"));
+            return pendingWrite.future;
+        }
+
+        // The stage may have been closed between the check above and the offer,
+        // after the flusher took its last look at the queue. Whichever of this
+        // thread and the flusher removes the dialogue from the queue completes it.
+        if (!running && queue.remove(pendingWrite)) {
+            pendingWrite.future.completeExceptionally(new RejectedExecutionException("Write-behind stage is shut down"));
+        }
+        return pendingWrite.future;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the number of dialogues waiting to be flushed.
+     *
+     * @return the queue depth.
+     */
+    //--------------------------------------------------------------------------------
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Stops accepting new dialogues, flushes the queued ones and waits for the
+     * flusher thread to finish. Dialogues still queued once it has finished are
+     * failed.
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public void close() {
+        running = false;
+        try {
+            flusher.join(flushInterval.toMillis() + IDLE_POLL_MILLIS * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!flusher.isAlive()) {
+            failQueued();
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Collects batches from the queue and flushes them until the stage is closed
+     * and the queue is empty.
+     */
+    //--------------------------------------------------------------------------------
+    private void runFlushLoop() {
+        List<PendingWrite> batch = new ArrayList<>(batchSize);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                long deadline = System.nanoTime() + flushInterval.toNanos();
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+                batch.forEach(pendingWrite -> fail(pendingWrite, e));
+            } catch (RuntimeException e) {
+                log.error("Unexpected failure in write-behind flusher", e);
+                batch.forEach(pendingWrite -> fail(pendingWrite, e));
+            } finally {
+                batch.clear();
+            }
+        }
+
+        failQueued();
+    }
+
+    private void failQueued() {
+        List<PendingWrite> leftovers = new ArrayList<>();
+        queue.drainTo(leftovers);
+        leftovers.forEach(pendingWrite -> fail(pendingWrite, new RejectedExecutionException("Write-behind stage is shut down")));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Persists a batch in a single transaction. If the transaction fails, the
+     * dialogues are retried individually.
+     *
+     * @param batch The dialogues to persist.
+     */
+    //--------------------------------------------------------------------------------
+    private void flush(List<PendingWrite> batch) {
+        try {
+            jpaApi.withTransaction(em -> {
+                batch.forEach(pendingWrite -> em.persist(pendingWrite.chatDialogue));
+                em.flush();
+                return null;
+            });
+            batch.forEach(this::succeed);
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                fail(batch.get(0), e);
+                return;
+            }
+
+            log.warn("Batch insert of {} chat dialogues failed, retrying individually", batch.size(), e);
+            for (PendingWrite pendingWrite : batch) {
+                pendingWrite.chatDialogue.setId(null);
+                try {
+                    jpaApi.withTransaction(em -> {
+                        em.persist(pendingWrite.chatDialogue);
+                        return null;
+                    });
+                    succeed(pendingWrite);
+                } catch (RuntimeException rowFailure) {
+                    fail(pendingWrite, rowFailure);
+                }
+            }
+        }
+    }
+
+    private void succeed(PendingWrite pendingWrite) {
+        completionExecutor.execute(() -> pendingWrite.future.complete(pendingWrite.chatDialogue));
+    }
+
+    private void fail(PendingWrite pendingWrite, Throwable failure) {
+        log.error("Failed to save chat dialogue", failure);
+        completionExecutor.execute(() -> pendingWrite.future.completeExceptionally(failure));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * A queued dialogue together with the stage of the caller waiting for it.
+     */
+    //--------------------------------------------------------------------------------
+    private static final class PendingWrite {
+        private final ChatDialogue chatDialogue;
+        private final CompletableFuture<ChatDialogue> future = new CompletableFuture<>();
+
+        private PendingWrite(ChatDialogue chatDialogue) {
+            this.chatDialogue = chatDialogue;
+        }
+    }
+}
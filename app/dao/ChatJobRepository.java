@@ -0,0 +1,95 @@
+package dao;
+
+import com.google.inject.ImplementedBy;
+import dto.ChatJobDTO;
+import models.ChatJob;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+
+//--------------------------------------------------------------------------------
+/**
+ * Provides an asynchronous API for the queue of chat jobs. Jobs are claimed by
+ * workers under a lease, so that a job whose worker dies is taken over by
+ * another one once the lease expires.
+ */
+//--------------------------------------------------------------------------------
+@ImplementedBy(JPAChatJobRepository.class)
+public interface ChatJobRepository {
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Saves a new job asynchronously, pending until a worker claims it. A job
+     * whose user already submitted one with the same idempotency key is not
+     * saved again; the earlier job is returned instead.
+     *
+     * @param chatJob The ChatJob to be queued.
+     * @return A CompletionStage that resolves to the saved ChatJob, or to the
+     *         earlier one with the same idempotency key.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<ChatJob> enqueue(ChatJob chatJob);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Claims the oldest pending jobs, together with running jobs whose lease has
+     * expired, skipping jobs locked by concurrent claims. Claimed jobs are marked
+     * running under a new lease and their attempts are counted. Jobs that have
+     * used up their attempts are marked failed instead of being returned.
+     *
+     * @param limit       the maximum number of jobs to claim.
+     * @param lease       how long the claim lasts.
+     * @param maxAttempts the attempts after which a job is given up.
+     * @return A CompletionStage that contains the claimed jobs, oldest first.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<List<ChatJob>> claim(int limit, Duration lease, int maxAttempts);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Marks a job done with the dialogue that answers it.
+     *
+     * @param id         the id of the job.
+     * @param dialogueId the id of the saved dialogue.
+     * @return A CompletionStage that resolves when the job is updated.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Void> complete(Long id, Long dialogueId);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns a job whose attempt failed to the queue, recording the failure.
+     *
+     * @param id    the id of the job.
+     * @param error the reason the attempt failed.
+     * @return A CompletionStage that resolves when the job is updated.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Void> release(Long id, String error);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Retrieves a job of a user together with its dialogue, if it is done.
+     *
+     * @param id    the id of the job.
+     * @param email the email of the user who submitted the job.
+     * @return A CompletionStage that contains the ChatJobDTO, or empty if the
+     *         user has no job with that id.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Optional<ChatJobDTO>> getByIdAndEmail(Long id, String email);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Deletes the jobs that finished before the given time. Their dialogues are
+     * kept.
+     *
+     * @param finishedBefore the cutoff time.
+     * @return A CompletionStage that contains the number of deleted jobs.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Integer> deleteFinishedBefore(Timestamp finishedBefore);
+}
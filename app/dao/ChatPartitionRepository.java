@@ -0,0 +1,67 @@
+package dao;
+
+import com.google.inject.ImplementedBy;
+
+import java.time.YearMonth;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+//--------------------------------------------------------------------------------
+/**
+ * Provides an asynchronous API for maintaining the monthly partitions of the
+ * ChatDialogue table.
+ */
+//--------------------------------------------------------------------------------
+@ImplementedBy(JPAChatPartitionRepository.class)
+public interface ChatPartitionRepository {
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates the partitions of the given months that do not exist yet.
+     *
+     * @param from    the first month.
+     * @param through the last month, inclusive.
+     * @return A CompletionStage that contains the number of partitions created.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Integer> createPartitions(YearMonth from, YearMonth through);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Lists the months that have a partition, not counting the default one.
+     *
+     * @return A CompletionStage that contains the months, oldest first.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<List<YearMonth>> listPartitions();
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Moves the dialogues of a month into the ChatDialogueArchive table, one row
+     * per user, and drops the month's partition, in one transaction. Does
+     * nothing if the partition does not exist or another instance is
+     * maintaining the partitions at the same time.
+     *
+     * @param month the month to archive.
+     * @return A CompletionStage that contains the number of dialogues archived.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Integer> archivePartition(YearMonth month);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Rewrites a batch of a month's dialogues whose question or response was
+     * compressed before LZ4 compression was enabled, so that they are stored
+     * with LZ4 as well. Batches are taken in id order.
+     *
+     * @param month   the month of the partition.
+     * @param afterId the id to continue after, or 0 to start from the first.
+     * @param limit   the dialogues examined in the batch.
+     * @return A CompletionStage that contains the highest id examined, to be
+     *         passed to the next call, or null once the partition is done or if
+     *         LZ4 compression is not enabled. A partition that is done is
+     *         recorded as such, and later calls for it return null at once.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Long> recompress(YearMonth month, long afterId, int limit);
+}
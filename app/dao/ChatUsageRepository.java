@@ -0,0 +1,44 @@
+package dao;
+
+import com.google.inject.ImplementedBy;
+import dto.ChatUsageDTO;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+
+//--------------------------------------------------------------------------------
+/**
+ * Provides an asynchronous API for the per-user usage counters in the
+ * ChatUsage table.
+ */
+//--------------------------------------------------------------------------------
+@ImplementedBy(JPAChatUsageRepository.class)
+public interface ChatUsageRepository {
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Adds counts to the usage of users in their windows, creating the rows
+     * that do not exist yet, in one transaction. Adding zero counts reads the
+     * current totals.
+     *
+     * @param usages the counts to add, at most one per user and window.
+     * @return A CompletionStage that contains the totals after the addition,
+     *         in the order of the given counts.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<List<ChatUsageDTO>> addUsage(List<ChatUsageDTO> usages);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Reads the usage totals of a user in a window, without writing anything.
+     *
+     * @param email       the email of the user.
+     * @param windowStart the start of the window.
+     * @return A CompletionStage that contains the totals, or empty if the user
+     *         has no usage in the window yet.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Optional<ChatUsageDTO>> getUsage(String email, Timestamp windowStart);
+}
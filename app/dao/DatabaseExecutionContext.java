@@ -4,16 +4,58 @@ import org.apache.pekko.actor.ActorSystem;
 import play.libs.concurrent.CustomExecutionContext;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 //--------------------------------------------------------------------------------
 /**
- * Custom execution context wired to "database.dispatcher" thread pool
+ * Custom execution context wired to "database.dispatcher" thread pool. Keeps
+ * count of the tasks waiting for a pool thread so that the queue depth can be
+ * monitored.
  */
 //--------------------------------------------------------------------------------
+@Singleton
 public class DatabaseExecutionContext extends CustomExecutionContext {
+
+    private final AtomicInteger queued = new AtomicInteger();
+
     @Inject
     public DatabaseExecutionContext(ActorSystem actorSystem) {
         super(actorSystem, "database.dispatcher");
     }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Executes a command in the execution context, counting it as queued until
+     * a pool thread picks it up.
+     *
+     * @param command the command to execute.
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public void execute(Runnable command) {
+        queued.incrementAndGet();
+        try {
+            super.execute(() -> {
+                queued.decrementAndGet();
+                command.run();
+            });
+        } catch (RuntimeException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the number of tasks waiting for a thread of the pool or, with the
+     * virtual thread executor, for a permit to run.
+     *
+     * @return the queue depth.
+     */
+    //--------------------------------------------------------------------------------
+    public int queueDepth() {
+        return queued.get();
+    }
 }
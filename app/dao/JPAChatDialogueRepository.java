@@ -1,11 +1,26 @@
 package dao;
 
+import dto.ChatDialogueDTO;
+import dto.ChatHistoryCursor;
+import dto.ChatHistoryVersion;
+import dto.ChatSearchResultDTO;
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
 import models.ChatDialogue;
+import org.apache.pekko.NotUsed;
+import org.apache.pekko.japi.Pair;
+import org.apache.pekko.stream.javadsl.Source;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
 import play.db.jpa.JPAApi;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
+import javax.persistence.Query;
 import javax.persistence.TypedQuery;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletionStage;
 import java.util.function.Function;
 import java.util.stream.Stream;
@@ -14,18 +29,54 @@ import static java.util.concurrent.CompletableFuture.supplyAsync;
 //--------------------------------------------------------------------------------
 /**
  * Repository implementation for ChatDialogue entities using JPA.
- * Executes asynchronous database operations with JPAApi.
+ * Executes asynchronous database operations with JPAApi. When write-behind
+ * is enabled, inserts are handed to {@link ChatDialogueWriteBehind} and
+ * committed in batches.
+ * <p>
+ * History reads select straight into {@link ChatDialogueDTO} in a read-only
+ * session, so rows are neither hydrated into entities nor tracked by the
+ * persistence context. A user's full history is streamed oldest first in
+ * keyset-paged chunks, each read in its own short transaction, so that a slow
+ * client never holds a pooled connection between chunks.
+ * <p>
+ * History search uses PostgreSQL full-text search over a generated tsvector
+ * column with a GIN index, created by the evolutions in conf/evolutions.
+ * <p>
+ * The table is range-partitioned by month of createdAt. History pages are read
+ * newest first along the (email, createdAt, id) index, so PostgreSQL reads the
+ * partitions in order and stops once the page is full, and a cursor bounds
+ * createdAt so that newer partitions are pruned. Idempotency keys are looked
+ * up in the unpartitioned ChatDialogueKey table first, so that the dialogue is
+ * read from its own partition only.
  */
 //--------------------------------------------------------------------------------
+@Slf4j
 public class JPAChatDialogueRepository implements ChatDialogueRepository {
 
+    private static final String SEARCH_CONFIG = "english";
+    private static final String HIGHLIGHT_START = "\u0002";
+    private static final String HIGHLIGHT_STOP = "\u0003";
+    private static final String QUESTION_HEADLINE_OPTIONS =
+        "StartSel=" + HIGHLIGHT_START + ", StopSel=" + HIGHLIGHT_STOP + ", MinWords=10, MaxWords=30";
+    private static final String RESPONSE_HEADLINE_OPTIONS = QUESTION_HEADLINE_OPTIONS
+        + ", MaxFragments=2, FragmentDelimiter=\" ... \"";
+    private static final String SELECT_DTO = "SELECT new dto.ChatDialogueDTO("
+        + "c.id, c.instruction, c.question, c.response, c.createdAt, c.email, c.threadId) FROM ChatDialogue c";
+
     private final JPAApi jpaApi;
     private final DatabaseExecutionContext executionContext;
+    private final ChatDialogueWriteBehind writeBehind;
+    private final boolean writeBehindEnabled;
+    private final int historyFetchSize;
 
     @Inject
-    public JPAChatDialogueRepository(JPAApi jpaApi, DatabaseExecutionContext executionContext) {
+    public JPAChatDialogueRepository(JPAApi jpaApi, DatabaseExecutionContext executionContext,
+                                     ChatDialogueWriteBehind writeBehind, Config config) {
         this.jpaApi = jpaApi;
         this.executionContext = executionContext;
+        this.writeBehind = writeBehind;
+        this.writeBehindEnabled = config.getBoolean("chat.write-behind.enabled");
+        this.historyFetchSize = config.getInt("chat.history.fetch-size");
     }
 
     //--------------------------------------------------------------------------------
@@ -38,20 +89,108 @@ public class JPAChatDialogueRepository implements ChatDialogueRepository {
     //--------------------------------------------------------------------------------
     @Override
     public CompletionStage<ChatDialogue> saveChatDialogue(ChatDialogue chatDialogue) {
+        if (writeBehindEnabled) {
+            return writeBehind.enqueue(chatDialogue);
+        }
         return supplyAsync(() -> wrap(em -> insert(em, chatDialogue)), executionContext);
     }
 
     //--------------------------------------------------------------------------------
     /**
-     * Retrieves all chat dialogues for a specific user asynchronously.
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<List<ChatDialogue>> saveChatDialogues(List<ChatDialogue> chatDialogues) {
+        return supplyAsync(() -> wrap(em -> {
+            chatDialogues.forEach(chatDialogue -> insert(em, chatDialogue));
+            return chatDialogues;
+        }), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Streams all chat dialogues of a specific user, oldest first. Each chunk
+     * of chat.history.fetch-size rows is read on demand in its own read-only
+     * transaction, continuing after the (createdAt, id) of the previous chunk's
+     * last row, so the connection is returned to the pool while the rows are
+     * written to the client.
      *
      * @param email the email of the user whose chat dialogues to retrieve.
-     * @return A CompletionStage that contains a stream of ChatDialogues.
+     * @return A Source of ChatDialogueDTOs.
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public Source<ChatDialogueDTO, NotUsed> getAllByUser(String email) {
+        return Source.unfoldAsync(Optional.<ChatHistoryCursor>empty(), after -> supplyAsync(
+                () -> read(em -> findChunkByUser(em, email, after.orElse(null), historyFetchSize)), executionContext)
+                .thenApply(JPAChatDialogueRepository::continueAfter))
+            .takeWhile(chunk -> chunk.size() == historyFetchSize, true)
+            .mapConcat(chatDialogueDTOs -> chatDialogueDTOs);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<Stream<ChatDialogueDTO>> getPageByUser(String email, ChatHistoryCursor before, int limit) {
+        return supplyAsync(() -> read(em -> findPageByUser(em, email, before, limit)), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<ChatHistoryVersion> getHistoryVersion(String email) {
+        return supplyAsync(() -> read(em -> em
+            .createQuery("SELECT new dto.ChatHistoryVersion(COUNT(c), MAX(c.id), MAX(c.createdAt))"
+                + " FROM ChatDialogue c WHERE c.email = :email", ChatHistoryVersion.class)
+            .setParameter("email", email)
+            .getSingleResult()), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
      */
     //--------------------------------------------------------------------------------
     @Override
-    public CompletionStage<Stream<ChatDialogue>> getAllByUser(String email) {
-        return supplyAsync(() -> wrap(em -> findAllByUser(em, email)), executionContext);
+    public CompletionStage<Stream<ChatDialogue>> getRecentByThread(String email, String threadId, int limit) {
+        return supplyAsync(() -> wrap(em -> findRecentByThread(em, email, threadId, limit)), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<Stream<ChatDialogue>> getIndexableAfter(Timestamp createdAt, long afterId, int limit) {
+        return supplyAsync(() -> read(em -> findIndexableAfter(em, createdAt, afterId, limit)), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<Optional<ChatDialogueDTO>> getByIdempotencyKey(String email, String idempotencyKey) {
+        return supplyAsync(() -> read(em -> findByIdempotencyKey(em, email, idempotencyKey)), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<Stream<ChatSearchResultDTO>> search(String email, String query, int offset, int limit) {
+        return supplyAsync(() -> wrap(em -> findMatches(em, email, query, offset, limit)), executionContext);
     }
 
     //--------------------------------------------------------------------------------
@@ -66,6 +205,24 @@ public class JPAChatDialogueRepository implements ChatDialogueRepository {
         return jpaApi.withTransaction(function);
     }
 
+    //--------------------------------------------------------------------------------
+    /**
+     * Executes a query in a transaction whose session loads entities read-only
+     * and is never flushed, so that nothing is snapshotted or dirty-checked.
+     *
+     * @param function The function to execute within the transaction.
+     * @return The result of the function execution.
+     */
+    //--------------------------------------------------------------------------------
+    private <T> T read(Function<EntityManager, T> function) {
+        return jpaApi.withTransaction(em -> {
+            Session session = em.unwrap(Session.class);
+            session.setDefaultReadOnly(true);
+            session.setHibernateFlushMode(FlushMode.MANUAL);
+            return function.apply(em);
+        });
+    }
+
     //--------------------------------------------------------------------------------
     /**
      * Inserts a ChatDialogue entity into the database.
@@ -82,17 +239,221 @@ public class JPAChatDialogueRepository implements ChatDialogueRepository {
 
     //--------------------------------------------------------------------------------
     /**
-     * Finds all chat dialogues for a specific user.
+     * Finds one page of chat dialogues for a specific user, newest first. The
+     * keyset predicate and ordering match the (email, createdAt, id) index.
      *
      * @param em The EntityManager used to execute the query.
      * @param email The email of the user whose chat dialogues to retrieve.
+     * @param before The cursor to continue after, or null for the newest page.
+     * @param limit The maximum number of chat dialogues to retrieve.
+     * @return A stream of ChatDialogueDTO objects.
+     */
+    //--------------------------------------------------------------------------------
+    private Stream<ChatDialogueDTO> findPageByUser(EntityManager em, String email, ChatHistoryCursor before, int limit) {
+        TypedQuery<ChatDialogueDTO> query;
+        if (before == null) {
+            query = em.createQuery(
+                SELECT_DTO + " WHERE c.email = :email ORDER BY c.createdAt DESC, c.id DESC",
+                ChatDialogueDTO.class);
+        } else {
+            query = em.createQuery(
+                SELECT_DTO + " WHERE c.email = :email" +
+                    " AND (c.createdAt < :createdAt OR (c.createdAt = :createdAt AND c.id < :id))" +
+                    " ORDER BY c.createdAt DESC, c.id DESC",
+                ChatDialogueDTO.class);
+            query.setParameter("createdAt", before.getCreatedAt());
+            query.setParameter("id", before.getId());
+        }
+        query.setParameter("email", email);
+        query.setMaxResults(limit);
+        List<ChatDialogueDTO> chatRequests = query.getResultList();
+        return chatRequests.stream();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Finds one chunk of a user's chat dialogues, oldest first. The keyset
+     * predicate and ordering match the (email, createdAt, id) index.
+     *
+     * @param em The EntityManager used to execute the query.
+     * @param email The email of the user whose chat dialogues to retrieve.
+     * @param after The last chat dialogue of the previous chunk, or null for the first chunk.
+     * @param limit The maximum number of chat dialogues to retrieve.
+     * @return The chat dialogues, fewer than the limit only at the end of the history.
+     */
+    //--------------------------------------------------------------------------------
+    private List<ChatDialogueDTO> findChunkByUser(EntityManager em, String email, ChatHistoryCursor after, int limit) {
+        TypedQuery<ChatDialogueDTO> query;
+        if (after == null) {
+            query = em.createQuery(
+                SELECT_DTO + " WHERE c.email = :email ORDER BY c.createdAt, c.id",
+                ChatDialogueDTO.class);
+        } else {
+            query = em.createQuery(
+                SELECT_DTO + " WHERE c.email = :email" +
+                    " AND (c.createdAt > :createdAt OR (c.createdAt = :createdAt AND c.id > :id))" +
+                    " ORDER BY c.createdAt, c.id",
+                ChatDialogueDTO.class);
+            query.setParameter("createdAt", after.getCreatedAt());
+            query.setParameter("id", after.getId());
+        }
+        query.setParameter("email", email);
+        query.setMaxResults(limit);
+        return query.getResultList();
+    }
+
+    private static Optional<Pair<Optional<ChatHistoryCursor>, List<ChatDialogueDTO>>> continueAfter(
+        List<ChatDialogueDTO> chunk) {
+        if (chunk.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(Pair.create(Optional.of(ChatHistoryCursor.of(chunk.get(chunk.size() - 1))), chunk));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Finds the most recent chat dialogues of a conversation thread, newest first.
+     *
+     * @param em The EntityManager used to execute the query.
+     * @param email The email of the user owning the thread.
+     * @param threadId The id of the conversation thread.
+     * @param limit The maximum number of chat dialogues to retrieve.
      * @return A stream of ChatDialogue objects.
      */
     //--------------------------------------------------------------------------------
-    private Stream<ChatDialogue> findAllByUser(EntityManager em, String email) {
-        TypedQuery<ChatDialogue> query = em.createQuery("SELECT c FROM ChatDialogue c WHERE c.email = :email", ChatDialogue.class);
+    private Stream<ChatDialogue> findRecentByThread(EntityManager em, String email, String threadId, int limit) {
+        TypedQuery<ChatDialogue> query = em.createQuery(
+            "SELECT c FROM ChatDialogue c WHERE c.threadId = :threadId AND c.email = :email" +
+                " ORDER BY c.createdAt DESC, c.id DESC",
+            ChatDialogue.class);
+        query.setParameter("threadId", threadId);
         query.setParameter("email", email);
+        query.setMaxResults(limit);
+        List<ChatDialogue> chatRequests = query.getResultList();
+        return chatRequests.stream();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Finds the chat dialogue a user saved with the given idempotency key. The
+     * key's row in ChatDialogueKey gives the creation time, which confines the
+     * lookup to a single partition.
+     *
+     * @param em The EntityManager used to execute the query.
+     * @param email The email of the user.
+     * @param idempotencyKey The idempotency key of the request.
+     * @return The ChatDialogueDTO, or empty if there is none.
+     */
+    //--------------------------------------------------------------------------------
+    private Optional<ChatDialogueDTO> findByIdempotencyKey(EntityManager em, String email, String idempotencyKey) {
+        Query keyQuery = em.createNativeQuery(
+            "SELECT dialogueId, createdAt FROM ChatDialogueKey WHERE email = :email AND idempotencyKey = :idempotencyKey");
+        keyQuery.setParameter("email", email);
+        keyQuery.setParameter("idempotencyKey", idempotencyKey);
+        List<?> keys = keyQuery.getResultList();
+        if (keys.isEmpty()) {
+            return Optional.empty();
+        }
+        Object[] key = (Object[]) keys.get(0);
+
+        TypedQuery<ChatDialogueDTO> query = em.createQuery(
+            SELECT_DTO + " WHERE c.id = :id AND c.createdAt = :createdAt", ChatDialogueDTO.class);
+        query.setParameter("id", ((Number) key[0]).longValue());
+        query.setParameter("createdAt", (Timestamp) key[1]);
+        return query.getResultList().stream().findFirst();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Finds indexable chat dialogues of all users after the given position, in
+     * creation order. The predicate and ordering match the partial
+     * (createdAt, id) index over indexable dialogues.
+     *
+     * @param em The EntityManager used to execute the query.
+     * @param createdAt The creation time to continue after.
+     * @param afterId The id to continue after among dialogues created at createdAt.
+     * @param limit The maximum number of chat dialogues to retrieve.
+     * @return A stream of ChatDialogue objects.
+     */
+    //--------------------------------------------------------------------------------
+    private Stream<ChatDialogue> findIndexableAfter(EntityManager em, Timestamp createdAt, long afterId, int limit) {
+        TypedQuery<ChatDialogue> query = em.createQuery(
+            "SELECT c FROM ChatDialogue c WHERE c.indexable = true"
+                + " AND (c.createdAt > :createdAt OR (c.createdAt = :createdAt AND c.id > :afterId))"
+                + " ORDER BY c.createdAt, c.id",
+            ChatDialogue.class);
+        query.setParameter("createdAt", createdAt);
+        query.setParameter("afterId", afterId);
+        query.setMaxResults(limit);
         List<ChatDialogue> chatRequests = query.getResultList();
         return chatRequests.stream();
     }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Finds one page of a user's chat dialogues matching a search, best matches
+     * first. Matches are ranked in the inner query and only the rows of the
+     * page are highlighted, since ts_headline re-parses the full text.
+     *
+     * @param em The EntityManager used to execute the query.
+     * @param email The email of the user whose chat dialogues to search.
+     * @param query The search words, in web search syntax.
+     * @param offset The number of best matches to skip.
+     * @param limit The maximum number of matches to retrieve.
+     * @return A stream of ChatSearchResultDTO objects.
+     */
+    //--------------------------------------------------------------------------------
+    private Stream<ChatSearchResultDTO> findMatches(EntityManager em, String email, String query, int offset, int limit) {
+        Query search = em.createNativeQuery(
+            "SELECT m.id, ts_headline('" + SEARCH_CONFIG + "', m.question, m.q, :questionOptions),"
+                + " ts_headline('" + SEARCH_CONFIG + "', coalesce(m.response, ''), m.q, :responseOptions),"
+                + " m.createdAt, m.threadId, m.rank"
+                + " FROM (SELECT c.id, c.question, c.response, c.createdAt, c.threadId, w.q,"
+                + "       ts_rank_cd(c.search_vector, w.q) AS rank"
+                + "       FROM ChatDialogue c, websearch_to_tsquery('" + SEARCH_CONFIG + "', :query) AS w(q)"
+                + "       WHERE c.email = :email AND c.search_vector @@ w.q"
+                + "       ORDER BY rank DESC, c.id DESC"
+                + "       OFFSET :offset LIMIT :limit) m"
+                + " ORDER BY m.rank DESC, m.id DESC");
+        search.setParameter("questionOptions", QUESTION_HEADLINE_OPTIONS);
+        search.setParameter("responseOptions", RESPONSE_HEADLINE_OPTIONS);
+        search.setParameter("query", query);
+        search.setParameter("email", email);
+        search.setParameter("offset", offset);
+        search.setParameter("limit", limit);
+
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = search.getResultList();
+        return rows.stream().map(row -> new ChatSearchResultDTO(
+            ((Number) row[0]).longValue(),
+            highlight((String) row[1]),
+            highlight((String) row[2]),
+            (Timestamp) row[3],
+            (String) row[4],
+            ((Number) row[5]).doubleValue()
+        ));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * HTML-escapes a ts_headline snippet and turns its highlight markers into
+     * mark elements.
+     *
+     * @param snippet The snippet with highlight markers.
+     * @return The HTML-safe snippet.
+     */
+    //--------------------------------------------------------------------------------
+    static String highlight(String snippet) {
+        if (snippet == null) {
+            return null;
+        }
+        return snippet
+            .replace("&", "&amp;")
+            .replace("<", "&lt;")
+            .replace(">", "&gt;")
+            .replace("\"", "&quot;")
+            .replace("'", "&#39;")
+            .replace(HIGHLIGHT_START, "<mark>")
+            .replace(HIGHLIGHT_STOP, "</mark>");
+    }
 }
@@ -0,0 +1,250 @@
+package dao;
+
+import dto.ChatDialogueDTO;
+import dto.ChatJobDTO;
+import models.ChatDialogue;
+import models.ChatJob;
+import models.ChatJobStatus;
+import play.db.jpa.JPAApi;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+
+//--------------------------------------------------------------------------------
+/**
+ * Repository implementation for ChatJob entities using JPA on PostgreSQL.
+ * Workers claim jobs with SELECT ... FOR UPDATE SKIP LOCKED, so that several
+ * instances drain the queue concurrently without claiming the same job and
+ * without waiting on each other's row locks.
+ */
+//--------------------------------------------------------------------------------
+public class JPAChatJobRepository implements ChatJobRepository {
+
+    private final JPAApi jpaApi;
+    private final DatabaseExecutionContext executionContext;
+
+    @Inject
+    public JPAChatJobRepository(JPAApi jpaApi, DatabaseExecutionContext executionContext) {
+        this.jpaApi = jpaApi;
+        this.executionContext = executionContext;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<ChatJob> enqueue(ChatJob chatJob) {
+        return supplyAsync(() -> {
+            try {
+                return wrap(em -> findByIdempotencyKey(em, chatJob).orElseGet(() -> {
+                    chatJob.setStatus(ChatJobStatus.PENDING);
+                    em.persist(chatJob);
+                    em.flush();
+                    return chatJob;
+                }));
+            } catch (PersistenceException e) {
+                // A concurrent submission with the same key was inserted first
+                if (chatJob.getIdempotencyKey() == null) {
+                    throw e;
+                }
+                return wrap(em -> findByIdempotencyKey(em, chatJob)).orElseThrow(() -> e);
+            }
+        }, executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<List<ChatJob>> claim(int limit, Duration lease, int maxAttempts) {
+        return supplyAsync(() -> wrap(em -> claimJobs(em, limit, lease, maxAttempts)), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<Void> complete(Long id, Long dialogueId) {
+        return supplyAsync(() -> wrap(em -> {
+            em.createQuery("UPDATE ChatJob j SET j.status = :status, j.dialogueId = :dialogueId," +
+                    " j.error = null, j.leaseExpiresAt = null, j.finishedAt = :now WHERE j.id = :id")
+                .setParameter("status", ChatJobStatus.DONE)
+                .setParameter("dialogueId", dialogueId)
+                .setParameter("now", now())
+                .setParameter("id", id)
+                .executeUpdate();
+            return null;
+        }), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<Void> release(Long id, String error) {
+        return supplyAsync(() -> wrap(em -> {
+            em.createQuery("UPDATE ChatJob j SET j.status = :status, j.error = :error, j.leaseExpiresAt = null" +
+                    " WHERE j.id = :id AND j.status = :running")
+                .setParameter("status", ChatJobStatus.PENDING)
+                .setParameter("error", error)
+                .setParameter("id", id)
+                .setParameter("running", ChatJobStatus.RUNNING)
+                .executeUpdate();
+            return null;
+        }), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<Optional<ChatJobDTO>> getByIdAndEmail(Long id, String email) {
+        return supplyAsync(() -> wrap(em -> findByIdAndEmail(em, id, email)), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<Integer> deleteFinishedBefore(Timestamp finishedBefore) {
+        return supplyAsync(() -> wrap(em -> em
+            .createQuery("DELETE FROM ChatJob j WHERE j.status IN :statuses AND j.finishedAt < :finishedBefore")
+            .setParameter("statuses", List.of(ChatJobStatus.DONE, ChatJobStatus.FAILED))
+            .setParameter("finishedBefore", finishedBefore)
+            .executeUpdate()), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Wraps a database operation in a transaction and executes it.
+     *
+     * @param function The function to execute within a transaction.
+     * @return The result of the function execution.
+     */
+    //--------------------------------------------------------------------------------
+    private <T> T wrap(Function<EntityManager, T> function) {
+        return jpaApi.withTransaction(function);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Locks the claimable jobs and marks them running, in one transaction. The
+     * (status, id) index serves the scan for pending jobs in queue order.
+     *
+     * @param em The EntityManager used to execute the queries.
+     * @param limit The maximum number of jobs to claim.
+     * @param lease How long the claim lasts.
+     * @param maxAttempts The attempts after which a job is given up.
+     * @return The claimed jobs.
+     */
+    //--------------------------------------------------------------------------------
+    private List<ChatJob> claimJobs(EntityManager em, int limit, Duration lease, int maxAttempts) {
+        Timestamp now = now();
+        Query query = em.createNativeQuery(
+            "SELECT * FROM ChatJob"
+                + " WHERE status = 'PENDING' OR (status = 'RUNNING' AND leaseExpiresAt < :now)"
+                + " ORDER BY id LIMIT :limit FOR UPDATE SKIP LOCKED",
+            ChatJob.class);
+        query.setParameter("now", now);
+        query.setParameter("limit", limit);
+
+        @SuppressWarnings("unchecked")
+        List<ChatJob> locked = query.getResultList();
+        List<ChatJob> claimed = new ArrayList<>(locked.size());
+        for (ChatJob chatJob : locked) {
+            if (chatJob.getAttempts() >= maxAttempts) {
+                chatJob.setStatus(ChatJobStatus.FAILED);
+                chatJob.setError("Gave up after " + chatJob.getAttempts() + " attempts: " + chatJob.getError());
+                chatJob.setLeaseExpiresAt(null);
+                chatJob.setFinishedAt(now);
+                continue;
+            }
+            chatJob.setStatus(ChatJobStatus.RUNNING);
+            chatJob.setAttempts(chatJob.getAttempts() + 1);
+            chatJob.setLeaseExpiresAt(new Timestamp(now.getTime() + lease.toMillis()));
+            claimed.add(chatJob);
+        }
+        return claimed;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Finds the job submitted earlier with the idempotency key of a new job.
+     * The unique (email, idempotencyKey) index serves the lookup.
+     *
+     * @param em The EntityManager used to execute the query.
+     * @param chatJob The new job.
+     * @return The earlier job, or empty if there is none or the new job has no
+     *         idempotency key.
+     */
+    //--------------------------------------------------------------------------------
+    private Optional<ChatJob> findByIdempotencyKey(EntityManager em, ChatJob chatJob) {
+        if (chatJob.getIdempotencyKey() == null) {
+            return Optional.empty();
+        }
+        return em.createQuery(
+                "SELECT j FROM ChatJob j WHERE j.email = :email AND j.idempotencyKey = :idempotencyKey",
+                ChatJob.class)
+            .setParameter("email", chatJob.getEmail())
+            .setParameter("idempotencyKey", chatJob.getIdempotencyKey())
+            .getResultList()
+            .stream()
+            .findFirst();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Finds a job of a user, joined with its dialogue if it is done.
+     *
+     * @param em The EntityManager used to execute the query.
+     * @param id The id of the job.
+     * @param email The email of the user who submitted the job.
+     * @return The ChatJobDTO, or empty if there is none.
+     */
+    //--------------------------------------------------------------------------------
+    private Optional<ChatJobDTO> findByIdAndEmail(EntityManager em, Long id, String email) {
+        List<Object[]> rows = em.createQuery(
+                "SELECT j, d FROM ChatJob j LEFT JOIN ChatDialogue d ON d.id = j.dialogueId" +
+                    " WHERE j.id = :id AND j.email = :email",
+                Object[].class)
+            .setParameter("id", id)
+            .setParameter("email", email)
+            .getResultList();
+        return rows.stream().findFirst().map(row -> {
+            ChatJob chatJob = (ChatJob) row[0];
+            ChatDialogue chatDialogue = (ChatDialogue) row[1];
+            return new ChatJobDTO(
+                chatJob.getId(),
+                chatJob.getStatus(),
+                chatJob.getCreatedAt(),
+                chatDialogue != null ? ChatDialogueDTO.of(chatDialogue) : null,
+                chatJob.getStatus() == ChatJobStatus.FAILED ? chatJob.getError() : null
+            );
+        });
+    }
+
+    private static Timestamp now() {
+        return new Timestamp(System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,290 @@
+package dao;
+
+import lombok.extern.slf4j.Slf4j;
+import play.db.jpa.JPAApi;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+
+//--------------------------------------------------------------------------------
+/**
+ * Repository implementation for the ChatDialogue partitions on PostgreSQL.
+ * Partitions are named chatdialogue_yYYYYmMM after their month. Maintenance
+ * runs under a transaction-scoped advisory lock, so that instances started
+ * together do not create or archive the same partition twice. Rows that
+ * landed in ChatDialogue_default before their month's partition existed are
+ * moved into the partition when it is created, since PostgreSQL refuses to
+ * create a partition whose rows sit in the default partition.
+ * <p>
+ * Months whose rows have all been rewritten with LZ4 compression are recorded
+ * in ChatPartitionRecompressed, so that they are not scanned again.
+ */
+//--------------------------------------------------------------------------------
+@Slf4j
+public class JPAChatPartitionRepository implements ChatPartitionRepository {
+
+    private static final Pattern PARTITION_NAME = Pattern.compile("chatdialogue_y(\\d{4})m(\\d{2})");
+    private static final String LOCK = "SELECT pg_try_advisory_xact_lock(hashtext('ChatDialogue partitions'))";
+    private static final String COLUMNS = "SELECT string_agg(quote_ident(attname), ', ' ORDER BY attnum)"
+        + " FROM pg_attribute WHERE attrelid = to_regclass('chatdialogue') AND attnum > 0"
+        + " AND NOT attisdropped AND attgenerated = ''";
+
+    private final JPAApi jpaApi;
+    private final DatabaseExecutionContext executionContext;
+
+    @Inject
+    public JPAChatPartitionRepository(JPAApi jpaApi, DatabaseExecutionContext executionContext) {
+        this.jpaApi = jpaApi;
+        this.executionContext = executionContext;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<Integer> createPartitions(YearMonth from, YearMonth through) {
+        return supplyAsync(() -> wrap(em -> {
+            if (!tryLock(em)) {
+                return 0;
+            }
+            int created = 0;
+            for (YearMonth month = from; !month.isAfter(through); month = month.plusMonths(1)) {
+                if (!exists(em, month)) {
+                    createPartition(em, month);
+                    created++;
+                }
+            }
+            return created;
+        }), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates the partition of a month. If the default partition holds rows of
+     * the month, the partition is created as a standalone table first, the
+     * rows are moved into it and it is then attached, all in the caller's
+     * transaction. The moved rows keep their ids, so their idempotency keys
+     * stay valid; the key trigger does not fire for the standalone table.
+     *
+     * @param em    The EntityManager used to execute the statements.
+     * @param month The month of the partition.
+     */
+    //--------------------------------------------------------------------------------
+    private void createPartition(EntityManager em, YearMonth month) {
+        String partition = partitionName(month);
+        String bounds = "FROM ('" + month.atDay(1) + "') TO ('" + month.plusMonths(1).atDay(1) + "')";
+        String range = "createdAt >= '" + month.atDay(1) + "' AND createdAt < '" + month.plusMonths(1).atDay(1) + "'";
+
+        boolean strays = Boolean.TRUE.equals(em.createNativeQuery(
+                "SELECT EXISTS (SELECT 1 FROM ChatDialogue_default WHERE " + range + ")")
+            .getSingleResult());
+        if (!strays) {
+            em.createNativeQuery("CREATE TABLE " + partition + " PARTITION OF ChatDialogue FOR VALUES " + bounds)
+                .executeUpdate();
+            return;
+        }
+
+        String columns = (String) em.createNativeQuery(COLUMNS).getSingleResult();
+        em.createNativeQuery("CREATE TABLE " + partition + " (LIKE ChatDialogue INCLUDING ALL)")
+            .executeUpdate();
+        int moved = em.createNativeQuery("WITH moved AS (DELETE FROM ChatDialogue_default WHERE " + range
+                + " RETURNING " + columns + ")"
+                + " INSERT INTO " + partition + " (" + columns + ") SELECT " + columns + " FROM moved")
+            .executeUpdate();
+        em.createNativeQuery("ALTER TABLE ChatDialogue ATTACH PARTITION " + partition + " FOR VALUES " + bounds)
+            .executeUpdate();
+        log.info("Moved {} chat dialogues from the default partition into {}", moved, partition);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<List<YearMonth>> listPartitions() {
+        return supplyAsync(() -> wrap(em -> {
+            List<?> names = em.createNativeQuery("SELECT c.relname FROM pg_inherits i"
+                    + " JOIN pg_class c ON c.oid = i.inhrelid"
+                    + " WHERE i.inhparent = to_regclass('chatdialogue')")
+                .getResultList();
+            List<YearMonth> months = new ArrayList<>();
+            for (Object name : names) {
+                YearMonth month = monthOf(name.toString());
+                if (month != null) {
+                    months.add(month);
+                }
+            }
+            Collections.sort(months);
+            return months;
+        }), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<Integer> archivePartition(YearMonth month) {
+        return supplyAsync(() -> wrap(em -> archive(em, month)), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<Long> recompress(YearMonth month, long afterId, int limit) {
+        return supplyAsync(() -> wrap(em -> recompressBatch(em, month, afterId, limit)), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Rewrites the rows of a batch whose question or response is still
+     * compressed with pglz. Concatenating an empty string makes PostgreSQL
+     * store a new value, which it compresses with the column's current method;
+     * an unchanged value would keep its old compression.
+     *
+     * @param em      The EntityManager used to execute the statements.
+     * @param month   The month of the partition.
+     * @param afterId The id the batch starts after.
+     * @param limit   The rows examined in the batch.
+     * @return The highest id examined, or null if there were no more rows, the
+     *         month was recompressed before or the columns are not compressed
+     *         with LZ4. A month without more rows is recorded as recompressed.
+     */
+    //--------------------------------------------------------------------------------
+    private Long recompressBatch(EntityManager em, YearMonth month, long afterId, int limit) {
+        if (!exists(em, month) || !usesLz4(em) || isRecompressed(em, month)) {
+            return null;
+        }
+        String partition = partitionName(month);
+
+        Object lastId = em.createNativeQuery("WITH batch AS ("
+                + "SELECT id, createdAt FROM " + partition + " WHERE id > :afterId ORDER BY id LIMIT :limit),"
+                + " rewritten AS (UPDATE " + partition + " p SET question = p.question || '', response = p.response || ''"
+                + " FROM batch WHERE p.id = batch.id AND p.createdAt = batch.createdAt"
+                + " AND (pg_column_compression(p.question) = 'pglz' OR pg_column_compression(p.response) = 'pglz'))"
+                + " SELECT max(id) FROM batch")
+            .setParameter("afterId", afterId)
+            .setParameter("limit", limit)
+            .getSingleResult();
+        if (lastId == null) {
+            em.createNativeQuery("INSERT INTO ChatPartitionRecompressed (period) VALUES (:period) ON CONFLICT DO NOTHING")
+                .setParameter("period", Date.valueOf(month.atDay(1)))
+                .executeUpdate();
+            return null;
+        }
+        return ((Number) lastId).longValue();
+    }
+
+    private static boolean isRecompressed(EntityManager em, YearMonth month) {
+        return !em.createNativeQuery("SELECT 1 FROM ChatPartitionRecompressed WHERE period = :period")
+            .setParameter("period", Date.valueOf(month.atDay(1)))
+            .getResultList()
+            .isEmpty();
+    }
+
+    private static boolean usesLz4(EntityManager em) {
+        int version = ((Number) em.createNativeQuery("SELECT CAST(current_setting('server_version_num') AS integer)")
+            .getSingleResult()).intValue();
+        return version >= 140000 && Boolean.TRUE.equals(em.createNativeQuery("SELECT attcompression = 'l' FROM pg_attribute"
+                + " WHERE attrelid = to_regclass('chatdialogue') AND attname = 'response'")
+            .getSingleResult());
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Archives a partition. The dialogues of each user are aggregated into one
+     * JSON array in creation order, which PostgreSQL compresses as a whole.
+     * The idempotency keys of the month are released along with them.
+     *
+     * @param em    The EntityManager used to execute the statements.
+     * @param month The month to archive.
+     * @return The number of dialogues archived.
+     */
+    //--------------------------------------------------------------------------------
+    private int archive(EntityManager em, YearMonth month) {
+        if (!tryLock(em) || !exists(em, month)) {
+            return 0;
+        }
+        String partition = partitionName(month);
+
+        int dialogues = ((Number) em.createNativeQuery("SELECT count(*) FROM " + partition)
+            .getSingleResult()).intValue();
+        em.createNativeQuery("INSERT INTO ChatDialogueArchive (period, email, dialogueCount, dialogues)"
+                + " SELECT :period, email, count(*), CAST(json_agg(json_build_object("
+                + "'id', id, 'instruction', instruction, 'question', question, 'response', response,"
+                + " 'createdAt', createdAt, 'threadId', threadId, 'idempotencyKey', idempotencyKey)"
+                + " ORDER BY createdAt, id) AS text)"
+                + " FROM " + partition + " GROUP BY email")
+            .setParameter("period", Date.valueOf(month.atDay(1)))
+            .executeUpdate();
+        em.createNativeQuery("DELETE FROM ChatDialogueKey WHERE createdAt >= :from AND createdAt < :to")
+            .setParameter("from", Timestamp.valueOf(month.atDay(1).atStartOfDay()))
+            .setParameter("to", Timestamp.valueOf(month.plusMonths(1).atDay(1).atStartOfDay()))
+            .executeUpdate();
+        em.createNativeQuery("DELETE FROM ChatPartitionRecompressed WHERE period = :period")
+            .setParameter("period", Date.valueOf(month.atDay(1)))
+            .executeUpdate();
+        em.createNativeQuery("ALTER TABLE ChatDialogue DETACH PARTITION " + partition).executeUpdate();
+        em.createNativeQuery("DROP TABLE " + partition).executeUpdate();
+        return dialogues;
+    }
+
+    private static boolean tryLock(EntityManager em) {
+        return Boolean.TRUE.equals(em.createNativeQuery(LOCK).getSingleResult());
+    }
+
+    private static boolean exists(EntityManager em, YearMonth month) {
+        return Boolean.TRUE.equals(em.createNativeQuery("SELECT to_regclass(:name) IS NOT NULL")
+            .setParameter("name", partitionName(month))
+            .getSingleResult());
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the name of a month's partition.
+     *
+     * @param month the month.
+     * @return the partition name, in lower case as PostgreSQL stores it.
+     */
+    //--------------------------------------------------------------------------------
+    static String partitionName(YearMonth month) {
+        return String.format("chatdialogue_y%04dm%02d", month.getYear(), month.getMonthValue());
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the month of a partition.
+     *
+     * @param partitionName the partition name.
+     * @return the month, or null if the name is not one of a monthly partition.
+     */
+    //--------------------------------------------------------------------------------
+    static YearMonth monthOf(String partitionName) {
+        Matcher matcher = PARTITION_NAME.matcher(partitionName);
+        if (!matcher.matches()) {
+            return null;
+        }
+        return YearMonth.of(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+    }
+
+    private <T> T wrap(Function<EntityManager, T> function) {
+        return jpaApi.withTransaction(function);
+    }
+}
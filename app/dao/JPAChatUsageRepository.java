@@ -0,0 +1,117 @@
+package dao;
+
+import dto.ChatUsageDTO;
+import play.db.jpa.JPAApi;
+
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+
+//--------------------------------------------------------------------------------
+/**
+ * Repository implementation for the usage counters on PostgreSQL. Counts are
+ * added with an upsert, so that instances flushing the same user at the same
+ * time add up instead of overwriting each other, and rows are written in key
+ * order, so that such flushes cannot deadlock.
+ */
+//--------------------------------------------------------------------------------
+public class JPAChatUsageRepository implements ChatUsageRepository {
+
+    private static final String UPSERT = "INSERT INTO ChatUsage (email, windowStart, requests, promptTokens, completionTokens)"
+        + " VALUES (:email, :windowStart, :requests, :promptTokens, :completionTokens)"
+        + " ON CONFLICT (email, windowStart) DO UPDATE SET"
+        + " requests = ChatUsage.requests + EXCLUDED.requests,"
+        + " promptTokens = ChatUsage.promptTokens + EXCLUDED.promptTokens,"
+        + " completionTokens = ChatUsage.completionTokens + EXCLUDED.completionTokens,"
+        + " updatedAt = now()"
+        + " RETURNING requests, promptTokens, completionTokens";
+    private static final String SELECT = "SELECT requests, promptTokens, completionTokens FROM ChatUsage"
+        + " WHERE email = :email AND windowStart = :windowStart";
+
+    private final JPAApi jpaApi;
+    private final DatabaseExecutionContext executionContext;
+
+    @Inject
+    public JPAChatUsageRepository(JPAApi jpaApi, DatabaseExecutionContext executionContext) {
+        this.jpaApi = jpaApi;
+        this.executionContext = executionContext;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<List<ChatUsageDTO>> addUsage(List<ChatUsageDTO> usages) {
+        return supplyAsync(() -> wrap(em -> {
+            Integer[] order = new Integer[usages.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparing((Integer i) -> usages.get(i).getEmail())
+                .thenComparing(i -> usages.get(i).getWindowStart()));
+
+            List<ChatUsageDTO> totals = new ArrayList<>(usages.size());
+            for (int i = 0; i < order.length; i++) {
+                totals.add(null);
+            }
+            for (Integer i : order) {
+                totals.set(i, add(em, usages.get(i)));
+            }
+            return totals;
+        }), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<Optional<ChatUsageDTO>> getUsage(String email, Timestamp windowStart) {
+        return supplyAsync(() -> wrap(em -> {
+            @SuppressWarnings("unchecked")
+            List<Object[]> rows = em.createNativeQuery(SELECT)
+                .setParameter("email", email)
+                .setParameter("windowStart", windowStart)
+                .getResultList();
+            return rows.stream().findFirst().map(row -> new ChatUsageDTO(email, windowStart,
+                ((Number) row[0]).longValue(), ((Number) row[1]).longValue(), ((Number) row[2]).longValue()));
+        }), executionContext);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Adds the counts of one user and window.
+     *
+     * @param em    The EntityManager used to execute the statement.
+     * @param usage The counts to add.
+     * @return The totals after the addition.
+     */
+    //--------------------------------------------------------------------------------
+    private ChatUsageDTO add(EntityManager em, ChatUsageDTO usage) {
+        Object[] row = (Object[]) em.createNativeQuery(UPSERT)
+            .setParameter("email", usage.getEmail())
+            .setParameter("windowStart", usage.getWindowStart())
+            .setParameter("requests", usage.getRequests())
+            .setParameter("promptTokens", usage.getPromptTokens())
+            .setParameter("completionTokens", usage.getCompletionTokens())
+            .getSingleResult();
+        return new ChatUsageDTO(usage.getEmail(), usage.getWindowStart(), ((Number) row[0]).longValue(),
+            ((Number) row[1]).longValue(), ((Number) row[2]).longValue());
+    }
+
+    private <T> T wrap(Function<EntityManager, T> function) {
+        return jpaApi.withTransaction(function);
+    }
+}
@@ -0,0 +1,142 @@
+package dao;
+
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pekko.dispatch.DispatcherPrerequisites;
+import org.apache.pekko.dispatch.ExecutorServiceConfigurator;
+import org.apache.pekko.dispatch.ExecutorServiceFactory;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+//--------------------------------------------------------------------------------
+/**
+ * Pekko executor that runs every task of a dispatcher on its own virtual
+ * thread. Select it for a dispatcher with
+ * {@code executor = "dao.VirtualThreadExecutorServiceConfigurator"}.
+ * <p>
+ * Tasks wait for a permit of a semaphore sized by
+ * {@code virtual-thread-executor.max-concurrency} before they run, so that no
+ * more tasks block on the connection pool than it has connections. Waiting
+ * tasks park their virtual thread instead of holding a platform thread.
+ * <p>
+ * Virtual threads require Java 21. On older runtimes the dispatcher falls
+ * back to a fixed pool of max-concurrency platform threads.
+ */
+//--------------------------------------------------------------------------------
+@Slf4j
+public class VirtualThreadExecutorServiceConfigurator extends ExecutorServiceConfigurator {
+
+    private final int maxConcurrency;
+
+    public VirtualThreadExecutorServiceConfigurator(Config config, DispatcherPrerequisites prerequisites) {
+        super(config, prerequisites);
+        this.maxConcurrency = config.getInt("virtual-thread-executor.max-concurrency");
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates the factory of the dispatcher's executor service.
+     *
+     * @param id            the dispatcher id, used as the thread name prefix.
+     * @param threadFactory the dispatcher's platform thread factory, used for
+     *                      the fallback pool.
+     * @return the executor service factory.
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public ExecutorServiceFactory createExecutorServiceFactory(String id, ThreadFactory threadFactory) {
+        return () -> {
+            ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor(id);
+            if (virtualThreads == null) {
+                log.warn("Virtual threads are not available on Java {}, dispatcher {} uses {} platform threads",
+                    Runtime.version().feature(), id, maxConcurrency);
+                return Executors.newFixedThreadPool(maxConcurrency, threadFactory);
+            }
+            return new GuardedExecutorService(virtualThreads, maxConcurrency);
+        };
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates an executor starting a new named virtual thread per task. The JDK
+     * API is looked up reflectively so that the application still runs on
+     * Java 17.
+     *
+     * @param id the thread name prefix.
+     * @return the executor, or null if the runtime has no virtual threads.
+     */
+    //--------------------------------------------------------------------------------
+    static ExecutorService newVirtualThreadPerTaskExecutor(String id) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, id + "-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Executor service that lets at most a fixed number of tasks run at once.
+     * Tasks are started on the delegate immediately and wait for a permit on
+     * their own thread.
+     */
+    //--------------------------------------------------------------------------------
+    static final class GuardedExecutorService extends AbstractExecutorService {
+        private final ExecutorService delegate;
+        private final Semaphore permits;
+
+        GuardedExecutorService(ExecutorService delegate, int maxConcurrency) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxConcurrency, true);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(() -> {
+                permits.acquireUninterruptibly();
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+//--------------------------------------------------------------------------------
+/**
+ * The outcome of one query of a batch: the saved dialogue, or the reason the
+ * query failed. The index is the query's position in the submitted array,
+ * since results are returned in completion order.
+ */
+//--------------------------------------------------------------------------------
+@Data
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ChatBatchResultDTO {
+    private long index;
+    private ChatDialogueDTO dialogue;
+    private String error;
+}
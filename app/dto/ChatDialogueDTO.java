@@ -1,16 +1,63 @@
 package dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import models.ChatDialogue;
 
 import java.sql.Timestamp;
 
 @Data
 @AllArgsConstructor
 public class ChatDialogueDTO {
+    private Long id;
     private String instruction;
     private String question;
     private String response;
     private Timestamp createdAt;
     private String email;
+    private String threadId;
+    @JsonIgnore
+    private String idempotencyKey;
+
+    public ChatDialogueDTO(Long id, String instruction, String question, String response, Timestamp createdAt,
+                           String email, String threadId) {
+        this(id, instruction, question, response, createdAt, email, threadId, null);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Converts a ChatDialogue entity to a ChatDialogueDTO.
+     *
+     * @param chatDialogue The ChatDialogue entity to be converted.
+     * @return The corresponding ChatDialogueDTO.
+     */
+    //--------------------------------------------------------------------------------
+    public static ChatDialogueDTO of(ChatDialogue chatDialogue) {
+        return of(chatDialogue, chatDialogue.getIdempotencyKey());
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Converts a ChatDialogue entity to a ChatDialogueDTO carrying the
+     * idempotency key its request was sent with, which is not serialized.
+     *
+     * @param chatDialogue   The ChatDialogue entity to be converted.
+     * @param idempotencyKey The idempotency key of the request, which the
+     *                       entity lacks if it was saved without it.
+     * @return The corresponding ChatDialogueDTO.
+     */
+    //--------------------------------------------------------------------------------
+    public static ChatDialogueDTO of(ChatDialogue chatDialogue, String idempotencyKey) {
+        return new ChatDialogueDTO(
+            chatDialogue.getId(),
+            chatDialogue.getInstruction(),
+            chatDialogue.getQuestion(),
+            chatDialogue.getResponse(),
+            chatDialogue.getCreatedAt(),
+            chatDialogue.getEmail(),
+            chatDialogue.getThreadId(),
+            idempotencyKey
+        );
+    }
 }
@@ -0,0 +1,74 @@
+package dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+//--------------------------------------------------------------------------------
+/**
+ * Position in a user's chat history, used for keyset pagination. A cursor
+ * points at a dialogue by its creation time and id; the page after it contains
+ * the dialogues that are strictly older. Cursors are exchanged with clients as
+ * opaque URL-safe strings.
+ */
+//--------------------------------------------------------------------------------
+@Data
+@AllArgsConstructor
+public class ChatHistoryCursor {
+    private Timestamp createdAt;
+    private Long id;
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates the cursor pointing at the given dialogue.
+     *
+     * @param chatDialogueDTO the dialogue to point at.
+     * @return the cursor.
+     */
+    //--------------------------------------------------------------------------------
+    public static ChatHistoryCursor of(ChatDialogueDTO chatDialogueDTO) {
+        return new ChatHistoryCursor(chatDialogueDTO.getCreatedAt(), chatDialogueDTO.getId());
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Encodes the cursor as an opaque URL-safe string. The creation time keeps
+     * its full precision so that no dialogue is skipped or repeated.
+     *
+     * @return the encoded cursor.
+     */
+    //--------------------------------------------------------------------------------
+    public String encode() {
+        String raw = createdAt.toInstant() + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Decodes a cursor previously produced by {@link #encode()}.
+     *
+     * @param encoded the encoded cursor.
+     * @return the decoded cursor.
+     * @throws IllegalArgumentException if the string is not a valid cursor.
+     */
+    //--------------------------------------------------------------------------------
+    public static ChatHistoryCursor decode(String encoded) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+            int separator = raw.indexOf('|');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid history cursor: " + encoded);
+            }
+            Timestamp createdAt = Timestamp.from(Instant.parse(raw.substring(0, separator)));
+            Long id = Long.valueOf(raw.substring(separator + 1));
+            return new ChatHistoryCursor(createdAt, id);
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid history cursor: " + encoded, e);
+        }
+    }
+}
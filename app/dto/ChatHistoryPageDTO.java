@@ -0,0 +1,13 @@
+package dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class ChatHistoryPageDTO {
+    private List<ChatDialogueDTO> items;
+    private String nextCursor;
+}
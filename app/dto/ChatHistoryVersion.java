@@ -0,0 +1,35 @@
+package dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.sql.Timestamp;
+
+//--------------------------------------------------------------------------------
+/**
+ * Identifies the state of a user's chat history: the number of dialogues and
+ * the highest id and creation time among them. Ids are allocated in blocks per
+ * instance, so a new dialogue does not necessarily raise the highest id, but
+ * it always raises the count.
+ */
+//--------------------------------------------------------------------------------
+@Data
+@AllArgsConstructor
+public class ChatHistoryVersion {
+    private Long count;
+    private Long maxId;
+    private Timestamp maxCreatedAt;
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Encodes the version as a compact token for entity tags.
+     *
+     * @return the token.
+     */
+    //--------------------------------------------------------------------------------
+    public String token() {
+        return Long.toString(count, 36)
+            + "-" + Long.toString(maxId != null ? maxId : 0, 36)
+            + "-" + Long.toString(maxCreatedAt != null ? maxCreatedAt.getTime() : 0, 36);
+    }
+}
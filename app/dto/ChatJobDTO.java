@@ -0,0 +1,25 @@
+package dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import models.ChatJobStatus;
+
+import java.sql.Timestamp;
+
+//--------------------------------------------------------------------------------
+/**
+ * The state of a chat query submitted as an asynchronous job. Once the job is
+ * DONE it carries the saved dialogue; once it has FAILED, the reason.
+ */
+//--------------------------------------------------------------------------------
+@Data
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ChatJobDTO {
+    private Long id;
+    private ChatJobStatus status;
+    private Timestamp createdAt;
+    private ChatDialogueDTO dialogue;
+    private String error;
+}
@@ -1,13 +1,20 @@
 package dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.time.Instant;
+
 @Data
 @AllArgsConstructor
 @NoArgsConstructor
 public class ChatQueryDTO {
     private String instruction;
     private String question;
+    private String threadId;
+    private String idempotencyKey;
+    @JsonIgnore
+    private Instant deadline;
 }
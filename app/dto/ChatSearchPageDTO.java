@@ -0,0 +1,13 @@
+package dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class ChatSearchPageDTO {
+    private List<ChatSearchResultDTO> items;
+    private Integer nextOffset;
+}
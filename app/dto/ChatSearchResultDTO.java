@@ -0,0 +1,24 @@
+package dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.sql.Timestamp;
+
+//--------------------------------------------------------------------------------
+/**
+ * A chat dialogue matching a history search. The snippets are HTML-escaped
+ * excerpts of the question and response with the matching words wrapped in
+ * {@code <mark>} elements.
+ */
+//--------------------------------------------------------------------------------
+@Data
+@AllArgsConstructor
+public class ChatSearchResultDTO {
+    private Long id;
+    private String questionSnippet;
+    private String responseSnippet;
+    private Timestamp createdAt;
+    private String threadId;
+    private double rank;
+}
@@ -0,0 +1,26 @@
+package dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.sql.Timestamp;
+
+//--------------------------------------------------------------------------------
+/**
+ * The requests and tokens of a user in one quota window, either counted since
+ * the last flush or in total.
+ */
+//--------------------------------------------------------------------------------
+@Data
+@AllArgsConstructor
+public class ChatUsageDTO {
+    private String email;
+    private Timestamp windowStart;
+    private long requests;
+    private long promptTokens;
+    private long completionTokens;
+
+    public long getTokens() {
+        return promptTokens + completionTokens;
+    }
+}
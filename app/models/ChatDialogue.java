@@ -15,7 +15,8 @@ import java.sql.Timestamp;
 public class ChatDialogue {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "chat_dialogue_seq")
+    @SequenceGenerator(name = "chat_dialogue_seq", sequenceName = "chat_dialogue_seq", allocationSize = 50)
     private Long id;
 
     @Column(nullable = false)
@@ -33,4 +34,17 @@ public class ChatDialogue {
 
     @Column(nullable = false)
     private String email;
+
+    @Column(length = 64)
+    private String threadId;
+
+    @Column(length = 64)
+    private String idempotencyKey;
+
+    private Integer promptTokens;
+
+    private Integer completionTokens;
+
+    @Column(nullable = false)
+    private boolean indexable;
 }
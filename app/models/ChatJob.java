@@ -0,0 +1,56 @@
+package models;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+
+import javax.persistence.*;
+import java.sql.Timestamp;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+public class ChatJob {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "chat_job_seq")
+    @SequenceGenerator(name = "chat_job_seq", sequenceName = "chat_job_seq", allocationSize = 1)
+    private Long id;
+
+    @Column(nullable = false)
+    private String email;
+
+    @Column(nullable = false)
+    private String instruction;
+
+    @Column(nullable = false, columnDefinition = "TEXT")
+    private String question;
+
+    @Column(length = 64)
+    private String threadId;
+
+    @Column(length = 64)
+    private String idempotencyKey;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private ChatJobStatus status;
+
+    @Column(nullable = false)
+    private int attempts;
+
+    private Long dialogueId;
+
+    @Column(columnDefinition = "TEXT")
+    private String error;
+
+    @Column(nullable = false)
+    @CreationTimestamp
+    private Timestamp createdAt;
+
+    private Timestamp leaseExpiresAt;
+
+    private Timestamp finishedAt;
+}
@@ -0,0 +1,18 @@
+package models;
+
+//--------------------------------------------------------------------------------
+/**
+ * The states of a queued chat job. A job is PENDING until a worker claims it,
+ * RUNNING while the worker holds its lease, and DONE or FAILED once finished.
+ */
+//--------------------------------------------------------------------------------
+public enum ChatJobStatus {
+    PENDING,
+    RUNNING,
+    DONE,
+    FAILED;
+
+    public boolean isFinished() {
+        return this == DONE || this == FAILED;
+    }
+}
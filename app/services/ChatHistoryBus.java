@@ -0,0 +1,62 @@
+package services;
+
+import com.google.inject.ImplementedBy;
+import dto.ChatDialogueDTO;
+
+import java.util.function.Consumer;
+
+//--------------------------------------------------------------------------------
+/**
+ * Notifications of saved chat dialogues, which keep chat sockets and the
+ * history caches up to date. The default implementation only reaches this
+ * instance; an implementation backed by a broker or by PostgreSQL
+ * LISTEN/NOTIFY would let several instances share their saves.
+ * <p>
+ * A dialogue may be delivered more than once and out of order, so listeners
+ * have to tolerate both.
+ */
+//--------------------------------------------------------------------------------
+@ImplementedBy(ChatHistoryEvents.class)
+public interface ChatHistoryBus {
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Notifies the listeners of the dialogue's user and the listeners of all
+     * users.
+     *
+     * @param chatDialogueDTO the saved dialogue.
+     */
+    //--------------------------------------------------------------------------------
+    void publish(ChatDialogueDTO chatDialogueDTO);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Registers a listener for the dialogues saved for a user.
+     *
+     * @param email    the email of the user.
+     * @param listener called with each saved dialogue.
+     * @return removes the listener again.
+     */
+    //--------------------------------------------------------------------------------
+    Runnable subscribe(String email, Consumer<ChatDialogueDTO> listener);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Registers a listener for the dialogues saved for all users, such as a
+     * cache that has to be updated.
+     *
+     * @param listener called with each saved dialogue.
+     * @return removes the listener again.
+     */
+    //--------------------------------------------------------------------------------
+    Runnable subscribeAll(Consumer<ChatDialogueDTO> listener);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the number of per-user listeners registered on this instance.
+     *
+     * @return the number of listeners.
+     */
+    //--------------------------------------------------------------------------------
+    int subscribers();
+}
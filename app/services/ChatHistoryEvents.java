@@ -0,0 +1,83 @@
+package services;
+
+import dto.ChatDialogueDTO;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Singleton;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Consumer;
+
+//--------------------------------------------------------------------------------
+/**
+ * In-process {@link ChatHistoryBus}. Open chat sockets subscribe to their
+ * user's dialogues so that answers saved through any channel, such as another
+ * tab or a batch, are pushed to them.
+ * <p>
+ * Listeners are called on the thread that saved the dialogue and must not
+ * block.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+@Slf4j
+public class ChatHistoryEvents implements ChatHistoryBus {
+
+    private final ConcurrentMap<String, Set<Consumer<ChatDialogueDTO>>> listeners = new ConcurrentHashMap<>();
+    private final Set<Consumer<ChatDialogueDTO>> globalListeners = new CopyOnWriteArraySet<>();
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public void publish(ChatDialogueDTO chatDialogueDTO) {
+        notify(globalListeners, chatDialogueDTO);
+        Set<Consumer<ChatDialogueDTO>> userListeners = listeners.get(chatDialogueDTO.getEmail());
+        if (userListeners != null) {
+            notify(userListeners, chatDialogueDTO);
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public Runnable subscribe(String email, Consumer<ChatDialogueDTO> listener) {
+        listeners.computeIfAbsent(email, ignored -> new CopyOnWriteArraySet<>()).add(listener);
+        return () -> listeners.computeIfPresent(email, (ignored, userListeners) -> {
+            userListeners.remove(listener);
+            return userListeners.isEmpty() ? null : userListeners;
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public Runnable subscribeAll(Consumer<ChatDialogueDTO> listener) {
+        globalListeners.add(listener);
+        return () -> globalListeners.remove(listener);
+    }
+
+    @Override
+    public int subscribers() {
+        return listeners.values().stream().mapToInt(Set::size).sum();
+    }
+
+    private static void notify(Set<Consumer<ChatDialogueDTO>> listeners, ChatDialogueDTO chatDialogueDTO) {
+        for (Consumer<ChatDialogueDTO> listener : listeners) {
+            try {
+                listener.accept(chatDialogueDTO);
+            } catch (RuntimeException e) {
+                log.warn("Chat history listener failed", e);
+            }
+        }
+    }
+}
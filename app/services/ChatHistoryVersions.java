@@ -0,0 +1,75 @@
+package services;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.typesafe.config.Config;
+import dao.ChatDialogueRepository;
+import dto.ChatHistoryVersion;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.util.concurrent.CompletionStage;
+
+//--------------------------------------------------------------------------------
+/**
+ * Cached versions of the users' chat histories, from which entity tags of
+ * history responses are derived. A version is read from the database on the
+ * first request and dropped whenever a dialogue is saved for the user on this
+ * instance. Dialogues saved by other instances are only noticed once the
+ * version expires, so the TTL bounds how long a client may be told that its
+ * copy is current when it is not.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+public class ChatHistoryVersions {
+
+    private final ChatDialogueRepository chatDialogueRepository;
+    private final AsyncCache<String, ChatHistoryVersion> versions;
+
+    @Inject
+    public ChatHistoryVersions(ChatDialogueRepository chatDialogueRepository, ChatHistoryBus historyEvents,
+                               Config config) {
+        this(
+            chatDialogueRepository,
+            historyEvents,
+            config.getLong("chat.history.version-max-users"),
+            config.getDuration("chat.history.version-ttl")
+        );
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates the version cache with explicit settings.
+     *
+     * @param chatDialogueRepository the repository versions are read from.
+     * @param historyEvents          notifies saved dialogues.
+     * @param maxUsers               the maximum number of users whose version is
+     *                               cached.
+     * @param ttl                    how long a version is trusted.
+     */
+    //--------------------------------------------------------------------------------
+    public ChatHistoryVersions(ChatDialogueRepository chatDialogueRepository, ChatHistoryBus historyEvents,
+                               long maxUsers, Duration ttl) {
+        this.chatDialogueRepository = chatDialogueRepository;
+        this.versions = Caffeine.newBuilder()
+            .maximumSize(maxUsers)
+            .expireAfterWrite(ttl)
+            .buildAsync();
+        historyEvents.subscribeAll(dialogue -> versions.synchronous().invalidate(dialogue.getEmail()));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the version of a user's history. Concurrent misses for the same
+     * user share one query, and failed queries are not cached.
+     *
+     * @param email the email of the user.
+     * @return A CompletionStage containing the version.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletionStage<ChatHistoryVersion> get(String email) {
+        return versions.get(email, (key, executor) ->
+            chatDialogueRepository.getHistoryVersion(key).toCompletableFuture());
+    }
+}
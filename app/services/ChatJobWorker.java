@@ -0,0 +1,169 @@
+package services;
+
+import com.typesafe.config.Config;
+import dao.ChatJobRepository;
+import dto.ChatQueryDTO;
+import lombok.extern.slf4j.Slf4j;
+import models.ChatJob;
+import org.apache.pekko.actor.ActorSystem;
+import org.apache.pekko.actor.Cancellable;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//--------------------------------------------------------------------------------
+/**
+ * Drains the queue of chat jobs. Every poll interval the worker claims as many
+ * jobs as it has free slots and answers each one like a synchronous request.
+ * Jobs are answered with an idempotency key, either the client's or one
+ * derived from the job id, so that a job taken over after its lease expired
+ * gets the dialogue its first worker saved rather than a second answer.
+ * <p>
+ * A failed attempt returns the job to the queue; once it has used up its
+ * attempts it is marked failed. Finished jobs are deleted after the retention
+ * period.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+@Slf4j
+public class ChatJobWorker {
+
+    private static final String JOB_KEY_PREFIX = "job:";
+
+    private final ChatJobRepository chatJobRepository;
+    private final ChatService chatService;
+    private final int concurrency;
+    private final Duration lease;
+    private final int maxAttempts;
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicBoolean polling = new AtomicBoolean();
+    private volatile boolean stopped;
+
+    @Inject
+    public ChatJobWorker(ChatJobRepository chatJobRepository, ChatService chatService, ActorSystem actorSystem,
+                         ApplicationLifecycle lifecycle, Config config) {
+        this(
+            chatJobRepository,
+            chatService,
+            config.getInt("chat.jobs.concurrency"),
+            config.getDuration("chat.jobs.lease"),
+            config.getInt("chat.jobs.max-attempts")
+        );
+
+        if (config.getBoolean("chat.jobs.worker-enabled")) {
+            Duration pollInterval = config.getDuration("chat.jobs.poll-interval");
+            Duration retention = config.getDuration("chat.jobs.retention");
+            Cancellable poller = actorSystem.scheduler().scheduleWithFixedDelay(pollInterval, pollInterval,
+                this::poll, actorSystem.dispatcher());
+            Cancellable cleaner = actorSystem.scheduler().scheduleWithFixedDelay(Duration.ofMinutes(1),
+                Duration.ofHours(1), () -> deleteFinished(retention), actorSystem.dispatcher());
+            lifecycle.addStopHook(() -> {
+                stopped = true;
+                poller.cancel();
+                cleaner.cancel();
+                return CompletableFuture.completedFuture(null);
+            });
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates a worker with explicit settings that does not poll by itself.
+     *
+     * @param chatJobRepository the job queue.
+     * @param chatService       answers the jobs.
+     * @param concurrency       the jobs answered at the same time.
+     * @param lease             how long a claimed job is held before another
+     *                          worker may take it over; longer than the slowest
+     *                          answer.
+     * @param maxAttempts       the attempts after which a job is given up.
+     */
+    //--------------------------------------------------------------------------------
+    public ChatJobWorker(ChatJobRepository chatJobRepository, ChatService chatService, int concurrency,
+                         Duration lease, int maxAttempts) {
+        this.chatJobRepository = chatJobRepository;
+        this.chatService = chatService;
+        this.concurrency = concurrency;
+        this.lease = lease;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public int running() {
+        return running.get();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Claims jobs for the free slots and starts answering them. When every slot
+     * could be filled, polls again right away, so that a backlog is drained
+     * without waiting for the next tick. Does nothing while a previous poll is
+     * still claiming.
+     */
+    //--------------------------------------------------------------------------------
+    void poll() {
+        int free = concurrency - running.get();
+        if (stopped || free <= 0 || !polling.compareAndSet(false, true)) {
+            return;
+        }
+        chatJobRepository.claim(free, lease, maxAttempts).whenComplete((jobs, ex) -> {
+            polling.set(false);
+            if (ex != null) {
+                log.error("Failed to claim chat jobs", ex);
+                return;
+            }
+            jobs.forEach(this::run);
+            if (jobs.size() == free) {
+                poll();
+            }
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Answers one claimed job and records the outcome.
+     *
+     * @param chatJob the claimed job.
+     */
+    //--------------------------------------------------------------------------------
+    private void run(ChatJob chatJob) {
+        running.incrementAndGet();
+        String idempotencyKey = chatJob.getIdempotencyKey() != null
+            ? chatJob.getIdempotencyKey()
+            : JOB_KEY_PREFIX + chatJob.getId();
+        ChatQueryDTO chatQueryDTO = new ChatQueryDTO(chatJob.getInstruction(), chatJob.getQuestion(),
+            chatJob.getThreadId(), idempotencyKey, null);
+
+        chatService.processChatJob(chatQueryDTO, chatJob.getEmail())
+            .thenCompose(dialogue -> chatJobRepository.complete(chatJob.getId(), dialogue.getId()))
+            .exceptionally(ex -> {
+                Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+                log.warn("Attempt {} of chat job {} failed", chatJob.getAttempts(), chatJob.getId(), cause);
+                chatJobRepository.release(chatJob.getId(), String.valueOf(cause.getMessage()))
+                    .exceptionally(releaseFailure -> {
+                        log.error("Failed to release chat job {}; it is retried once its lease expires",
+                            chatJob.getId(), releaseFailure);
+                        return null;
+                    });
+                return null;
+            })
+            .whenComplete((ignored, ex) -> running.decrementAndGet());
+    }
+
+    private void deleteFinished(Duration retention) {
+        chatJobRepository.deleteFinishedBefore(new Timestamp(System.currentTimeMillis() - retention.toMillis()))
+            .whenComplete((deleted, ex) -> {
+                if (ex != null) {
+                    log.error("Failed to delete finished chat jobs", ex);
+                } else if (deleted > 0) {
+                    log.info("Deleted {} finished chat jobs", deleted);
+                }
+            });
+    }
+}
@@ -0,0 +1,268 @@
+package services;
+
+import dao.ChatDialogueWriteBehind;
+import dao.DatabaseExecutionContext;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
+import io.micrometer.core.instrument.binder.system.ProcessorMetrics;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+//--------------------------------------------------------------------------------
+/**
+ * Metrics of the chat request path, exported in Prometheus format. Timers cover
+ * the chat endpoints, upstream calls, response parsing and database access;
+ * counters cover mock fallbacks, upstream token usage, the history cache and
+ * quota rejections;
+ * gauges expose the database dispatcher queue, the HikariCP pool, the response
+ * cache, the write-behind queue, the upstream connection pool and the open
+ * chat sockets, and, per upstream endpoint, its limiter and breaker.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+@Slf4j
+public class ChatMetrics {
+
+    private static final String HIKARI_POOL_NAME = "chatbot";
+
+    private final PrometheusMeterRegistry registry;
+
+    @Inject
+    public ChatMetrics(DatabaseExecutionContext databaseExecutionContext, ChatDialogueWriteBehind writeBehind,
+                       ChatResponseCache responseCache, SemanticResponseCache semanticCache,
+                       UpstreamResilience resilience, ChatHistoryBus historyEvents,
+                       RecentHistoryCache recentHistory, UsageQuotas usageQuotas, UpstreamHttpClient httpClient) {
+        this(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT));
+
+        new JvmMemoryMetrics().bindTo(registry);
+        new JvmGcMetrics().bindTo(registry);
+        new JvmThreadMetrics().bindTo(registry);
+        new ProcessorMetrics().bindTo(registry);
+
+        Gauge.builder("chat.db.dispatcher.queued", databaseExecutionContext, DatabaseExecutionContext::queueDepth)
+            .description("Tasks waiting for a thread of the database dispatcher")
+            .register(registry);
+        Gauge.builder("chat.db.write_behind.queued", writeBehind, ChatDialogueWriteBehind::queueDepth)
+            .description("Chat dialogues waiting to be inserted")
+            .register(registry);
+        bindHikariPool();
+
+        FunctionCounter.builder("chat.cache.requests", responseCache, cache -> cache.stats().hitCount())
+            .tag("result", "hit").register(registry);
+        FunctionCounter.builder("chat.cache.requests", responseCache, cache -> cache.stats().missCount())
+            .tag("result", "miss").register(registry);
+        FunctionCounter.builder("chat.cache.evictions", responseCache, cache -> cache.stats().evictionCount())
+            .register(registry);
+        FunctionCounter.builder("chat.semantic_cache.requests", semanticCache, SemanticResponseCache::hits)
+            .tag("result", "hit").register(registry);
+        FunctionCounter.builder("chat.semantic_cache.requests", semanticCache, SemanticResponseCache::misses)
+            .tag("result", "miss").register(registry);
+        Gauge.builder("chat.semantic_cache.size", semanticCache, SemanticResponseCache::size).register(registry);
+        FunctionCounter.builder("chat.history_cache.requests", recentHistory, RecentHistoryCache::hits)
+            .tag("result", "hit").register(registry);
+        FunctionCounter.builder("chat.history_cache.requests", recentHistory, RecentHistoryCache::misses)
+            .tag("result", "miss").register(registry);
+        FunctionCounter.builder("chat.quota.rejections", usageQuotas, UsageQuotas::requestRejections)
+            .tag("quota", "requests").register(registry);
+        FunctionCounter.builder("chat.quota.rejections", usageQuotas, UsageQuotas::tokenRejections)
+            .tag("quota", "tokens").register(registry);
+
+        FunctionCounter.builder("chat.upstream.retries", resilience, UpstreamResilience::retries).register(registry);
+        FunctionCounter.builder("chat.upstream.hedges", resilience, UpstreamResilience::hedges).register(registry);
+        FunctionCounter.builder("chat.upstream.hedge_wins", resilience, UpstreamResilience::hedgeWins).register(registry);
+        for (String state : new String[] {"active", "idle", "total"}) {
+            Gauge.builder("chat.upstream.http.connections", httpClient, client -> client.connections(state))
+                .description("Connections of the upstream HTTP client's pool")
+                .tag("state", state)
+                .register(registry);
+        }
+
+        Gauge.builder("chat.socket.subscribers", historyEvents, ChatHistoryBus::subscribers)
+            .description("Open chat sockets receiving history updates")
+            .register(registry);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates metrics recording into the given registry, without any gauges.
+     *
+     * @param registry the registry the meters are registered with.
+     */
+    //--------------------------------------------------------------------------------
+    public ChatMetrics(PrometheusMeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Exposes the state of an upstream endpoint and of its limiter, tagged with
+     * the endpoint's name.
+     *
+     * @param provider the endpoint.
+     */
+    //--------------------------------------------------------------------------------
+    public void bindProvider(ChatProvider provider) {
+        String name = provider.getName();
+        Gauge.builder("chat.upstream.provider.outstanding", provider, ChatProvider::outstanding)
+            .tag("provider", name).register(registry);
+        Gauge.builder("chat.upstream.provider.latency_ewma", provider, p -> p.latencyEwmaMillis() / 1000)
+            .tag("provider", name).baseUnit("seconds").register(registry);
+        Gauge.builder("chat.upstream.provider.ejected", provider, p -> p.isEjected() ? 1 : 0)
+            .description("1 while the endpoint's breaker is open")
+            .tag("provider", name).register(registry);
+        FunctionCounter.builder("chat.upstream.provider.ejections", provider, ChatProvider::ejections)
+            .tag("provider", name).register(registry);
+        Gauge.builder("chat.upstream.in_flight", provider.limiter(), UpstreamLimiter::inFlight)
+            .tag("provider", name).register(registry);
+        Gauge.builder("chat.upstream.queued", provider.limiter(), UpstreamLimiter::queued)
+            .tag("provider", name).register(registry);
+        Gauge.builder("chat.upstream.paused", provider.limiter(), l -> l.pausedFor().toMillis() / 1000.0)
+            .description("Time until the endpoint's limiter admits requests again after a 429")
+            .tag("provider", name).baseUnit("seconds").register(registry);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Times an asynchronous operation from the call until its stage completes,
+     * tagging the recording with its outcome.
+     *
+     * @param name      the timer name.
+     * @param operation the operation tag.
+     * @param call      starts the operation.
+     * @return the stage returned by the call.
+     */
+    //--------------------------------------------------------------------------------
+    public <T> CompletionStage<T> timeAsync(String name, String operation, Supplier<CompletionStage<T>> call) {
+        long start = System.nanoTime();
+        return call.get().whenComplete((value, ex) ->
+            record(name, operation, ex == null ? "success" : "failure", System.nanoTime() - start));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Times a synchronous operation.
+     *
+     * @param name      the timer name.
+     * @param operation the operation tag.
+     * @param call      the operation.
+     * @return the result of the operation.
+     */
+    //--------------------------------------------------------------------------------
+    public <T> T time(String name, String operation, Supplier<T> call) {
+        long start = System.nanoTime();
+        String outcome = "failure";
+        try {
+            T result = call.get();
+            outcome = "success";
+            return result;
+        } finally {
+            record(name, operation, outcome, System.nanoTime() - start);
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Records the duration of an operation that has already completed.
+     *
+     * @param name      the timer name.
+     * @param operation the operation tag.
+     * @param outcome   the outcome tag, such as "success" or an HTTP status.
+     * @param nanos     the duration in nanoseconds.
+     */
+    //--------------------------------------------------------------------------------
+    public void record(String name, String operation, String outcome, long nanos) {
+        Timer.builder(name)
+            .tag("operation", operation)
+            .tag("outcome", outcome)
+            .publishPercentileHistogram()
+            .register(registry)
+            .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Counts a chat request answered with a mock response because the upstream
+     * API could not be used.
+     *
+     * @param mode "sync" or "stream".
+     */
+    //--------------------------------------------------------------------------------
+    public void incrementFallback(String mode) {
+        Counter.builder("chat.fallback").tag("mode", mode).register(registry).increment();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Records the token usage reported by the upstream API for one completion.
+     *
+     * @param promptTokens     the prompt tokens billed.
+     * @param completionTokens the completion tokens billed.
+     */
+    //--------------------------------------------------------------------------------
+    public void recordTokenUsage(long promptTokens, long completionTokens) {
+        Counter.builder("chat.upstream.tokens").tag("type", "prompt").register(registry).increment(promptTokens);
+        Counter.builder("chat.upstream.tokens").tag("type", "completion").register(registry).increment(completionTokens);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Renders all meters in the Prometheus text exposition format.
+     *
+     * @return the scrape output.
+     */
+    //--------------------------------------------------------------------------------
+    public String scrape() {
+        return registry.scrape();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Exposes the connection counts of the HikariCP pool through its MXBean,
+     * which Hibernate registers when "hibernate.hikari.registerMbeans" is set.
+     * The gauges read NaN while the pool has not been started.
+     */
+    //--------------------------------------------------------------------------------
+    private void bindHikariPool() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pool;
+        try {
+            pool = new ObjectName("com.zaxxer.hikari:type=Pool (" + HIKARI_POOL_NAME + ")");
+        } catch (Exception e) {
+            log.warn("Cannot monitor the HikariCP pool", e);
+            return;
+        }
+
+        bindHikariAttribute(server, pool, "ActiveConnections", "active");
+        bindHikariAttribute(server, pool, "IdleConnections", "idle");
+        bindHikariAttribute(server, pool, "TotalConnections", "total");
+        bindHikariAttribute(server, pool, "ThreadsAwaitingConnection", "pending");
+    }
+
+    private void bindHikariAttribute(MBeanServer server, ObjectName pool, String attribute, String state) {
+        Gauge.builder("chat.db.pool.connections", () -> {
+                try {
+                    return ((Number) server.getAttribute(pool, attribute)).doubleValue();
+                } catch (Exception e) {
+                    return Double.NaN;
+                }
+            })
+            .tag("pool", HIKARI_POOL_NAME)
+            .tag("state", state)
+            .register(registry);
+    }
+}
@@ -0,0 +1,168 @@
+package services;
+
+import com.typesafe.config.Config;
+import dao.ChatPartitionRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pekko.actor.ActorSystem;
+import org.apache.pekko.actor.Cancellable;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.YearMonth;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//--------------------------------------------------------------------------------
+/**
+ * Keeps the monthly partitions of the ChatDialogue table in shape. Every
+ * maintenance interval the partitions of the current month and the configured
+ * months ahead are created, so that inserts never fall through to the default
+ * partition, and, if archiving is enabled, partitions old enough are moved
+ * into the archive table one month at a time, oldest first. The dialogues of
+ * the remaining past months are then rewritten in batches, so that rows saved
+ * before LZ4 compression was enabled are compressed with it too. The
+ * repository records the months that are done, so that they are rewritten
+ * once rather than once per run of the application.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+@Slf4j
+public class ChatPartitionMaintenance {
+
+    private final ChatPartitionRepository partitionRepository;
+    private final Clock clock;
+    private final int monthsAhead;
+    private final int archiveAfterMonths;
+    private final int recompressBatchSize;
+    private final Set<YearMonth> recompressed = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean maintaining = new AtomicBoolean();
+
+    @Inject
+    public ChatPartitionMaintenance(ChatPartitionRepository partitionRepository, ActorSystem actorSystem,
+                                    ApplicationLifecycle lifecycle, Config config) {
+        this(
+            partitionRepository,
+            Clock.systemDefaultZone(),
+            config.getInt("chat.partitions.months-ahead"),
+            config.getInt("chat.partitions.archive-after-months"),
+            config.getInt("chat.partitions.recompress-batch-size")
+        );
+
+        if (config.getBoolean("chat.partitions.maintenance-enabled")) {
+            Duration interval = config.getDuration("chat.partitions.maintenance-interval");
+            Cancellable task = actorSystem.scheduler().scheduleWithFixedDelay(Duration.ofSeconds(10), interval,
+                this::run, actorSystem.dispatcher());
+            lifecycle.addStopHook(() -> {
+                task.cancel();
+                return CompletableFuture.completedFuture(null);
+            });
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates the maintenance with explicit settings that does not run by
+     * itself.
+     *
+     * @param partitionRepository the partitions.
+     * @param clock               the clock the current month is read from, in
+     *                            the time zone dialogue timestamps are saved in.
+     * @param monthsAhead         the months after the current one that get a
+     *                            partition in advance.
+     * @param archiveAfterMonths  the months after its end that a month is
+     *                            archived, or 0 to never archive.
+     * @param recompressBatchSize the dialogues rewritten per transaction when
+     *                            recompressing a month, or 0 to never
+     *                            recompress.
+     */
+    //--------------------------------------------------------------------------------
+    public ChatPartitionMaintenance(ChatPartitionRepository partitionRepository, Clock clock, int monthsAhead,
+                                    int archiveAfterMonths, int recompressBatchSize) {
+        this.partitionRepository = partitionRepository;
+        this.clock = clock;
+        this.monthsAhead = monthsAhead;
+        this.archiveAfterMonths = archiveAfterMonths;
+        this.recompressBatchSize = recompressBatchSize;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Runs one round of maintenance unless the previous one is still running.
+     */
+    //--------------------------------------------------------------------------------
+    private void run() {
+        if (!maintaining.compareAndSet(false, true)) {
+            return;
+        }
+        maintain().whenComplete((ignored, ex) -> {
+            maintaining.set(false);
+            if (ex != null) {
+                log.error("Chat dialogue partition maintenance failed", ex);
+            }
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates the upcoming partitions, then archives the partitions whose month
+     * ended at least the configured number of months ago and recompresses the
+     * other past months.
+     *
+     * @return A CompletionStage that completes once the round is done.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Void> maintain() {
+        YearMonth current = YearMonth.now(clock);
+        CompletionStage<Void> created = partitionRepository.createPartitions(current, current.plusMonths(monthsAhead))
+            .thenAccept(count -> {
+                if (count > 0) {
+                    log.info("Created {} chat dialogue partition(s) through {}", count, current.plusMonths(monthsAhead));
+                }
+            });
+        if (archiveAfterMonths <= 0 && recompressBatchSize <= 0) {
+            return created;
+        }
+
+        YearMonth oldestKept = archiveAfterMonths > 0 ? current.minusMonths(archiveAfterMonths) : YearMonth.of(0, 1);
+        return created
+            .thenCompose(ignored -> partitionRepository.listPartitions())
+            .thenCompose(months -> {
+                CompletionStage<Void> done = CompletableFuture.completedFuture(null);
+                for (YearMonth month : months) {
+                    if (month.isBefore(oldestKept)) {
+                        done = done.thenCompose(ignored -> partitionRepository.archivePartition(month)
+                            .thenAccept(count -> log.info("Archived {} chat dialogue(s) of {}", count, month)));
+                    } else if (recompressBatchSize > 0 && month.isBefore(current) && !recompressed.contains(month)) {
+                        done = done.thenCompose(ignored -> recompress(month, 0));
+                    }
+                }
+                return done;
+            });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Recompresses the dialogues of a month batch by batch, starting after the
+     * given id.
+     *
+     * @param month   the month.
+     * @param afterId the id to continue after.
+     * @return A CompletionStage that completes once the month is done.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<Void> recompress(YearMonth month, long afterId) {
+        return partitionRepository.recompress(month, afterId, recompressBatchSize).thenCompose(lastId -> {
+            if (lastId == null) {
+                recompressed.add(month);
+                return CompletableFuture.completedFuture(null);
+            }
+            return recompress(month, lastId);
+        });
+    }
+}
@@ -0,0 +1,219 @@
+package services;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//--------------------------------------------------------------------------------
+/**
+ * An OpenAI-compatible chat completions endpoint together with the state the
+ * {@link ChatProviderRouter} balances on: the requests currently outstanding,
+ * an exponentially weighted moving average of its response latency, its
+ * recent failures and its own {@link UpstreamLimiter}, which holds the request
+ * and token budget of the endpoint's API key and pauses it after a 429.
+ * <p>
+ * Ejection is the endpoint's circuit breaker. An endpoint that fails
+ * repeatedly is ejected, that is open, for a while; each ejection that directly
+ * follows another lasts twice as long, up to a maximum. Once the ejection has
+ * passed the endpoint is half-open: a success closes it again, a single
+ * failure ejects it anew.
+ */
+//--------------------------------------------------------------------------------
+public class ChatProvider {
+
+    private final String name;
+    private final String url;
+    private final String apiKey;
+    private final boolean streamUsage;
+    private final UpstreamLimiter limiter;
+    private final double decayNanos;
+    private final int maxFailures;
+    private final long ejectionNanos;
+    private final long maxEjectionNanos;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong ejections = new AtomicLong();
+
+    private double latencyEwmaNanos;
+    private long lastSampleNanos;
+    private int consecutiveFailures;
+    private int consecutiveEjections;
+    private long ejectedUntilNanos;
+    private boolean ejected;
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates an endpoint.
+     *
+     * @param name             the name the endpoint is reported under.
+     * @param url              the chat completions URL.
+     * @param apiKey           the API key sent as bearer token.
+     * @param streamUsage      whether the endpoint supports "stream_options" to
+     *                         report the token usage of streamed responses.
+     * @param limiter          admits calls within the budget of the endpoint.
+     * @param decayNanos       the time constant of the latency average.
+     * @param maxFailures      the consecutive failures that eject the endpoint.
+     * @param ejectionNanos    how long the first ejection lasts.
+     * @param maxEjectionNanos the longest an ejection lasts.
+     */
+    //--------------------------------------------------------------------------------
+    public ChatProvider(String name, String url, String apiKey, boolean streamUsage, UpstreamLimiter limiter,
+                        long decayNanos, int maxFailures, long ejectionNanos, long maxEjectionNanos) {
+        this.name = name;
+        this.url = url;
+        this.apiKey = apiKey;
+        this.streamUsage = streamUsage;
+        this.limiter = limiter;
+        this.decayNanos = decayNanos;
+        this.maxFailures = maxFailures;
+        this.ejectionNanos = ejectionNanos;
+        this.maxEjectionNanos = maxEjectionNanos;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    public boolean isStreamUsage() {
+        return streamUsage;
+    }
+
+    public UpstreamLimiter limiter() {
+        return limiter;
+    }
+
+    public long ejections() {
+        return ejections.get();
+    }
+
+    public int outstanding() {
+        return outstanding.get();
+    }
+
+    public synchronized double latencyEwmaMillis() {
+        return latencyEwmaNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Counts a request as outstanding until {@link #release()} is called.
+     */
+    //--------------------------------------------------------------------------------
+    public void acquire() {
+        outstanding.incrementAndGet();
+    }
+
+    public void release() {
+        outstanding.decrementAndGet();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Records a successful response. The latency average decays with the time
+     * since the previous sample, so that an endpoint that recovers from a slow
+     * period is trusted again after a few time constants regardless of its
+     * request rate.
+     *
+     * @param latencyNanos the time until the response headers arrived.
+     */
+    //--------------------------------------------------------------------------------
+    public synchronized void onSuccess(long latencyNanos) {
+        long now = System.nanoTime();
+        if (lastSampleNanos == 0) {
+            latencyEwmaNanos = latencyNanos;
+        } else {
+            double weight = Math.exp(-(now - lastSampleNanos) / decayNanos);
+            latencyEwmaNanos = latencyEwmaNanos * weight + latencyNanos * (1 - weight);
+        }
+        lastSampleNanos = now;
+        consecutiveFailures = 0;
+        consecutiveEjections = 0;
+        ejected = false;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Records a failed request: a 429 or 5xx response, a timeout or an I/O
+     * error. Ejects the endpoint once the failures reach the maximum.
+     */
+    //--------------------------------------------------------------------------------
+    public synchronized void onFailure() {
+        if (++consecutiveFailures < maxFailures) {
+            return;
+        }
+        long duration = Math.min(maxEjectionNanos, ejectionNanos << Math.min(consecutiveEjections, 20));
+        consecutiveEjections++;
+        consecutiveFailures = 0;
+        ejected = true;
+        ejectedUntilNanos = System.nanoTime() + duration;
+        ejections.incrementAndGet();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Tells whether the endpoint is ejected. Once the ejection has passed the
+     * endpoint takes traffic again; a single further failure ejects it anew.
+     *
+     * @return true while the endpoint should receive no requests.
+     */
+    //--------------------------------------------------------------------------------
+    public synchronized boolean isEjected() {
+        if (ejected && System.nanoTime() - ejectedUntilNanos >= 0) {
+            ejected = false;
+            consecutiveFailures = maxFailures - 1;
+        }
+        return ejected;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Tells whether the endpoint may be sent a request: it is neither ejected
+     * nor paused by its limiter.
+     *
+     * @return true if the endpoint is available.
+     */
+    //--------------------------------------------------------------------------------
+    public boolean isAvailable() {
+        return !isEjected() && limiter.pausedFor().isZero();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns how long it is until the endpoint is available again.
+     *
+     * @return the time until both its ejection and its limiter's pause end,
+     *         zero if it is available.
+     */
+    //--------------------------------------------------------------------------------
+    public Duration unavailableFor() {
+        Duration paused = limiter.pausedFor();
+        synchronized (this) {
+            if (!isEjected()) {
+                return paused;
+            }
+            Duration ejection = Duration.ofNanos(Math.max(0, ejectedUntilNanos - System.nanoTime()));
+            return ejection.compareTo(paused) > 0 ? ejection : paused;
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the expected cost of sending one more request: the latency average
+     * scaled by the requests that would then be outstanding. Endpoints without
+     * a latency sample yet are costed at zero latency, so that each one is tried.
+     *
+     * @return the cost, lower is better.
+     */
+    //--------------------------------------------------------------------------------
+    synchronized double cost() {
+        return (latencyEwmaNanos + 1) * (outstanding.get() + 1);
+    }
+}
@@ -0,0 +1,366 @@
+package services;
+
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pekko.NotUsed;
+import org.apache.pekko.stream.Materializer;
+import org.apache.pekko.stream.javadsl.Sink;
+import org.apache.pekko.stream.javadsl.Source;
+import org.apache.pekko.util.ByteString;
+import play.inject.ApplicationLifecycle;
+import play.libs.ws.BodyWritable;
+import play.libs.ws.WSRequest;
+import play.libs.ws.WSResponse;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+//--------------------------------------------------------------------------------
+/**
+ * Spreads ChatGPT API calls across the configured OpenAI-compatible endpoints,
+ * such as several API keys or regions, and makes them. Each call goes to the
+ * cheaper of two endpoints picked at random among those available, where the
+ * cost is the endpoint's latency average scaled by its outstanding requests.
+ * Picking two at random rather than the cheapest of all keeps a burst of
+ * calls from piling onto a single endpoint before its statistics catch up.
+ * <p>
+ * An endpoint is unavailable while it is ejected after repeated failures or
+ * while its limiter is paused after a 429 or an exhausted quota; each call
+ * then waits for admission by the limiter of the endpoint it was sent to.
+ * When no endpoint is available, calls fail fast with an
+ * {@link UpstreamSaturatedException}.
+ * <p>
+ * When "openai.providers" is empty, the single endpoint configured by
+ * "openai.api.url" and "openai.api.key" is used. Every endpoint is limited by
+ * "openai.limits" unless its entry has "limits" of its own.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+@Slf4j
+public class ChatProviderRouter {
+
+    private final List<ChatProvider> providers;
+    private final UpstreamHttpClient httpClient;
+    private final ChatMetrics metrics;
+    private final Materializer materializer;
+
+    @Inject
+    public ChatProviderRouter(Config config, UpstreamHttpClient httpClient, ChatMetrics metrics,
+                              Materializer materializer, ApplicationLifecycle lifecycle) {
+        this(providersOf(config), httpClient, metrics, materializer);
+
+        lifecycle.addStopHook(() -> {
+            providers.forEach(provider -> provider.limiter().shutdown());
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates a router over the given endpoints.
+     *
+     * @param providers    the endpoints, at least one.
+     * @param httpClient   the client calls are made with.
+     * @param metrics      the metrics the endpoints and calls are recorded in.
+     * @param materializer runs the bodies of failed streamed calls to their end.
+     */
+    //--------------------------------------------------------------------------------
+    public ChatProviderRouter(List<ChatProvider> providers, UpstreamHttpClient httpClient, ChatMetrics metrics,
+                              Materializer materializer) {
+        if (providers.isEmpty()) {
+            throw new IllegalArgumentException("At least one chat provider must be configured");
+        }
+        this.providers = Collections.unmodifiableList(new ArrayList<>(providers));
+        this.httpClient = httpClient;
+        this.metrics = metrics;
+        this.materializer = materializer;
+        this.providers.forEach(metrics::bindProvider);
+    }
+
+    public List<ChatProvider> providers() {
+        return providers;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Selects the endpoint for the next call among those available.
+     *
+     * @return the endpoint.
+     * @throws UpstreamSaturatedException if every endpoint is ejected or paused,
+     *                                    with the time until the first of them
+     *                                    becomes available again.
+     */
+    //--------------------------------------------------------------------------------
+    public ChatProvider select() {
+        List<ChatProvider> available = new ArrayList<>(providers.size());
+        Duration retryAfter = null;
+        for (ChatProvider provider : providers) {
+            Duration unavailableFor = provider.unavailableFor();
+            if (unavailableFor.isZero()) {
+                available.add(provider);
+            } else if (retryAfter == null || unavailableFor.compareTo(retryAfter) < 0) {
+                retryAfter = unavailableFor;
+            }
+        }
+
+        if (available.isEmpty()) {
+            throw new UpstreamSaturatedException("No upstream provider is available", retryAfter);
+        }
+        if (available.size() == 1) {
+            return available.get(0);
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(available.size());
+        int second = random.nextInt(available.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        ChatProvider a = available.get(first);
+        ChatProvider b = available.get(second);
+        return a.cost() <= b.cost() ? a : b;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Makes one chat completions call.
+     *
+     * @param body            the request body.
+     * @param estimatedTokens the tokens the call counts against the limiter.
+     * @param deadline        when the incoming request the call serves has to be
+     *                        answered, or null if it has none.
+     * @return A CompletionStage containing the successful or non-transient
+     *         response. Fails with a TransientUpstreamException on 429 and 5xx
+     *         responses, with an UpstreamSaturatedException if no endpoint can
+     *         take the call, with a DeadlineExceededException if the deadline
+     *         passes before the call is sent, and with the underlying exception
+     *         if the endpoint could not be reached. Cancelling it abandons the
+     *         call: a call still waiting for admission leaves the limiter's
+     *         queue, and a call in flight gives back its limiter permit and
+     *         stops counting as outstanding at once, while its response is
+     *         discarded.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletionStage<WSResponse> complete(BodyWritable<?> body, int estimatedTokens, Instant deadline) {
+        ChatProvider provider;
+        try {
+            provider = select();
+        } catch (UpstreamSaturatedException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<WSResponse> result = new CompletableFuture<>();
+        CompletableFuture<UpstreamLimiter.Permit> admission =
+            provider.limiter().acquire(estimatedTokens, deadline).toCompletableFuture();
+        admission.whenComplete((permit, admissionFailure) -> {
+            if (admissionFailure != null) {
+                result.completeExceptionally(admissionFailure);
+                return;
+            }
+            if (result.isDone()) {
+                permit.release();
+                return;
+            }
+
+            CompletionStage<WSResponse> response;
+            try {
+                response = send(provider, body, deadline, false);
+            } catch (RuntimeException e) {
+                permit.release();
+                result.completeExceptionally(e);
+                return;
+            }
+            AtomicBoolean released = new AtomicBoolean();
+            Runnable release = () -> {
+                if (released.compareAndSet(false, true)) {
+                    permit.release();
+                    provider.release();
+                }
+            };
+            result.whenComplete((ignored, ex) -> release.run());
+            response.whenComplete((ok, ex) -> {
+                release.run();
+                if (ex != null) {
+                    result.completeExceptionally(ex);
+                    return;
+                }
+                try {
+                    throwIfTransient(ok.getStatus(), ok.getSingleHeader("retry-after"));
+                    result.complete(ok);
+                } catch (TransientUpstreamException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        });
+        result.whenComplete((ignored, ex) -> {
+            if (result.isCancelled()) {
+                admission.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Makes one streamed chat completions call. The endpoint's limiter permit
+     * is held until the returned body terminates.
+     *
+     * @param body            writes the request body for the selected
+     *                        endpoint, which may depend on what it supports.
+     * @param estimatedTokens the tokens the call counts against the limiter.
+     * @param deadline        when the incoming request the call serves has to be
+     *                        answered, or null if it has none.
+     * @return A CompletionStage containing the response body. Fails like
+     *         {@link #complete}, and with an IllegalStateException on any other
+     *         status than 200.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletionStage<Source<ByteString, NotUsed>> stream(Function<ChatProvider, BodyWritable<?>> body,
+                                                                int estimatedTokens, Instant deadline) {
+        ChatProvider provider;
+        try {
+            provider = select();
+        } catch (UpstreamSaturatedException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return provider.limiter().acquire(estimatedTokens, deadline).thenCompose(permit -> {
+            CompletionStage<WSResponse> response;
+            try {
+                response = send(provider, body.apply(provider), deadline, true);
+            } catch (RuntimeException e) {
+                permit.release();
+                return CompletableFuture.failedFuture(e);
+            }
+            return response
+                .<Source<ByteString, NotUsed>>thenApply(ok -> {
+                    if (ok.getStatus() != 200) {
+                        ok.getBodyAsSource().runWith(Sink.ignore(), materializer);
+                        throwIfTransient(ok.getStatus(), ok.getSingleHeader("retry-after"));
+                        throw new IllegalStateException("ChatGPT streaming request failed with status " + ok.getStatus());
+                    }
+                    return ok.getBodyAsSource().watchTermination((notUsed, done) -> {
+                        done.whenComplete((ignored, ex) -> {
+                            permit.release();
+                            provider.release();
+                        });
+                        return NotUsed.getInstance();
+                    });
+                })
+                .whenComplete((tokens, ex) -> {
+                    if (ex != null) {
+                        permit.release();
+                        provider.release();
+                    }
+                });
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Sends a call to an endpoint, counting it as outstanding there, and feeds
+     * the response status and rate limit headers to the endpoint's statistics
+     * and limiter. The caller must release the endpoint once the call is done.
+     *
+     * @param provider the endpoint to call.
+     * @param body     the request body.
+     * @param deadline when the incoming request has to be answered, or null.
+     * @param stream   whether the response is streamed.
+     * @return A CompletionStage containing the response, whatever its status.
+     * @throws DeadlineExceededException if the deadline has passed.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<WSResponse> send(ChatProvider provider, BodyWritable<?> body, Instant deadline,
+                                             boolean stream) {
+        WSRequest request = httpClient.url(provider.getUrl(), deadline, stream)
+            .addHeader("Authorization", "Bearer " + provider.getApiKey())
+            .addHeader("Content-Type", "application/json")
+            .setMethod("POST")
+            .setBody(body);
+
+        provider.acquire();
+        long start = System.nanoTime();
+        CompletionStage<WSResponse> response;
+        try {
+            response = stream ? request.stream() : request.execute();
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        return response.whenComplete((ok, ex) -> {
+            long elapsed = System.nanoTime() - start;
+            int status = ok == null ? 0 : ok.getStatus();
+            metrics.record("chat.upstream.call", stream ? "stream" : "completion",
+                ex == null ? String.valueOf(status) : "error", elapsed);
+            if (status == 0 || status == 429 || status >= 500) {
+                provider.onFailure();
+            } else {
+                provider.onSuccess(elapsed);
+            }
+            if (ok != null) {
+                provider.limiter().observe(status, ok::getSingleHeader);
+            }
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Fails with a TransientUpstreamException if the status is worth retrying.
+     *
+     * @param status     The HTTP status of the API response.
+     * @param retryAfter The Retry-After header of the API response, in seconds.
+     * @throws TransientUpstreamException on 429 and 5xx statuses.
+     */
+    //--------------------------------------------------------------------------------
+    private static void throwIfTransient(int status, Optional<String> retryAfter) {
+        if (status == 429 || status >= 500) {
+            Duration delay = retryAfter.flatMap(value -> {
+                try {
+                    return Optional.of(Duration.ofSeconds(Long.parseLong(value.trim())));
+                } catch (NumberFormatException e) {
+                    return Optional.empty();
+                }
+            }).orElse(null);
+            throw new TransientUpstreamException(status, delay);
+        }
+    }
+
+    private static List<ChatProvider> providersOf(Config config) {
+        long decay = config.getDuration("openai.routing.latency-decay").toNanos();
+        int maxFailures = config.getInt("openai.routing.max-failures");
+        long ejection = config.getDuration("openai.routing.ejection-time").toNanos();
+        long maxEjection = config.getDuration("openai.routing.max-ejection-time").toNanos();
+        boolean streamUsage = config.getBoolean("openai.api.stream-usage");
+        Config limits = config.getConfig("openai.limits");
+
+        List<ChatProvider> providers = new ArrayList<>();
+        for (Config provider : config.getConfigList("openai.providers")) {
+            providers.add(new ChatProvider(
+                provider.getString("name"),
+                provider.getString("url"),
+                provider.hasPath("key") ? provider.getString("key") : "",
+                provider.hasPath("stream-usage") ? provider.getBoolean("stream-usage") : streamUsage,
+                new UpstreamLimiter(provider.hasPath("limits")
+                    ? provider.getConfig("limits").withFallback(limits)
+                    : limits),
+                decay, maxFailures, ejection, maxEjection));
+        }
+        if (providers.isEmpty()) {
+            providers.add(new ChatProvider("default", config.getString("openai.api.url"),
+                config.getString("openai.api.key"), streamUsage, new UpstreamLimiter(limits),
+                decay, maxFailures, ejection, maxEjection));
+        }
+        log.info("Routing chat requests across {} provider(s)", providers.size());
+        return providers;
+    }
+}
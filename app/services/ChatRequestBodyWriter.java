@@ -0,0 +1,121 @@
+package services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.typesafe.config.Config;
+import dto.ChatMessageDTO;
+import org.apache.pekko.util.ByteString;
+import org.apache.pekko.util.ByteStringBuilder;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+//--------------------------------------------------------------------------------
+/**
+ * Serializes chat completion requests for the ChatGPT API. The JSON is written
+ * with a Jackson streaming generator, whose output buffer is recycled per
+ * thread by the JsonFactory, straight into the ByteString sent as the request
+ * body. No intermediate String or JsonNode tree is built, and message content
+ * is escaped correctly whatever characters it contains.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+public class ChatRequestBodyWriter {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final int BODY_SIZE_HINT = 512;
+
+    private final String model;
+    private final Double temperature;
+    private final Integer maxTokens;
+
+    @Inject
+    public ChatRequestBodyWriter(Config config) {
+        this(
+            config.getString("openai.api.model"),
+            config.hasPath("openai.api.temperature") ? config.getDouble("openai.api.temperature") : null,
+            config.hasPath("openai.api.max-tokens") ? config.getInt("openai.api.max-tokens") : null
+        );
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates a request body writer with explicit settings.
+     *
+     * @param model       the model answering the requests.
+     * @param temperature the sampling temperature, or null for the API default.
+     * @param maxTokens   the maximum number of completion tokens, or null for the
+     *                    API default.
+     */
+    //--------------------------------------------------------------------------------
+    public ChatRequestBodyWriter(String model, Double temperature, Integer maxTokens) {
+        this.model = model;
+        this.temperature = temperature;
+        this.maxTokens = maxTokens;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the model the requests are written for.
+     *
+     * @return the model name.
+     */
+    //--------------------------------------------------------------------------------
+    public String getModel() {
+        return model;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Writes the request body for a conversation.
+     *
+     * @param messages    the conversation messages, oldest first.
+     * @param stream      whether the API should stream the response as
+     *                    server-sent events.
+     * @param streamUsage whether a streamed response should end with a chunk
+     *                    reporting its token usage; only endpoints that support
+     *                    "stream_options" may be asked for it.
+     * @return the UTF-8 encoded JSON request body.
+     */
+    //--------------------------------------------------------------------------------
+    public ByteString write(List<ChatMessageDTO> messages, boolean stream, boolean streamUsage) {
+        ByteStringBuilder body = new ByteStringBuilder();
+        body.sizeHint(BODY_SIZE_HINT);
+
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(body.asOutputStream())) {
+            generator.writeStartObject();
+            generator.writeStringField("model", model);
+            if (temperature != null) {
+                generator.writeNumberField("temperature", temperature);
+            }
+            if (maxTokens != null) {
+                generator.writeNumberField("max_tokens", maxTokens);
+            }
+            if (stream) {
+                generator.writeBooleanField("stream", true);
+                if (streamUsage) {
+                    generator.writeObjectFieldStart("stream_options");
+                    generator.writeBooleanField("include_usage", true);
+                    generator.writeEndObject();
+                }
+            }
+
+            generator.writeArrayFieldStart("messages");
+            for (ChatMessageDTO message : messages) {
+                generator.writeStartObject();
+                generator.writeStringField("role", message.getRole());
+                generator.writeStringField("content", message.getContent());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write ChatGPT request body", e);
+        }
+
+        return body.result();
+    }
+}
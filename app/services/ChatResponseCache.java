@@ -0,0 +1,206 @@
+package services;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.typesafe.config.Config;
+import dto.ChatMessageDTO;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+//--------------------------------------------------------------------------------
+/**
+ * Bounded in-memory cache of ChatGPT responses to standalone questions, keyed
+ * by a normalized hash of the instruction, the question and the model. Requests
+ * that replay earlier turns of a conversation are neither served from nor
+ * stored in the cache, since their messages hardly ever repeat and would only
+ * crowd out reusable answers. Entries expire after a configurable TTL and are
+ * evicted once the approximate memory they hold exceeds the configured weight.
+ * Concurrent misses for the same key share a single upstream call, and failed
+ * calls are never cached.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+public class ChatResponseCache {
+
+    private final boolean enabled;
+    private final AsyncCache<String, String> cache;
+
+    @Inject
+    public ChatResponseCache(Config config) {
+        this(
+            config.getBoolean("chat.cache.enabled"),
+            config.getBytes("chat.cache.max-weight"),
+            config.getDuration("chat.cache.ttl")
+        );
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates a response cache with explicit settings.
+     *
+     * @param enabled   whether responses are cached at all.
+     * @param maxWeight the approximate upper bound, in bytes, of cached responses.
+     * @param ttl       how long a response is served after it was cached.
+     */
+    //--------------------------------------------------------------------------------
+    public ChatResponseCache(boolean enabled, long maxWeight, Duration ttl) {
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+            .maximumWeight(maxWeight)
+            .weigher((String key, String response) -> key.length() + 2 * response.length())
+            .expireAfterWrite(ttl)
+            .recordStats()
+            .buildAsync();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the cached response for the given request, or loads it with the
+     * given loader. Concurrent callers missing on the same key wait for the same
+     * load. A load that completes exceptionally is removed from the cache. A
+     * request with earlier turns is always loaded.
+     *
+     * @param messages the conversation messages sent to the model.
+     * @param model    the model answering the request.
+     * @param loader   supplies the response on a cache miss.
+     * @return A CompletionStage containing the response.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletionStage<String> get(List<ChatMessageDTO> messages, String model, Supplier<CompletionStage<String>> loader) {
+        Optional<String> standaloneKey = standaloneKeyFor(messages, model);
+        if (standaloneKey.isEmpty()) {
+            return loader.get();
+        }
+
+        return cache.get(standaloneKey.get(), (key, executor) -> loader.get().toCompletableFuture());
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the cached response for the given request if it has already been
+     * loaded successfully.
+     *
+     * @param messages the conversation messages sent to the model.
+     * @param model    the model answering the request.
+     * @return the cached response, or empty if there is none.
+     */
+    //--------------------------------------------------------------------------------
+    public Optional<String> getIfPresent(List<ChatMessageDTO> messages, String model) {
+        Optional<String> standaloneKey = standaloneKeyFor(messages, model);
+        if (standaloneKey.isEmpty()) {
+            return Optional.empty();
+        }
+
+        CompletableFuture<String> cached = cache.getIfPresent(standaloneKey.get());
+        if (cached == null || !cached.isDone() || cached.isCompletedExceptionally()) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(cached.join());
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Stores a response that was obtained outside of {@link #get}, such as a
+     * completed streaming response. Responses to requests with earlier turns
+     * are not stored.
+     *
+     * @param messages the conversation messages sent to the model.
+     * @param model    the model answering the request.
+     * @param response the response to cache.
+     */
+    //--------------------------------------------------------------------------------
+    public void put(List<ChatMessageDTO> messages, String model, String response) {
+        standaloneKeyFor(messages, model)
+            .ifPresent(key -> cache.put(key, CompletableFuture.completedFuture(response)));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns a snapshot of the hit, miss, load and eviction counters.
+     *
+     * @return the cache statistics.
+     */
+    //--------------------------------------------------------------------------------
+    public CacheStats stats() {
+        return cache.synchronous().stats();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Computes the cache key of a request without earlier turns from its
+     * instruction and question.
+     *
+     * @param messages the conversation messages sent to the model.
+     * @param model    the model answering the request.
+     * @return the cache key, or empty if the cache is disabled or the request
+     *         has earlier turns.
+     */
+    //--------------------------------------------------------------------------------
+    private Optional<String> standaloneKeyFor(List<ChatMessageDTO> messages, String model) {
+        if (!enabled || !SemanticResponseCache.isStandalone(messages)) {
+            return Optional.empty();
+        }
+
+        String instruction = null;
+        String question = null;
+        for (ChatMessageDTO message : messages) {
+            if ("system".equals(message.getRole())) {
+                instruction = message.getContent();
+            } else {
+                question = message.getContent();
+            }
+        }
+        return Optional.of(keyFor(instruction, question, model));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Computes the cache key of a standalone question: a SHA-256 hash over the
+     * model, the instruction and the question, with surrounding whitespace
+     * removed and inner whitespace runs collapsed to a single space.
+     *
+     * @param instruction the instruction for the system role, may be null.
+     * @param question    the user's question.
+     * @param model       the model answering the request.
+     * @return the hex encoded cache key.
+     */
+    //--------------------------------------------------------------------------------
+    static String keyFor(String instruction, String question, String model) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(normalize(model).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(normalize(instruction).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(normalize(question).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Normalizes whitespace so that requests differing only in spacing share a
+     * cache entry.
+     *
+     * @param text the text to normalize, may be null.
+     * @return the normalized text.
+     */
+    //--------------------------------------------------------------------------------
+    private static String normalize(String text) {
+        return text == null ? "" : text.trim().replaceAll("\\s+", " ");
+    }
+}
@@ -0,0 +1,69 @@
+package services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.extern.slf4j.Slf4j;
+
+//--------------------------------------------------------------------------------
+/**
+ * Extracts the response content from ChatGPT API responses, both complete chat
+ * completions and the chunks of a streamed one.
+ */
+//--------------------------------------------------------------------------------
+@Slf4j
+public final class ChatResponseParser {
+
+    private ChatResponseParser() {
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Extracts the ChatGPT response from the API's JSON response.
+     *
+     * @param json The JSON response from the ChatGPT API.
+     * @return The content of the response as a string, or a message starting
+     *         with "Error:" if the API returned an error or an unexpected format.
+     */
+    //--------------------------------------------------------------------------------
+    public static String extractContent(JsonNode json) {
+        try {
+            if (json.has("error")) {
+                JsonNode errorNode = json.get("error");
+                String errorMessage = errorNode.has("message") ? errorNode.get("message").asText() : "Unknown error";
+                String errorType = errorNode.has("type") ? errorNode.get("type").asText() : "Unknown type";
+                String errorParam = errorNode.has("param") && !errorNode.get("param").isNull() ? errorNode.get("param").asText() : "None";
+                String errorCode = errorNode.has("code") ? errorNode.get("code").asText() : "Unknown code";
+
+                String formattedError = String.format(
+                    "API Error:\n- Message: %s\n- Type: %s\n- Param: %s\n- Code: %s",
+                    errorMessage, errorType, errorParam, errorCode
+                );
+                throw new IllegalStateException(formattedError);
+            }
+
+            JsonNode choicesNode = json.path("choices");
+            if (choicesNode.isArray() && !choicesNode.isEmpty()) {
+                JsonNode messageNode = choicesNode.get(0).path("message");
+                if (messageNode.has("content")) {
+                    return messageNode.get("content").asText();
+                }
+            }
+
+            throw new IllegalStateException("Unexpected response format: " + json);
+        } catch (Exception e) {
+            log.error("Failed to parse ChatGPT response", e);
+            return "Error: Unable to parse response from ChatGPT";
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Extracts the content token carried by one chunk of a streamed response.
+     *
+     * @param chunk The JSON data of one server-sent event.
+     * @return The token, or an empty string if the chunk carries none.
+     */
+    //--------------------------------------------------------------------------------
+    public static String extractDelta(JsonNode chunk) {
+        return chunk.path("choices").path(0).path("delta").path("content").asText("");
+    }
+}
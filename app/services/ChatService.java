@@ -1,11 +1,22 @@
 package services;
 
 import com.google.inject.ImplementedBy;
+import dto.ChatBatchResultDTO;
 import dto.ChatDialogueDTO;
+import dto.ChatHistoryCursor;
+import dto.ChatHistoryPageDTO;
+import dto.ChatHistoryVersion;
+import dto.ChatJobDTO;
 import dto.ChatQueryDTO;
+import dto.ChatSearchPageDTO;
+import org.apache.pekko.NotUsed;
+import org.apache.pekko.stream.javadsl.Source;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
-import java.util.stream.Stream;
 
 //--------------------------------------------------------------------------------
 /**
@@ -19,22 +30,148 @@ public interface ChatService {
     //--------------------------------------------------------------------------------
     /**
      * Processes a chat request by sending it to the ChatGPT API and returning the
-     * response.
+     * response. A request carrying an idempotency key that has already been
+     * answered, or is being answered, gets the same dialogue without another
+     * API call, and does not count against the user's request quota; answers
+     * that are mock responses are not kept for the key.
      *
      * @param chatQueryDTO Contains the instruction and question for the chat request.
      * @param email        The email of the user making the request.
-     * @return A CompletionStage containing the ChatDialogueDTO with the chat response.
+     * @return A CompletionStage containing the ChatDialogueDTO with the chat
+     *         response. Fails with an IdempotencyKeyReusedException if the key
+     *         was used for a different query.
      */
     //--------------------------------------------------------------------------------
     CompletionStage<ChatDialogueDTO> processChatRequest(ChatQueryDTO chatQueryDTO, String email);
 
     //--------------------------------------------------------------------------------
     /**
-     * Retrieves all chat queries made by a user.
+     * Answers a queued chat job like
+     * {@link #processChatRequest(ChatQueryDTO, String)}, except that a failed
+     * API call fails the returned stage instead of being answered with a mock
+     * response, so that the job is retried.
+     *
+     * @param chatQueryDTO Contains the instruction and question of the job.
+     * @param email        The email of the user who submitted the job.
+     * @return A CompletionStage containing the saved ChatDialogueDTO.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<ChatDialogueDTO> processChatJob(ChatQueryDTO chatQueryDTO, String email);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Processes a chat request in streaming mode. The returned stage completes as
+     * soon as the ChatGPT API has accepted the request, and the Source emits the
+     * response tokens as they arrive. The full response is saved once the stream
+     * terminates. A request carrying an idempotency key that has already been
+     * answered, or is being answered, gets the saved response as a single token
+     * once it is available, or an IdempotencyKeyReusedException if the key was
+     * used for a different query, and does not count against the user's
+     * request quota.
+     *
+     * @param chatQueryDTO Contains the instruction and question for the chat request.
+     * @param email        The email of the user making the request.
+     * @return A CompletionStage containing a Source of response tokens. The
+     *         Source materializes to a stage completed with the saved
+     *         dialogue, or exceptionally if it could not be saved or the Source
+     *         was not run within the stream start timeout.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Source<String, CompletionStage<ChatDialogueDTO>>> streamChatRequest(ChatQueryDTO chatQueryDTO,
+                                                                                       String email);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Retrieves all chat queries made by a user, oldest first. The stage
+     * completes once the first query has been read, so that a failure to read
+     * the history at all fails the stage; the Source fails if reading fails
+     * later on.
      *
      * @param email The email of the user whose chat queries are to be retrieved.
-     * @return A CompletionStage containing a stream of ChatDialogue objects.
+     * @return A CompletionStage containing a Source of the queries.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Source<ChatDialogueDTO, ?>> getAllQueriesByUser(String email);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the current version of a user's chat history, which changes
+     * whenever a chat query is saved for the user. While the user's newest
+     * queries are cached, this is the version of the cached queries, so that
+     * it never describes a newer history than the one that is served.
+     *
+     * @param email The email of the user.
+     * @return A CompletionStage containing the version.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<ChatHistoryVersion> getHistoryVersion(String email);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Retrieves one page of a user's chat queries, newest first.
+     *
+     * @param email  The email of the user whose chat queries are to be retrieved.
+     * @param before The cursor returned with the previous page, or null for the
+     *               newest page.
+     * @param limit  The maximum number of chat queries in the page.
+     * @return A CompletionStage containing the page and the cursor of the next one.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<ChatHistoryPageDTO> getQueriesPageByUser(String email, ChatHistoryCursor before, int limit);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Searches a user's chat queries and responses, best matches first.
+     *
+     * @param email  The email of the user whose chat queries are to be searched.
+     * @param query  The search words.
+     * @param offset The number of best matches to skip.
+     * @param limit  The maximum number of matches in the page.
+     * @return A CompletionStage containing the page of matches and the offset of
+     *         the next one.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<ChatSearchPageDTO> searchQueriesByUser(String email, String query, int offset, int limit);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Answers a batch of chat queries with bounded parallelism, subject to the
+     * same upstream limits as single requests, and saves the answers in
+     * batched writes. Results are emitted in completion order; a query that
+     * fails yields a result with an error instead of failing the batch.
+     *
+     * @param chatQueryDTOs The queries to answer.
+     * @param email         The email of the user making the request.
+     * @return A Source of one result per query.
+     */
+    //--------------------------------------------------------------------------------
+    Source<ChatBatchResultDTO, NotUsed> processBatch(List<ChatQueryDTO> chatQueryDTOs, String email);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Queues a chat request to be answered in the background by a
+     * {@link ChatJobWorker}. A request carrying an idempotency key is answered
+     * at most once, however often it is submitted.
+     *
+     * @param chatQueryDTO Contains the instruction and question for the chat request.
+     * @param email        The email of the user making the request.
+     * @return A CompletionStage containing the pending job.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<ChatJobDTO> submitJob(ChatQueryDTO chatQueryDTO, String email);
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Retrieves a job submitted by a user, waiting up to the given time for it
+     * to finish.
+     *
+     * @param id    The id of the job.
+     * @param email The email of the user who submitted the job.
+     * @param wait  How long to wait for an unfinished job; zero to return its
+     *              current state at once.
+     * @return A CompletionStage containing the job, or empty if the user has no
+     *         job with that id.
      */
     //--------------------------------------------------------------------------------
-    CompletionStage<Stream<ChatDialogueDTO>> getAllQueriesByUser(String email);
+    CompletionStage<Optional<ChatJobDTO>> getJob(Long id, String email, Duration wait);
 }
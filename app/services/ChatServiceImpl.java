@@ -3,19 +3,50 @@ package services;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.typesafe.config.Config;
 import dao.ChatDialogueRepository;
+import dao.ChatJobRepository;
+import dto.ChatBatchResultDTO;
 import dto.ChatDialogueDTO;
+import dto.ChatHistoryCursor;
+import dto.ChatHistoryPageDTO;
+import dto.ChatHistoryVersion;
+import dto.ChatJobDTO;
+import dto.ChatMessageDTO;
 import dto.ChatQueryDTO;
+import dto.ChatSearchPageDTO;
+import dto.ChatSearchResultDTO;
 import lombok.extern.slf4j.Slf4j;
 import models.ChatDialogue;
-import play.libs.ws.WSClient;
-import play.libs.ws.WSRequest;
+import models.ChatJob;
+import org.apache.pekko.NotUsed;
+import org.apache.pekko.actor.ActorSystem;
+import org.apache.pekko.pattern.Patterns;
+import org.apache.pekko.stream.javadsl.Framing;
+import org.apache.pekko.stream.javadsl.FramingTruncation;
+import org.apache.pekko.stream.Materializer;
+import org.apache.pekko.stream.javadsl.Sink;
+import org.apache.pekko.stream.javadsl.Source;
+import org.apache.pekko.util.ByteString;
+import play.libs.Json;
+import play.libs.ws.InMemoryBodyWritable;
 import play.libs.ws.WSResponse;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
-import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 //--------------------------------------------------------------------------------
 /**
@@ -28,17 +59,63 @@ import java.util.stream.Stream;
 @Slf4j
 public class ChatServiceImpl implements ChatService {
 
+    private static final int MAX_STREAM_LINE_BYTES = 64 * 1024;
+    private static final String STREAM_DONE_MARKER = "[DONE]";
+    private static final String MOCK_RESPONSE_PREFIX = "This is a mock response for the question: ";
+
     private final ChatDialogueRepository chatRequestRepository;
-    private final WSClient wsClient;
-    private final String openAiApiUrl;
-    private final String openAiApiKey;
+    private final ChatJobRepository chatJobRepository;
+    private final ChatResponseCache responseCache;
+    private final SemanticResponseCache semanticCache;
+    private final ConversationContextAssembler contextAssembler;
+    private final ChatRequestBodyWriter requestBodyWriter;
+    private final UpstreamResilience resilience;
+    private final ChatMetrics metrics;
+    private final IdempotentRequests idempotentRequests;
+    private final ChatHistoryBus historyEvents;
+    private final ChatHistoryVersions historyVersions;
+    private final RecentHistoryCache recentHistory;
+    private final UsageQuotas usageQuotas;
+    private final ChatProviderRouter providerRouter;
+    private final Materializer materializer;
+    private final int completionTokenReserve;
+    private final int batchParallelism;
+    private final int batchSaveSize;
+    private final Duration batchSaveInterval;
+    private final Duration jobPollInterval;
+    private final Duration streamStartTimeout;
 
     @Inject
-    public ChatServiceImpl(ChatDialogueRepository chatRequestRepository, WSClient wsClient, Config config) {
+    public ChatServiceImpl(ChatDialogueRepository chatRequestRepository, ChatJobRepository chatJobRepository,
+                           ChatResponseCache responseCache, SemanticResponseCache semanticCache,
+                           ConversationContextAssembler contextAssembler, ChatRequestBodyWriter requestBodyWriter,
+                           UpstreamResilience resilience, ChatMetrics metrics, IdempotentRequests idempotentRequests,
+                           ChatHistoryBus historyEvents, ChatHistoryVersions historyVersions,
+                           RecentHistoryCache recentHistory, UsageQuotas usageQuotas, ChatProviderRouter providerRouter,
+                           Materializer materializer, Config config) {
         this.chatRequestRepository = chatRequestRepository;
-        this.wsClient = wsClient;
-        this.openAiApiUrl = config.getString("openai.api.url");
-        this.openAiApiKey = config.getString("openai.api.key");
+        this.chatJobRepository = chatJobRepository;
+        this.responseCache = responseCache;
+        this.semanticCache = semanticCache;
+        this.contextAssembler = contextAssembler;
+        this.requestBodyWriter = requestBodyWriter;
+        this.resilience = resilience;
+        this.metrics = metrics;
+        this.idempotentRequests = idempotentRequests;
+        this.historyEvents = historyEvents;
+        this.historyVersions = historyVersions;
+        this.recentHistory = recentHistory;
+        this.usageQuotas = usageQuotas;
+        this.providerRouter = providerRouter;
+        this.materializer = materializer;
+        this.completionTokenReserve = config.hasPath("openai.api.max-tokens")
+            ? config.getInt("openai.api.max-tokens")
+            : config.getInt("openai.limits.completion-token-reserve");
+        this.batchParallelism = config.getInt("chat.batch.parallelism");
+        this.batchSaveSize = config.getInt("chat.batch.save-batch-size");
+        this.batchSaveInterval = config.getDuration("chat.batch.save-interval");
+        this.jobPollInterval = config.getDuration("chat.jobs.poll-interval");
+        this.streamStartTimeout = config.getDuration("chat.idempotency.stream-start-timeout");
     }
 
     //--------------------------------------------------------------------------------
@@ -48,18 +125,229 @@ public class ChatServiceImpl implements ChatService {
     //--------------------------------------------------------------------------------
     @Override
     public CompletionStage<ChatDialogueDTO> processChatRequest(ChatQueryDTO chatQueryDTO, String email) {
-        return callChatGPT(chatQueryDTO.getInstruction(), chatQueryDTO.getQuestion()).thenApply(chatGptResponse -> {
-            System.out.println("chatgpt response: " + chatGptResponse);
+        return processChatRequest(chatQueryDTO, email, true, true);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<ChatDialogueDTO> processChatJob(ChatQueryDTO chatQueryDTO, String email) {
+        return processChatRequest(chatQueryDTO, email, false, false);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Answers a chat request once per idempotency key. A request that is not
+     * answered by this call itself, because the key is pending, completed or
+     * saved already, gives back its admission to the user's request quota.
+     *
+     * @param chatQueryDTO  The chat query DTO containing the instruction and question.
+     * @param email         The email of the user making the request.
+     * @param allowFallback Whether a failed API call is answered with a mock
+     *                      response instead of failing the request.
+     * @param admitted      Whether the request was admitted to the user's
+     *                      request quota just for this call, rather than once
+     *                      for all attempts of a job.
+     * @return A CompletionStage containing the saved dialogue.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<ChatDialogueDTO> processChatRequest(ChatQueryDTO chatQueryDTO, String email,
+                                                                boolean allowFallback, boolean admitted) {
+        String idempotencyKey = chatQueryDTO.getIdempotencyKey();
+        if (idempotencyKey == null) {
+            return answerChatRequest(chatQueryDTO, email, allowFallback);
+        }
+        AtomicBoolean answered = new AtomicBoolean();
+        return idempotentRequests.execute(email, idempotencyKey, () ->
+                chatRequestRepository.getByIdempotencyKey(email, idempotencyKey).thenCompose(saved -> {
+                    if (saved.isPresent()) {
+                        return CompletableFuture.completedFuture(saved.get());
+                    }
+                    answered.set(true);
+                    return answerChatRequest(chatQueryDTO, email, allowFallback);
+                }))
+            .whenComplete((dialogue, ex) -> {
+                if (admitted && !answered.get()) {
+                    usageQuotas.refund(email, 1);
+                }
+            })
+            .thenApply(dialogue -> requireSameQuery(dialogue, chatQueryDTO));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<Source<String, CompletionStage<ChatDialogueDTO>>> streamChatRequest(ChatQueryDTO chatQueryDTO,
+                                                                                              String email) {
+        CompletableFuture<ChatDialogueDTO> saved = new CompletableFuture<>();
+        return streamChatRequest(chatQueryDTO, email, saved)
+            .thenApply(tokens -> tokens.mapMaterializedValue(ignored -> saved));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Streams the answer to a chat request once per idempotency key. A request
+     * replaying a pending, completed or saved answer gives back its admission
+     * to the user's request quota.
+     *
+     * @param chatQueryDTO The chat query DTO containing the instruction and question.
+     * @param email        The email of the user making the request.
+     * @param saved        Completed with the saved dialogue.
+     * @return A CompletionStage containing a Source of response tokens.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<Source<String, ?>> streamChatRequest(ChatQueryDTO chatQueryDTO, String email,
+                                                                CompletableFuture<ChatDialogueDTO> saved) {
+        String idempotencyKey = chatQueryDTO.getIdempotencyKey();
+        if (idempotencyKey == null) {
+            return failSavedOnError(streamAnswer(chatQueryDTO, email, saved), saved);
+        }
+
+        CompletableFuture<ChatDialogueDTO> earlier = idempotentRequests.claim(email, idempotencyKey, saved);
+        if (earlier != null) {
+            usageQuotas.refund(email, 1);
+            CompletableFuture<ChatDialogueDTO> replayed = earlier.thenApply(dialogue -> requireSameQuery(dialogue, chatQueryDTO));
+            replayed.whenComplete((dialogue, ex) -> {
+                if (ex != null) {
+                    saved.completeExceptionally(ex);
+                } else {
+                    saved.complete(dialogue);
+                }
+            });
+            return replayed.<Source<String, ?>>thenApply(dialogue -> Source.single(dialogue.getResponse()));
+        }
+        return failSavedOnError(chatRequestRepository.getByIdempotencyKey(email, idempotencyKey)
+            .thenCompose(existing -> {
+                if (existing.isPresent()) {
+                    usageQuotas.refund(email, 1);
+                    ChatDialogueDTO dialogue = requireSameQuery(existing.get(), chatQueryDTO);
+                    saved.complete(dialogue);
+                    return CompletableFuture.completedFuture(Source.single(dialogue.getResponse()));
+                }
+                return streamAnswer(chatQueryDTO, email, saved);
+            }), saved);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Fails the saved dialogue of a streamed request if the stream cannot be
+     * started, so that retries with the same idempotency key and the caller
+     * waiting for the saved dialogue are not left pending.
+     *
+     * @param tokens The stage producing the Source of response tokens.
+     * @param saved  Completed with the saved dialogue.
+     * @return The same stage.
+     */
+    //--------------------------------------------------------------------------------
+    private static CompletionStage<Source<String, ?>> failSavedOnError(CompletionStage<Source<String, ?>> tokens,
+                                                                      CompletableFuture<ChatDialogueDTO> saved) {
+        return tokens.whenComplete((source, ex) -> {
+            if (ex != null) {
+                saved.completeExceptionally(ex);
+            }
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Checks that a dialogue replayed for an idempotency key answers the query
+     * the key is now sent with.
+     *
+     * @param dialogue     The dialogue saved or pending for the key.
+     * @param chatQueryDTO The query sent with the key.
+     * @return The dialogue.
+     * @throws IdempotencyKeyReusedException if the dialogue answers a
+     *                                       different query.
+     */
+    //--------------------------------------------------------------------------------
+    private static ChatDialogueDTO requireSameQuery(ChatDialogueDTO dialogue, ChatQueryDTO chatQueryDTO) {
+        if (!Objects.equals(dialogue.getInstruction(), chatQueryDTO.getInstruction())
+            || !Objects.equals(dialogue.getQuestion(), chatQueryDTO.getQuestion())
+            || !Objects.equals(dialogue.getThreadId(), chatQueryDTO.getThreadId())) {
+            throw new IdempotencyKeyReusedException(chatQueryDTO.getIdempotencyKey());
+        }
+        return dialogue;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Answers a chat request and saves the dialogue.
+     *
+     * @param chatQueryDTO  The chat query DTO containing the instruction and question.
+     * @param email         The email of the user making the request.
+     * @param allowFallback Whether a failed API call is answered with a mock
+     *                      response instead of failing the request.
+     * @return A CompletionStage containing the saved dialogue.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<ChatDialogueDTO> answerChatRequest(ChatQueryDTO chatQueryDTO, String email,
+                                                               boolean allowFallback) {
+        return assembleMessages(chatQueryDTO, email).thenCompose(messages -> {
+            AtomicBoolean fromUpstream = new AtomicBoolean();
+            AtomicBoolean fallback = new AtomicBoolean();
+            TokenUsage usage = new TokenUsage(email);
+            return fetchChatGptResponse(messages, chatQueryDTO.getDeadline(), fromUpstream, usage)
+                .exceptionally(ex -> {
+                    rethrowIfRejected(ex, chatQueryDTO.getDeadline());
+                    if (!allowFallback) {
+                        throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+                    }
+                    log.error("Failed to process chat request", ex);
+                    metrics.incrementFallback("sync");
+                    fallback.set(true);
+                    return getMockChatGptResponse(chatQueryDTO.getQuestion());
+                })
+                .thenCompose(chatGptResponse -> saveChatAndConvertToDTO(chatQueryDTO, email, chatGptResponse,
+                    fromUpstream.get() ? messages : null, usage, fallback.get()));
+        });
+    }
 
-            if (chatGptResponse.startsWith("Error:")) {
-                log.error("ChatGPT returned an error: {}", chatGptResponse);
-                chatGptResponse = getMockChatGptResponse(chatQueryDTO.getQuestion());
+    //--------------------------------------------------------------------------------
+    /**
+     * Streams the answer to a chat request and saves the dialogue once the
+     * stream terminates.
+     *
+     * @param chatQueryDTO The chat query DTO containing the instruction and question.
+     * @param email        The email of the user making the request.
+     * @param saved        Completed with the saved dialogue.
+     * @return A CompletionStage containing a Source of response tokens.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<Source<String, ?>> streamAnswer(ChatQueryDTO chatQueryDTO, String email,
+                                                           CompletableFuture<ChatDialogueDTO> saved) {
+        return assembleMessages(chatQueryDTO, email).thenCompose(messages -> {
+            Optional<String> cachedResponse = responseCache.getIfPresent(messages, requestBodyWriter.getModel());
+            if (cachedResponse.isEmpty()) {
+                cachedResponse = semanticCache.lookup(messages);
+            }
+            if (cachedResponse.isPresent()) {
+                return CompletableFuture.completedFuture(saveOnCompletion(chatQueryDTO, email, messages,
+                    Source.single(cachedResponse.get()), false, false, new TokenUsage(email), saved));
             }
 
-            return saveChatAndConvertToDTO(chatQueryDTO, email, chatGptResponse);
-        }).exceptionally(ex -> {
-            log.error("Failed to process chat request", ex);
-            return saveChatAndConvertToDTO(chatQueryDTO, email, getMockChatGptResponse(chatQueryDTO.getQuestion()));
+            return resilience.<Source<String, ?>>execute(() -> providerRouter
+                    .stream(provider -> createRequestBody(messages, true, provider.isStreamUsage()),
+                        estimateRequestTokens(messages), chatQueryDTO.getDeadline())
+                    .thenApply(body -> {
+                        TokenUsage usage = new TokenUsage(email);
+                        return saveOnCompletion(chatQueryDTO, email, messages, extractStreamedTokens(body, usage), true,
+                            false, usage, saved);
+                    }),
+                    false, chatQueryDTO.getDeadline())
+                .exceptionally(ex -> {
+                    rethrowIfRejected(ex, chatQueryDTO.getDeadline());
+                    log.error("Failed to stream chat request", ex);
+                    metrics.incrementFallback("stream");
+                    return saveOnCompletion(chatQueryDTO, email, messages,
+                        Source.single(getMockChatGptResponse(chatQueryDTO.getQuestion())), false, true,
+                        new TokenUsage(email), saved);
+                });
         });
     }
 
@@ -69,132 +357,617 @@ public class ChatServiceImpl implements ChatService {
      */
     //--------------------------------------------------------------------------------
     @Override
-    public CompletionStage<Stream<ChatDialogueDTO>> getAllQueriesByUser(String email) {
-        return chatRequestRepository.getAllByUser(email)
-            .thenApply(chatDialogueStream -> chatDialogueStream.map(this::convertToDTO));
+    public CompletionStage<Source<ChatDialogueDTO, ?>> getAllQueriesByUser(String email) {
+        return recentHistory.get(email, null, Integer.MAX_VALUE).thenCompose(cached -> {
+            if (cached.isPresent()) {
+                List<ChatDialogueDTO> oldestFirst = new ArrayList<>(cached.get());
+                Collections.reverse(oldestFirst);
+                return CompletableFuture.<Source<ChatDialogueDTO, ?>>completedFuture(Source.from(oldestFirst));
+            }
+
+            long start = System.nanoTime();
+            return chatRequestRepository.getAllByUser(email)
+                .watchTermination((notUsed, done) -> done.whenComplete((result, ex) -> {
+                    metrics.record("chat.db", "history", ex == null ? "success" : "failure", System.nanoTime() - start);
+                    if (ex != null) {
+                        log.error("Failed to read the chat history of {}", email, ex);
+                    }
+                }))
+                .prefixAndTail(1)
+                .runWith(Sink.head(), materializer)
+                .<Source<ChatDialogueDTO, ?>>thenApply(firstAndRest ->
+                    Source.from(firstAndRest.first()).concat(firstAndRest.second()));
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<ChatHistoryVersion> getHistoryVersion(String email) {
+        return recentHistory.version(email)
+            .<CompletionStage<ChatHistoryVersion>>map(CompletableFuture::completedFuture)
+            .orElseGet(() -> historyVersions.get(email));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<ChatHistoryPageDTO> getQueriesPageByUser(String email, ChatHistoryCursor before, int limit) {
+        return recentHistory.get(email, before, limit + 1)
+            .thenCompose(cached -> cached.isPresent()
+                ? CompletableFuture.completedFuture(cached.get())
+                : metrics.timeAsync("chat.db", "history_page", () -> chatRequestRepository.getPageByUser(email, before, limit + 1))
+                    .thenApply(chatDialogueStream -> chatDialogueStream.collect(Collectors.toList())))
+            .thenApply(items -> {
+                if (items.size() <= limit) {
+                    return new ChatHistoryPageDTO(items, null);
+                }
+                List<ChatDialogueDTO> page = items.subList(0, limit);
+                return new ChatHistoryPageDTO(page, ChatHistoryCursor.of(page.get(limit - 1)).encode());
+            });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<ChatSearchPageDTO> searchQueriesByUser(String email, String query, int offset, int limit) {
+        return metrics.timeAsync("chat.db", "search", () -> chatRequestRepository.search(email, query, offset, limit + 1))
+            .thenApply(matches -> {
+                List<ChatSearchResultDTO> items = matches.collect(Collectors.toList());
+                if (items.size() <= limit) {
+                    return new ChatSearchPageDTO(items, null);
+                }
+                return new ChatSearchPageDTO(items.subList(0, limit), offset + limit);
+            });
     }
 
     //--------------------------------------------------------------------------------
     /**
-     * Saves the chat request and converts it to ChatDialogueDTO.
+     * {@inheritDoc}
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<ChatJobDTO> submitJob(ChatQueryDTO chatQueryDTO, String email) {
+        ChatJob chatJob = new ChatJob();
+        chatJob.setEmail(email);
+        chatJob.setInstruction(chatQueryDTO.getInstruction());
+        chatJob.setQuestion(chatQueryDTO.getQuestion());
+        chatJob.setThreadId(chatQueryDTO.getThreadId());
+        chatJob.setIdempotencyKey(chatQueryDTO.getIdempotencyKey());
+        return metrics.timeAsync("chat.db", "enqueue_job", () -> chatJobRepository.enqueue(chatJob))
+            .thenApply(queued -> new ChatJobDTO(queued.getId(), queued.getStatus(), queued.getCreatedAt(), null, null));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     * <p>
+     * While waiting, the job is re-read every poll interval of the job queue,
+     * since the worker answering it may run on another instance.
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public CompletionStage<Optional<ChatJobDTO>> getJob(Long id, String email, Duration wait) {
+        return getJobUntil(id, email, System.nanoTime() + wait.toNanos());
+    }
+
+    private CompletionStage<Optional<ChatJobDTO>> getJobUntil(Long id, String email, long deadlineNanos) {
+        return chatJobRepository.getByIdAndEmail(id, email).thenCompose(job -> {
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (job.isEmpty() || job.get().getStatus().isFinished() || remainingNanos <= 0) {
+                return CompletableFuture.completedFuture(job);
+            }
+            ActorSystem system = materializer.system();
+            Duration delay = Duration.ofNanos(Math.min(jobPollInterval.toNanos(), remainingNanos));
+            return Patterns.after(delay, system.scheduler(), system.dispatcher(),
+                () -> getJobUntil(id, email, deadlineNanos));
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Answers are collected into groups of up to the configured save batch size,
+     * waiting at most the save interval for a group to fill up, and each group is
+     * saved in one transaction. If that fails, the group's dialogues are saved
+     * one by one so that only the failing ones are reported.
+     */
+    //--------------------------------------------------------------------------------
+    @Override
+    public Source<ChatBatchResultDTO, NotUsed> processBatch(List<ChatQueryDTO> chatQueryDTOs, String email) {
+        return Source.from(chatQueryDTOs)
+            .zipWithIndex()
+            .mapAsyncUnordered(batchParallelism, item -> answerBatchItem(item.second(), item.first(), email))
+            .groupedWithin(batchSaveSize, batchSaveInterval)
+            .mapAsync(1, answers -> saveBatch(email, answers))
+            .mapConcat(results -> results);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Fetches the answer to one query of a batch. Unlike single requests, a
+     * failure is reported rather than answered with a mock response.
+     *
+     * @param index        The position of the query in the batch.
+     * @param chatQueryDTO The query.
+     * @param email        The email of the user making the request.
+     * @return A CompletionStage containing the answer or the failure, which
+     *         never fails itself.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<BatchAnswer> answerBatchItem(long index, ChatQueryDTO chatQueryDTO, String email) {
+        if (chatQueryDTO == null) {
+            return CompletableFuture.completedFuture(new BatchAnswer(index, null, null, null, null, "Not a valid query"));
+        }
+        if (chatQueryDTO.getQuestion() == null || chatQueryDTO.getQuestion().trim().isEmpty()) {
+            return CompletableFuture.completedFuture(new BatchAnswer(index, chatQueryDTO, null, null, null, "Question is required"));
+        }
+        return assembleMessages(chatQueryDTO, email)
+            .thenCompose(messages -> {
+                AtomicBoolean fromUpstream = new AtomicBoolean();
+                TokenUsage usage = new TokenUsage(email);
+                return fetchChatGptResponse(messages, chatQueryDTO.getDeadline(), fromUpstream, usage).thenApply(chatGptResponse ->
+                    new BatchAnswer(index, chatQueryDTO, chatGptResponse, fromUpstream.get() ? messages : null, usage, null));
+            })
+            .exceptionally(ex -> {
+                Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+                log.warn("Failed to answer batch query {}", index, cause);
+                return new BatchAnswer(index, chatQueryDTO, null, null, null, "Failed to answer the query: " + cause.getMessage());
+            });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Saves the answered queries of a group in one transaction, falling back to
+     * saving them individually if the transaction fails.
+     *
+     * @param email   The email of the user making the request.
+     * @param answers The answers of the group, including failed ones.
+     * @return A CompletionStage containing one result per answer, which never
+     *         fails itself.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<List<ChatBatchResultDTO>> saveBatch(String email, List<BatchAnswer> answers) {
+        List<ChatBatchResultDTO> results = new ArrayList<>(answers.size());
+        List<BatchAnswer> answered = new ArrayList<>(answers.size());
+        List<ChatDialogue> chatDialogues = new ArrayList<>(answers.size());
+        for (BatchAnswer answer : answers) {
+            if (answer.error != null) {
+                results.add(new ChatBatchResultDTO(answer.index, null, answer.error));
+            } else {
+                answered.add(answer);
+                chatDialogues.add(newChatDialogue(answer.chatQueryDTO, email, answer.response, answer.indexAs, answer.usage));
+            }
+        }
+        if (answered.isEmpty()) {
+            return CompletableFuture.completedFuture(results);
+        }
+
+        return metrics.timeAsync("chat.db", "save_batch", () -> chatRequestRepository.saveChatDialogues(chatDialogues))
+            .thenApply(saved -> {
+                for (int i = 0; i < saved.size(); i++) {
+                    ChatDialogue dialogue = saved.get(i);
+                    results.add(new ChatBatchResultDTO(answered.get(i).index,
+                        afterSave(dialogue, answered.get(i).indexAs, dialogue.getIdempotencyKey()), null));
+                }
+                return results;
+            })
+            .handle((saved, ex) -> {
+                if (ex == null) {
+                    return CompletableFuture.completedFuture(saved);
+                }
+                log.warn("Batch insert of {} chat dialogues failed, saving them individually", chatDialogues.size(), ex);
+                List<CompletableFuture<ChatBatchResultDTO>> individual = new ArrayList<>(answered.size());
+                for (int i = 0; i < answered.size(); i++) {
+                    BatchAnswer answer = answered.get(i);
+                    ChatDialogue chatDialogue = chatDialogues.get(i);
+                    chatDialogue.setId(null);
+                    individual.add(chatRequestRepository.saveChatDialogue(chatDialogue)
+                        .thenApply(dialogue -> new ChatBatchResultDTO(answer.index,
+                            afterSave(dialogue, answer.indexAs, dialogue.getIdempotencyKey()), null))
+                        .exceptionally(saveFailure -> {
+                            log.error("Failed to save chat dialogue", saveFailure);
+                            return new ChatBatchResultDTO(answer.index, null, "Failed to save the dialogue");
+                        })
+                        .toCompletableFuture());
+                }
+                return CompletableFuture.allOf(individual.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+                    individual.forEach(result -> results.add(result.join()));
+                    return results;
+                });
+            })
+            .thenCompose(Function.identity());
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Saves the chat request and converts it to ChatDialogueDTO. If a request
+     * with an idempotency key fails to save because another request with the
+     * same key has been saved meanwhile, that dialogue is returned. A mock
+     * response is saved without the idempotency key, and the key is released,
+     * so that a retry with the key is answered afresh.
      *
      * @param chatQueryDTO     The chat query DTO containing the instruction
      *                         and question.
      * @param email            The email of the user making the request.
      * @param chatGptResponse  The response from the ChatGPT API or a mock response.
-     * @return The ChatDialogueDTO representing the chat dialogue.
+     * @param indexAs          The messages the response answers if it was just
+     *                         received from the API and should be added to the
+     *                         semantic cache, or null.
+     * @param usage            The tokens the API billed for the response.
+     * @param fallback         Whether the response is a mock standing in for a
+     *                         failed API call.
+     * @return A CompletionStage containing the ChatDialogueDTO representing the
+     *         saved chat dialogue, which fails if the dialogue could not be saved.
      */
     //--------------------------------------------------------------------------------
-    private ChatDialogueDTO saveChatAndConvertToDTO(ChatQueryDTO chatQueryDTO, String email, String chatGptResponse) {
+    private CompletionStage<ChatDialogueDTO> saveChatAndConvertToDTO(ChatQueryDTO chatQueryDTO, String email,
+                                                                     String chatGptResponse, List<ChatMessageDTO> indexAs,
+                                                                     TokenUsage usage, boolean fallback) {
+        ChatDialogue chatDialogue = newChatDialogue(chatQueryDTO, email, chatGptResponse, indexAs, usage);
+        String requestKey = chatDialogue.getIdempotencyKey();
+        if (fallback && chatDialogue.getIdempotencyKey() != null) {
+            idempotentRequests.release(email, chatDialogue.getIdempotencyKey());
+            chatDialogue.setIdempotencyKey(null);
+        }
+
+        CompletionStage<ChatDialogueDTO> save = metrics.timeAsync("chat.db", "save", () -> chatRequestRepository.saveChatDialogue(chatDialogue))
+            .thenApply(saved -> afterSave(saved, indexAs, requestKey));
+        if (chatDialogue.getIdempotencyKey() == null) {
+            return save;
+        }
+        return save
+            .thenApply(CompletableFuture::completedFuture)
+            .exceptionally(ex -> findDuplicate(email, chatDialogue.getIdempotencyKey(), ex))
+            .thenCompose(Function.identity());
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates the ChatDialogue entity recording a chat query and its response.
+     *
+     * @param chatQueryDTO    The chat query DTO.
+     * @param email           The email of the user making the request.
+     * @param chatGptResponse The response from the ChatGPT API or a mock response.
+     * @param indexAs         The messages the response answers if it was just
+     *                        received in full from the API, or null. The
+     *                        dialogue is marked indexable if they hold no
+     *                        earlier turns.
+     * @param usage           The tokens the API billed for the response, which
+     *                        are left empty if it reported none.
+     * @return The unsaved ChatDialogue.
+     */
+    //--------------------------------------------------------------------------------
+    private static ChatDialogue newChatDialogue(ChatQueryDTO chatQueryDTO, String email, String chatGptResponse,
+                                                List<ChatMessageDTO> indexAs, TokenUsage usage) {
         ChatDialogue chatDialogue = new ChatDialogue();
         chatDialogue.setInstruction(chatQueryDTO.getInstruction());
         chatDialogue.setQuestion(chatQueryDTO.getQuestion());
         chatDialogue.setResponse(chatGptResponse);
         chatDialogue.setEmail(email);
+        chatDialogue.setThreadId(chatQueryDTO.getThreadId());
+        chatDialogue.setIdempotencyKey(chatQueryDTO.getIdempotencyKey());
+        chatDialogue.setIndexable(indexAs != null && SemanticResponseCache.isStandalone(indexAs));
+        if (usage.isReported()) {
+            chatDialogue.setPromptTokens(usage.getPromptTokens());
+            chatDialogue.setCompletionTokens(usage.getCompletionTokens());
+        }
         chatDialogue.setCreatedAt(new Timestamp(System.currentTimeMillis()));
+        return chatDialogue;
+    }
 
-        chatRequestRepository.saveChatDialogue(chatDialogue);
+    //--------------------------------------------------------------------------------
+    /**
+     * Makes a saved dialogue available to conversation context assembly and,
+     * for fresh API responses, to the semantic cache, and notifies the user's
+     * open chat sockets.
+     *
+     * @param saved          The saved ChatDialogue.
+     * @param indexAs        The messages the response answers if it should be
+     *                       added to the semantic cache, or null.
+     * @param idempotencyKey The idempotency key the request was sent with, by
+     *                       which the client recognizes its own dialogue among
+     *                       the pushed ones, or null.
+     * @return The ChatDialogueDTO of the saved dialogue.
+     */
+    //--------------------------------------------------------------------------------
+    private ChatDialogueDTO afterSave(ChatDialogue saved, List<ChatMessageDTO> indexAs, String idempotencyKey) {
+        contextAssembler.append(saved);
+        if (indexAs != null) {
+            semanticCache.add(saved, indexAs);
+        }
+        ChatDialogueDTO chatDialogueDTO = ChatDialogueDTO.of(saved, idempotencyKey);
+        historyEvents.publish(chatDialogueDTO);
+        return chatDialogueDTO;
+    }
 
-        return convertToDTO(chatDialogue);
+    //--------------------------------------------------------------------------------
+    /**
+     * Looks up the dialogue saved by an earlier request with the same
+     * idempotency key after a save failed.
+     *
+     * @param email          The email of the user making the request.
+     * @param idempotencyKey The idempotency key of the request.
+     * @param saveFailure    The failure of the save.
+     * @return A CompletableFuture containing the earlier dialogue, which fails
+     *         with the save failure if there is none.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletableFuture<ChatDialogueDTO> findDuplicate(String email, String idempotencyKey, Throwable saveFailure) {
+        return chatRequestRepository.getByIdempotencyKey(email, idempotencyKey)
+            .thenApply(existing -> existing.orElseThrow(() -> saveFailure instanceof CompletionException
+                ? (CompletionException) saveFailure
+                : new CompletionException(saveFailure)))
+            .toCompletableFuture();
     }
 
     //--------------------------------------------------------------------------------
     /**
-     * Converts a ChatDialogue entity to a ChatDialogueDTO.
+     * Returns the ChatGPT response for the given messages, served from the
+     * response cache when an identical request has been answered
+     * recently, or from the semantic cache when a similar question has. Otherwise
+     * every attempt goes to an endpoint picked by the ChatProviderRouter and
+     * waits for admission by its limiter, and transient failures are retried
+     * and hedged by UpstreamResilience.
+     * Error responses fail the returned stage so that they are never cached.
      *
-     * @param chatDialogue The ChatDialogue entity to be converted.
-     * @return The corresponding ChatDialogueDTO.
+     * @param messages     The conversation messages to send.
+     * @param deadline     When the incoming request has to be answered, or null.
+     * @param fromUpstream Set once the response has been received from the API
+     *                     by this call.
+     * @param usage        Counts the tokens billed for the API calls made by
+     *                     this call, including retries and hedges.
+     * @return A CompletionStage containing the response.
      */
     //--------------------------------------------------------------------------------
-    private ChatDialogueDTO convertToDTO(ChatDialogue chatDialogue) {
-        return new ChatDialogueDTO(
-            chatDialogue.getInstruction(),
-            chatDialogue.getQuestion(),
-            chatDialogue.getResponse(),
-            chatDialogue.getCreatedAt(),
-            chatDialogue.getEmail()
-        );
+    private CompletionStage<String> fetchChatGptResponse(List<ChatMessageDTO> messages, Instant deadline,
+                                                         AtomicBoolean fromUpstream, TokenUsage usage) {
+        return responseCache.get(messages, requestBodyWriter.getModel(), () -> semanticCache.lookup(messages)
+            .<CompletionStage<String>>map(CompletableFuture::completedFuture)
+            .orElseGet(() -> resilience.execute(() -> {
+                CompletionStage<String> call = callChatGPT(messages, deadline, usage);
+                return UpstreamResilience.cancelling(call, call.thenApply(chatGptResponse -> {
+                    if (chatGptResponse.startsWith("Error:")) {
+                        throw new IllegalStateException("ChatGPT returned an error: " + chatGptResponse);
+                    }
+                    return chatGptResponse;
+                }));
+            }, true, deadline)
+                .thenApply(chatGptResponse -> {
+                    fromUpstream.set(true);
+                    return chatGptResponse;
+                })));
     }
 
     //--------------------------------------------------------------------------------
     /**
-     * Calls the ChatGPT API to process the given instruction and question.
+     * Estimates the tokens a request counts against the upstream token quota:
+     * the prompt plus the tokens reserved for the completion.
      *
-     * @param instruction The instruction for the system role.
-     * @param question    The user's question.
-     * @return A CompletionStage containing the API response as a string.
+     * @param messages The conversation messages to send.
+     * @return The estimated token count.
      */
     //--------------------------------------------------------------------------------
-    private CompletionStage<String> callChatGPT(String instruction, String question) {
-        String body = createRequestBody(instruction, question);
+    private int estimateRequestTokens(List<ChatMessageDTO> messages) {
+        int tokens = completionTokenReserve;
+        for (ChatMessageDTO message : messages) {
+            tokens += TokenEstimator.estimateMessage(message.getContent());
+        }
+        return tokens;
+    }
 
-        WSRequest request = wsClient.url(openAiApiUrl)
-            .addHeader("Authorization", "Bearer " + openAiApiKey)
-            .addHeader("Content-Type", "application/json");
+    //--------------------------------------------------------------------------------
+    /**
+     * Assembles the messages to send for a chat query, including the earlier
+     * turns of its conversation thread.
+     *
+     * @param chatQueryDTO The chat query DTO containing the instruction, question
+     *                     and thread id.
+     * @param email        The email of the user making the request.
+     * @return A CompletionStage containing the messages.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<List<ChatMessageDTO>> assembleMessages(ChatQueryDTO chatQueryDTO, String email) {
+        return contextAssembler.assemble(email, chatQueryDTO.getThreadId(), chatQueryDTO.getInstruction(),
+            chatQueryDTO.getQuestion());
+    }
 
-        return request.post(body).thenApply(WSResponse::asJson)
-            .thenApply(this::extractChatGptResponse)
-            .exceptionally(ex -> {
-                log.error("Failed to call ChatGPT API", ex);
-                return "Error: Unable to communicate with ChatGPT API";
-            });
+    //--------------------------------------------------------------------------------
+    /**
+     * Rethrows the failure if the request was rejected by the upstream limiter
+     * or ran out of time, so that it reaches the caller instead of being
+     * replaced by a mock response. A request whose deadline has passed has run
+     * out of time whatever the failure of its last attempt.
+     *
+     * @param ex       The failure, possibly wrapped in a CompletionException.
+     * @param deadline When the request had to be answered, or null.
+     * @throws UpstreamSaturatedException if that is the cause of the failure.
+     * @throws DeadlineExceededException  if the deadline has passed.
+     */
+    //--------------------------------------------------------------------------------
+    private static void rethrowIfRejected(Throwable ex, Instant deadline) {
+        Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+        if (cause instanceof UpstreamSaturatedException) {
+            throw (UpstreamSaturatedException) cause;
+        }
+        if (cause instanceof DeadlineExceededException) {
+            throw (DeadlineExceededException) cause;
+        }
+        if (deadline != null && !Instant.now().isBefore(deadline)) {
+            throw new DeadlineExceededException("The request deadline passed before the ChatGPT API answered");
+        }
     }
 
     //--------------------------------------------------------------------------------
     /**
-     * Creates the request body for the ChatGPT API request.
+     * Calls the ChatGPT API to process the given messages.
      *
-     * @param instruction The system role instruction.
-     * @param question    The user's question.
-     * @return The formatted JSON request body.
+     * @param messages The conversation messages to send.
+     * @param deadline When the incoming request has to be answered, or null.
+     * @param usage    Counts the tokens billed for the call.
+     * @return A CompletionStage containing the API response as a string. Fails
+     *         like {@link ChatProviderRouter#complete}, and cancelling it
+     *         abandons the call.
      */
     //--------------------------------------------------------------------------------
-    private String createRequestBody(String instruction, String question) {
-        return "{\n" +
-            "  \"model\": \"gpt-3.5-turbo\", \n" +
-            "  \"messages\": [{\"role\": \"system\", \"content\": \"" + instruction + "\"}, \n" +
-            "                {\"role\": \"user\", \"content\": \"" + question + "\"}]\n" +
-            "}";
+    private CompletionStage<String> callChatGPT(List<ChatMessageDTO> messages, Instant deadline, TokenUsage usage) {
+        CompletionStage<WSResponse> call = providerRouter
+            .complete(createRequestBody(messages, false, false), estimateRequestTokens(messages), deadline);
+        return UpstreamResilience.cancelling(call, call
+            .thenApply(response -> metrics.time("chat.upstream.parse", "completion", () -> {
+                JsonNode json = response.asJson();
+                recordTokenUsage(json, usage);
+                return ChatResponseParser.extractContent(json);
+            })));
     }
 
     //--------------------------------------------------------------------------------
     /**
-     * Extracts the ChatGPT response from the API's JSON response.
+     * Records the token usage reported in the "usage" field of a completion or of
+     * the final chunk of a streamed completion, if present, in the metrics, the
+     * dialogue's usage and the user's quota.
      *
-     * @param json The JSON response from the ChatGPT API.
-     * @return The content of the response as a string.
+     * @param json  The completion or chunk.
+     * @param usage The usage of the dialogue.
      */
     //--------------------------------------------------------------------------------
-    private String extractChatGptResponse(JsonNode json) {
-        System.out.println("json: " + json);
-        try {
-            if (json.has("error")) {
-                JsonNode errorNode = json.get("error");
-                String errorMessage = errorNode.has("message") ? errorNode.get("message").asText() : "Unknown error";
-                String errorType = errorNode.has("type") ? errorNode.get("type").asText() : "Unknown type";
-                String errorParam = errorNode.has("param") && !errorNode.get("param").isNull() ? errorNode.get("param").asText() : "None";
-                String errorCode = errorNode.has("code") ? errorNode.get("code").asText() : "Unknown code";
+    private void recordTokenUsage(JsonNode json, TokenUsage usage) {
+        JsonNode reported = json.path("usage");
+        if (reported.isObject()) {
+            long promptTokens = reported.path("prompt_tokens").asLong();
+            long completionTokens = reported.path("completion_tokens").asLong();
+            metrics.recordTokenUsage(promptTokens, completionTokens);
+            usage.add(promptTokens, completionTokens);
+            usageQuotas.recordTokens(usage.email, promptTokens, completionTokens);
+        }
+    }
 
-                String formattedError = String.format(
-                    "API Error:\n- Message: %s\n- Type: %s\n- Param: %s\n- Code: %s",
-                    errorMessage, errorType, errorParam, errorCode
-                );
-                throw new IllegalStateException(formattedError);
-            }
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates the request body for the ChatGPT API request.
+     *
+     * @param messages    The conversation messages to send.
+     * @param stream      Whether the API should stream the response as
+     *                    server-sent events.
+     * @param streamUsage Whether the streamed response should report its token
+     *                    usage.
+     * @return The JSON request body.
+     */
+    //--------------------------------------------------------------------------------
+    private InMemoryBodyWritable createRequestBody(List<ChatMessageDTO> messages, boolean stream,
+                                                   boolean streamUsage) {
+        return new InMemoryBodyWritable(requestBodyWriter.write(messages, stream, streamUsage), "application/json");
+    }
 
-            JsonNode choicesNode = json.path("choices");
-            if (choicesNode.isArray() && !choicesNode.isEmpty()) {
-                JsonNode messageNode = choicesNode.get(0).path("message");
-                if (messageNode.has("content")) {
-                    return messageNode.get("content").asText();
+    //--------------------------------------------------------------------------------
+    /**
+     * Parses the server-sent event body of a streaming ChatGPT API response into
+     * the content tokens it carries. Parsing is incremental: each event line is
+     * decoded as soon as it has been received.
+     *
+     * @param body  The raw response body.
+     * @param usage Counts the tokens billed for the response.
+     * @return A Source of content tokens.
+     */
+    //--------------------------------------------------------------------------------
+    private Source<String, NotUsed> extractStreamedTokens(Source<ByteString, ?> body, TokenUsage usage) {
+        return body
+            .via(Framing.delimiter(ByteString.fromString("\n"), MAX_STREAM_LINE_BYTES, FramingTruncation.ALLOW))
+            .map(line -> line.utf8String().trim())
+            .filter(line -> line.startsWith("data:"))
+            .map(line -> line.substring("data:".length()).trim())
+            .takeWhile(data -> !STREAM_DONE_MARKER.equals(data))
+            .map(data -> {
+                JsonNode chunk = Json.parse(data);
+                recordTokenUsage(chunk, usage);
+                return ChatResponseParser.extractDelta(chunk);
+            })
+            .filter(token -> !token.isEmpty())
+            .mapMaterializedValue(ignored -> NotUsed.getInstance());
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Collects the tokens passing through the given Source and saves the full
+     * response once the stream terminates. A stream that fails or is cancelled
+     * before any token arrived is saved with a mock response. If the Source
+     * has not been run within the stream start timeout, for example because
+     * the client went away first, nothing is saved and the saved dialogue
+     * fails, so that retries with the same idempotency key are answered
+     * afresh.
+     *
+     * @param chatQueryDTO The chat query DTO containing the instruction and question.
+     * @param email        The email of the user making the request.
+     * @param messages     The conversation messages the response answers.
+     * @param tokens       The response tokens.
+     * @param cacheable    Whether a fully received response should be added to the
+     *                     response cache and the semantic cache.
+     * @param fallback     Whether the tokens are a mock response standing in for
+     *                     a failed API call.
+     * @param usage        The tokens billed for the response, counted as they
+     *                     arrive.
+     * @param saved        Completed with the saved dialogue.
+     * @return A Source emitting the same tokens.
+     */
+    //--------------------------------------------------------------------------------
+    private Source<String, ?> saveOnCompletion(ChatQueryDTO chatQueryDTO, String email, List<ChatMessageDTO> messages,
+                                               Source<String, NotUsed> tokens, boolean cacheable, boolean fallback,
+                                               TokenUsage usage, CompletableFuture<ChatDialogueDTO> saved) {
+        StringBuilder transcript = new StringBuilder();
+        AtomicBoolean started = new AtomicBoolean();
+        ActorSystem system = materializer.system();
+        system.scheduler().scheduleOnce(streamStartTimeout, () -> {
+            if (started.compareAndSet(false, true)) {
+                if (chatQueryDTO.getIdempotencyKey() != null) {
+                    idempotentRequests.release(email, chatQueryDTO.getIdempotencyKey());
                 }
+                saved.completeExceptionally(new IllegalStateException("The chat response stream was never started"));
             }
+        }, system.dispatcher());
 
-            throw new IllegalStateException("Unexpected response format: " + json);
-        } catch (Exception e) {
-            log.error("Failed to parse ChatGPT response", e);
-            return "Error: Unable to parse response from ChatGPT";
-        }
+        return tokens
+            .map(token -> {
+                transcript.append(token);
+                return token;
+            })
+            .watchTermination((notUsed, done) -> {
+                if (!started.compareAndSet(false, true)) {
+                    log.warn("Chat response stream started after the stream start timeout, not saving it");
+                    return notUsed;
+                }
+                done.whenComplete((ignored, ex) -> {
+                    boolean complete = ex == null && cacheable && transcript.length() > 0;
+                    if (ex != null) {
+                        log.error("Chat response stream terminated early", ex);
+                    } else if (complete) {
+                        responseCache.put(messages, requestBodyWriter.getModel(), transcript.toString());
+                    }
+                    boolean mock = fallback || transcript.length() == 0;
+                    String chatGptResponse = transcript.length() > 0
+                        ? transcript.toString()
+                        : getMockChatGptResponse(chatQueryDTO.getQuestion());
+                    saveChatAndConvertToDTO(chatQueryDTO, email, chatGptResponse, complete ? messages : null, usage, mock)
+                        .whenComplete((dialogue, saveFailure) -> {
+                            if (saveFailure != null) {
+                                log.error("Failed to save streamed chat dialogue", saveFailure);
+                                saved.completeExceptionally(saveFailure);
+                            } else {
+                                saved.complete(dialogue);
+                            }
+                        });
+                });
+                return notUsed;
+            });
     }
 
     //--------------------------------------------------------------------------------
@@ -206,6 +979,65 @@ public class ChatServiceImpl implements ChatService {
      */
     //--------------------------------------------------------------------------------
     private String getMockChatGptResponse(String question) {
-        return "This is a mock response for the question: " + question;
+        return MOCK_RESPONSE_PREFIX + question;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * The answer to one query of a batch, or the reason it failed.
+     */
+    //--------------------------------------------------------------------------------
+    private static final class BatchAnswer {
+        private final long index;
+        private final ChatQueryDTO chatQueryDTO;
+        private final String response;
+        private final List<ChatMessageDTO> indexAs;
+        private final TokenUsage usage;
+        private final String error;
+
+        private BatchAnswer(long index, ChatQueryDTO chatQueryDTO, String response, List<ChatMessageDTO> indexAs,
+                            TokenUsage usage, String error) {
+            this.index = index;
+            this.chatQueryDTO = chatQueryDTO;
+            this.response = response;
+            this.indexAs = indexAs;
+            this.usage = usage;
+            this.error = error;
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * The tokens the API billed for answering one query of a user, summed over
+     * all calls made for it, since hedged and retried calls are billed too.
+     */
+    //--------------------------------------------------------------------------------
+    private static final class TokenUsage {
+        private final String email;
+        private final AtomicLong promptTokens = new AtomicLong();
+        private final AtomicLong completionTokens = new AtomicLong();
+        private volatile boolean reported;
+
+        private TokenUsage(String email) {
+            this.email = email;
+        }
+
+        private void add(long prompt, long completion) {
+            promptTokens.addAndGet(prompt);
+            completionTokens.addAndGet(completion);
+            reported = true;
+        }
+
+        private boolean isReported() {
+            return reported;
+        }
+
+        private Integer getPromptTokens() {
+            return (int) Math.min(Integer.MAX_VALUE, promptTokens.get());
+        }
+
+        private Integer getCompletionTokens() {
+            return (int) Math.min(Integer.MAX_VALUE, completionTokens.get());
+        }
     }
 }
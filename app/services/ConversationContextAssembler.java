@@ -0,0 +1,247 @@
+package services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.typesafe.config.Config;
+import dao.ChatDialogueRepository;
+import dto.ChatMessageDTO;
+import models.ChatDialogue;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
+
+//--------------------------------------------------------------------------------
+/**
+ * Builds the message list sent to the ChatGPT API for a question asked within a
+ * conversation thread. The most recent turns of the thread are replayed, newest
+ * first, until the estimated prompt size reaches the configured token budget;
+ * the newest turn that does not fit is truncated and older ones are dropped.
+ * <p>
+ * The tail of every active thread is kept in memory, so only the first question
+ * after a thread has gone idle reads its history from the database.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+public class ConversationContextAssembler {
+
+    private static final int MIN_TRUNCATED_TOKENS = 32;
+    private static final String TRUNCATION_MARKER = " [...]";
+
+    private final ChatDialogueRepository chatDialogueRepository;
+    private final boolean enabled;
+    private final int maxPromptTokens;
+    private final int maxTurns;
+    private final Cache<String, ThreadTail> tails;
+
+    @Inject
+    public ConversationContextAssembler(ChatDialogueRepository chatDialogueRepository, Config config) {
+        this(
+            chatDialogueRepository,
+            config.getBoolean("chat.context.enabled"),
+            config.getInt("chat.context.max-prompt-tokens"),
+            config.getInt("chat.context.max-turns"),
+            config.getLong("chat.context.tail-cache.max-threads"),
+            config.getDuration("chat.context.tail-cache.ttl")
+        );
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates a context assembler with explicit settings.
+     *
+     * @param chatDialogueRepository the repository the thread history is read from.
+     * @param enabled                whether earlier turns are sent at all.
+     * @param maxPromptTokens        the estimated prompt size the context is trimmed to.
+     * @param maxTurns               the maximum number of earlier turns replayed.
+     * @param maxThreads             the maximum number of thread tails kept in memory.
+     * @param ttl                    how long an idle thread tail is kept in memory.
+     */
+    //--------------------------------------------------------------------------------
+    public ConversationContextAssembler(ChatDialogueRepository chatDialogueRepository, boolean enabled,
+                                        int maxPromptTokens, int maxTurns, long maxThreads, Duration ttl) {
+        this.chatDialogueRepository = chatDialogueRepository;
+        this.enabled = enabled;
+        this.maxPromptTokens = maxPromptTokens;
+        this.maxTurns = maxTurns;
+        this.tails = Caffeine.newBuilder()
+            .maximumSize(maxThreads)
+            .expireAfterAccess(ttl)
+            .build();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Assembles the messages for a question: the instruction as the system
+     * message, the earlier turns of the thread that fit the token budget, oldest
+     * first, and the question as the final user message.
+     *
+     * @param email       the email of the user asking the question.
+     * @param threadId    the id of the conversation thread, or null for a
+     *                    question without context.
+     * @param instruction the instruction for the system role, may be blank.
+     * @param question    the user's question.
+     * @return A CompletionStage containing the messages to send.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletionStage<List<ChatMessageDTO>> assemble(String email, String threadId, String instruction,
+                                                          String question) {
+        if (!enabled || threadId == null || threadId.isBlank()) {
+            return CompletableFuture.completedFuture(fitToBudget(instruction, Collections.emptyList(), question, maxPromptTokens));
+        }
+
+        String key = keyFor(email, threadId);
+        ThreadTail cached = tails.getIfPresent(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(fitToBudget(instruction, cached.snapshot(), question, maxPromptTokens));
+        }
+
+        return chatDialogueRepository.getRecentByThread(email, threadId, maxTurns)
+            .thenApply(recent -> {
+                List<Turn> newestFirst = recent
+                    .map(chatDialogue -> new Turn(chatDialogue.getQuestion(), chatDialogue.getResponse()))
+                    .collect(Collectors.toList());
+                ThreadTail loaded = new ThreadTail(maxTurns);
+                for (int i = newestFirst.size() - 1; i >= 0; i--) {
+                    loaded.add(newestFirst.get(i));
+                }
+                ThreadTail tail = tails.asMap().putIfAbsent(key, loaded);
+                return fitToBudget(instruction, (tail != null ? tail : loaded).snapshot(), question, maxPromptTokens);
+            });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Records a saved turn in the in-memory tail of its thread. Threads whose
+     * tail is not in memory are skipped; their history is read from the
+     * database on the next question.
+     *
+     * @param chatDialogue the saved chat dialogue.
+     */
+    //--------------------------------------------------------------------------------
+    public void append(ChatDialogue chatDialogue) {
+        if (!enabled || chatDialogue.getThreadId() == null || chatDialogue.getThreadId().isBlank()) {
+            return;
+        }
+
+        ThreadTail tail = tails.getIfPresent(keyFor(chatDialogue.getEmail(), chatDialogue.getThreadId()));
+        if (tail != null) {
+            tail.add(new Turn(chatDialogue.getQuestion(), chatDialogue.getResponse()));
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Builds the message list from the given turns, keeping the newest turns
+     * that fit within the token budget.
+     *
+     * @param instruction     the instruction for the system role, may be blank.
+     * @param turns           the earlier turns of the thread, oldest first.
+     * @param question        the user's question.
+     * @param maxPromptTokens the estimated prompt size to stay within.
+     * @return the messages to send.
+     */
+    //--------------------------------------------------------------------------------
+    static List<ChatMessageDTO> fitToBudget(String instruction, List<Turn> turns, String question, int maxPromptTokens) {
+        boolean hasInstruction = instruction != null && !instruction.isBlank();
+        int used = TokenEstimator.estimateMessage(question) + (hasInstruction ? TokenEstimator.estimateMessage(instruction) : 0);
+
+        List<Turn> selected = new ArrayList<>();
+        for (int i = turns.size() - 1; i >= 0; i--) {
+            Turn turn = turns.get(i);
+            int questionTokens = TokenEstimator.estimateMessage(turn.question);
+            int cost = questionTokens + TokenEstimator.estimateMessage(turn.response);
+            if (used + cost <= maxPromptTokens) {
+                selected.add(turn);
+                used += cost;
+                continue;
+            }
+            int remaining = maxPromptTokens - used - questionTokens - TokenEstimator.estimateMessage("");
+            if (selected.isEmpty() && remaining >= MIN_TRUNCATED_TOKENS) {
+                selected.add(new Turn(turn.question, truncate(turn.response, remaining)));
+            }
+            break;
+        }
+
+        List<ChatMessageDTO> messages = new ArrayList<>(2 * selected.size() + 2);
+        if (hasInstruction) {
+            messages.add(new ChatMessageDTO("system", instruction));
+        }
+        for (int i = selected.size() - 1; i >= 0; i--) {
+            messages.add(new ChatMessageDTO("user", selected.get(i).question));
+            messages.add(new ChatMessageDTO("assistant", selected.get(i).response));
+        }
+        messages.add(new ChatMessageDTO("user", question));
+        return messages;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Shortens a text to roughly the given number of tokens, keeping its start.
+     */
+    //--------------------------------------------------------------------------------
+    private static String truncate(String text, int tokens) {
+        int maxChars = TokenEstimator.CHARS_PER_TOKEN * tokens - TRUNCATION_MARKER.length();
+        if (text == null || text.length() <= maxChars) {
+            return text;
+        }
+        return text.substring(0, Math.max(maxChars, 0)) + TRUNCATION_MARKER;
+    }
+
+    private static String keyFor(String email, String threadId) {
+        return email + '|' + threadId;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * A question and the response it received.
+     */
+    //--------------------------------------------------------------------------------
+    static final class Turn {
+        final String question;
+        final String response;
+
+        Turn(String question, String response) {
+            this.question = question;
+            this.response = response;
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * The most recent turns of a thread, bounded to the configured number of
+     * turns.
+     */
+    //--------------------------------------------------------------------------------
+    private static final class ThreadTail {
+        private final int capacity;
+        private final Deque<Turn> turns;
+
+        ThreadTail(int capacity) {
+            this.capacity = capacity;
+            this.turns = new ArrayDeque<>(capacity);
+        }
+
+        synchronized void add(Turn turn) {
+            if (capacity == 0) {
+                return;
+            }
+            if (turns.size() == capacity) {
+                turns.removeFirst();
+            }
+            turns.addLast(turn);
+        }
+
+        synchronized List<Turn> snapshot() {
+            return new ArrayList<>(turns);
+        }
+    }
+}
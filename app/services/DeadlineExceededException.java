@@ -0,0 +1,15 @@
+package services;
+
+//--------------------------------------------------------------------------------
+/**
+ * Thrown when the deadline of an incoming request passes before the ChatGPT
+ * API has answered it, whether the request was still waiting for admission or
+ * its upstream calls took too long.
+ */
+//--------------------------------------------------------------------------------
+public class DeadlineExceededException extends RuntimeException {
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
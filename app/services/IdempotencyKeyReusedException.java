@@ -0,0 +1,15 @@
+package services;
+
+//--------------------------------------------------------------------------------
+/**
+ * Thrown when a chat request is sent with an Idempotency-Key header that an
+ * earlier request of the same user with a different instruction, question or
+ * thread was sent with.
+ */
+//--------------------------------------------------------------------------------
+public class IdempotencyKeyReusedException extends RuntimeException {
+
+    public IdempotencyKeyReusedException(String idempotencyKey) {
+        super("Idempotency key " + idempotencyKey + " was already used for a different query");
+    }
+}
@@ -0,0 +1,115 @@
+package services;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.typesafe.config.Config;
+import dto.ChatDialogueDTO;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+//--------------------------------------------------------------------------------
+/**
+ * Results of chat requests sent with an Idempotency-Key header, keyed by user
+ * and key. A retry of a request that is still being answered joins the pending
+ * result instead of calling the API again, and a retry of a completed request
+ * gets the stored dialogue for as long as it is kept. Failed requests, and
+ * requests answered with a mock response, are forgotten, so that their
+ * retries are answered afresh.
+ * <p>
+ * Only this instance's requests are seen here; the primary key of the
+ * ChatDialogueKey table, which every keyed insert claims, stops duplicates
+ * across instances and after the TTL.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+public class IdempotentRequests {
+
+    private final AsyncCache<String, ChatDialogueDTO> results;
+
+    @Inject
+    public IdempotentRequests(Config config) {
+        this(
+            config.getLong("chat.idempotency.max-keys"),
+            config.getDuration("chat.idempotency.ttl")
+        );
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates the request registry with explicit settings.
+     *
+     * @param maxKeys the maximum number of keys remembered.
+     * @param ttl     how long a completed result is replayed.
+     */
+    //--------------------------------------------------------------------------------
+    public IdempotentRequests(long maxKeys, Duration ttl) {
+        this.results = Caffeine.newBuilder()
+            .maximumSize(maxKeys)
+            .expireAfterWrite(ttl)
+            .buildAsync();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the result of the request with the given key, starting it with the
+     * given call unless it is already pending or completed.
+     *
+     * @param email the email of the user making the request.
+     * @param key   the idempotency key of the request.
+     * @param call  answers the request.
+     * @return A CompletionStage containing the saved dialogue.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletionStage<ChatDialogueDTO> execute(String email, String key, Supplier<CompletionStage<ChatDialogueDTO>> call) {
+        return results.get(keyFor(email, key), (ignored, executor) -> call.get().toCompletableFuture());
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Registers a request whose result is completed by the caller, unless a
+     * request with the same key is already pending or completed.
+     *
+     * @param email  the email of the user making the request.
+     * @param key    the idempotency key of the request.
+     * @param result completed by the caller with the saved dialogue, or
+     *               exceptionally if the request fails.
+     * @return the result of the earlier request with the same key, or null if
+     *         the given result was registered.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletableFuture<ChatDialogueDTO> claim(String email, String key, CompletableFuture<ChatDialogueDTO> result) {
+        String cacheKey = keyFor(email, key);
+        CompletableFuture<ChatDialogueDTO> earlier = results.asMap().putIfAbsent(cacheKey, result);
+        if (earlier == null) {
+            result.whenComplete((dialogue, ex) -> {
+                if (ex != null) {
+                    results.asMap().remove(cacheKey, result);
+                }
+            });
+        }
+        return earlier;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Forgets the request with the given key, whether it is pending or
+     * completed, so that the next request with the key is answered afresh.
+     * Requests that have already joined it still get its result.
+     *
+     * @param email the email of the user making the request.
+     * @param key   the idempotency key of the request.
+     */
+    //--------------------------------------------------------------------------------
+    public void release(String email, String key) {
+        results.asMap().remove(keyFor(email, key));
+    }
+
+    private static String keyFor(String email, String key) {
+        return email + '\u0000' + key;
+    }
+}
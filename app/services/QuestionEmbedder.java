@@ -0,0 +1,178 @@
+package services;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//--------------------------------------------------------------------------------
+/**
+ * Embeds questions into fixed-size unit vectors by feature hashing, so that
+ * questions sharing most of their content words, or variants of them, end up
+ * close in cosine similarity. Every content word contributes itself and its
+ * character trigrams, and adjacent content words contribute a bigram; each
+ * feature is hashed to a dimension and a sign. Stop words are ignored.
+ * <p>
+ * This needs no model download and takes microseconds per question, at the
+ * cost of only catching paraphrases that reuse words.
+ */
+//--------------------------------------------------------------------------------
+public final class QuestionEmbedder {
+
+    private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+    private static final float WORD_WEIGHT = 1.0f;
+    private static final float BIGRAM_WEIGHT = 0.7f;
+    private static final float TRIGRAM_WEIGHT = 0.3f;
+    private static final Set<String> STOP_WORDS = Set.of(
+        "a", "an", "and", "are", "as", "at", "be", "by", "can", "could", "do", "does", "for", "from", "how",
+        "i", "in", "is", "it", "me", "my", "of", "on", "or", "please", "should", "so", "that", "the", "this",
+        "to", "was", "what", "when", "where", "which", "who", "why", "will", "with", "would", "you", "your"
+    );
+
+    private final int dimensions;
+
+    public QuestionEmbedder(int dimensions) {
+        this.dimensions = dimensions;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Embeds a question.
+     *
+     * @param question the question text, may be null.
+     * @return the L2-normalized embedding; all zeros if the question has no
+     *         content words.
+     */
+    //--------------------------------------------------------------------------------
+    public float[] embed(String question) {
+        float[] vector = new float[dimensions];
+        if (question == null) {
+            return vector;
+        }
+
+        Matcher words = WORD.matcher(question.toLowerCase(Locale.ROOT));
+        String previous = null;
+        while (words.find()) {
+            String word = stem(words.group());
+            if (STOP_WORDS.contains(word)) {
+                continue;
+            }
+            add(vector, "w:" + word, WORD_WEIGHT);
+            if (previous != null) {
+                add(vector, "b:" + previous + ' ' + word, BIGRAM_WEIGHT);
+            }
+            String padded = '^' + word + '$';
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                add(vector, "t:" + padded.substring(i, i + 3), TRIGRAM_WEIGHT);
+            }
+            previous = word;
+        }
+
+        normalize(vector);
+        return vector;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the cosine similarity of two embeddings.
+     *
+     * @param a the first embedding.
+     * @param b the second embedding.
+     * @return the similarity, in [-1, 1].
+     */
+    //--------------------------------------------------------------------------------
+    public static float similarity(float[] a, float[] b) {
+        float dot = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Strips the most common English inflections so that "resets", "resetting"
+     * and "reset" share a feature.
+     */
+    //--------------------------------------------------------------------------------
+    private static String stem(String word) {
+        if (word.length() > 5 && word.endsWith("ing")) {
+            word = word.substring(0, word.length() - 3);
+        } else if (word.length() > 4 && word.endsWith("ed")) {
+            word = word.substring(0, word.length() - 2);
+        } else if (word.length() > 3 && word.endsWith("s") && !word.endsWith("ss")) {
+            word = word.substring(0, word.length() - 1);
+        }
+        if (word.length() > 3 && word.charAt(word.length() - 1) == word.charAt(word.length() - 2)) {
+            word = word.substring(0, word.length() - 1);
+        }
+        return word;
+    }
+
+    private void add(float[] vector, String feature, float weight) {
+        int hash = murmur3(feature.getBytes(StandardCharsets.UTF_8));
+        int index = Math.floorMod(hash, dimensions);
+        vector[index] += (hash & 0x80000000) == 0 ? weight : -weight;
+    }
+
+    private static void normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        if (norm > 0) {
+            float scale = (float) (1 / Math.sqrt(norm));
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] *= scale;
+            }
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * 32-bit MurmurHash3 with seed 0, chosen for stable output across JVMs and
+     * releases, since embeddings are persisted with the index.
+     */
+    //--------------------------------------------------------------------------------
+    private static int murmur3(byte[] data) {
+        int h = 0;
+        int length = data.length;
+        int i = 0;
+        while (i + 4 <= length) {
+            int k = (data[i] & 0xff) | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff) << 16 | (data[i + 3] & 0xff) << 24;
+            h ^= mixK(k);
+            h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+            i += 4;
+        }
+        int k = 0;
+        switch (length - i) {
+            case 3:
+                k ^= (data[i + 2] & 0xff) << 16;
+            case 2:
+                k ^= (data[i + 1] & 0xff) << 8;
+            case 1:
+                k ^= data[i] & 0xff;
+                h ^= mixK(k);
+            default:
+                break;
+        }
+        h ^= length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int mixK(int k) {
+        k *= 0xcc9e2d51;
+        k = Integer.rotateLeft(k, 15);
+        return k * 0x1b873593;
+    }
+}
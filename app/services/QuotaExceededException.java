@@ -0,0 +1,30 @@
+package services;
+
+import java.time.Duration;
+
+//--------------------------------------------------------------------------------
+/**
+ * Thrown when a user has used up their request or token quota for the current
+ * quota window.
+ */
+//--------------------------------------------------------------------------------
+public class QuotaExceededException extends RuntimeException {
+
+    private final Duration retryAfter;
+
+    public QuotaExceededException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns how long the user has to wait until the next quota window.
+     *
+     * @return the time until the window ends.
+     */
+    //--------------------------------------------------------------------------------
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
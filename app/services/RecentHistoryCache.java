@@ -0,0 +1,373 @@
+package services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.typesafe.config.Config;
+import dao.ChatDialogueRepository;
+import dto.ChatDialogueDTO;
+import dto.ChatHistoryCursor;
+import dto.ChatHistoryVersion;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+//--------------------------------------------------------------------------------
+/**
+ * The newest dialogues of each user, held in a ring buffer per user so that
+ * history pages are served without a query. A user's buffer is filled from the
+ * database by their first request for the newest page, and dialogues published
+ * on the {@link ChatHistoryBus} are written through into it; a dialogue that
+ * arrives out of order drops the buffer instead, to be filled again on the
+ * next read. Once the approximate memory held by all buffers exceeds the
+ * configured weight, users are evicted, preferring those read least recently
+ * and least often.
+ * <p>
+ * Dialogues saved by other instances are not written through, so a buffer
+ * expires a fixed time after it was read from the database, however often it
+ * is used or written through; like the TTL of {@link ChatHistoryVersions},
+ * this bounds how stale it can get. Each buffer carries the version of the
+ * history it holds, so that entity tags of pages served from it describe
+ * exactly what was served.
+ * <p>
+ * A request is answered from the buffer only if the buffer holds the whole
+ * page, or holds the user's entire history. Requests that had to read the
+ * database, including those that filled the buffer, count as misses.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+public class RecentHistoryCache {
+
+    private final ChatDialogueRepository chatDialogueRepository;
+    private final boolean enabled;
+    private final int size;
+    private final Cache<String, RecentHistory> histories;
+    private final ConcurrentMap<String, CompletableFuture<RecentHistory>> loads = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    @Inject
+    public RecentHistoryCache(ChatDialogueRepository chatDialogueRepository, ChatHistoryBus historyEvents, Config config) {
+        this(
+            chatDialogueRepository,
+            historyEvents,
+            config.getBoolean("chat.history.recent.enabled"),
+            config.getInt("chat.history.recent.size"),
+            config.getBytes("chat.history.recent.max-weight"),
+            config.getDuration("chat.history.recent.expire-after-write")
+        );
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates the cache with explicit settings.
+     *
+     * @param chatDialogueRepository the repository buffers are filled from.
+     * @param historyEvents          notifies saved dialogues.
+     * @param enabled                whether histories are cached at all.
+     * @param size                   the dialogues kept per user.
+     * @param maxWeight              the approximate upper bound, in bytes, of
+     *                               the cached dialogues.
+     * @param expireAfterWrite       how long a user's buffer is kept after it
+     *                               was read from the database.
+     */
+    //--------------------------------------------------------------------------------
+    public RecentHistoryCache(ChatDialogueRepository chatDialogueRepository, ChatHistoryBus historyEvents,
+                              boolean enabled, int size, long maxWeight, Duration expireAfterWrite) {
+        this.chatDialogueRepository = chatDialogueRepository;
+        this.enabled = enabled;
+        this.size = size;
+        this.histories = Caffeine.newBuilder()
+            .maximumWeight(maxWeight)
+            .weigher((String email, RecentHistory history) -> 2 * email.length() + history.weight())
+            .expireAfter(new SinceLoaded(expireAfterWrite.toNanos()))
+            .build();
+        if (enabled) {
+            historyEvents.subscribeAll(this::append);
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the newest dialogues of a user that are older than the given
+     * cursor, newest first, if the cache can tell them. A request for the
+     * newest dialogues of a user that is not cached fills the user's buffer
+     * first; concurrent requests share one query.
+     *
+     * @param email  the email of the user.
+     * @param before the cursor to continue after, or null for the newest.
+     * @param limit  the maximum number of dialogues to return.
+     * @return A CompletionStage containing the dialogues, or empty if they
+     *         have to be read from the database.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletionStage<Optional<List<ChatDialogueDTO>>> get(String email, ChatHistoryCursor before, int limit) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        RecentHistory history = histories.getIfPresent(email);
+        if (history == null && before == null) {
+            return load(email).thenApply(loaded -> {
+                misses.increment();
+                return loaded.olderThan(null, limit);
+            });
+        }
+
+        Optional<List<ChatDialogueDTO>> page = history != null ? history.olderThan(before, limit) : Optional.empty();
+        (page.isPresent() ? hits : misses).increment();
+        return CompletableFuture.completedFuture(page);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the version of the history held in a user's buffer, which is the
+     * version of every page served from it.
+     *
+     * @param email the email of the user.
+     * @return the version, or empty if the user's buffer is not cached.
+     */
+    //--------------------------------------------------------------------------------
+    public Optional<ChatHistoryVersion> version(String email) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(histories.getIfPresent(email)).map(RecentHistory::version);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Reads the version and then the newest dialogues of a user into a new
+     * buffer, which is cached unless a dialogue of the user was published
+     * while the queries ran. A dialogue saved elsewhere between the two
+     * queries leaves the version older than the buffer, never newer.
+     *
+     * @param email the email of the user.
+     * @return A CompletionStage containing the buffer.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<RecentHistory> load(String email) {
+        CompletableFuture<RecentHistory> pending = new CompletableFuture<>();
+        CompletableFuture<RecentHistory> earlier = loads.putIfAbsent(email, pending);
+        if (earlier != null) {
+            return earlier;
+        }
+
+        long loadedAt = System.nanoTime();
+        chatDialogueRepository.getHistoryVersion(email).thenCompose(version ->
+            chatDialogueRepository.getPageByUser(email, null, size + 1).thenApply(dialogues ->
+                RecentHistory.of(dialogues.collect(Collectors.toList()), size, version, loadedAt))
+        ).whenComplete((loaded, ex) -> {
+            if (ex != null) {
+                loads.remove(email, pending);
+                pending.completeExceptionally(ex);
+                return;
+            }
+            histories.asMap().compute(email, (key, current) -> loads.remove(key, pending) ? loaded : current);
+            pending.complete(loaded);
+        });
+        return pending;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Writes a saved dialogue through into its user's buffer, and keeps a load
+     * of the buffer in progress from being cached, since it may have missed
+     * the dialogue.
+     *
+     * @param chatDialogueDTO the saved dialogue.
+     */
+    //--------------------------------------------------------------------------------
+    private void append(ChatDialogueDTO chatDialogueDTO) {
+        histories.asMap().compute(chatDialogueDTO.getEmail(), (email, history) -> {
+            loads.remove(email);
+            return history != null && history.add(chatDialogueDTO) ? history : null;
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Expires buffers a fixed time after they were read from the database.
+     * Writing a saved dialogue through into a buffer does not renew it.
+     */
+    //--------------------------------------------------------------------------------
+    private static final class SinceLoaded implements Expiry<String, RecentHistory> {
+        private final long ttlNanos;
+
+        SinceLoaded(long ttlNanos) {
+            this.ttlNanos = ttlNanos;
+        }
+
+        @Override
+        public long expireAfterCreate(String email, RecentHistory history, long currentTime) {
+            return Math.max(0, history.loadedAt + ttlNanos - currentTime);
+        }
+
+        @Override
+        public long expireAfterUpdate(String email, RecentHistory history, long currentTime, long currentDuration) {
+            return expireAfterCreate(email, history, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String email, RecentHistory history, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Ring buffer of a user's newest dialogues, newest first, in the order of
+     * the history index: by creation time, then id.
+     */
+    //--------------------------------------------------------------------------------
+    static final class RecentHistory {
+
+        private static final int DIALOGUE_OVERHEAD = 96;
+
+        private final ChatDialogueDTO[] items;
+        private final long loadedAt;
+        private int head;
+        private int count;
+        private boolean complete;
+        private long bytes;
+        private ChatHistoryVersion version;
+
+        //--------------------------------------------------------------------------------
+        /**
+         * Creates a buffer from the newest dialogues of a user.
+         *
+         * @param newest   up to capacity + 1 of the user's newest dialogues,
+         *                 newest first.
+         * @param capacity the dialogues the buffer keeps.
+         * @param version  the version of the history, read before the
+         *                 dialogues.
+         * @param loadedAt the System.nanoTime() at which the reads began.
+         * @return the buffer, which knows it holds the entire history if there
+         *         were no more than capacity dialogues.
+         */
+        //--------------------------------------------------------------------------------
+        static RecentHistory of(List<ChatDialogueDTO> newest, int capacity, ChatHistoryVersion version, long loadedAt) {
+            RecentHistory history = new RecentHistory(capacity, loadedAt);
+            for (int i = Math.min(newest.size(), capacity) - 1; i >= 0; i--) {
+                history.add(newest.get(i));
+            }
+            history.complete = newest.size() <= capacity;
+            history.version = version;
+            return history;
+        }
+
+        RecentHistory(int capacity, long loadedAt) {
+            this.items = new ChatDialogueDTO[capacity];
+            this.loadedAt = loadedAt;
+            this.complete = true;
+            this.version = new ChatHistoryVersion(0L, null, null);
+        }
+
+        //--------------------------------------------------------------------------------
+        /**
+         * Adds a dialogue newer than all others, overwriting the oldest one if
+         * the buffer is full, and counts it into the version. A dialogue
+         * already held is ignored.
+         *
+         * @param chatDialogueDTO the dialogue.
+         * @return false if the dialogue is older than the newest one held, in
+         *         which case the buffer is left unchanged.
+         */
+        //--------------------------------------------------------------------------------
+        synchronized boolean add(ChatDialogueDTO chatDialogueDTO) {
+            for (int i = 0; i < count; i++) {
+                if (get(i).getId().equals(chatDialogueDTO.getId())) {
+                    return true;
+                }
+            }
+            if (count > 0 && compare(chatDialogueDTO, get(0).getCreatedAt(), get(0).getId()) < 0) {
+                return false;
+            }
+
+            head = (head - 1 + items.length) % items.length;
+            if (count == items.length) {
+                bytes -= sizeOf(items[head]);
+                complete = false;
+            } else {
+                count++;
+            }
+            items[head] = chatDialogueDTO;
+            bytes += sizeOf(chatDialogueDTO);
+            version = new ChatHistoryVersion(version.getCount() + 1,
+                max(version.getMaxId(), chatDialogueDTO.getId()),
+                max(version.getMaxCreatedAt(), chatDialogueDTO.getCreatedAt()));
+            return true;
+        }
+
+        synchronized ChatHistoryVersion version() {
+            return version;
+        }
+
+        //--------------------------------------------------------------------------------
+        /**
+         * Returns the newest dialogues older than a cursor, if the buffer holds
+         * enough of them or the entire history.
+         *
+         * @param before the cursor, or null for the newest dialogues.
+         * @param limit  the maximum number of dialogues to return.
+         * @return the dialogues, newest first, or empty if the buffer cannot
+         *         tell.
+         */
+        //--------------------------------------------------------------------------------
+        synchronized Optional<List<ChatDialogueDTO>> olderThan(ChatHistoryCursor before, int limit) {
+            List<ChatDialogueDTO> page = new ArrayList<>(Math.min(limit, count));
+            for (int i = 0; i < count && page.size() < limit; i++) {
+                ChatDialogueDTO chatDialogueDTO = get(i);
+                if (before == null || compare(chatDialogueDTO, before.getCreatedAt(), before.getId()) < 0) {
+                    page.add(chatDialogueDTO);
+                }
+            }
+            return page.size() == limit || complete ? Optional.of(page) : Optional.empty();
+        }
+
+        synchronized int weight() {
+            return (int) Math.min(Integer.MAX_VALUE, 64 + bytes);
+        }
+
+        private ChatDialogueDTO get(int index) {
+            return items[(head + index) % items.length];
+        }
+
+        private static int compare(ChatDialogueDTO chatDialogueDTO, Timestamp createdAt, Long id) {
+            int byTime = chatDialogueDTO.getCreatedAt().compareTo(createdAt);
+            return byTime != 0 ? byTime : chatDialogueDTO.getId().compareTo(id);
+        }
+
+        private static <T extends Comparable<? super T>> T max(T current, T candidate) {
+            return current == null || candidate.compareTo(current) > 0 ? candidate : current;
+        }
+
+        private static long sizeOf(ChatDialogueDTO chatDialogueDTO) {
+            return DIALOGUE_OVERHEAD + 2L * (length(chatDialogueDTO.getInstruction()) + length(chatDialogueDTO.getQuestion())
+                + length(chatDialogueDTO.getResponse()) + length(chatDialogueDTO.getEmail())
+                + length(chatDialogueDTO.getThreadId()));
+        }
+
+        private static int length(String value) {
+            return value == null ? 0 : value.length();
+        }
+    }
+}
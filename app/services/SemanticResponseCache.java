@@ -0,0 +1,372 @@
+package services;
+
+import com.github.jelmerk.knn.DistanceFunctions;
+import com.github.jelmerk.knn.Item;
+import com.github.jelmerk.knn.SearchResult;
+import com.github.jelmerk.knn.hnsw.HnswIndex;
+import com.typesafe.config.Config;
+import dao.ChatDialogueRepository;
+import dto.ChatMessageDTO;
+import lombok.extern.slf4j.Slf4j;
+import models.ChatDialogue;
+import org.apache.pekko.actor.ActorSystem;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+//--------------------------------------------------------------------------------
+/**
+ * Serves stored answers to questions that are worded differently from, but
+ * close in meaning to, earlier ones. Questions are embedded with
+ * {@link QuestionEmbedder} and indexed in an in-process HNSW index together
+ * with their responses. A lookup returns the response of the nearest earlier
+ * question if its cosine similarity reaches the configured threshold and it
+ * was asked with the same instruction and model.
+ * <p>
+ * Only questions asked without earlier conversation turns are looked up, since
+ * the answer to a follow-up depends on its context. The index is saved to a
+ * file periodically and on shutdown. At startup it is loaded from that file
+ * and then brought up to date in the background from the dialogues marked
+ * indexable when they were saved, in creation order. Catching up starts a
+ * while before the newest indexed dialogue, since dialogues created before it
+ * may have been committed after it was read.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+@Slf4j
+public class SemanticResponseCache {
+
+    private static final int CANDIDATES = 5;
+    private static final Duration CATCH_UP_OVERLAP = Duration.ofMinutes(5);
+
+    private final boolean enabled;
+    private final double threshold;
+    private final int rebuildBatchSize;
+    private final Path indexFile;
+    private final String model;
+    private final QuestionEmbedder embedder;
+    private final ChatDialogueRepository chatDialogueRepository;
+    private final AtomicLong lastIndexedAt = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private volatile boolean caughtUp;
+    private final HnswIndex<Long, float[], CachedAnswer, Float> index;
+
+    @Inject
+    public SemanticResponseCache(ChatDialogueRepository chatDialogueRepository, ActorSystem actorSystem,
+                                 ApplicationLifecycle lifecycle, Config config) {
+        this(
+            chatDialogueRepository,
+            config.getString("openai.api.model"),
+            config.getBoolean("chat.semantic-cache.enabled"),
+            config.getDouble("chat.semantic-cache.threshold"),
+            config.getInt("chat.semantic-cache.dimensions"),
+            config.getInt("chat.semantic-cache.max-items"),
+            config.getInt("chat.semantic-cache.rebuild-batch-size"),
+            Paths.get(config.getString("chat.semantic-cache.index-file"))
+        );
+
+        if (enabled) {
+            catchUp();
+            Duration saveInterval = config.getDuration("chat.semantic-cache.save-interval");
+            actorSystem.scheduler().scheduleWithFixedDelay(saveInterval, saveInterval, this::saveIfDirty,
+                actorSystem.dispatcher());
+            lifecycle.addStopHook(() -> CompletableFuture.runAsync(this::saveIfDirty));
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates a semantic cache with explicit settings, loading the index from
+     * the given file if it exists. Does not catch up with the repository.
+     *
+     * @param chatDialogueRepository the repository the index is rebuilt from.
+     * @param model                  the model answering the requests; answers
+     *                               indexed for another model are not served.
+     * @param enabled                whether lookups and indexing are done at all.
+     * @param threshold              the minimum cosine similarity of a hit.
+     * @param dimensions             the embedding size.
+     * @param maxItems               the initial capacity of the index; it grows
+     *                               when full.
+     * @param rebuildBatchSize       the dialogues read per query when catching up.
+     * @param indexFile              where the index is persisted.
+     */
+    //--------------------------------------------------------------------------------
+    public SemanticResponseCache(ChatDialogueRepository chatDialogueRepository, String model, boolean enabled,
+                                 double threshold, int dimensions, int maxItems, int rebuildBatchSize,
+                                 Path indexFile) {
+        this.chatDialogueRepository = chatDialogueRepository;
+        this.model = model;
+        this.enabled = enabled;
+        this.threshold = threshold;
+        this.rebuildBatchSize = rebuildBatchSize;
+        this.indexFile = indexFile;
+        this.embedder = new QuestionEmbedder(dimensions);
+        this.index = enabled ? loadOrCreate(indexFile, dimensions, maxItems) : null;
+        if (index != null) {
+            index.items().forEach(item -> lastIndexedAt.accumulateAndGet(item.createdAt, Math::max));
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the stored response to the closest earlier question, if it is
+     * similar enough.
+     *
+     * @param messages the conversation messages about to be sent to the model.
+     * @return the stored response, or empty on a miss.
+     */
+    //--------------------------------------------------------------------------------
+    public Optional<String> lookup(List<ChatMessageDTO> messages) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        Optional<String> question = standaloneQuestion(messages);
+        if (question.isEmpty()) {
+            return Optional.empty();
+        }
+
+        float[] vector = embedder.embed(question.get());
+        String context = contextKey(instructionOf(messages));
+        for (SearchResult<CachedAnswer, Float> result : index.findNearest(vector, CANDIDATES)) {
+            if (1 - result.distance() < threshold) {
+                break;
+            }
+            if (result.item().context.equals(context)) {
+                hits.incrementAndGet();
+                return Optional.of(result.item().response);
+            }
+        }
+        misses.incrementAndGet();
+        return Optional.empty();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Indexes a saved dialogue whose response came from the model.
+     *
+     * @param chatDialogue the saved dialogue.
+     * @param messages     the conversation messages the response answers.
+     */
+    //--------------------------------------------------------------------------------
+    public void add(ChatDialogue chatDialogue, List<ChatMessageDTO> messages) {
+        if (enabled && standaloneQuestion(messages).isPresent()) {
+            index(chatDialogue);
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public int size() {
+        return enabled ? index.size() : 0;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Indexes the indexable dialogues created since shortly before the newest
+     * indexed one, one batch at a time, in the background. Dialogues already
+     * in the index are skipped. Dialogues do not record their model, so they
+     * are indexed for the current one.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Void> catchUp() {
+        long from = lastIndexedAt.get() == 0 ? 0 : lastIndexedAt.get() - CATCH_UP_OVERLAP.toMillis();
+        return catchUp(new Timestamp(from), 0);
+    }
+
+    private CompletionStage<Void> catchUp(Timestamp createdAt, long afterId) {
+        return chatDialogueRepository.getIndexableAfter(createdAt, afterId, rebuildBatchSize)
+            .thenCompose(batch -> {
+                List<ChatDialogue> dialogues = batch.collect(Collectors.toList());
+                for (ChatDialogue chatDialogue : dialogues) {
+                    if (index.get(chatDialogue.getId()).isEmpty()) {
+                        index(chatDialogue);
+                    }
+                }
+                if (dialogues.size() < rebuildBatchSize) {
+                    caughtUp = true;
+                    log.info("Semantic cache index holds {} questions", index.size());
+                    return CompletableFuture.<Void>completedFuture(null);
+                }
+                ChatDialogue last = dialogues.get(dialogues.size() - 1);
+                return catchUp(last.getCreatedAt(), last.getId());
+            })
+            .exceptionally(ex -> {
+                log.error("Failed to rebuild the semantic cache index", ex);
+                return null;
+            });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Writes the index to a temporary file and moves it over the index file, so
+     * that a crash while saving leaves the previous index intact. Nothing is
+     * saved before the index has caught up with the repository, since the next
+     * start resumes from the newest indexed dialogue.
+     */
+    //--------------------------------------------------------------------------------
+    void saveIfDirty() {
+        if (!caughtUp || !dirty.compareAndSet(true, false)) {
+            return;
+        }
+        try {
+            Path parent = indexFile.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, indexFile.getFileName().toString(), ".tmp");
+            index.save(temp);
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty.set(true);
+            log.error("Failed to save the semantic cache index to {}", indexFile, e);
+        }
+    }
+
+    private void index(ChatDialogue chatDialogue) {
+        if (chatDialogue.getId() == null || chatDialogue.getQuestion() == null || chatDialogue.getResponse() == null) {
+            return;
+        }
+        long createdAt = chatDialogue.getCreatedAt() == null ? 0 : chatDialogue.getCreatedAt().getTime();
+        synchronized (index) {
+            if (index.size() >= index.getMaxItemCount()) {
+                index.resize(index.getMaxItemCount() * 2);
+            }
+        }
+        index.add(new CachedAnswer(
+            chatDialogue.getId(),
+            embedder.embed(chatDialogue.getQuestion()),
+            chatDialogue.getResponse(),
+            contextKey(chatDialogue.getInstruction()),
+            createdAt
+        ));
+        lastIndexedAt.accumulateAndGet(createdAt, Math::max);
+        dirty.set(true);
+    }
+
+    private static HnswIndex<Long, float[], CachedAnswer, Float> loadOrCreate(Path indexFile, int dimensions, int maxItems) {
+        if (Files.exists(indexFile)) {
+            try {
+                HnswIndex<Long, float[], CachedAnswer, Float> loaded = HnswIndex.load(indexFile);
+                if (loaded.getDimensions() == dimensions) {
+                    return loaded;
+                }
+                log.warn("Semantic cache index {} has {} dimensions instead of {}, rebuilding it",
+                    indexFile, loaded.getDimensions(), dimensions);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to load the semantic cache index from {}, rebuilding it", indexFile, e);
+            }
+        }
+        return HnswIndex
+            .newBuilder(dimensions, DistanceFunctions.FLOAT_INNER_PRODUCT, maxItems)
+            .withM(16)
+            .withEfConstruction(200)
+            .withEf(64)
+            .build();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Tells whether a request has no earlier conversation turns, so that its
+     * answer may be served for similar questions.
+     *
+     * @param messages the conversation messages of the request.
+     * @return true if the request consists of an optional system message and
+     *         a single user message.
+     */
+    //--------------------------------------------------------------------------------
+    static boolean isStandalone(List<ChatMessageDTO> messages) {
+        return standaloneQuestion(messages).isPresent();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the question of a request without earlier conversation turns:
+     * an optional system message followed by a single user message.
+     */
+    //--------------------------------------------------------------------------------
+    private static Optional<String> standaloneQuestion(List<ChatMessageDTO> messages) {
+        long userMessages = messages.stream().filter(message -> "user".equals(message.getRole())).count();
+        boolean hasTurns = messages.stream().anyMatch(message -> "assistant".equals(message.getRole()));
+        if (userMessages != 1 || hasTurns) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(messages.get(messages.size() - 1).getContent());
+    }
+
+    private static String instructionOf(List<ChatMessageDTO> messages) {
+        return messages.stream()
+            .filter(message -> "system".equals(message.getRole()))
+            .map(ChatMessageDTO::getContent)
+            .findFirst()
+            .orElse(null);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Identifies the instruction and model an answer was given under.
+     */
+    //--------------------------------------------------------------------------------
+    private String contextKey(String instruction) {
+        String normalized = instruction == null ? "" : instruction.trim().replaceAll("\\s+", " ");
+        return model + '\u0000' + normalized;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * An indexed question with its answer.
+     */
+    //--------------------------------------------------------------------------------
+    static final class CachedAnswer implements Item<Long, float[]> {
+        private static final long serialVersionUID = 2L;
+
+        private final long id;
+        private final float[] vector;
+        private final String response;
+        private final String context;
+        private final long createdAt;
+
+        CachedAnswer(long id, float[] vector, String response, String context, long createdAt) {
+            this.id = id;
+            this.vector = vector;
+            this.response = response;
+            this.context = context;
+            this.createdAt = createdAt;
+        }
+
+        @Override
+        public Long id() {
+            return id;
+        }
+
+        @Override
+        public float[] vector() {
+            return vector;
+        }
+
+        @Override
+        public int dimensions() {
+            return vector.length;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package services;
+
+//--------------------------------------------------------------------------------
+/**
+ * Cheap token count estimates for rate limiting and prompt budgeting. Uses the
+ * rule of thumb of roughly four characters of English text per token, which
+ * is close enough for admission decisions without running a tokenizer on the
+ * request path.
+ */
+//--------------------------------------------------------------------------------
+public final class TokenEstimator {
+
+    static final int CHARS_PER_TOKEN = 4;
+    private static final int TOKENS_PER_MESSAGE = 4;
+
+    private TokenEstimator() {
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Estimates the number of tokens of a text.
+     *
+     * @param text the text, may be null.
+     * @return the estimated token count.
+     */
+    //--------------------------------------------------------------------------------
+    public static int estimate(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        return (text.length() + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Estimates the number of prompt tokens of a chat message, including the
+     * per-message formatting overhead.
+     *
+     * @param content the message content, may be null.
+     * @return the estimated token count.
+     */
+    //--------------------------------------------------------------------------------
+    public static int estimateMessage(String content) {
+        return TOKENS_PER_MESSAGE + estimate(content);
+    }
+}
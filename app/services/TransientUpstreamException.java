@@ -0,0 +1,37 @@
+package services;
+
+import java.time.Duration;
+import java.util.Optional;
+
+//--------------------------------------------------------------------------------
+/**
+ * Thrown when the ChatGPT API answers with a status that is worth retrying:
+ * 429 Too Many Requests or any 5xx server error.
+ */
+//--------------------------------------------------------------------------------
+public class TransientUpstreamException extends RuntimeException {
+
+    private final int status;
+    private final Duration retryAfter;
+
+    public TransientUpstreamException(int status, Duration retryAfter) {
+        super("ChatGPT API responded with status " + status);
+        this.status = status;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the delay requested by the API through its Retry-After header.
+     *
+     * @return the requested delay, or empty if the API did not request one.
+     */
+    //--------------------------------------------------------------------------------
+    public Optional<Duration> getRetryAfter() {
+        return Optional.ofNullable(retryAfter);
+    }
+}
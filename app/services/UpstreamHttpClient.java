@@ -0,0 +1,168 @@
+package services;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pekko.stream.Materializer;
+import play.inject.ApplicationLifecycle;
+import play.libs.ws.WSClient;
+import play.libs.ws.WSRequest;
+import play.libs.ws.ahc.AhcWSClient;
+import play.libs.ws.ahc.AhcWSClientConfigFactory;
+import play.shaded.ahc.org.asynchttpclient.AsyncHttpClient;
+import play.shaded.ahc.org.asynchttpclient.ClientStats;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.ToLongFunction;
+
+//--------------------------------------------------------------------------------
+/**
+ * The HTTP client for calls to the OpenAI endpoints, kept apart from the
+ * application's play.ws client so that its connection pool and timeouts are
+ * sized for the upstream API alone. Connections are kept alive and pooled per
+ * endpoint up to "openai.http.max-connections-per-host"; pooled connections
+ * idle for longer than "pool-idle-timeout" are closed, and connections older
+ * than "max-connection-lifetime" are replaced. A call that finds the pool
+ * exhausted fails at once with an I/O error, which UpstreamResilience
+ * retries; the client's own retries are disabled, so that every attempt goes
+ * through UpstreamResilience.
+ * <p>
+ * Every call gets a request timeout: the remaining time until the deadline
+ * of the incoming request it serves, if that is sooner than the configured
+ * timeout of its kind. The underlying AsyncHttpClient speaks HTTP/1.1 only,
+ * so concurrent calls to an endpoint use separate connections.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+@Slf4j
+public class UpstreamHttpClient {
+
+    private final WSClient client;
+    private final Clock clock;
+    private final Duration requestTimeout;
+    private final Duration streamTimeout;
+
+    @Inject
+    public UpstreamHttpClient(Materializer materializer, ApplicationLifecycle lifecycle, Config config) {
+        this(
+            AhcWSClient.create(
+                AhcWSClientConfigFactory.forConfig(clientConfig(config), UpstreamHttpClient.class.getClassLoader()),
+                null,
+                materializer),
+            Clock.systemUTC(),
+            config.getDuration("openai.http.request-timeout"),
+            config.getDuration("openai.http.stream-timeout")
+        );
+
+        lifecycle.addStopHook(() -> {
+            try {
+                client.close();
+            } catch (IOException e) {
+                log.warn("Failed to close the upstream HTTP client", e);
+            }
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates the client over an existing WSClient.
+     *
+     * @param client         the client calls are made with.
+     * @param clock          the clock deadlines are compared with.
+     * @param requestTimeout the longest a completion call may take.
+     * @param streamTimeout  the longest a streamed completion call may take.
+     */
+    //--------------------------------------------------------------------------------
+    public UpstreamHttpClient(WSClient client, Clock clock, Duration requestTimeout, Duration streamTimeout) {
+        this.client = client;
+        this.clock = clock;
+        this.requestTimeout = requestTimeout;
+        this.streamTimeout = streamTimeout;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Prepares a call to an endpoint.
+     *
+     * @param url      the URL of the endpoint.
+     * @param deadline when the incoming request the call serves has to be
+     *                 answered, or null if it has none.
+     * @param stream   whether the response is streamed.
+     * @return the prepared request, with its request timeout set.
+     * @throws DeadlineExceededException if the deadline has passed.
+     */
+    //--------------------------------------------------------------------------------
+    public WSRequest url(String url, Instant deadline, boolean stream) {
+        Duration timeout = stream ? streamTimeout : requestTimeout;
+        if (deadline != null) {
+            Duration remaining = Duration.between(clock.instant(), deadline);
+            if (remaining.toMillis() <= 0) {
+                throw new DeadlineExceededException("The request deadline has passed");
+            }
+            if (remaining.compareTo(timeout) < 0) {
+                timeout = remaining;
+            }
+        }
+        return client.url(url).setRequestTimeout(timeout);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the connections of the pool in the given state.
+     *
+     * @param state "active", "idle" or "total".
+     * @return the number of connections, or NaN if the client does not report
+     *         them.
+     */
+    //--------------------------------------------------------------------------------
+    public double connections(String state) {
+        switch (state) {
+            case "active":
+                return connections(ClientStats::getTotalActiveConnectionCount);
+            case "idle":
+                return connections(ClientStats::getTotalIdleConnectionCount);
+            default:
+                return connections(ClientStats::getTotalConnectionCount);
+        }
+    }
+
+    private double connections(ToLongFunction<ClientStats> count) {
+        Object underlying = client.getUnderlying();
+        if (!(underlying instanceof AsyncHttpClient)) {
+            return Double.NaN;
+        }
+        return count.applyAsLong(((AsyncHttpClient) underlying).getClientStats());
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Builds the play.ws configuration of the client from "openai.http", on
+     * top of the application's own play.ws settings.
+     *
+     * @param config the application configuration.
+     * @return the configuration to create the client from.
+     */
+    //--------------------------------------------------------------------------------
+    private static Config clientConfig(Config config) {
+        Config http = config.getConfig("openai.http");
+        return ConfigFactory.empty()
+            .withValue("play.ws.timeout.connection", http.getValue("connect-timeout"))
+            .withValue("play.ws.timeout.idle", http.getValue("idle-timeout"))
+            .withValue("play.ws.timeout.request", http.getValue("request-timeout"))
+            .withValue("play.ws.ahc.keepAlive", http.getValue("keep-alive"))
+            .withValue("play.ws.ahc.maxConnectionsPerHost", http.getValue("max-connections-per-host"))
+            .withValue("play.ws.ahc.maxConnectionsTotal", http.getValue("max-connections"))
+            .withValue("play.ws.ahc.idleConnectionInPoolTimeout", http.getValue("pool-idle-timeout"))
+            .withValue("play.ws.ahc.maxConnectionLifetime", http.getValue("max-connection-lifetime"))
+            .withValue("play.ws.ahc.maxRequestRetry", ConfigValueFactory.fromAnyRef(0))
+            .withFallback(config);
+    }
+}
@@ -0,0 +1,460 @@
+package services;
+
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//--------------------------------------------------------------------------------
+/**
+ * Admission controller for requests to one ChatGPT API endpoint; every
+ * {@link ChatProvider} has its own, since each API key has its own quota. A
+ * request is admitted
+ * when fewer than the configured maximum of requests are in flight and the
+ * request and token buckets, refilled continuously at the configured
+ * per-minute rates, can cover it. Requests that cannot be admitted wait in a
+ * bounded FIFO queue until capacity frees up, the queue timeout passes or the
+ * deadline of the incoming request passes, whichever comes first; when the
+ * queue is full they are rejected immediately with an
+ * {@link UpstreamSaturatedException}.
+ * <p>
+ * The buckets adapt to the x-ratelimit-* headers and to 429 responses of the
+ * endpoint, so that the limiter backs off when the quota is shared with other
+ * clients or has been configured too generously. While it is paused, the
+ * {@link ChatProviderRouter} sends requests to other endpoints.
+ */
+//--------------------------------------------------------------------------------
+@Slf4j
+public class UpstreamLimiter {
+
+    private static final long NANOS_PER_MINUTE = TimeUnit.MINUTES.toNanos(1);
+    private static final Duration DEFAULT_BACKOFF = Duration.ofSeconds(1);
+    private static final Pattern RESET_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+
+    private final int maxConcurrency;
+    private final double requestsPerMinute;
+    private final double tokensPerMinute;
+    private final int maxQueue;
+    private final Duration queueTimeout;
+    private final ScheduledExecutorService scheduler;
+
+    private final Deque<Waiter> waiters = new ArrayDeque<>();
+    private int inFlight;
+    private double requestBudget;
+    private double tokenBudget;
+    private long lastRefillNanos;
+    private long pausedUntilNanos;
+    private ScheduledFuture<?> wakeUp;
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates a limiter from limit settings such as those under
+     * "openai.limits".
+     *
+     * @param limits the limit settings.
+     */
+    //--------------------------------------------------------------------------------
+    public UpstreamLimiter(Config limits) {
+        this(
+            limits.getInt("max-concurrency"),
+            limits.getInt("requests-per-minute"),
+            limits.getInt("tokens-per-minute"),
+            limits.getInt("max-queue"),
+            limits.getDuration("queue-timeout")
+        );
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates a limiter with explicit settings.
+     *
+     * @param maxConcurrency    the maximum number of requests in flight.
+     * @param requestsPerMinute the sustained request rate.
+     * @param tokensPerMinute   the sustained token rate.
+     * @param maxQueue          the maximum number of waiting requests.
+     * @param queueTimeout      how long a request may wait to be admitted.
+     */
+    //--------------------------------------------------------------------------------
+    public UpstreamLimiter(int maxConcurrency, int requestsPerMinute, int tokensPerMinute, int maxQueue,
+                           Duration queueTimeout) {
+        this.maxConcurrency = maxConcurrency;
+        this.requestsPerMinute = requestsPerMinute;
+        this.tokensPerMinute = tokensPerMinute;
+        this.maxQueue = maxQueue;
+        this.queueTimeout = queueTimeout;
+        this.requestBudget = requestsPerMinute;
+        this.tokenBudget = tokensPerMinute;
+        this.lastRefillNanos = System.nanoTime();
+        this.pausedUntilNanos = lastRefillNanos;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upstream-limiter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Requests admission for one upstream call that may wait up to the queue
+     * timeout.
+     *
+     * @param estimatedTokens the estimated prompt and completion tokens of the call.
+     * @return A CompletionStage containing the permit, which must be released
+     *         once the call has completed. Fails with an
+     *         UpstreamSaturatedException if the call cannot be admitted in time.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletionStage<Permit> acquire(int estimatedTokens) {
+        return acquire(estimatedTokens, null);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Requests admission for one upstream call.
+     *
+     * @param estimatedTokens the estimated prompt and completion tokens of the call.
+     * @param deadline        when the incoming request the call serves has to be
+     *                        answered, or null if it has none.
+     * @return A CompletionStage containing the permit, which must be released
+     *         once the call has completed. Fails with a
+     *         DeadlineExceededException if the deadline passes first, and with
+     *         an UpstreamSaturatedException if the call cannot be admitted
+     *         within the queue timeout. Cancelling it withdraws a waiting
+     *         request from the queue.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletionStage<Permit> acquire(int estimatedTokens, Instant deadline) {
+        int tokens = (int) Math.min(estimatedTokens, tokensPerMinute);
+        long timeoutNanos = queueTimeout.toNanos();
+        boolean deadlineFirst = false;
+        if (deadline != null) {
+            long remainingNanos = Duration.between(Instant.now(), deadline).toNanos();
+            if (remainingNanos <= 0) {
+                return CompletableFuture.failedFuture(
+                    new DeadlineExceededException("The request deadline passed before upstream admission"));
+            }
+            if (remainingNanos < timeoutNanos) {
+                timeoutNanos = remainingNanos;
+                deadlineFirst = true;
+            }
+        }
+
+        synchronized (this) {
+            refill();
+            if (waiters.isEmpty() && tryGrant(tokens)) {
+                return CompletableFuture.completedFuture(new Permit());
+            }
+
+            if (waiters.size() >= maxQueue) {
+                return CompletableFuture.failedFuture(
+                    new UpstreamSaturatedException("Upstream request queue is full", retryAfter()));
+            }
+
+            Waiter waiter = new Waiter(tokens, deadlineFirst);
+            waiters.addLast(waiter);
+            waiter.timeout = scheduler.schedule(() -> expire(waiter), timeoutNanos, TimeUnit.NANOSECONDS);
+            waiter.future.whenComplete((permit, ex) -> {
+                if (waiter.future.isCancelled()) {
+                    withdraw(waiter);
+                }
+            });
+            scheduleWakeUp();
+            return waiter.future;
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Adapts the limiter to the rate limit information of an upstream response.
+     * The remaining request and token counts reported by the API cap the local
+     * buckets, an exhausted quota pauses admission until it resets, and a 429
+     * response pauses admission for its Retry-After delay.
+     *
+     * @param status the HTTP status of the response.
+     * @param header looks up a response header by name.
+     */
+    //--------------------------------------------------------------------------------
+    public void observe(int status, Function<String, Optional<String>> header) {
+        Optional<Double> remainingRequests = header.apply("x-ratelimit-remaining-requests").flatMap(UpstreamLimiter::parseNumber);
+        Optional<Double> remainingTokens = header.apply("x-ratelimit-remaining-tokens").flatMap(UpstreamLimiter::parseNumber);
+        Optional<Duration> resetRequests = header.apply("x-ratelimit-reset-requests").flatMap(UpstreamLimiter::parseReset);
+        Optional<Duration> resetTokens = header.apply("x-ratelimit-reset-tokens").flatMap(UpstreamLimiter::parseReset);
+
+        synchronized (this) {
+            refill();
+            long now = System.nanoTime();
+
+            remainingRequests.ifPresent(remaining -> requestBudget = Math.min(requestBudget, remaining));
+            remainingTokens.ifPresent(remaining -> tokenBudget = Math.min(tokenBudget, remaining));
+
+            if (remainingRequests.filter(remaining -> remaining < 1).isPresent()) {
+                pauseUntil(now + resetRequests.orElse(DEFAULT_BACKOFF).toNanos());
+            }
+            if (remainingTokens.filter(remaining -> remaining < 1).isPresent()) {
+                pauseUntil(now + resetTokens.orElse(DEFAULT_BACKOFF).toNanos());
+            }
+            if (status == 429) {
+                Duration backoff = header.apply("retry-after")
+                    .flatMap(UpstreamLimiter::parseNumber)
+                    .map(seconds -> Duration.ofMillis((long) (seconds * 1000)))
+                    .orElse(DEFAULT_BACKOFF);
+                log.warn("ChatGPT API rate limit reached, pausing requests to the endpoint for {}", backoff);
+                pauseUntil(now + backoff.toNanos());
+            }
+
+            scheduleWakeUp();
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the number of admitted requests that have not been released yet.
+     *
+     * @return the in-flight count.
+     */
+    //--------------------------------------------------------------------------------
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the number of requests waiting for admission.
+     *
+     * @return the queue length.
+     */
+    //--------------------------------------------------------------------------------
+    public synchronized int queued() {
+        return waiters.size();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns how long admission stays paused because the endpoint's quota is
+     * exhausted or it answered 429.
+     *
+     * @return the remaining pause, zero if admission is not paused.
+     */
+    //--------------------------------------------------------------------------------
+    public synchronized Duration pausedFor() {
+        return Duration.ofNanos(Math.max(0, pausedUntilNanos - System.nanoTime()));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Stops the scheduler that admits waiting requests and expires them.
+     */
+    //--------------------------------------------------------------------------------
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void release() {
+        List<Waiter> admitted;
+        synchronized (this) {
+            inFlight--;
+            admitted = admitWaiters();
+        }
+        admitted.forEach(this::admit);
+    }
+
+    private void drain() {
+        List<Waiter> admitted;
+        synchronized (this) {
+            wakeUp = null;
+            admitted = admitWaiters();
+        }
+        admitted.forEach(this::admit);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Hands a permit to an admitted waiter, or gives it back if the waiter has
+     * been cancelled in the meantime.
+     */
+    //--------------------------------------------------------------------------------
+    private void admit(Waiter waiter) {
+        Permit permit = new Permit();
+        if (!waiter.future.complete(permit)) {
+            permit.release();
+        }
+    }
+
+    private void withdraw(Waiter waiter) {
+        List<Waiter> admitted;
+        synchronized (this) {
+            if (!waiters.remove(waiter)) {
+                return;
+            }
+            waiter.timeout.cancel(false);
+            admitted = admitWaiters();
+        }
+        admitted.forEach(this::admit);
+    }
+
+    private void expire(Waiter waiter) {
+        boolean removed;
+        synchronized (this) {
+            removed = waiters.remove(waiter);
+        }
+        if (removed) {
+            waiter.future.completeExceptionally(waiter.deadlineFirst
+                ? new DeadlineExceededException("The request deadline passed while waiting for upstream capacity")
+                : new UpstreamSaturatedException("Timed out waiting for upstream capacity", retryAfter()));
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Admits waiters in FIFO order for as long as capacity allows. Must be
+     * called while holding the lock; the returned waiters must be completed
+     * after releasing it.
+     *
+     * @return the admitted waiters.
+     */
+    //--------------------------------------------------------------------------------
+    private List<Waiter> admitWaiters() {
+        refill();
+        List<Waiter> admitted = new ArrayList<>();
+        while (!waiters.isEmpty() && tryGrant(waiters.peekFirst().tokens)) {
+            Waiter waiter = waiters.pollFirst();
+            waiter.timeout.cancel(false);
+            admitted.add(waiter);
+        }
+        scheduleWakeUp();
+        return admitted;
+    }
+
+    private boolean tryGrant(int tokens) {
+        if (inFlight >= maxConcurrency || System.nanoTime() < pausedUntilNanos
+            || requestBudget < 1 || tokenBudget < tokens) {
+            return false;
+        }
+        inFlight++;
+        requestBudget -= 1;
+        tokenBudget -= tokens;
+        return true;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long elapsed = now - lastRefillNanos;
+        lastRefillNanos = now;
+        requestBudget = Math.min(requestsPerMinute, requestBudget + requestsPerMinute * elapsed / NANOS_PER_MINUTE);
+        tokenBudget = Math.min(tokensPerMinute, tokenBudget + tokensPerMinute * elapsed / NANOS_PER_MINUTE);
+    }
+
+    private void pauseUntil(long nanos) {
+        pausedUntilNanos = Math.max(pausedUntilNanos, nanos);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Schedules a drain for the moment the head waiter can be admitted by rate,
+     * unless it is only blocked by concurrency, in which case the next release
+     * drains the queue.
+     */
+    //--------------------------------------------------------------------------------
+    private void scheduleWakeUp() {
+        Waiter head = waiters.peekFirst();
+        if (head == null || inFlight >= maxConcurrency || wakeUp != null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        long delay = Math.max(0, pausedUntilNanos - now);
+        if (requestBudget < 1) {
+            delay = Math.max(delay, (long) ((1 - requestBudget) * NANOS_PER_MINUTE / requestsPerMinute));
+        }
+        if (tokenBudget < head.tokens) {
+            delay = Math.max(delay, (long) ((head.tokens - tokenBudget) * NANOS_PER_MINUTE / tokensPerMinute));
+        }
+        wakeUp = scheduler.schedule(this::drain, Math.max(delay, 1), TimeUnit.NANOSECONDS);
+    }
+
+    private Duration retryAfter() {
+        long paused = Math.max(0, pausedUntilNanos - System.nanoTime());
+        return Duration.ofNanos(Math.max(paused, queueTimeout.toNanos()));
+    }
+
+    private static Optional<Double> parseNumber(String value) {
+        try {
+            return Optional.of(Double.parseDouble(value.trim()));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Parses the reset durations of the x-ratelimit-reset-* headers, such as
+     * "20ms", "1s" or "6m0s".
+     *
+     * @param value the header value.
+     * @return the duration, or empty if the value could not be parsed.
+     */
+    //--------------------------------------------------------------------------------
+    static Optional<Duration> parseReset(String value) {
+        Matcher matcher = RESET_PART.matcher(value.trim());
+        double millis = 0;
+        boolean matched = false;
+        while (matcher.find()) {
+            matched = true;
+            double amount = Double.parseDouble(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "h": millis += amount * 3_600_000; break;
+                case "m": millis += amount * 60_000; break;
+                case "s": millis += amount * 1_000; break;
+                default: millis += amount; break;
+            }
+        }
+        return matched ? Optional.of(Duration.ofMillis((long) Math.ceil(millis))) : Optional.empty();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Admission to make one upstream call. Releasing the permit more than once
+     * has no effect.
+     */
+    //--------------------------------------------------------------------------------
+    public final class Permit {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit() {
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                UpstreamLimiter.this.release();
+            }
+        }
+    }
+
+    private static final class Waiter {
+        private final int tokens;
+        private final boolean deadlineFirst;
+        private final CompletableFuture<Permit> future = new CompletableFuture<>();
+        private ScheduledFuture<?> timeout;
+
+        private Waiter(int tokens, boolean deadlineFirst) {
+            this.tokens = tokens;
+            this.deadlineFirst = deadlineFirst;
+        }
+    }
+}
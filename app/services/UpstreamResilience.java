@@ -0,0 +1,268 @@
+package services;
+
+import com.typesafe.config.Config;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pekko.actor.ActorSystem;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+//--------------------------------------------------------------------------------
+/**
+ * Retries and hedging for calls to the ChatGPT API.
+ * <ul>
+ * <li>Transient failures (429, 5xx, timeouts and I/O errors) are retried with
+ * jittered exponential backoff, honouring the API's Retry-After.</li>
+ * <li>Optionally, when an attempt has not completed after the configured
+ * percentile of recent latencies, a second attempt is started and the first
+ * successful one wins, and the other is cancelled so that it gives back its
+ * limiter slot.</li>
+ * </ul>
+ * Neither is attempted once the deadline of the incoming request would pass
+ * first: a retry is given up when the remaining time is shorter than its
+ * backoff, and a hedge when it is shorter than the hedge delay.
+ * Every attempt selects its endpoint anew, so a retry goes to another endpoint
+ * when the one that failed has been ejected or paused. Circuit breaking is per
+ * endpoint, by the ejection of {@link ChatProvider}s; once every endpoint is
+ * unavailable, attempts fail fast with an {@link UpstreamSaturatedException},
+ * which is not retried. Retry and hedge counters are exposed for monitoring.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+@Slf4j
+public class UpstreamResilience {
+
+    private static final int LATENCY_WINDOW = 512;
+    private static final int PERCENTILE_REFRESH_INTERVAL = 64;
+
+    private final Executor executor;
+    private final int maxAttempts;
+    private final Duration minBackoff;
+    private final Duration maxBackoff;
+    private final boolean hedgingEnabled;
+    private final double hedgePercentile;
+    private final int hedgeMinSamples;
+    private final Duration hedgeMinDelay;
+
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private int latencyCount;
+    private volatile long hedgeDelayNanos = -1;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    @Inject
+    public UpstreamResilience(ActorSystem actorSystem, Config config) {
+        this.executor = actorSystem.dispatcher();
+        this.maxAttempts = config.getInt("openai.resilience.max-attempts");
+        this.minBackoff = config.getDuration("openai.resilience.min-backoff");
+        this.maxBackoff = config.getDuration("openai.resilience.max-backoff");
+        this.hedgingEnabled = config.getBoolean("openai.resilience.hedge.enabled");
+        this.hedgePercentile = config.getDouble("openai.resilience.hedge.percentile");
+        this.hedgeMinSamples = config.getInt("openai.resilience.hedge.min-samples");
+        this.hedgeMinDelay = config.getDuration("openai.resilience.hedge.min-delay");
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Executes an upstream call with retries and, if enabled and requested,
+     * hedging.
+     *
+     * @param attempt   starts one attempt of the call. Cancelling the stage it
+     *                  returns should abandon the attempt.
+     * @param hedgeable whether a second attempt may run concurrently with a slow
+     *                  one; only safe for calls without side effects on the
+     *                  caller's resources.
+     * @param deadline  when the incoming request the call serves has to be
+     *                  answered, or null if it has none.
+     * @return A CompletionStage containing the result of the first successful
+     *         attempt, or the failure of the last one.
+     */
+    //--------------------------------------------------------------------------------
+    public <T> CompletionStage<T> execute(Supplier<CompletionStage<T>> attempt, boolean hedgeable, Instant deadline) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        runAttempt(attempt, hedgeable, deadline, 1, result);
+        return result;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Makes a stage derived from an upstream call cancel that call when it is
+     * cancelled itself, since cancellation does not travel back along
+     * CompletableFuture chains.
+     *
+     * @param call    the call the stage is derived from.
+     * @param derived the derived stage.
+     * @return the derived stage as a CompletableFuture.
+     */
+    //--------------------------------------------------------------------------------
+    static <T> CompletableFuture<T> cancelling(CompletionStage<?> call, CompletionStage<T> derived) {
+        CompletableFuture<T> future = derived.toCompletableFuture();
+        future.whenComplete((value, ex) -> {
+            if (future.isCancelled()) {
+                call.toCompletableFuture().cancel(false);
+            }
+        });
+        return future;
+    }
+
+    public long retries() {
+        return retries.get();
+    }
+
+    public long hedges() {
+        return hedges.get();
+    }
+
+    public long hedgeWins() {
+        return hedgeWins.get();
+    }
+
+    private <T> void runAttempt(Supplier<CompletionStage<T>> attempt, boolean hedgeable, Instant deadline,
+                                int attemptNumber, CompletableFuture<T> result) {
+        CompletionStage<T> outcome = hedgeable && hedgingEnabled ? hedged(attempt, deadline) : measured(attempt);
+
+        outcome.whenComplete((value, ex) -> {
+            if (ex == null) {
+                result.complete(value);
+                return;
+            }
+
+            Throwable cause = unwrap(ex);
+            if (attemptNumber >= maxAttempts || !isTransient(cause)) {
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            Duration backoff = backoff(attemptNumber, cause);
+            if (!leaves(deadline, backoff)) {
+                log.warn("ChatGPT API attempt {} failed ({}), not retrying since the deadline is less than {} ms away",
+                    attemptNumber, cause.toString(), backoff.toMillis());
+                result.completeExceptionally(cause);
+                return;
+            }
+            retries.incrementAndGet();
+            log.warn("ChatGPT API attempt {} failed ({}), retrying in {} ms", attemptNumber, cause.toString(), backoff.toMillis());
+            CompletableFuture.delayedExecutor(backoff.toNanos(), TimeUnit.NANOSECONDS, executor)
+                .execute(() -> runAttempt(attempt, hedgeable, deadline, attemptNumber + 1, result));
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Runs one attempt and records its latency if it succeeds. The attempt's
+     * own stage is returned, so that cancelling it abandons the attempt.
+     */
+    //--------------------------------------------------------------------------------
+    private <T> CompletableFuture<T> measured(Supplier<CompletionStage<T>> attempt) {
+        long start = System.nanoTime();
+        CompletableFuture<T> outcome;
+        try {
+            outcome = attempt.get().toCompletableFuture();
+        } catch (RuntimeException e) {
+            outcome = CompletableFuture.failedFuture(e);
+        }
+        outcome.whenComplete((value, ex) -> {
+            if (ex == null) {
+                recordLatency(System.nanoTime() - start);
+            }
+        });
+        return outcome;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Runs an attempt and, if it is still running after the hedge delay, a
+     * second one. The first success wins and the other attempt is cancelled;
+     * the result fails only when both fail. No hedge is started when the
+     * deadline would pass before the hedge delay.
+     */
+    //--------------------------------------------------------------------------------
+    private <T> CompletionStage<T> hedged(Supplier<CompletionStage<T>> attempt, Instant deadline) {
+        long delay = hedgeDelayNanos;
+        if (delay < 0 || !leaves(deadline, Duration.ofNanos(delay))) {
+            return measured(attempt);
+        }
+
+        CompletableFuture<T> winner = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicBoolean hedgeStarted = new AtomicBoolean();
+
+        CompletableFuture<T> first = measured(attempt);
+        first.whenComplete((value, ex) -> settle(winner, pending, value, ex, false));
+        winner.whenComplete((value, ex) -> first.cancel(false));
+
+        CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, executor).execute(() -> {
+            if (!winner.isDone() && hedgeStarted.compareAndSet(false, true)) {
+                pending.incrementAndGet();
+                hedges.incrementAndGet();
+                CompletableFuture<T> second = measured(attempt);
+                second.whenComplete((value, ex) -> settle(winner, pending, value, ex, true));
+                winner.whenComplete((value, ex) -> second.cancel(false));
+            }
+        });
+        return winner;
+    }
+
+    private <T> void settle(CompletableFuture<T> winner, AtomicInteger pending, T value, Throwable ex, boolean hedge) {
+        int remaining = pending.decrementAndGet();
+        if (ex == null) {
+            if (winner.complete(value) && hedge) {
+                hedgeWins.incrementAndGet();
+            }
+        } else if (remaining == 0) {
+            winner.completeExceptionally(ex);
+        }
+    }
+
+    private static boolean leaves(Instant deadline, Duration wait) {
+        return deadline == null || Instant.now().plus(wait).isBefore(deadline);
+    }
+
+    private Duration backoff(int attemptNumber, Throwable cause) {
+        long ceiling = Math.min(maxBackoff.toMillis(), minBackoff.toMillis() << Math.min(attemptNumber - 1, 20));
+        long jittered = ThreadLocalRandom.current().nextLong(minBackoff.toMillis(), Math.max(ceiling, minBackoff.toMillis()) + 1);
+        long requested = cause instanceof TransientUpstreamException
+            ? ((TransientUpstreamException) cause).getRetryAfter().map(Duration::toMillis).orElse(0L)
+            : 0L;
+        return Duration.ofMillis(Math.max(jittered, Math.min(requested, maxBackoff.toMillis())));
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        latencies[latencyCount % LATENCY_WINDOW] = nanos;
+        latencyCount++;
+
+        if (latencyCount >= hedgeMinSamples && latencyCount % PERCENTILE_REFRESH_INTERVAL == 0) {
+            long[] window = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_WINDOW));
+            Arrays.sort(window);
+            long percentile = window[(int) Math.min(window.length - 1, Math.ceil(hedgePercentile * window.length) - 1)];
+            hedgeDelayNanos = Math.max(percentile, hedgeMinDelay.toNanos());
+        }
+    }
+
+    static boolean isTransient(Throwable cause) {
+        return cause instanceof TransientUpstreamException
+            || cause instanceof TimeoutException
+            || cause instanceof IOException;
+    }
+
+    private static Throwable unwrap(Throwable ex) {
+        return (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+    }
+}
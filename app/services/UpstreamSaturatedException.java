@@ -0,0 +1,32 @@
+package services;
+
+import java.time.Duration;
+
+//--------------------------------------------------------------------------------
+/**
+ * Thrown when a request to the ChatGPT API cannot be admitted because every
+ * endpoint is ejected or paused, or because the concurrency or rate limits of
+ * the selected endpoint are exhausted and its wait queue is full or the
+ * request's queueing deadline has passed.
+ */
+//--------------------------------------------------------------------------------
+public class UpstreamSaturatedException extends RuntimeException {
+
+    private final Duration retryAfter;
+
+    public UpstreamSaturatedException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns how long the client should wait before retrying.
+     *
+     * @return the suggested retry delay.
+     */
+    //--------------------------------------------------------------------------------
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,412 @@
+package services;
+
+import com.typesafe.config.Config;
+import dao.ChatUsageRepository;
+import dto.ChatUsageDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pekko.actor.ActorSystem;
+import org.apache.pekko.actor.Cancellable;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+//--------------------------------------------------------------------------------
+/**
+ * Counts the chat requests and the tokens billed for each user and enforces
+ * per-user quotas on them. Usage is counted in fixed windows aligned to the
+ * epoch, so daily windows start at midnight UTC.
+ * <p>
+ * Counters live in memory, one set of LongAdders per user, so that requests
+ * of the same user on many threads do not contend on a single field. Every
+ * flush interval the counts are added to the ChatUsage table, which returns
+ * the user's totals across all instances. A user's totals are read once
+ * before their first request on this instance is admitted, so quotas hold
+ * across restarts. Requests on other instances are seen after at most one
+ * flush interval of each instance.
+ * <p>
+ * The request quota is checked before a request is admitted and counts it.
+ * The token quota can only be checked against the tokens of completed
+ * requests, so the request that crosses it is still answered.
+ */
+//--------------------------------------------------------------------------------
+@Singleton
+@Slf4j
+public class UsageQuotas {
+
+    private final ChatUsageRepository usageRepository;
+    private final Clock clock;
+    private final long windowMillis;
+    private final long maxRequests;
+    private final long maxTokens;
+    private final ConcurrentMap<String, UserUsage> usages = new ConcurrentHashMap<>();
+    private final Queue<UserUsage> retired = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    private final LongAdder requestRejections = new LongAdder();
+    private final LongAdder tokenRejections = new LongAdder();
+
+    @Inject
+    public UsageQuotas(ChatUsageRepository usageRepository, ActorSystem actorSystem, ApplicationLifecycle lifecycle,
+                       Config config) {
+        this(
+            usageRepository,
+            Clock.systemUTC(),
+            config.getDuration("chat.usage.window"),
+            config.getLong("chat.usage.max-requests"),
+            config.getLong("chat.usage.max-tokens")
+        );
+
+        Duration interval = config.getDuration("chat.usage.flush-interval");
+        Cancellable task = actorSystem.scheduler().scheduleWithFixedDelay(interval, interval, this::run,
+            actorSystem.dispatcher());
+        lifecycle.addStopHook(() -> {
+            task.cancel();
+            return flush();
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Creates the quotas with explicit settings that are not flushed by
+     * themselves.
+     *
+     * @param usageRepository the repository usage is flushed to.
+     * @param clock           the clock windows are read from.
+     * @param window          the length of a quota window.
+     * @param maxRequests     the requests a user may make per window, or 0 for
+     *                        no limit.
+     * @param maxTokens       the tokens a user may use per window, or 0 for no
+     *                        limit.
+     */
+    //--------------------------------------------------------------------------------
+    public UsageQuotas(ChatUsageRepository usageRepository, Clock clock, Duration window, long maxRequests,
+                       long maxTokens) {
+        this.usageRepository = usageRepository;
+        this.clock = clock;
+        this.windowMillis = window.toMillis();
+        this.maxRequests = maxRequests;
+        this.maxTokens = maxTokens;
+    }
+
+    public long requestRejections() {
+        return requestRejections.sum();
+    }
+
+    public long tokenRejections() {
+        return tokenRejections.sum();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Admits requests of a user if they fit the user's quotas, and counts them.
+     * If the user's totals cannot be read, requests are admitted on the counts
+     * of this instance alone. Admitting no requests always succeeds.
+     *
+     * @param email    the email of the user.
+     * @param requests the number of requests, such as the queries of a batch.
+     * @return A CompletionStage that completes once the requests are admitted,
+     *         or fails with a QuotaExceededException.
+     */
+    //--------------------------------------------------------------------------------
+    public CompletionStage<Void> admit(String email, int requests) {
+        if (requests == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        UserUsage usage = usageOf(email);
+        return load(usage).thenApply(ignored -> {
+            if (maxTokens > 0 && usage.tokens() >= maxTokens) {
+                tokenRejections.increment();
+                throw new QuotaExceededException("Token quota exceeded", retryAfter(usage));
+            }
+            usage.requests.add(requests);
+            if (maxRequests > 0 && usage.requests() > maxRequests) {
+                usage.requests.add(-requests);
+                requestRejections.increment();
+                throw new QuotaExceededException("Request quota exceeded", retryAfter(usage));
+            }
+            return null;
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Gives back requests that were admitted but answered without an API
+     * call, such as replays of an idempotency key, so that they do not count
+     * against the user's quota. Requests admitted in an earlier window are
+     * given back in the current one.
+     *
+     * @param email    the email of the user.
+     * @param requests the number of requests.
+     */
+    //--------------------------------------------------------------------------------
+    public void refund(String email, int requests) {
+        usageOf(email).requests.add(-requests);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Counts the tokens the API billed for a request of a user.
+     *
+     * @param email            the email of the user.
+     * @param promptTokens     the prompt tokens billed.
+     * @param completionTokens the completion tokens billed.
+     */
+    //--------------------------------------------------------------------------------
+    public void recordTokens(String email, long promptTokens, long completionTokens) {
+        UserUsage usage = usageOf(email);
+        usage.promptTokens.add(promptTokens);
+        usage.completionTokens.add(completionTokens);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the counters of a user in the current window. Counters of an
+     * earlier window are handed to the next flush.
+     *
+     * @param email the email of the user.
+     * @return the counters.
+     */
+    //--------------------------------------------------------------------------------
+    private UserUsage usageOf(String email) {
+        long windowStart = windowStart(clock.millis());
+        UserUsage usage = usages.get(email);
+        if (usage != null && usage.windowStart == windowStart) {
+            return usage;
+        }
+        return usages.compute(email, (key, current) -> {
+            if (current != null && current.windowStart == windowStart) {
+                return current;
+            }
+            if (current != null) {
+                retired.add(current);
+            }
+            return new UserUsage(key, windowStart);
+        });
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Reads the totals of a user's window from the database on first use.
+     * Concurrent requests share one read. If the read fails, the requests
+     * waiting for it are counted on this instance alone and the next request
+     * reads again.
+     *
+     * @param usage the counters of the user.
+     * @return A CompletionStage that completes once the totals have been read
+     *         or could not be, which never fails itself.
+     */
+    //--------------------------------------------------------------------------------
+    private CompletionStage<Void> load(UserUsage usage) {
+        if (usage.loaded) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> read = new CompletableFuture<>();
+        CompletableFuture<Void> pending = usage.loading.compareAndExchange(null, read);
+        if (pending != null) {
+            return pending;
+        }
+        usageRepository.getUsage(usage.email, new Timestamp(usage.windowStart)).whenComplete((totals, ex) -> {
+            if (ex != null) {
+                log.warn("Failed to read the usage of {}, counting on this instance only until it is read",
+                    usage.email, ex);
+            } else {
+                totals.ifPresent(usage::persisted);
+                usage.loaded = true;
+            }
+            usage.loading.set(null);
+            read.complete(null);
+        });
+        return read;
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Flushes the counters unless the previous flush is still running.
+     */
+    //--------------------------------------------------------------------------------
+    private void run() {
+        if (!flushing.compareAndSet(false, true)) {
+            return;
+        }
+        flush().whenComplete((ignored, ex) -> flushing.set(false));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Adds the counts since the last flush to the database and takes over the
+     * totals it returns, which include the other instances' counts. Counters
+     * of past windows are dropped once flushed. If the database cannot be
+     * written, the counts are kept for the next flush.
+     *
+     * @return A CompletionStage that completes once the flush is done, which
+     *         never fails itself.
+     */
+    //--------------------------------------------------------------------------------
+    CompletionStage<Void> flush() {
+        long currentWindow = windowStart(clock.millis());
+        List<UserUsage> flushed = new ArrayList<>();
+        List<ChatUsageDTO> counts = new ArrayList<>();
+
+        for (UserUsage usage = retired.poll(); usage != null; usage = retired.poll()) {
+            drainInto(usage, flushed, counts);
+        }
+        for (Map.Entry<String, UserUsage> entry : usages.entrySet()) {
+            UserUsage usage = entry.getValue();
+            drainInto(usage, flushed, counts);
+            if (usage.windowStart != currentWindow) {
+                usages.remove(entry.getKey(), usage);
+            }
+        }
+        if (counts.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return usageRepository.addUsage(counts).handle((totals, ex) -> {
+            if (ex != null) {
+                log.warn("Failed to flush the usage of {} user(s), retrying with the next flush", counts.size(), ex);
+            }
+            for (int i = 0; i < flushed.size(); i++) {
+                UserUsage usage = flushed.get(i);
+                if (ex == null) {
+                    usage.flushed(counts.get(i), totals.get(i));
+                } else {
+                    usage.restore(counts.get(i));
+                    if (usage.windowStart != currentWindow) {
+                        retired.add(usage);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    private static void drainInto(UserUsage usage, List<UserUsage> flushed, List<ChatUsageDTO> counts) {
+        ChatUsageDTO pending = usage.drain();
+        if (pending != null) {
+            flushed.add(usage);
+            counts.add(pending);
+        }
+    }
+
+    private long windowStart(long millis) {
+        return millis - Math.floorMod(millis, windowMillis);
+    }
+
+    private Duration retryAfter(UserUsage usage) {
+        return Duration.ofMillis(Math.max(0, usage.windowStart + windowMillis - clock.millis()));
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * The counters of one user in one window. A user's usage is the totals
+     * last read from the database plus the counts being flushed plus the
+     * counts since; while a flush completes, its counts may be included
+     * twice, which errs on the side of the quota.
+     */
+    //--------------------------------------------------------------------------------
+    private static final class UserUsage {
+        private final String email;
+        private final long windowStart;
+        private final AtomicReference<CompletableFuture<Void>> loading = new AtomicReference<>();
+        private volatile boolean loaded;
+        private final AtomicLong persistedRequests = new AtomicLong();
+        private final AtomicLong persistedTokens = new AtomicLong();
+        private final LongAdder flushingRequests = new LongAdder();
+        private final LongAdder flushingTokens = new LongAdder();
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder promptTokens = new LongAdder();
+        private final LongAdder completionTokens = new LongAdder();
+
+        private UserUsage(String email, long windowStart) {
+            this.email = email;
+            this.windowStart = windowStart;
+        }
+
+        private long requests() {
+            return persistedRequests.get() + flushingRequests.sum() + requests.sum();
+        }
+
+        private long tokens() {
+            return persistedTokens.get() + flushingTokens.sum() + promptTokens.sum() + completionTokens.sum();
+        }
+
+        //--------------------------------------------------------------------------------
+        /**
+         * Moves the counts since the last flush to the counts being flushed.
+         * Subtracting what was read, rather than resetting, keeps counts
+         * added concurrently.
+         *
+         * @return the counts to flush, or null if there are none.
+         */
+        //--------------------------------------------------------------------------------
+        private ChatUsageDTO drain() {
+            long newRequests = requests.sum();
+            long newPromptTokens = promptTokens.sum();
+            long newCompletionTokens = completionTokens.sum();
+            if (newRequests == 0 && newPromptTokens == 0 && newCompletionTokens == 0) {
+                return null;
+            }
+            flushingRequests.add(newRequests);
+            flushingTokens.add(newPromptTokens + newCompletionTokens);
+            requests.add(-newRequests);
+            promptTokens.add(-newPromptTokens);
+            completionTokens.add(-newCompletionTokens);
+            return new ChatUsageDTO(email, new Timestamp(windowStart), newRequests, newPromptTokens, newCompletionTokens);
+        }
+
+        //--------------------------------------------------------------------------------
+        /**
+         * Takes over the totals returned by a flush. They are newer than any
+         * totals read before, and are lower than those if given back requests
+         * were flushed, so they replace them.
+         *
+         * @param counts the counts flushed.
+         * @param totals the totals after the flush.
+         */
+        //--------------------------------------------------------------------------------
+        private void flushed(ChatUsageDTO counts, ChatUsageDTO totals) {
+            persistedRequests.set(totals.getRequests());
+            persistedTokens.set(totals.getTokens());
+            flushingRequests.add(-counts.getRequests());
+            flushingTokens.add(-counts.getTokens());
+        }
+
+        private void restore(ChatUsageDTO counts) {
+            requests.add(counts.getRequests());
+            promptTokens.add(counts.getPromptTokens());
+            completionTokens.add(counts.getCompletionTokens());
+            flushingRequests.add(-counts.getRequests());
+            flushingTokens.add(-counts.getTokens());
+        }
+
+        //--------------------------------------------------------------------------------
+        /**
+         * Takes over totals read from the database. Totals only grow unless
+         * requests are given back, so an older read that completes late is
+         * ignored.
+         *
+         * @param totals the totals.
+         */
+        //--------------------------------------------------------------------------------
+        private void persisted(ChatUsageDTO totals) {
+            persistedRequests.accumulateAndGet(totals.getRequests(), Math::max);
+            persistedTokens.accumulateAndGet(totals.getTokens(), Math::max);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package benchmarks;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import dao.ChatDialogueWriteBehind;
+import dao.DatabaseExecutionContext;
+import dao.JPAChatDialogueRepository;
+import dto.ChatDialogueDTO;
+import models.ChatDialogue;
+import org.apache.pekko.actor.ActorSystem;
+import org.apache.pekko.stream.Materializer;
+import org.apache.pekko.stream.javadsl.Sink;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import play.db.jpa.DefaultJPAApi;
+import play.db.jpa.DefaultJPAConfig;
+import play.db.jpa.JPAApi;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+//--------------------------------------------------------------------------------
+/**
+ * Measures JPAChatDialogueRepository saves and history reads, through the
+ * database dispatcher, against an embedded H2 database in PostgreSQL mode
+ * preloaded with {@value #USERS} users of {@value #ROWS_PER_USER} dialogues
+ * each. Runs once with the fixed thread pool and once with the virtual thread
+ * executor behind the dispatcher, with more callers than database threads.
+ */
+//--------------------------------------------------------------------------------
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(32)
+public class ChatDialogueRepositoryBenchmark {
+
+    private static final int USERS = 16;
+    private static final int ROWS_PER_USER = 1000;
+    private static final int PAGE_SIZE = 20;
+
+    @Param({"thread-pool-executor", "dao.VirtualThreadExecutorServiceConfigurator"})
+    public String executor;
+
+    private ActorSystem actorSystem;
+    private Materializer materializer;
+    private JPAApi jpaApi;
+    private ChatDialogueWriteBehind writeBehind;
+    private JPAChatDialogueRepository repository;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Config config = ConfigFactory.parseString(
+                "chat.write-behind.enabled = false\n"
+                    + "chat.history.fetch-size = 500\n"
+                    + "database.dispatcher {\n"
+                    + "  executor = \"" + executor + "\"\n"
+                    + "  throughput = 1\n"
+                    + "  thread-pool-executor.fixed-pool-size = 10\n"
+                    + "  virtual-thread-executor.max-concurrency = 10\n"
+                    + "}")
+            .withFallback(ConfigFactory.defaultReference());
+        actorSystem = ActorSystem.create("benchmark", config);
+        materializer = Materializer.matFromSystem(actorSystem);
+        jpaApi = new DefaultJPAApi(DefaultJPAConfig.of("default", "benchmarkPersistenceUnit")).start();
+        writeBehind = new ChatDialogueWriteBehind(
+            jpaApi, actorSystem.dispatcher(), 50, 10_000, Duration.ofMillis(20));
+        repository = new JPAChatDialogueRepository(jpaApi, new DatabaseExecutionContext(actorSystem), writeBehind, config);
+
+        for (int user = 0; user < USERS; user++) {
+            int first = user * ROWS_PER_USER;
+            jpaApi.withTransaction(em -> {
+                for (int i = first; i < first + ROWS_PER_USER; i++) {
+                    ChatDialogue chatDialogue = ChatDialogueWriteBenchmark.newChatDialogue(i);
+                    chatDialogue.setEmail(userEmail(i / ROWS_PER_USER));
+                    em.persist(chatDialogue);
+                }
+                return null;
+            });
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        writeBehind.close();
+        jpaApi.shutdown();
+        actorSystem.terminate();
+    }
+
+    @Benchmark
+    public ChatDialogue save() {
+        ChatDialogue chatDialogue = ChatDialogueWriteBenchmark.newChatDialogue(0);
+        chatDialogue.setEmail("writer@example.com");
+        return repository.saveChatDialogue(chatDialogue).toCompletableFuture().join();
+    }
+
+    @Benchmark
+    public List<ChatDialogueDTO> getAllByUser() {
+        return repository.getAllByUser(randomUser()).runWith(Sink.seq(), materializer).toCompletableFuture().join();
+    }
+
+    @Benchmark
+    public List<ChatDialogueDTO> getFirstPageByUser() {
+        return repository.getPageByUser(randomUser(), null, PAGE_SIZE).toCompletableFuture().join()
+            .collect(Collectors.toList());
+    }
+
+    private static String randomUser() {
+        return userEmail(ThreadLocalRandom.current().nextInt(USERS));
+    }
+
+    private static String userEmail(int user) {
+        return "history-" + user + "@example.com";
+    }
+}
@@ -0,0 +1,94 @@
+package benchmarks;
+
+import dao.ChatDialogueWriteBehind;
+import models.ChatDialogue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import play.db.jpa.DefaultJPAApi;
+import play.db.jpa.DefaultJPAConfig;
+import play.db.jpa.JPAApi;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+//--------------------------------------------------------------------------------
+/**
+ * Compares ChatDialogue insert throughput, in rows per second, of one
+ * transaction per row against the batching write-behind stage. Runs against
+ * an embedded H2 database in PostgreSQL mode with several concurrent writers.
+ */
+//--------------------------------------------------------------------------------
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+public class ChatDialogueWriteBenchmark {
+
+    private static final int ROWS_PER_INVOCATION = 100;
+
+    private JPAApi jpaApi;
+    private ChatDialogueWriteBehind writeBehind;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        jpaApi = new DefaultJPAApi(DefaultJPAConfig.of("default", "benchmarkPersistenceUnit")).start();
+        writeBehind = new ChatDialogueWriteBehind(
+            jpaApi, ForkJoinPool.commonPool(), 50, 10_000, Duration.ofMillis(20));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        writeBehind.close();
+        jpaApi.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS_PER_INVOCATION)
+    public void perRowTransactions() {
+        for (int i = 0; i < ROWS_PER_INVOCATION; i++) {
+            ChatDialogue chatDialogue = newChatDialogue(i);
+            jpaApi.withTransaction(em -> {
+                em.persist(chatDialogue);
+                return chatDialogue;
+            });
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS_PER_INVOCATION)
+    public void writeBehindBatches() {
+        CompletableFuture<?>[] saves = new CompletableFuture<?>[ROWS_PER_INVOCATION];
+        for (int i = 0; i < ROWS_PER_INVOCATION; i++) {
+            saves[i] = writeBehind.enqueue(newChatDialogue(i)).toCompletableFuture();
+        }
+        CompletableFuture.allOf(saves).join();
+    }
+
+    static ChatDialogue newChatDialogue(int i) {
+        ChatDialogue chatDialogue = new ChatDialogue();
+        chatDialogue.setInstruction("You are a helpful assistant.");
+        chatDialogue.setQuestion("Benchmark question number " + i);
+        chatDialogue.setResponse("Benchmark response number " + i + " with a realistic amount of text in it.");
+        chatDialogue.setEmail("benchmark-" + (i % 16) + "@example.com");
+        chatDialogue.setCreatedAt(new Timestamp(System.currentTimeMillis()));
+        return chatDialogue;
+    }
+}
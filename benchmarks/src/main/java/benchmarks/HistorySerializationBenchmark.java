@@ -0,0 +1,65 @@
+package benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import dto.ChatDialogueDTO;
+import models.ChatDialogue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import play.libs.Json;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+//--------------------------------------------------------------------------------
+/**
+ * Measures rendering a user's chat history as the /allQueries response body:
+ * converting the entities to DTOs and serializing them through a JsonNode tree,
+ * as the controller does, compared with writing the DTOs directly.
+ */
+//--------------------------------------------------------------------------------
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistorySerializationBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int historySize;
+
+    private List<ChatDialogue> history;
+
+    @Setup
+    public void setUp() {
+        history = new ArrayList<>(historySize);
+        for (int i = 0; i < historySize; i++) {
+            ChatDialogue chatDialogue = ChatDialogueWriteBenchmark.newChatDialogue(i);
+            chatDialogue.setId((long) i);
+            history.add(chatDialogue);
+        }
+    }
+
+    @Benchmark
+    public byte[] treeModel() throws JsonProcessingException {
+        List<ChatDialogueDTO> dtos = history.stream().map(ChatDialogueDTO::of).collect(Collectors.toList());
+        return Json.mapper().writeValueAsBytes(Json.toJson(dtos));
+    }
+
+    @Benchmark
+    public byte[] directWrite() throws JsonProcessingException {
+        List<ChatDialogueDTO> dtos = history.stream().map(ChatDialogueDTO::of).collect(Collectors.toList());
+        return Json.mapper().writeValueAsBytes(dtos);
+    }
+}
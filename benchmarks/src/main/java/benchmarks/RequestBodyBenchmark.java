@@ -0,0 +1,66 @@
+package benchmarks;
+
+import dto.ChatMessageDTO;
+import org.apache.pekko.util.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import services.ChatRequestBodyWriter;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+//--------------------------------------------------------------------------------
+/**
+ * Compares the streaming ChatRequestBodyWriter against the string
+ * concatenation it replaced. Both produce the UTF-8 bytes handed to the WS
+ * client; run with "-prof gc" to compare allocation rates.
+ */
+//--------------------------------------------------------------------------------
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBodyBenchmark {
+
+    @Param({"64", "2048"})
+    public int questionLength;
+
+    private ChatRequestBodyWriter writer;
+    private String instruction;
+    private String question;
+    private List<ChatMessageDTO> messages;
+
+    @Setup
+    public void setUp() {
+        writer = new ChatRequestBodyWriter("gpt-3.5-turbo", null, null);
+        instruction = "You are a helpful assistant. Answer concisely.";
+        question = "q".repeat(questionLength);
+        messages = List.of(new ChatMessageDTO("system", instruction), new ChatMessageDTO("user", question));
+    }
+
+    @Benchmark
+    public ByteString concatenation() {
+        String body = "{\n" +
+            "  \"model\": \"gpt-3.5-turbo\", \n" +
+            "  \"messages\": [{\"role\": \"system\", \"content\": \"" + instruction + "\"}, \n" +
+            "                {\"role\": \"user\", \"content\": \"" + question + "\"}]\n" +
+            "}";
+        return ByteString.fromString(body);
+    }
+
+    @Benchmark
+    public ByteString streamingWriter() {
+        return writer.write(messages, false, false);
+    }
+}
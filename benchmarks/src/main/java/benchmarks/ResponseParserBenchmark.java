@@ -0,0 +1,67 @@
+package benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import play.libs.Json;
+import services.ChatResponseParser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+//--------------------------------------------------------------------------------
+/**
+ * Measures parsing of ChatGPT API responses: a complete chat completion, as
+ * received by submitQuery, and a single chunk of a streamed one, as received
+ * for every token by streamQuery.
+ */
+//--------------------------------------------------------------------------------
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseParserBenchmark {
+
+    @Param({"256", "4096"})
+    public int responseLength;
+
+    private byte[] completion;
+    private byte[] chunk;
+
+    @Setup
+    public void setUp() {
+        String content = "r".repeat(responseLength);
+        completion = ("{\"id\":\"chatcmpl-1\",\"object\":\"chat.completion\",\"created\":1700000000,"
+            + "\"model\":\"gpt-3.5-turbo\",\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\","
+            + "\"content\":\"" + content + "\"},\"finish_reason\":\"stop\"}],"
+            + "\"usage\":{\"prompt_tokens\":42,\"completion_tokens\":" + responseLength / 4 + ",\"total_tokens\":100}}")
+            .getBytes(StandardCharsets.UTF_8);
+        chunk = ("{\"id\":\"chatcmpl-1\",\"object\":\"chat.completion.chunk\",\"created\":1700000000,"
+            + "\"model\":\"gpt-3.5-turbo\",\"choices\":[{\"index\":0,\"delta\":{\"content\":\" token\"},"
+            + "\"finish_reason\":null}]}")
+            .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String completion() {
+        JsonNode json = Json.parse(completion);
+        return ChatResponseParser.extractContent(json);
+    }
+
+    @Benchmark
+    public String streamChunk() {
+        JsonNode json = Json.parse(chunk);
+        return ChatResponseParser.extractDelta(json);
+    }
+}
@@ -0,0 +1,180 @@
+package benchmarks.load;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+//--------------------------------------------------------------------------------
+/**
+ * Compares the storage size and the write and read throughput of chat
+ * dialogues stored uncompressed, compressed with pglz and compressed with LZ4,
+ * on a running PostgreSQL server. Each variant gets a scratch table shaped like
+ * a ChatDialogue partition, which is filled with generated dialogues, read back
+ * in full three times and dropped again.
+ * <p>
+ * Run with optional key=value arguments:
+ * <pre>
+ * sbt "benchmarks/runMain benchmarks.load.CompressionBenchmark url=jdbc:postgresql://localhost:5870/edutrieum user=postgres password=secret rows=20000"
+ * </pre>
+ * "response-chars" sets the average response length; rows below about 2 kB
+ * are not compressed by any variant. Servers before PostgreSQL 14 only offer
+ * pglz, and servers built without LZ4 skip it.
+ */
+//--------------------------------------------------------------------------------
+public class CompressionBenchmark {
+
+    private static final String[] WORDS = {
+        "the", "a", "to", "of", "and", "in", "is", "you", "that", "for", "it", "with", "as", "can", "this", "on",
+        "request", "response", "database", "query", "index", "table", "server", "client", "cache", "latency",
+        "configure", "example", "function", "value", "returns", "error", "connection", "timeout", "thread",
+        "first", "then", "because", "should", "which", "when", "each", "more", "than", "data", "use", "using"
+    };
+    private static final int BATCH_SIZE = 50;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+        int rows = Integer.parseInt(options.getOrDefault("rows", "20000"));
+        int responseChars = Integer.parseInt(options.getOrDefault("response-chars", "3000"));
+
+        try (Connection connection = DriverManager.getConnection(
+                options.getOrDefault("url", "jdbc:postgresql://localhost:5870/edutrieum"),
+                options.getOrDefault("user", "postgres"),
+                options.getOrDefault("password", ""))) {
+            Map<String, String> variants = new LinkedHashMap<>();
+            variants.put("none", "STORAGE EXTERNAL");
+            List<String> codecs = compressionCodecs(connection);
+            if (codecs.isEmpty()) {
+                variants.put("pglz", "STORAGE EXTENDED");
+            }
+            for (String codec : codecs) {
+                variants.put(codec, "COMPRESSION " + codec);
+            }
+
+            System.out.printf("%-6s %12s %14s %14s%n", "codec", "size (MB)", "inserts/s", "reads/s");
+            for (Map.Entry<String, String> variant : variants.entrySet()) {
+                run(connection, variant.getKey(), variant.getValue(), rows, responseChars);
+            }
+        }
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Lists the compression methods the server can use for a column, which
+     * PostgreSQL only lets columns choose from version 14.
+     *
+     * @param connection the connection.
+     * @return the methods, such as pglz and lz4, or an empty list if columns
+     *         always use pglz.
+     */
+    //--------------------------------------------------------------------------------
+    private static List<String> compressionCodecs(Connection connection) throws Exception {
+        List<String> codecs = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT unnest(enumvals) FROM pg_settings"
+                 + " WHERE name = 'default_toast_compression'")) {
+            while (result.next()) {
+                codecs.add(result.getString(1));
+            }
+        }
+        return codecs;
+    }
+
+    private static void run(Connection connection, String variant, String storage, int rows, int responseChars)
+        throws Exception {
+        String table = "compression_benchmark_" + variant;
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS " + table);
+            statement.execute("CREATE TABLE " + table + " (id BIGINT PRIMARY KEY, email VARCHAR(255) NOT NULL,"
+                + " question TEXT NOT NULL, response TEXT, createdAt TIMESTAMP NOT NULL)");
+            statement.execute("ALTER TABLE " + table + " ALTER COLUMN question SET " + storage
+                + ", ALTER COLUMN response SET " + storage);
+        }
+
+        try {
+            long insertNanos = insert(connection, table, rows, responseChars);
+            long bestReadNanos = Long.MAX_VALUE;
+            for (int pass = 0; pass < 3; pass++) {
+                bestReadNanos = Math.min(bestReadNanos, read(connection, table));
+            }
+            System.out.printf("%-6s %12.1f %14.0f %14.0f%n", variant, size(connection, table) / 1048576.0,
+                rows * 1e9 / insertNanos, rows * 1e9 / bestReadNanos);
+        } finally {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("DROP TABLE IF EXISTS " + table);
+            }
+        }
+    }
+
+    private static long insert(Connection connection, String table, int rows, int responseChars) throws Exception {
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + table
+                + " (id, email, question, response, createdAt) VALUES (?, ?, ?, ?, ?)")) {
+            for (int id = 1; id <= rows; id++) {
+                insert.setLong(1, id);
+                insert.setString(2, "user-" + (id % 100) + "@example.com");
+                insert.setString(3, text(random, 40 + random.nextInt(200)));
+                insert.setString(4, text(random, responseChars / 2 + random.nextInt(responseChars)));
+                insert.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+                insert.addBatch();
+                if (id % BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long read(Connection connection, String table) throws Exception {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        long start = System.nanoTime();
+        long chars = 0;
+        try (Statement statement = connection.createStatement()) {
+            statement.setFetchSize(500);
+            try (ResultSet result = statement.executeQuery("SELECT id, question, response FROM " + table)) {
+                while (result.next()) {
+                    chars += result.getString(2).length() + result.getString(3).length();
+                }
+            }
+        } finally {
+            connection.commit();
+            connection.setAutoCommit(autoCommit);
+        }
+        if (chars == 0) {
+            throw new IllegalStateException("No dialogues read from " + table);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long size(Connection connection, String table) throws Exception {
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT pg_total_relation_size('" + table + "')")) {
+            result.next();
+            return result.getLong(1);
+        }
+    }
+
+    private static String text(Random random, int chars) {
+        StringBuilder text = new StringBuilder(chars + 16);
+        while (text.length() < chars) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            text.append(random.nextInt(12) == 0 ? ". " : " ");
+        }
+        return text.toString();
+    }
+}
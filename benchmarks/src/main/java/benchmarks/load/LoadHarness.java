@@ -0,0 +1,207 @@
+package benchmarks.load;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//--------------------------------------------------------------------------------
+/**
+ * End-to-end load test of a running application. Starts an {@link OpenAiStub},
+ * then drives POST /submitQuery and GET /allQueries from a fixed number of
+ * concurrent clients for a fixed duration each, and prints throughput, error
+ * count and latency percentiles.
+ * <p>
+ * Start the application against the stub, with the response cache disabled so
+ * that every question reaches it:
+ * <pre>
+ * sbt -Dopenai.api.url=http://localhost:9999/v1/chat/completions -Dchat.cache.enabled=false run
+ * </pre>
+ * and run the harness with optional key=value arguments:
+ * <pre>
+ * sbt "benchmarks/runMain benchmarks.load.LoadHarness app=http://localhost:9000 concurrency=32 duration=30"
+ * </pre>
+ * "stub-port" and "stub-latency-ms" take comma-separated lists to start one
+ * stub per port, for exercising the routing across several providers
+ * configured in "openai.providers". "stub-hang-rate" leaves that share of
+ * upstream calls unanswered, and "request-timeout" sends a Request-Timeout
+ * header in seconds, to exercise the upstream timeouts and connection pool.
+ */
+//--------------------------------------------------------------------------------
+public class LoadHarness {
+
+    private static final int USERS = 50;
+
+    private final HttpClient client;
+    private final String app;
+    private final int concurrency;
+    private final Duration duration;
+    private final String requestTimeout;
+
+    private LoadHarness(String app, int concurrency, Duration duration, String requestTimeout) {
+        this.app = app;
+        this.concurrency = concurrency;
+        this.duration = duration;
+        this.requestTimeout = requestTimeout;
+        this.client = HttpClient.newBuilder()
+            .executor(Executors.newFixedThreadPool(concurrency))
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+
+        String[] stubPorts = options.getOrDefault("stub-port", "9999").split(",");
+        String[] stubLatencies = options.getOrDefault("stub-latency-ms", "200").split(",");
+        double stubHangRate = Double.parseDouble(options.getOrDefault("stub-hang-rate", "0"));
+        LoadHarness harness = new LoadHarness(
+            options.getOrDefault("app", "http://localhost:9000"),
+            Integer.parseInt(options.getOrDefault("concurrency", "32")),
+            Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration", "30"))),
+            options.get("request-timeout"));
+
+        List<OpenAiStub> stubs = new ArrayList<>();
+        try {
+            for (int i = 0; i < stubPorts.length; i++) {
+                long stubLatency = Long.parseLong(stubLatencies[Math.min(i, stubLatencies.length - 1)].trim());
+                stubs.add(new OpenAiStub(Integer.parseInt(stubPorts[i].trim()), stubLatency, stubHangRate));
+            }
+            harness.run("submitQuery", harness::submitQuery);
+            harness.run("allQueries", harness::allQueries);
+            for (int i = 0; i < stubs.size(); i++) {
+                System.out.printf("OpenAI stub on port %s served %d requests, left %d hanging, at most %d at a time%n",
+                    stubPorts[i].trim(), stubs.get(i).requests(), stubs.get(i).hung(), stubs.get(i).peakOpen());
+            }
+        } finally {
+            stubs.forEach(OpenAiStub::close);
+        }
+        System.exit(0);
+    }
+
+    private HttpRequest submitQuery(long sequence) {
+        String body = "{\"instruction\":\"Answer briefly.\",\"question\":\"Load test question " + sequence + "\"}";
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(app + "/submitQuery"))
+            .header("Content-Type", "application/json")
+            .header("Cookie", "email=" + userEmail(sequence))
+            .timeout(Duration.ofSeconds(120))
+            .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (requestTimeout != null) {
+            request.header("Request-Timeout", requestTimeout);
+        }
+        return request.build();
+    }
+
+    private HttpRequest allQueries(long sequence) {
+        return HttpRequest.newBuilder(URI.create(app + "/allQueries"))
+            .header("Cookie", "email=" + userEmail(sequence))
+            .timeout(Duration.ofSeconds(60))
+            .GET()
+            .build();
+    }
+
+    private static String userEmail(long sequence) {
+        return "load-" + (sequence % USERS) + "@example.com";
+    }
+
+    private void run(String scenario, RequestFactory requests) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        AtomicLong sequence = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        long deadline = System.nanoTime() + duration.toNanos();
+
+        Future<?>[] results = new Future<?>[concurrency];
+        LatencyRecorder[] recorders = new LatencyRecorder[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            LatencyRecorder recorder = recorders[i] = new LatencyRecorder();
+            results[i] = workers.submit(() -> {
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    try {
+                        HttpResponse<Void> response = client.send(
+                            requests.create(sequence.getAndIncrement()), HttpResponse.BodyHandlers.discarding());
+                        if (response.statusCode() != 200) {
+                            errors.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                    recorder.record(System.nanoTime() - start);
+                }
+            });
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+
+        long[] latencies = LatencyRecorder.merge(recorders);
+        Arrays.sort(latencies);
+        System.out.printf("%-12s %8d requests %8.1f req/s %6d errors   p50 %7.1f ms   p95 %7.1f ms   p99 %7.1f ms%n",
+            scenario, latencies.length, latencies.length / (double) duration.toSeconds(), errors.get(),
+            percentile(latencies, 0.50), percentile(latencies, 0.95), percentile(latencies, 0.99));
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(index, 0)] / 1_000_000.0;
+    }
+
+    @FunctionalInterface
+    private interface RequestFactory {
+        HttpRequest create(long sequence);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Latencies recorded by one client thread.
+     */
+    //--------------------------------------------------------------------------------
+    private static final class LatencyRecorder {
+        private long[] latencies = new long[1024];
+        private int count;
+
+        void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+
+        static long[] merge(LatencyRecorder[] recorders) {
+            int total = 0;
+            for (LatencyRecorder recorder : recorders) {
+                total += recorder.count;
+            }
+            long[] merged = new long[total];
+            int offset = 0;
+            for (LatencyRecorder recorder : recorders) {
+                System.arraycopy(recorder.latencies, 0, merged, offset, recorder.count);
+                offset += recorder.count;
+            }
+            return merged;
+        }
+    }
+}
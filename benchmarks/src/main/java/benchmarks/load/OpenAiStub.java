@@ -0,0 +1,156 @@
+package benchmarks.load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//--------------------------------------------------------------------------------
+/**
+ * Minimal stand-in for the OpenAI chat completions endpoint. Answers every
+ * request with a fixed completion after a configurable latency, as a single
+ * JSON document or, for streaming requests, as server-sent events. A share of
+ * requests can be left hanging instead, to see how the application copes
+ * with an endpoint that stops answering. Point the
+ * application at it with
+ * {@code -Dopenai.api.url=http://localhost:<port>/v1/chat/completions}.
+ */
+//--------------------------------------------------------------------------------
+public class OpenAiStub implements AutoCloseable {
+
+    private static final String CONTENT = "This is a canned answer from the OpenAI stub used for load testing.";
+    private static final String COMPLETION = "{\"id\":\"chatcmpl-stub\",\"object\":\"chat.completion\","
+        + "\"model\":\"stub\",\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\""
+        + CONTENT + "\"},\"finish_reason\":\"stop\"}],"
+        + "\"usage\":{\"prompt_tokens\":20,\"completion_tokens\":16,\"total_tokens\":36}}";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private static final long HANG_MILLIS = 10 * 60 * 1000;
+
+    private final long latencyMillis;
+    private final double hangRate;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hung = new AtomicLong();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger peakOpen = new AtomicInteger();
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Starts the stub.
+     *
+     * @param port          the port to listen on.
+     * @param latencyMillis the delay before each response is sent.
+     * @throws IOException if the port cannot be bound.
+     */
+    //--------------------------------------------------------------------------------
+    public OpenAiStub(int port, long latencyMillis) throws IOException {
+        this(port, latencyMillis, 0);
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Starts the stub with some requests left hanging for ten minutes.
+     *
+     * @param port          the port to listen on.
+     * @param latencyMillis the delay before each response is sent.
+     * @param hangRate      the share of requests, from 0 to 1, that get no
+     *                      timely response.
+     * @throws IOException if the port cannot be bound.
+     */
+    //--------------------------------------------------------------------------------
+    public OpenAiStub(int port, long latencyMillis, double hangRate) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.hangRate = hangRate;
+        this.executor = Executors.newCachedThreadPool();
+        this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+        this.server.createContext("/v1/chat/completions", this::handle);
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    public long hung() {
+        return hung.get();
+    }
+
+    //--------------------------------------------------------------------------------
+    /**
+     * Returns the most requests that were being served at the same time, which
+     * is bounded by the application's connection pool.
+     *
+     * @return the peak number of open requests.
+     */
+    //--------------------------------------------------------------------------------
+    public int peakOpen() {
+        return peakOpen.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        peakOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+        try {
+            respond(exchange);
+        } finally {
+            open.decrementAndGet();
+        }
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        String body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        boolean hang = ThreadLocalRandom.current().nextDouble() < hangRate;
+        if (hang) {
+            hung.incrementAndGet();
+        }
+        try {
+            Thread.sleep(hang ? HANG_MILLIS : latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+            return;
+        }
+
+        boolean stream = body.replace(" ", "").contains("\"stream\":true");
+        byte[] response = (stream ? streamedCompletion() : COMPLETION).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", stream ? "text/event-stream" : "application/json");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private static String streamedCompletion() {
+        StringBuilder events = new StringBuilder();
+        for (String token : CONTENT.split("(?<= )")) {
+            events.append("data: {\"object\":\"chat.completion.chunk\",\"choices\":[{\"index\":0,\"delta\":{\"content\":\"")
+                .append(token)
+                .append("\"}}]}\n\n");
+        }
+        events.append("data: {\"object\":\"chat.completion.chunk\",\"choices\":[],"
+            + "\"usage\":{\"prompt_tokens\":20,\"completion_tokens\":16,\"total_tokens\":36}}\n\n");
+        events.append("data: [DONE]\n\n");
+        return events.toString();
+    }
+}
@@ -0,0 +1,3 @@
+-- History indexes that the evolutions create and hbm2ddl does not know about
+CREATE INDEX idx_chat_dialogue_email_created_at_id ON ChatDialogue (email, createdAt, id);
+CREATE INDEX idx_chat_dialogue_thread_created_at_id ON ChatDialogue (threadId, createdAt, id);
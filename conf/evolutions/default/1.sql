@@ -0,0 +1,24 @@
+# Baseline schema: what Hibernate created with hbm2ddl.auto=update before the
+# schema was managed by evolutions. Every statement is guarded by IF NOT
+# EXISTS, so on a database Hibernate created this evolution changes nothing and
+# is only recorded as applied. Evolutions 2 to 7 add what later versions had
+# Hibernate add, guarded the same way.
+
+# --- !Ups
+
+CREATE SEQUENCE IF NOT EXISTS hibernate_sequence START 1 INCREMENT 1;
+
+CREATE TABLE IF NOT EXISTS ChatDialogue (
+    id BIGINT NOT NULL,
+    createdAt TIMESTAMP NOT NULL,
+    email VARCHAR(255) NOT NULL,
+    instruction VARCHAR(255) NOT NULL,
+    question TEXT NOT NULL,
+    response TEXT,
+    PRIMARY KEY (id)
+);
+
+# --- !Downs
+
+DROP TABLE IF EXISTS ChatDialogue;
+DROP SEQUENCE IF EXISTS hibernate_sequence;
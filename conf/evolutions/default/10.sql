@@ -0,0 +1,29 @@
+# Compresses large questions and responses with LZ4 instead of pglz, on
+# PostgreSQL 14+ servers built with LZ4. PostgreSQL only compresses a value
+# once its row exceeds about 2 kB (TOAST_TUPLE_THRESHOLD), so shorter rows stay
+# uncompressed either way. Existing rows keep their compression until
+# ChatPartitionMaintenance rewrites them.
+
+# --- !Ups
+
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM pg_settings WHERE name = 'default_toast_compression' AND 'lz4' = ANY(enumvals)) THEN
+        ALTER TABLE ChatDialogue ALTER COLUMN question SET COMPRESSION lz4;;
+        ALTER TABLE ChatDialogue ALTER COLUMN response SET COMPRESSION lz4;;
+        ALTER TABLE ChatDialogueArchive ALTER COLUMN dialogues SET COMPRESSION lz4;;
+    END IF;;
+END
+$$;
+
+# --- !Downs
+
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM pg_settings WHERE name = 'default_toast_compression') THEN
+        ALTER TABLE ChatDialogue ALTER COLUMN question SET COMPRESSION pglz;;
+        ALTER TABLE ChatDialogue ALTER COLUMN response SET COMPRESSION pglz;;
+        ALTER TABLE ChatDialogueArchive ALTER COLUMN dialogues SET COMPRESSION pglz;;
+    END IF;;
+END
+$$;
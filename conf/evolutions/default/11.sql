@@ -0,0 +1,25 @@
+# Token usage: the prompt and completion tokens the API billed for each
+# dialogue, and each user's requests and tokens per quota window, which
+# UsageQuotas adds to from every instance.
+
+# --- !Ups
+
+ALTER TABLE ChatDialogue ADD COLUMN promptTokens INTEGER, ADD COLUMN completionTokens INTEGER;
+
+CREATE TABLE ChatUsage (
+    email VARCHAR(255) NOT NULL,
+    windowStart TIMESTAMP NOT NULL,
+    requests BIGINT NOT NULL DEFAULT 0,
+    promptTokens BIGINT NOT NULL DEFAULT 0,
+    completionTokens BIGINT NOT NULL DEFAULT 0,
+    updatedAt TIMESTAMP NOT NULL DEFAULT now(),
+    PRIMARY KEY (email, windowStart)
+);
+
+CREATE INDEX idx_chat_usage_window_start ON ChatUsage (windowStart);
+
+# --- !Downs
+
+DROP TABLE ChatUsage;
+
+ALTER TABLE ChatDialogue DROP COLUMN promptTokens, DROP COLUMN completionTokens;
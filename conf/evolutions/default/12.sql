@@ -0,0 +1,13 @@
+# Months whose partition ChatPartitionMaintenance has rewritten with LZ4
+# compression, so that no instance scans them again.
+
+# --- !Ups
+
+CREATE TABLE ChatPartitionRecompressed (
+    period DATE NOT NULL PRIMARY KEY,
+    recompressedAt TIMESTAMP NOT NULL DEFAULT now()
+);
+
+# --- !Downs
+
+DROP TABLE ChatPartitionRecompressed;
@@ -0,0 +1,17 @@
+# Marks the dialogues the semantic cache may serve again: complete answers
+# received from the API to questions asked without earlier turns. The cache
+# catches up from these rows alone, by creation time. Adding a column with a
+# constant default does not rewrite the table; dialogues saved before are not
+# marked.
+
+# --- !Ups
+
+ALTER TABLE ChatDialogue ADD COLUMN indexable BOOLEAN NOT NULL DEFAULT false;
+
+CREATE INDEX idx_chat_dialogue_indexable_created_at_id ON ChatDialogue (createdAt, id) WHERE indexable;
+
+# --- !Downs
+
+DROP INDEX idx_chat_dialogue_indexable_created_at_id;
+
+ALTER TABLE ChatDialogue DROP COLUMN indexable;
@@ -0,0 +1,18 @@
+# Queues a job once per user and idempotency key, so that a retried
+# submission gets the job queued by the first one. Duplicates queued before
+# are dropped, keeping the earliest job of each key. Jobs without a key are
+# not affected, since NULLs are distinct in a unique index.
+
+# --- !Ups
+
+DELETE FROM ChatJob j
+USING ChatJob earlier
+WHERE j.email = earlier.email
+  AND j.idempotencyKey = earlier.idempotencyKey
+  AND j.id > earlier.id;
+
+CREATE UNIQUE INDEX idx_chat_job_email_idempotency_key ON ChatJob (email, idempotencyKey);
+
+# --- !Downs
+
+DROP INDEX idx_chat_job_email_idempotency_key;
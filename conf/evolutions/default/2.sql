@@ -0,0 +1,10 @@
+# Index for reading a user's history in (createdAt, id) order, both the keyset
+# pages and the full history.
+
+# --- !Ups
+
+CREATE INDEX IF NOT EXISTS idx_chat_dialogue_email_created_at_id ON ChatDialogue (email, createdAt, id);
+
+# --- !Downs
+
+DROP INDEX IF EXISTS idx_chat_dialogue_email_created_at_id;
@@ -0,0 +1,16 @@
+# ChatDialogue ids come from a sequence that hands out blocks of 50, so that
+# inserts can be batched. The sequence is moved past the ids already taken from
+# hibernate_sequence, and never backwards on a database where it already
+# exists.
+
+# --- !Ups
+
+CREATE SEQUENCE IF NOT EXISTS chat_dialogue_seq START 1 INCREMENT 50;
+
+SELECT setval('chat_dialogue_seq', GREATEST(
+    (SELECT last_value FROM chat_dialogue_seq),
+    (SELECT COALESCE(MAX(id), 0) + 50 FROM ChatDialogue)));
+
+# --- !Downs
+
+DROP SEQUENCE IF EXISTS chat_dialogue_seq;
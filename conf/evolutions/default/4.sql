@@ -0,0 +1,14 @@
+# Conversation threads: the recent turns of a thread are read newest first
+# along the (threadId, createdAt, id) index.
+
+# --- !Ups
+
+ALTER TABLE ChatDialogue ADD COLUMN IF NOT EXISTS threadId VARCHAR(64);
+
+CREATE INDEX IF NOT EXISTS idx_chat_dialogue_thread_created_at_id ON ChatDialogue (threadId, createdAt, id);
+
+# --- !Downs
+
+DROP INDEX IF EXISTS idx_chat_dialogue_thread_created_at_id;
+
+ALTER TABLE ChatDialogue DROP COLUMN IF EXISTS threadId;
@@ -0,0 +1,16 @@
+# Full-text search over questions (weight A) and responses (weight B). Adding a
+# stored generated column rewrites the table.
+
+# --- !Ups
+
+ALTER TABLE ChatDialogue ADD COLUMN IF NOT EXISTS search_vector tsvector GENERATED ALWAYS AS (
+    setweight(to_tsvector('english', coalesce(question, '')), 'A') ||
+    setweight(to_tsvector('english', coalesce(response, '')), 'B')) STORED;
+
+CREATE INDEX IF NOT EXISTS idx_chat_dialogue_search_vector ON ChatDialogue USING GIN (search_vector);
+
+# --- !Downs
+
+DROP INDEX IF EXISTS idx_chat_dialogue_search_vector;
+
+ALTER TABLE ChatDialogue DROP COLUMN IF EXISTS search_vector;
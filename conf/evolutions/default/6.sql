@@ -0,0 +1,15 @@
+# Idempotency keys: a user's key identifies one dialogue. Dialogues without a
+# key are not affected, since NULLs are distinct in a unique index.
+
+# --- !Ups
+
+ALTER TABLE ChatDialogue ADD COLUMN IF NOT EXISTS idempotencyKey VARCHAR(64);
+
+CREATE UNIQUE INDEX IF NOT EXISTS uk_chat_dialogue_email_idempotency_key ON ChatDialogue (email, idempotencyKey);
+
+# --- !Downs
+
+ALTER TABLE ChatDialogue DROP CONSTRAINT IF EXISTS uk_chat_dialogue_email_idempotency_key;
+DROP INDEX IF EXISTS uk_chat_dialogue_email_idempotency_key;
+
+ALTER TABLE ChatDialogue DROP COLUMN IF EXISTS idempotencyKey;
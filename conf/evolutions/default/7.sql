@@ -0,0 +1,29 @@
+# Queue of asynchronous chat jobs, claimed by status in id order.
+
+# --- !Ups
+
+CREATE SEQUENCE IF NOT EXISTS chat_job_seq START 1 INCREMENT 1;
+
+CREATE TABLE IF NOT EXISTS ChatJob (
+    id BIGINT NOT NULL,
+    email VARCHAR(255) NOT NULL,
+    instruction VARCHAR(255) NOT NULL,
+    question TEXT NOT NULL,
+    threadId VARCHAR(64),
+    idempotencyKey VARCHAR(64),
+    status VARCHAR(16) NOT NULL,
+    attempts INTEGER NOT NULL,
+    dialogueId BIGINT,
+    error TEXT,
+    createdAt TIMESTAMP NOT NULL,
+    leaseExpiresAt TIMESTAMP,
+    finishedAt TIMESTAMP,
+    PRIMARY KEY (id)
+);
+
+CREATE INDEX IF NOT EXISTS idx_chat_job_status_id ON ChatJob (status, id);
+
+# --- !Downs
+
+DROP TABLE IF EXISTS ChatJob;
+DROP SEQUENCE IF EXISTS chat_job_seq;
@@ -0,0 +1,109 @@
+# Range-partitions ChatDialogue by month of createdAt. Existing rows are copied
+# into monthly partitions, which takes a while on a large history, so apply
+# this evolution during maintenance.
+#
+# A unique index on a partitioned table has to include the partition key, so
+# idempotency keys are claimed in ChatDialogueKey by a trigger instead; a
+# duplicate key fails the insert as the unique index did before.
+
+# --- !Ups
+
+ALTER TABLE ChatDialogue RENAME TO ChatDialogue_unpartitioned;
+ALTER TABLE ChatDialogue_unpartitioned DROP CONSTRAINT IF EXISTS chatdialogue_pkey;
+ALTER TABLE ChatDialogue_unpartitioned DROP CONSTRAINT IF EXISTS uk_chat_dialogue_email_idempotency_key;
+DROP INDEX IF EXISTS uk_chat_dialogue_email_idempotency_key;
+DROP INDEX IF EXISTS idx_chat_dialogue_email_created_at_id;
+DROP INDEX IF EXISTS idx_chat_dialogue_thread_created_at_id;
+DROP INDEX IF EXISTS idx_chat_dialogue_search_vector;
+
+CREATE TABLE ChatDialogue (
+    id BIGINT NOT NULL,
+    instruction VARCHAR(255) NOT NULL,
+    question TEXT NOT NULL,
+    response TEXT,
+    createdAt TIMESTAMP NOT NULL,
+    email VARCHAR(255) NOT NULL,
+    threadId VARCHAR(64),
+    idempotencyKey VARCHAR(64),
+    search_vector tsvector GENERATED ALWAYS AS (
+        setweight(to_tsvector('english', coalesce(question, '')), 'A') ||
+        setweight(to_tsvector('english', coalesce(response, '')), 'B')) STORED,
+    PRIMARY KEY (id, createdAt)
+) PARTITION BY RANGE (createdAt);
+
+CREATE INDEX idx_chat_dialogue_email_created_at_id ON ChatDialogue (email, createdAt, id);
+CREATE INDEX idx_chat_dialogue_thread_created_at_id ON ChatDialogue (threadId, createdAt, id);
+CREATE INDEX idx_chat_dialogue_email_idempotency_key ON ChatDialogue (email, idempotencyKey) WHERE idempotencyKey IS NOT NULL;
+CREATE INDEX idx_chat_dialogue_search_vector ON ChatDialogue USING GIN (search_vector);
+
+CREATE TABLE ChatDialogue_default PARTITION OF ChatDialogue DEFAULT;
+
+CREATE TABLE ChatDialogueKey (
+    email VARCHAR(255) NOT NULL,
+    idempotencyKey VARCHAR(64) NOT NULL,
+    dialogueId BIGINT NOT NULL,
+    createdAt TIMESTAMP NOT NULL,
+    PRIMARY KEY (email, idempotencyKey)
+);
+
+CREATE INDEX idx_chat_dialogue_key_created_at ON ChatDialogueKey (createdAt);
+
+CREATE FUNCTION chat_dialogue_claim_key() RETURNS trigger AS $$
+BEGIN
+    INSERT INTO ChatDialogueKey (email, idempotencyKey, dialogueId, createdAt)
+    VALUES (NEW.email, NEW.idempotencyKey, NEW.id, NEW.createdAt);;
+    RETURN NULL;;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER chat_dialogue_claim_key AFTER INSERT ON ChatDialogue
+    FOR EACH ROW WHEN (NEW.idempotencyKey IS NOT NULL) EXECUTE FUNCTION chat_dialogue_claim_key();
+
+DO $$
+DECLARE
+    partition_month DATE;;
+BEGIN
+    partition_month := date_trunc('month', coalesce((SELECT min(createdAt) FROM ChatDialogue_unpartitioned), now()));;
+    WHILE partition_month <= date_trunc('month', now()) + interval '2 months' LOOP
+        EXECUTE format('CREATE TABLE %I PARTITION OF ChatDialogue FOR VALUES FROM (%L) TO (%L)',
+            'chatdialogue_y' || to_char(partition_month, 'YYYY') || 'm' || to_char(partition_month, 'MM'),
+            partition_month, partition_month + interval '1 month');;
+        partition_month := partition_month + interval '1 month';;
+    END LOOP;;
+END
+$$;
+
+INSERT INTO ChatDialogue (id, instruction, question, response, createdAt, email, threadId, idempotencyKey)
+SELECT id, instruction, question, response, createdAt, email, threadId, idempotencyKey FROM ChatDialogue_unpartitioned;
+
+DROP TABLE ChatDialogue_unpartitioned;
+
+# --- !Downs
+
+CREATE TABLE ChatDialogue_unpartitioned (
+    id BIGINT NOT NULL,
+    instruction VARCHAR(255) NOT NULL,
+    question TEXT NOT NULL,
+    response TEXT,
+    createdAt TIMESTAMP NOT NULL,
+    email VARCHAR(255) NOT NULL,
+    threadId VARCHAR(64),
+    idempotencyKey VARCHAR(64),
+    search_vector tsvector GENERATED ALWAYS AS (
+        setweight(to_tsvector('english', coalesce(question, '')), 'A') ||
+        setweight(to_tsvector('english', coalesce(response, '')), 'B')) STORED
+);
+
+INSERT INTO ChatDialogue_unpartitioned (id, instruction, question, response, createdAt, email, threadId, idempotencyKey)
+SELECT id, instruction, question, response, createdAt, email, threadId, idempotencyKey FROM ChatDialogue;
+
+DROP TABLE ChatDialogue;
+DROP FUNCTION chat_dialogue_claim_key();
+DROP TABLE ChatDialogueKey;
+
+ALTER TABLE ChatDialogue_unpartitioned RENAME TO ChatDialogue;
+ALTER TABLE ChatDialogue ADD PRIMARY KEY (id);
+CREATE INDEX idx_chat_dialogue_email_created_at_id ON ChatDialogue (email, createdAt, id);
+CREATE INDEX idx_chat_dialogue_thread_created_at_id ON ChatDialogue (threadId, createdAt, id);
+CREATE UNIQUE INDEX uk_chat_dialogue_email_idempotency_key ON ChatDialogue (email, idempotencyKey);
+CREATE INDEX idx_chat_dialogue_search_vector ON ChatDialogue USING GIN (search_vector);
@@ -0,0 +1,18 @@
+# Archive of ChatDialogue partitions past the online retention. Each row holds
+# one user's dialogues of one month as a JSON array, which PostgreSQL
+# compresses out of line.
+
+# --- !Ups
+
+CREATE TABLE ChatDialogueArchive (
+    period DATE NOT NULL,
+    email VARCHAR(255) NOT NULL,
+    dialogueCount INTEGER NOT NULL,
+    dialogues TEXT NOT NULL,
+    archivedAt TIMESTAMP NOT NULL DEFAULT now(),
+    PRIMARY KEY (email, period)
+);
+
+# --- !Downs
+
+DROP TABLE ChatDialogueArchive;
@@ -38,6 +38,176 @@ function appendMessage(sender, message) {
   chatBox.scrollTop = chatBox.scrollHeight;
 }
 
+function createBotMessage() {
+  const chatBox = document.getElementById('chat-box');
+  const messageElem = document.createElement('div');
+  messageElem.className = 'message bot';
+  chatBox.appendChild(messageElem);
+  return messageElem;
+}
+
+function newIdempotencyKey() {
+  return window.crypto && crypto.randomUUID
+    ? crypto.randomUUID()
+    : Date.now().toString(36) + Math.random().toString(36).slice(2);
+}
+
+function streamMessage(data, idempotencyKey) {
+  const chatBox = document.getElementById('chat-box');
+  const messageElem = createBotMessage();
+  const decoder = new TextDecoder();
+  let buffer = '';
+
+  function handleEvent(rawEvent) {
+    let eventName = 'message';
+    let eventData = '';
+    rawEvent.split('\n').forEach(line => {
+      if (line.startsWith('event:')) {
+        eventName = line.substring(6).trim();
+      } else if (line.startsWith('data:')) {
+        eventData += line.substring(5).trim();
+      }
+    });
+    if (eventName === 'message' && eventData) {
+      messageElem.textContent += JSON.parse(eventData).token;
+      chatBox.scrollTop = chatBox.scrollHeight;
+    }
+  }
+
+  return fetch('/streamQuery', {
+    method: 'POST',
+    headers: { 'Content-Type': 'application/json', 'Idempotency-Key': idempotencyKey },
+    body: JSON.stringify(data),
+  }).then(response => {
+    if (!response.ok || !response.body) {
+      throw new Error('Stream request failed with status ' + response.status);
+    }
+    const reader = response.body.getReader();
+
+    function read() {
+      return reader.read().then(({ done, value }) => {
+        if (done) return;
+        buffer += decoder.decode(value, { stream: true });
+        let boundary = buffer.indexOf('\n\n');
+        while (boundary !== -1) {
+          handleEvent(buffer.substring(0, boundary));
+          buffer = buffer.substring(boundary + 2);
+          boundary = buffer.indexOf('\n\n');
+        }
+        return read();
+      });
+    }
+    return read();
+  }).catch(error => {
+    console.log(error);
+    if (!messageElem.textContent) {
+      messageElem.textContent = 'Error: Could not fetch response';
+    }
+  });
+}
+
+function getThreadId() {
+  let threadId = sessionStorage.getItem('chat-thread-id');
+  if (!threadId) {
+    threadId = newIdempotencyKey();
+    sessionStorage.setItem('chat-thread-id', threadId);
+  }
+  return threadId;
+}
+
+const SOCKET_PING_INTERVAL = 30000;
+const SOCKET_MAX_RETRY_DELAY = 30000;
+let chatSocket = null;
+let socketRetryDelay = 1000;
+let socketMessageId = 0;
+const socketMessages = {};
+const renderedDialogues = new Set();
+// Idempotency keys of the messages sent from this page, whose answers are shown as they arrive
+const ownIdempotencyKeys = new Set();
+
+function connectChatSocket() {
+  const protocol = window.location.protocol === 'https:' ? 'wss://' : 'ws://';
+  const socket = new WebSocket(protocol + window.location.host + '/chatSocket');
+  let pingTimer = null;
+
+  socket.onopen = () => {
+    chatSocket = socket;
+    socketRetryDelay = 1000;
+    pingTimer = setInterval(() => socket.send(JSON.stringify({ type: 'ping' })), SOCKET_PING_INTERVAL);
+  };
+  socket.onmessage = event => handleSocketFrame(JSON.parse(event.data));
+  socket.onclose = () => {
+    clearInterval(pingTimer);
+    if (chatSocket === socket) {
+      chatSocket = null;
+    }
+    Object.keys(socketMessages).forEach(id => {
+      if (!socketMessages[id].elem.textContent) {
+        socketMessages[id].elem.textContent = 'Error: Could not fetch response';
+      }
+      delete socketMessages[id];
+    });
+    if (historyLoading && historyInitialized) {
+      historyLoading = false;
+    }
+    if (!historyInitialized) {
+      loadPreviousQueries();
+    }
+    setTimeout(connectChatSocket, socketRetryDelay);
+    socketRetryDelay = Math.min(socketRetryDelay * 2, SOCKET_MAX_RETRY_DELAY);
+  };
+}
+
+function handleSocketFrame(frame) {
+  const chatBox = document.getElementById('chat-box');
+  const pending = socketMessages[frame.id];
+
+  switch (frame.type) {
+    case 'history':
+      // The newest page is sent again on every reconnect; only the first one is shown.
+      if (!historyInitialized || historyLoading) {
+        renderHistoryPage(frame);
+        historyLoading = false;
+      }
+      break;
+    case 'token':
+      if (pending) {
+        pending.elem.textContent += frame.token;
+        chatBox.scrollTop = chatBox.scrollHeight;
+      }
+      break;
+    case 'done':
+      renderedDialogues.add(frame.dialogue.id);
+      delete socketMessages[frame.id];
+      break;
+    case 'saved': {
+      const dialogue = frame.dialogue;
+      const ownMessage = frame.idempotencyKey && ownIdempotencyKeys.delete(frame.idempotencyKey);
+      if (!renderedDialogues.has(dialogue.id) && !ownMessage) {
+        appendMessage('user', dialogue.question);
+        appendMessage('bot', dialogue.response);
+      }
+      renderedDialogues.add(dialogue.id);
+      break;
+    }
+    case 'error':
+      if (pending) {
+        pending.elem.textContent = 'Error: ' + frame.message;
+        delete socketMessages[frame.id];
+      } else {
+        console.log(frame.message);
+        historyLoading = false;
+      }
+      break;
+  }
+}
+
+function sendOverSocket(data, idempotencyKey) {
+  const id = String(++socketMessageId);
+  socketMessages[id] = { elem: createBotMessage() };
+  chatSocket.send(JSON.stringify(Object.assign({ type: 'send', id: id, idempotencyKey: idempotencyKey }, data)));
+}
+
 function sendMessage() {
   const userInput = document.getElementById('user-input').value;
   const userInstruction = document.getElementById('user-instruction').value;
@@ -48,16 +218,25 @@ function sendMessage() {
   const data = {
     instruction: userInstruction,
     question: userInput,
+    threadId: getThreadId(),
   };
+  const idempotencyKey = newIdempotencyKey();
+  ownIdempotencyKeys.add(idempotencyKey);
 
-  axios.post('/submitQuery', data)
-    .then(response => {
-      typeMessage(response.data.response);
-    })
-    .catch(error => {
-      console.log(error);
-      appendMessage('bot', 'Error: Could not fetch response');
-    });
+  if (chatSocket) {
+    sendOverSocket(data, idempotencyKey);
+  } else if (window.ReadableStream && window.TextDecoder) {
+    streamMessage(data, idempotencyKey);
+  } else {
+    axios.post('/submitQuery', data, { headers: { 'Idempotency-Key': idempotencyKey } })
+      .then(response => {
+        typeMessage(response.data.response);
+      })
+      .catch(error => {
+        console.log(error);
+        appendMessage('bot', 'Error: Could not fetch response');
+      });
+  }
 
   document.getElementById('user-input').value = '';
   document.getElementById('user-instruction').value = '';
@@ -65,21 +244,76 @@ function sendMessage() {
   autoGrow(document.getElementById('user-instruction'));
 }
 
+const HISTORY_PAGE_SIZE = 20;
+let historyCursor = null;
+let historyExhausted = false;
+let historyLoading = false;
+let historyInitialized = false;
+
+function createMessage(sender, message) {
+  const messageElem = document.createElement('div');
+  messageElem.className = sender === 'user' ? 'message user' : 'message bot';
+  messageElem.textContent = message;
+  return messageElem;
+}
+
+function renderHistoryPage(page) {
+  const chatBox = document.getElementById('chat-box');
+  const isFirstPage = !historyInitialized;
+  const previousHeight = chatBox.scrollHeight;
+  const fragment = document.createDocumentFragment();
+
+  page.items.slice().reverse().forEach(query => {
+    renderedDialogues.add(query.id);
+    fragment.appendChild(createMessage('user', query.question));
+    fragment.appendChild(createMessage('bot', query.response));
+  });
+  chatBox.insertBefore(fragment, chatBox.firstChild);
+
+  if (isFirstPage) {
+    chatBox.scrollTop = chatBox.scrollHeight;
+  } else {
+    chatBox.scrollTop += chatBox.scrollHeight - previousHeight;
+  }
+
+  historyInitialized = true;
+  historyCursor = page.nextCursor;
+  historyExhausted = !page.nextCursor;
+}
+
 function loadPreviousQueries() {
-  axios.get('/allQueries')
+  if (historyLoading || historyExhausted) return;
+  historyLoading = true;
+
+  if (chatSocket && historyInitialized) {
+    chatSocket.send(JSON.stringify({ type: 'history', before: historyCursor }));
+    return;
+  }
+
+  const params = { limit: HISTORY_PAGE_SIZE };
+  if (historyCursor) {
+    params.before = historyCursor;
+  }
+
+  axios.get('/allQueries', { params: params })
     .then(response => {
-      const queries = response.data;
-      queries.forEach(query => {
-        appendMessage('user', query.question);
-        appendMessage('bot', query.response);
-      });
+      renderHistoryPage(response.data);
     })
     .catch(error => {
       console.log(error);
       appendMessage('bot', 'Error fetching previous chat history.');
+    })
+    .finally(() => {
+      historyLoading = false;
     });
 }
 
+function onChatBoxScroll(event) {
+  if (event.target.scrollTop < 50) {
+    loadPreviousQueries();
+  }
+}
+
 function logout() {
   axios.get('/logout')
     .then(response => {
@@ -91,7 +325,12 @@ function logout() {
 }
 
 document.addEventListener("DOMContentLoaded", function() {
-  loadPreviousQueries();
+  if (window.WebSocket) {
+    connectChatSocket();
+  } else {
+    loadPreviousQueries();
+  }
+  document.getElementById('chat-box').addEventListener('scroll', onChatBoxScroll);
   autoGrow(document.getElementById('user-instruction'));
   autoGrow2(document.getElementById('user-input'));
 });
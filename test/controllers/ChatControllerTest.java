@@ -0,0 +1,104 @@
+package controllers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import dto.ChatDialogueDTO;
+import dto.ChatQueryDTO;
+import org.apache.pekko.actor.ActorSystem;
+import org.apache.pekko.stream.Materializer;
+import org.apache.pekko.stream.javadsl.Sink;
+import org.apache.pekko.stream.javadsl.Source;
+import org.apache.pekko.util.ByteString;
+import org.junit.Test;
+import play.libs.Json;
+import play.mvc.Http;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChatControllerTest {
+
+    @Test
+    public void testETagMatchesWeakly() {
+        assertTrue(ChatController.matchesETag("W/\"3-1a-k2\"", "W/\"3-1a-k2\""));
+        assertTrue(ChatController.matchesETag("\"3-1a-k2\"", "W/\"3-1a-k2\""));
+    }
+
+    @Test
+    public void testETagMatchesAnyListedTagOrWildcard() {
+        assertTrue(ChatController.matchesETag("W/\"2-19-k1\", W/\"3-1a-k2\"", "W/\"3-1a-k2\""));
+        assertTrue(ChatController.matchesETag("*", "W/\"3-1a-k2\""));
+    }
+
+    @Test
+    public void testStaleETagDoesNotMatch() {
+        assertFalse(ChatController.matchesETag("W/\"2-19-k1\"", "W/\"3-1a-k2\""));
+    }
+
+    @Test
+    public void testRequestTimeoutHeaderShortensDeadline() {
+        Instant before = Instant.now();
+        Instant deadline = ChatController.deadline(new Http.RequestBuilder().header("Request-Timeout", "2.5").build(),
+            Duration.ofSeconds(90));
+
+        assertFalse(deadline.isBefore(before.plusMillis(2500)));
+        assertTrue(deadline.isBefore(before.plusSeconds(10)));
+    }
+
+    @Test
+    public void testRequestTimeoutHeaderCannotExtendDeadline() {
+        Instant deadline = ChatController.deadline(new Http.RequestBuilder().header("Request-Timeout", "600").build(),
+            Duration.ofSeconds(90));
+
+        assertTrue(deadline.isBefore(Instant.now().plusSeconds(91)));
+    }
+
+    @Test
+    public void testJsonArrayWritesOneChunkPerItem() {
+        ChatDialogueDTO first = new ChatDialogueDTO(1L, "Be brief", "What is Play?", "A web framework", null, "a@example.com", null);
+        ChatDialogueDTO second = new ChatDialogueDTO(2L, "Be brief", "What is JPA?", "A persistence API", null, "a@example.com", "t1");
+
+        List<String> chunks = jsonArrayChunks(Source.from(Arrays.asList(first, second)));
+
+        assertEquals(5, chunks.size());
+        JsonNode array = Json.parse(String.join("", chunks));
+        assertEquals(2, array.size());
+        assertEquals("What is Play?", array.get(0).get("question").asText());
+        assertEquals("t1", array.get(1).get("threadId").asText());
+    }
+
+    @Test
+    public void testJsonArrayOfNoItemsIsEmpty() {
+        assertEquals("[]", String.join("", jsonArrayChunks(Source.empty())));
+    }
+
+    private static List<String> jsonArrayChunks(Source<ChatDialogueDTO, ?> items) {
+        ActorSystem system = ActorSystem.create();
+        try {
+            return ChatController.toJsonArray(items)
+                .map(ByteString::utf8String)
+                .runWith(Sink.seq(), Materializer.matFromSystem(system))
+                .toCompletableFuture().join();
+        } finally {
+            system.terminate();
+        }
+    }
+
+    @Test
+    public void testBatchCountsOnlyQueriesWithAQuestion() {
+        List<ChatQueryDTO> queries = Arrays.asList(null, new ChatQueryDTO("Be brief", " ", null, null, null),
+            new ChatQueryDTO("Be brief", null, null, null, null), new ChatQueryDTO("Be brief", "What is Play?", null, null, null));
+
+        assertEquals(1, ChatController.countAnswerable(queries));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRequestTimeoutHeaderIsRejected() {
+        ChatController.deadline(new Http.RequestBuilder().header("Request-Timeout", "soon").build(), Duration.ofSeconds(90));
+    }
+}
@@ -0,0 +1,190 @@
+package controllers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import dto.ChatDialogueDTO;
+import dto.ChatHistoryCursor;
+import dto.ChatHistoryPageDTO;
+import org.apache.pekko.actor.ActorSystem;
+import org.apache.pekko.stream.Materializer;
+import org.apache.pekko.stream.javadsl.Sink;
+import org.apache.pekko.stream.javadsl.Source;
+import org.junit.After;
+import org.junit.Test;
+import play.libs.Json;
+import play.mvc.Http;
+import services.ChatHistoryEvents;
+import services.ChatService;
+import services.UsageQuotas;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ChatSocketControllerTest {
+
+    private static final String EMAIL = "user@example.com";
+
+    private final ActorSystem system = ActorSystem.create();
+    private final Materializer materializer = Materializer.matFromSystem(system);
+    private final ChatService chatService = mock(ChatService.class);
+    private final UsageQuotas usageQuotas = mock(UsageQuotas.class);
+    private final ChatHistoryEvents historyEvents = new ChatHistoryEvents();
+
+    @After
+    public void tearDown() {
+        system.terminate();
+    }
+
+    private ChatSocketController controller(Duration idleTimeout) {
+        when(usageQuotas.admit(anyString(), anyInt())).thenReturn(CompletableFuture.completedFuture(null));
+        when(chatService.getQueriesPageByUser(eq(EMAIL), isNull(), anyInt()))
+            .thenReturn(CompletableFuture.completedFuture(new ChatHistoryPageDTO(List.of(), null)));
+        Config config = ConfigFactory.parseString("chat.socket {"
+            + " heartbeat-interval = 1 minute, idle-timeout = " + idleTimeout.toMillis() + " ms,"
+            + " max-pending-messages = 8, push-buffer-size = 64, history-page-size = 20 }");
+        return new ChatSocketController(chatService, historyEvents, usageQuotas, materializer, config);
+    }
+
+    private static ChatDialogueDTO dialogue(long id, String question) {
+        return new ChatDialogueDTO(id, "Be brief", question, "Answer to " + question,
+            Timestamp.from(Instant.parse("2026-10-15T12:00:00Z").plusSeconds(id)), EMAIL, null);
+    }
+
+    private static JsonNode send(String id, String question) {
+        return Json.newObject().put("type", "send").put("id", id).put("question", question);
+    }
+
+    private void answer(String question, Duration delay, String... tokens) {
+        Source<String, CompletionStage<ChatDialogueDTO>> source = Source.from(List.of(tokens))
+            .initialDelay(delay)
+            .mapMaterializedValue(ignored -> CompletableFuture.completedFuture(dialogue(question.length(), question)));
+        when(chatService.streamChatRequest(argThat(query -> query != null && question.equals(query.getQuestion())),
+            eq(EMAIL))).thenReturn(CompletableFuture.completedFuture(source));
+    }
+
+    private List<JsonNode> run(ChatSocketController controller, JsonNode... frames) {
+        return Source.from(List.of(frames))
+            .via(controller.chatFlow(EMAIL))
+            .runWith(Sink.seq(), materializer)
+            .toCompletableFuture().join();
+    }
+
+    private static List<String> describe(List<JsonNode> frames) {
+        return frames.stream()
+            .map(frame -> frame.path("type").asText() + ":" + frame.path("id").asText(""))
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testMessagesAreAnsweredInOrder() {
+        ChatSocketController controller = controller(Duration.ofMinutes(1));
+        answer("slow question", Duration.ofMillis(200), "slow", "answer");
+        answer("fast", Duration.ZERO, "fast answer");
+
+        List<JsonNode> frames = run(controller, send("1", "slow question"), send("2", "fast"));
+
+        assertEquals(List.of("history:", "token:1", "token:1", "done:1", "token:2", "done:2"), describe(frames));
+        assertEquals("slow", frames.get(1).get("token").asText());
+        assertEquals("slow question", frames.get(3).get("dialogue").get("question").asText());
+    }
+
+    @Test
+    public void testSavedFramesCarryTheIdempotencyKey() {
+        ChatSocketController controller = controller(Duration.ofMinutes(1));
+        ChatDialogueDTO dialogue = dialogue(9, "elsewhere");
+        dialogue.setIdempotencyKey("key-9");
+
+        CompletionStage<List<JsonNode>> frames = Source.<JsonNode>empty()
+            .initialDelay(Duration.ofMillis(300))
+            .via(controller.chatFlow(EMAIL))
+            .runWith(Sink.seq(), materializer);
+        historyEvents.publish(dialogue);
+
+        JsonNode saved = frames.toCompletableFuture().join().stream()
+            .filter(frame -> "saved".equals(frame.path("type").asText()))
+            .findFirst()
+            .orElseThrow(AssertionError::new);
+        assertEquals("key-9", saved.get("idempotencyKey").asText());
+        assertEquals("elsewhere", saved.get("dialogue").get("question").asText());
+        assertFalse(saved.get("dialogue").has("idempotencyKey"));
+    }
+
+    @Test
+    public void testHistoryFrameFetchesThePageBeforeTheCursor() {
+        ChatSocketController controller = controller(Duration.ofMinutes(1));
+        ChatDialogueDTO older = dialogue(3, "older");
+        ChatHistoryCursor cursor = ChatHistoryCursor.of(dialogue(5, "newer"));
+        String next = ChatHistoryCursor.of(older).encode();
+        when(chatService.getQueriesPageByUser(EMAIL, cursor, 20))
+            .thenReturn(CompletableFuture.completedFuture(new ChatHistoryPageDTO(List.of(older), next)));
+
+        List<JsonNode> frames = run(controller,
+            Json.newObject().put("type", "history").put("id", "h").put("before", cursor.encode()));
+
+        assertEquals(2, frames.size());
+        JsonNode page = frames.get(1);
+        assertEquals("history", page.get("type").asText());
+        assertEquals("older", page.get("items").get(0).get("question").asText());
+        assertEquals(next, page.get("nextCursor").asText());
+    }
+
+    @Test
+    public void testInvalidHistoryCursorIsAnsweredWithAnError() {
+        ChatSocketController controller = controller(Duration.ofMinutes(1));
+
+        List<JsonNode> frames = run(controller,
+            Json.newObject().put("type", "history").put("id", "h").put("before", "not a cursor"));
+
+        assertEquals(List.of("history:", "error:h"), describe(frames));
+    }
+
+    @Test
+    public void testSocketIsClosedWhenTheClientIsIdle() {
+        ChatSocketController controller = controller(Duration.ofMillis(200));
+
+        try {
+            Source.<JsonNode>maybe()
+                .via(controller.chatFlow(EMAIL))
+                .runWith(Sink.seq(), materializer)
+                .toCompletableFuture().join();
+            fail("Expected the idle socket to be closed");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void testSameOriginHandshakesAreAllowed() {
+        assertTrue(ChatSocketController.isSameOrigin(new Http.RequestBuilder()
+            .host("chat.example.com").header("Origin", "https://chat.example.com").build()));
+        assertTrue(ChatSocketController.isSameOrigin(new Http.RequestBuilder().host("chat.example.com").build()));
+    }
+
+    @Test
+    public void testCrossOriginHandshakesAreRefused() {
+        assertFalse(ChatSocketController.isSameOrigin(new Http.RequestBuilder()
+            .host("chat.example.com").header("Origin", "https://evil.example.com").build()));
+        assertFalse(ChatSocketController.isSameOrigin(new Http.RequestBuilder()
+            .host("chat.example.com").header("Origin", "not a uri").build()));
+    }
+}
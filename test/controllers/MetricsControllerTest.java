@@ -0,0 +1,37 @@
+package controllers;
+
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.junit.Test;
+import play.mvc.Http;
+import services.ChatMetrics;
+
+import static org.junit.Assert.assertEquals;
+import static play.mvc.Http.Status.FORBIDDEN;
+import static play.mvc.Http.Status.OK;
+
+public class MetricsControllerTest {
+
+    private static MetricsController controller(String token) {
+        return new MetricsController(new ChatMetrics(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT)), token);
+    }
+
+    @Test
+    public void testWithoutTokenOnlyLoopbackIsServed() {
+        MetricsController controller = controller("");
+
+        assertEquals(OK, controller.metrics(new Http.RequestBuilder().remoteAddress("127.0.0.1").build()).status());
+        assertEquals(FORBIDDEN, controller.metrics(new Http.RequestBuilder().remoteAddress("203.0.113.7").build()).status());
+    }
+
+    @Test
+    public void testTokenIsRequiredWhenConfigured() {
+        MetricsController controller = controller("s3cret");
+
+        assertEquals(OK, controller.metrics(new Http.RequestBuilder().remoteAddress("203.0.113.7")
+            .header(Http.HeaderNames.AUTHORIZATION, "Bearer s3cret").build()).status());
+        assertEquals(FORBIDDEN, controller.metrics(new Http.RequestBuilder().remoteAddress("127.0.0.1").build()).status());
+        assertEquals(FORBIDDEN, controller.metrics(new Http.RequestBuilder()
+            .header(Http.HeaderNames.AUTHORIZATION, "Bearer wrong").build()).status());
+    }
+}
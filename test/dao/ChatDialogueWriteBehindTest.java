@@ -0,0 +1,102 @@
+package dao;
+
+import models.ChatDialogue;
+import org.junit.After;
+import org.junit.Test;
+import play.db.jpa.JPAApi;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ChatDialogueWriteBehindTest {
+
+    private final EntityManager em = mock(EntityManager.class);
+    private final JPAApi jpaApi = mock(JPAApi.class);
+    private ChatDialogueWriteBehind writeBehind;
+
+    @SuppressWarnings("unchecked")
+    private ChatDialogueWriteBehind writeBehind(int batchSize, Duration flushInterval) {
+        when(jpaApi.withTransaction(any(Function.class)))
+            .thenAnswer(invocation -> ((Function<EntityManager, Object>) invocation.getArgument(0)).apply(em));
+        writeBehind = new ChatDialogueWriteBehind(jpaApi, Runnable::run, batchSize, 10, flushInterval);
+        return writeBehind;
+    }
+
+    @After
+    public void tearDown() {
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
+    }
+
+    private static ChatDialogue dialogue(String question) {
+        ChatDialogue chatDialogue = new ChatDialogue();
+        chatDialogue.setQuestion(question);
+        return chatDialogue;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPersistsQueuedDialoguesInOneTransaction() {
+        ChatDialogueWriteBehind stage = writeBehind(3, Duration.ofSeconds(5));
+        ChatDialogue first = dialogue("first");
+
+        CompletableFuture<ChatDialogue> saved = stage.enqueue(first).toCompletableFuture();
+        stage.enqueue(dialogue("second"));
+        stage.enqueue(dialogue("third")).toCompletableFuture().join();
+
+        assertSame(first, saved.join());
+        verify(jpaApi, times(1)).withTransaction(any(Function.class));
+        verify(em, times(3)).persist(any(ChatDialogue.class));
+    }
+
+    @Test
+    public void testFailedBatchOnlyFailsTheBadDialogue() {
+        ChatDialogue bad = dialogue("bad");
+        doThrow(new PersistenceException("value too long")).when(em).persist(bad);
+        ChatDialogueWriteBehind stage = writeBehind(2, Duration.ofSeconds(5));
+
+        CompletableFuture<ChatDialogue> good = stage.enqueue(dialogue("good")).toCompletableFuture();
+        CompletableFuture<ChatDialogue> failed = stage.enqueue(bad).toCompletableFuture();
+
+        assertSame("good", good.join().getQuestion());
+        assertTrue(failure(failed) instanceof PersistenceException);
+    }
+
+    @Test
+    public void testCloseFlushesQueuedDialoguesAndRejectsNewOnes() {
+        ChatDialogueWriteBehind stage = writeBehind(10, Duration.ofMillis(200));
+
+        CompletableFuture<ChatDialogue> queued = stage.enqueue(dialogue("queued")).toCompletableFuture();
+        stage.close();
+
+        assertSame("queued", queued.join().getQuestion());
+        assertTrue(failure(stage.enqueue(dialogue("late")).toCompletableFuture())
+            instanceof RejectedExecutionException);
+    }
+
+    private static Throwable failure(CompletableFuture<ChatDialogue> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            return e.getCause();
+        }
+        fail("Expected the save to fail");
+        return null;
+    }
+}
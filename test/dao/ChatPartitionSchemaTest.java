@@ -0,0 +1,191 @@
+package dao;
+
+import com.typesafe.config.ConfigFactory;
+import dto.ChatDialogueDTO;
+import org.apache.pekko.actor.ActorSystem;
+import org.apache.pekko.stream.Materializer;
+import org.apache.pekko.stream.javadsl.Sink;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import play.db.Database;
+import play.db.Databases;
+import play.db.evolutions.Evolutions;
+import play.db.jpa.JPAApi;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+import java.time.YearMonth;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+//--------------------------------------------------------------------------------
+/**
+ * Runs the evolutions, the partition maintenance SQL and the history reads
+ * against a scratch PostgreSQL database. Skipped unless CHAT_TEST_DATABASE_URL points at one;
+ * CHAT_TEST_DATABASE_USER and CHAT_TEST_DATABASE_PASSWORD default to postgres
+ * and an empty password. The evolutions are cleaned up afterwards, which runs
+ * their downs.
+ */
+//--------------------------------------------------------------------------------
+public class ChatPartitionSchemaTest {
+
+    private static final YearMonth MONTH = YearMonth.of(2099, 1);
+
+    private static Database database;
+    private static EntityManagerFactory emf;
+
+    @BeforeClass
+    public static void setUp() {
+        String url = System.getenv("CHAT_TEST_DATABASE_URL");
+        Assume.assumeTrue("CHAT_TEST_DATABASE_URL is not set", url != null);
+        String user = System.getenv().getOrDefault("CHAT_TEST_DATABASE_USER", "postgres");
+        String password = System.getenv().getOrDefault("CHAT_TEST_DATABASE_PASSWORD", "");
+
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("username", user);
+        settings.put("password", password);
+        database = Databases.createFrom("org.postgresql.Driver", url, settings);
+        Evolutions.applyEvolutions(database);
+
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put("javax.persistence.jdbc.url", url);
+        overrides.put("javax.persistence.jdbc.user", user);
+        overrides.put("javax.persistence.jdbc.password", password);
+        overrides.put("hibernate.show_sql", "false");
+        emf = Persistence.createEntityManagerFactory("defaultPersistenceUnit", overrides);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        if (emf != null) {
+            emf.close();
+        }
+        if (database != null) {
+            Evolutions.cleanupEvolutions(database);
+            database.shutdown();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JPAChatPartitionRepository repository() {
+        JPAApi jpaApi = mock(JPAApi.class);
+        when(jpaApi.withTransaction(any(Function.class))).thenAnswer(invocation ->
+            inTransaction((Function<EntityManager, Object>) invocation.getArgument(0)));
+        DatabaseExecutionContext executionContext = mock(DatabaseExecutionContext.class);
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(executionContext).execute(any());
+        return new JPAChatPartitionRepository(jpaApi, executionContext);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JPAChatDialogueRepository dialogueRepository() {
+        JPAApi jpaApi = mock(JPAApi.class);
+        when(jpaApi.withTransaction(any(Function.class))).thenAnswer(invocation ->
+            inTransaction((Function<EntityManager, Object>) invocation.getArgument(0)));
+        DatabaseExecutionContext executionContext = mock(DatabaseExecutionContext.class);
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(executionContext).execute(any());
+        return new JPAChatDialogueRepository(jpaApi, executionContext, mock(ChatDialogueWriteBehind.class),
+            ConfigFactory.parseString("chat.write-behind.enabled = false\nchat.history.fetch-size = 2"));
+    }
+
+    private static <T> T inTransaction(Function<EntityManager, T> function) {
+        EntityManager em = emf.createEntityManager();
+        EntityTransaction transaction = em.getTransaction();
+        try {
+            transaction.begin();
+            T result = function.apply(em);
+            transaction.commit();
+            return result;
+        } catch (RuntimeException e) {
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    private static long count(String sql) {
+        return inTransaction(em -> ((Number) em.createNativeQuery(sql).getSingleResult()).longValue());
+    }
+
+    @Test
+    public void testEvolutionsPartitionChatDialogue() {
+        assertEquals(1, count("SELECT count(*) FROM pg_partitioned_table WHERE partrelid = to_regclass('chatdialogue')"));
+        assertEquals(1, count("SELECT count(*) FROM pg_inherits"
+            + " WHERE inhparent = to_regclass('chatdialogue') AND inhrelid = to_regclass('chatdialogue_default')"));
+    }
+
+    @Test
+    public void testCreatePartitionMovesRowsOutOfDefaultPartition() {
+        JPAChatPartitionRepository repository = repository();
+        inTransaction(em -> em.createNativeQuery("INSERT INTO ChatDialogue"
+                + " (id, instruction, question, response, createdAt, email, idempotencyKey)"
+                + " VALUES (-1, 'Be brief', 'What is Play?', 'A web framework', '2099-01-15 10:00',"
+                + " 'schema-test@example.com', 'schema-test')")
+            .executeUpdate());
+        assertEquals(1, count("SELECT count(*) FROM ChatDialogue_default WHERE id = -1"));
+
+        assertEquals(1, (int) repository.createPartitions(MONTH, MONTH).toCompletableFuture().join());
+
+        assertEquals(0, count("SELECT count(*) FROM ChatDialogue_default WHERE id = -1"));
+        assertEquals(1, count("SELECT count(*) FROM chatdialogue_y2099m01 WHERE id = -1"));
+        assertEquals(1, count("SELECT count(*) FROM chatdialogue_y2099m01"
+            + " WHERE id = -1 AND search_vector @@ to_tsquery('english', 'framework')"));
+        assertTrue(repository.listPartitions().toCompletableFuture().join().contains(MONTH));
+
+        assertEquals(1, (int) repository.archivePartition(MONTH).toCompletableFuture().join());
+
+        assertFalse(repository.listPartitions().toCompletableFuture().join().contains(MONTH));
+        assertEquals(0, count("SELECT count(*) FROM ChatDialogueKey WHERE idempotencyKey = 'schema-test'"));
+        assertEquals(1, count("SELECT dialogueCount FROM ChatDialogueArchive WHERE email = 'schema-test@example.com'"));
+        inTransaction(em -> em.createNativeQuery("DELETE FROM ChatDialogueArchive WHERE email = 'schema-test@example.com'")
+            .executeUpdate());
+    }
+
+    @Test
+    public void testFullHistoryIsReadOldestFirstAcrossChunks() {
+        inTransaction(em -> em.createNativeQuery("INSERT INTO ChatDialogue"
+                + " (id, instruction, question, response, createdAt, email) VALUES"
+                + " (-15, 'Be brief', 'q', 'a', '2098-03-01 10:00', 'order-test@example.com'),"
+                + " (-11, 'Be brief', 'q', 'a', '2098-02-01 10:00', 'order-test@example.com'),"
+                + " (-14, 'Be brief', 'q', 'a', '2098-02-01 10:00', 'order-test@example.com'),"
+                + " (-12, 'Be brief', 'q', 'a', '2098-02-01 10:00', 'order-test@example.com'),"
+                + " (-13, 'Be brief', 'q', 'a', '2098-01-01 10:00', 'order-test@example.com')")
+            .executeUpdate());
+        ActorSystem system = ActorSystem.create();
+        try {
+            List<ChatDialogueDTO> dialogues = dialogueRepository().getAllByUser("order-test@example.com")
+                .runWith(Sink.seq(), Materializer.matFromSystem(system)).toCompletableFuture().join();
+
+            assertEquals(Arrays.asList(-13L, -14L, -12L, -11L, -15L),
+                dialogues.stream().map(ChatDialogueDTO::getId).collect(Collectors.toList()));
+        } finally {
+            system.terminate();
+            inTransaction(em -> em.createNativeQuery("DELETE FROM ChatDialogue WHERE email = 'order-test@example.com'")
+                .executeUpdate());
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package dao;
+
+import com.typesafe.config.ConfigFactory;
+import dto.ChatDialogueDTO;
+import dto.ChatHistoryCursor;
+import org.apache.pekko.actor.ActorSystem;
+import org.apache.pekko.stream.Materializer;
+import org.apache.pekko.stream.javadsl.Sink;
+import org.hibernate.Session;
+import org.junit.Test;
+import play.db.jpa.JPAApi;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class JPAChatDialogueRepositoryTest {
+
+    private final JPAApi jpaApi = mock(JPAApi.class);
+    private final EntityManager em = mock(EntityManager.class);
+    private final Session session = mock(Session.class);
+    @SuppressWarnings("unchecked")
+    private final TypedQuery<ChatDialogueDTO> query = mock(TypedQuery.class);
+
+    @SuppressWarnings("unchecked")
+    private JPAChatDialogueRepository repository() {
+        when(jpaApi.withTransaction(any(Function.class)))
+            .thenAnswer(invocation -> ((Function<EntityManager, Object>) invocation.getArgument(0)).apply(em));
+        when(em.unwrap(Session.class)).thenReturn(session);
+        when(em.createQuery(anyString(), eq(ChatDialogueDTO.class))).thenReturn(query);
+        when(query.getResultList()).thenReturn(Collections.emptyList());
+
+        DatabaseExecutionContext executionContext = mock(DatabaseExecutionContext.class);
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(executionContext).execute(any());
+
+        return new JPAChatDialogueRepository(jpaApi, executionContext, mock(ChatDialogueWriteBehind.class),
+            ConfigFactory.parseString("chat.write-behind.enabled = false\nchat.history.fetch-size = 2"));
+    }
+
+    private static ChatDialogueDTO dialogue(long id) {
+        return new ChatDialogueDTO(id, "Be brief", "Question " + id, "Answer " + id,
+            Timestamp.valueOf("2026-03-01 10:15:30"), "a@example.com", null);
+    }
+
+    private static List<Long> ids(List<ChatDialogueDTO> dialogues) {
+        return dialogues.stream().map(ChatDialogueDTO::getId).collect(Collectors.toList());
+    }
+
+    private static List<ChatDialogueDTO> allByUser(JPAChatDialogueRepository repository) {
+        ActorSystem system = ActorSystem.create();
+        try {
+            return repository.getAllByUser("a@example.com")
+                .runWith(Sink.seq(), Materializer.matFromSystem(system)).toCompletableFuture().join();
+        } finally {
+            system.terminate();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAllByUserReadsOldestFirstInKeysetChunks() {
+        JPAChatDialogueRepository repository = repository();
+        when(query.getResultList())
+            .thenReturn(Arrays.asList(dialogue(1), dialogue(2)), Collections.singletonList(dialogue(3)));
+
+        assertEquals(Arrays.asList(1L, 2L, 3L), ids(allByUser(repository)));
+
+        verify(em).createQuery(
+            "SELECT new dto.ChatDialogueDTO(c.id, c.instruction, c.question, c.response, c.createdAt, c.email, c.threadId)"
+                + " FROM ChatDialogue c WHERE c.email = :email ORDER BY c.createdAt, c.id",
+            ChatDialogueDTO.class);
+        verify(em).createQuery(
+            argThat((String jpql) ->
+                jpql.contains("(c.createdAt > :createdAt OR (c.createdAt = :createdAt AND c.id > :id))")
+                    && jpql.endsWith("ORDER BY c.createdAt, c.id")),
+            eq(ChatDialogueDTO.class));
+        verify(query).setParameter("createdAt", Timestamp.valueOf("2026-03-01 10:15:30"));
+        verify(query).setParameter("id", 2L);
+        verify(query, times(2)).setMaxResults(2);
+        verify(query, times(2)).getResultList();
+        verify(jpaApi, times(2)).withTransaction(any(Function.class));
+        verify(session, times(2)).setDefaultReadOnly(true);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAllByUserStopsAtAnEmptyChunk() {
+        JPAChatDialogueRepository repository = repository();
+        when(query.getResultList()).thenReturn(Arrays.asList(dialogue(1), dialogue(2)), Collections.emptyList());
+
+        assertEquals(Arrays.asList(1L, 2L), ids(allByUser(repository)));
+
+        verify(query, times(2)).getResultList();
+    }
+
+    @Test
+    public void testAllByUserFailsWhenAChunkCannotBeRead() {
+        JPAChatDialogueRepository repository = repository();
+        when(query.getResultList()).thenThrow(new PersistenceException("connection refused"));
+
+        try {
+            allByUser(repository);
+            fail("Expected the read to fail");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof PersistenceException);
+        }
+    }
+
+    @Test
+    public void testHighlightMarksMatchesAndEscapesHtml() {
+        assertEquals("&lt;b&gt; <mark>reset</mark> the &quot;router&quot;",
+            JPAChatDialogueRepository.highlight("<b> \u0002reset\u0003 the \"router\""));
+    }
+
+    @Test
+    public void testHighlightKeepsNull() {
+        assertNull(JPAChatDialogueRepository.highlight(null));
+    }
+
+    @Test
+    public void testNewestPageHasNoKeysetBound() {
+        repository().getPageByUser("a@example.com", null, 20).toCompletableFuture().join();
+
+        verify(em).createQuery(
+            "SELECT new dto.ChatDialogueDTO(c.id, c.instruction, c.question, c.response, c.createdAt, c.email, c.threadId)"
+                + " FROM ChatDialogue c WHERE c.email = :email ORDER BY c.createdAt DESC, c.id DESC",
+            ChatDialogueDTO.class);
+        verify(query, never()).setParameter(eq("createdAt"), any());
+        verify(query).setMaxResults(20);
+    }
+
+    @Test
+    public void testCursorBreaksCreatedAtTiesById() {
+        Timestamp createdAt = Timestamp.valueOf("2026-03-01 10:15:30.123456");
+        ChatHistoryCursor cursor = new ChatHistoryCursor(createdAt, 42L);
+
+        repository().getPageByUser("a@example.com", cursor, 20).toCompletableFuture().join();
+
+        verify(em).createQuery(
+            argThat((String jpql) ->
+                jpql.contains("(c.createdAt < :createdAt OR (c.createdAt = :createdAt AND c.id < :id))")
+                    && jpql.endsWith("ORDER BY c.createdAt DESC, c.id DESC")),
+            eq(ChatDialogueDTO.class));
+        verify(query).setParameter("createdAt", createdAt);
+        verify(query).setParameter("id", 42L);
+        verify(query).setParameter("email", "a@example.com");
+    }
+}
@@ -0,0 +1,22 @@
+package dao;
+
+import org.junit.Test;
+
+import java.time.YearMonth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class JPAChatPartitionRepositoryTest {
+
+    @Test
+    public void testPartitionNameRoundTrips() {
+        assertEquals("chatdialogue_y2026m03", JPAChatPartitionRepository.partitionName(YearMonth.of(2026, 3)));
+        assertEquals(YearMonth.of(2026, 3), JPAChatPartitionRepository.monthOf("chatdialogue_y2026m03"));
+    }
+
+    @Test
+    public void testDefaultPartitionHasNoMonth() {
+        assertNull(JPAChatPartitionRepository.monthOf("chatdialogue_default"));
+    }
+}
@@ -0,0 +1,50 @@
+package dao;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VirtualThreadExecutorServiceConfiguratorTest {
+
+    @Test
+    public void testConcurrencyIsBoundedByPermits() throws InterruptedException {
+        ExecutorService executor = new VirtualThreadExecutorServiceConfigurator.GuardedExecutorService(
+            Executors.newCachedThreadPool(), 2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(20);
+
+        for (int i = 0; i < 20; i++) {
+            executor.execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testVirtualThreadsMatchRuntime() {
+        ExecutorService executor = VirtualThreadExecutorServiceConfigurator.newVirtualThreadPerTaskExecutor("test");
+        assertEquals(Runtime.version().feature() >= 21, executor != null);
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package dto;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ChatHistoryCursorTest {
+
+    private static String encoded(String raw) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDecodeReturnsEncodedCursor() {
+        Timestamp createdAt = Timestamp.from(Instant.parse("2026-03-01T10:15:30.123456789Z"));
+        ChatHistoryCursor cursor = new ChatHistoryCursor(createdAt, 42L);
+
+        String token = cursor.encode();
+
+        assertFalse(token.contains("=") || token.contains("+") || token.contains("/"));
+        assertEquals(cursor, ChatHistoryCursor.decode(token));
+        assertEquals(123456789, ChatHistoryCursor.decode(token).getCreatedAt().getNanos());
+    }
+
+    @Test
+    public void testCursorOfPointsAtDialogue() {
+        Timestamp createdAt = Timestamp.from(Instant.parse("2026-03-01T10:15:30Z"));
+        ChatDialogueDTO chatDialogueDTO = new ChatDialogueDTO(7L, "Be brief", "Question", "Answer",
+            createdAt, "a@example.com", null);
+
+        assertEquals(new ChatHistoryCursor(createdAt, 7L), ChatHistoryCursor.of(chatDialogueDTO));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsCursorThatIsNotBase64() {
+        ChatHistoryCursor.decode("not a cursor!");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsCursorWithoutSeparator() {
+        ChatHistoryCursor.decode(encoded("2026-03-01T10:15:30Z"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsCursorWithInvalidTime() {
+        ChatHistoryCursor.decode(encoded("yesterday|42"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsCursorWithInvalidId() {
+        ChatHistoryCursor.decode(encoded("2026-03-01T10:15:30Z|forty-two"));
+    }
+}
@@ -0,0 +1,58 @@
+package services;
+
+import dto.ChatDialogueDTO;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChatHistoryEventsTest {
+
+    private static ChatDialogueDTO dialogue(long id, String email) {
+        return new ChatDialogueDTO(id, "Be brief", "What is Play?", "A web framework",
+            new Timestamp(0), email, null);
+    }
+
+    @Test
+    public void testListenersReceiveOnlyTheirUsersDialogues() {
+        ChatHistoryEvents events = new ChatHistoryEvents();
+        List<Long> received = new ArrayList<>();
+        events.subscribe("a@example.com", dialogue -> received.add(dialogue.getId()));
+
+        events.publish(dialogue(1, "a@example.com"));
+        events.publish(dialogue(2, "b@example.com"));
+
+        assertEquals(List.of(1L), received);
+    }
+
+    @Test
+    public void testUnsubscribedListenerIsNotCalled() {
+        ChatHistoryEvents events = new ChatHistoryEvents();
+        List<Long> received = new ArrayList<>();
+        Runnable unsubscribe = events.subscribe("a@example.com", dialogue -> received.add(dialogue.getId()));
+        assertEquals(1, events.subscribers());
+
+        unsubscribe.run();
+        events.publish(dialogue(1, "a@example.com"));
+
+        assertEquals(0, events.subscribers());
+        assertEquals(List.of(), received);
+    }
+
+    @Test
+    public void testFailingListenerDoesNotStopOthers() {
+        ChatHistoryEvents events = new ChatHistoryEvents();
+        List<Long> received = new ArrayList<>();
+        events.subscribe("a@example.com", dialogue -> {
+            throw new IllegalStateException("socket closed");
+        });
+        events.subscribe("a@example.com", dialogue -> received.add(dialogue.getId()));
+
+        events.publish(dialogue(1, "a@example.com"));
+
+        assertEquals(List.of(1L), received);
+    }
+}
@@ -0,0 +1,49 @@
+package services;
+
+import dao.ChatDialogueRepository;
+import dto.ChatDialogueDTO;
+import dto.ChatHistoryVersion;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ChatHistoryVersionsTest {
+
+    private static ChatHistoryVersion version(long count, long maxId) {
+        return new ChatHistoryVersion(count, maxId, new Timestamp(maxId * 1000));
+    }
+
+    @Test
+    public void testVersionIsCachedUntilUserSavesDialogue() {
+        ChatDialogueRepository repository = mock(ChatDialogueRepository.class);
+        when(repository.getHistoryVersion("a@example.com")).thenReturn(
+            CompletableFuture.completedFuture(version(1, 10)),
+            CompletableFuture.completedFuture(version(2, 11)));
+        ChatHistoryEvents events = new ChatHistoryEvents();
+        ChatHistoryVersions versions = new ChatHistoryVersions(repository, events, 100, Duration.ofMinutes(1));
+
+        String first = versions.get("a@example.com").toCompletableFuture().join().token();
+        assertEquals(first, versions.get("a@example.com").toCompletableFuture().join().token());
+        verify(repository, times(1)).getHistoryVersion("a@example.com");
+
+        events.publish(new ChatDialogueDTO(11L, "Be brief", "What is Play?", "A web framework",
+            new Timestamp(11000), "a@example.com", null));
+
+        assertNotEquals(first, versions.get("a@example.com").toCompletableFuture().join().token());
+        verify(repository, times(2)).getHistoryVersion("a@example.com");
+    }
+
+    @Test
+    public void testNewDialogueWithLowerIdChangesToken() {
+        assertNotEquals(version(1, 60).token(), new ChatHistoryVersion(2L, 60L, new Timestamp(60000)).token());
+    }
+}
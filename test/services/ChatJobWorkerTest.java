@@ -0,0 +1,95 @@
+package services;
+
+import dao.ChatJobRepository;
+import dto.ChatDialogueDTO;
+import dto.ChatQueryDTO;
+import models.ChatJob;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ChatJobWorkerTest {
+
+    private static ChatJob job(long id, String idempotencyKey) {
+        ChatJob chatJob = new ChatJob();
+        chatJob.setId(id);
+        chatJob.setEmail("user@example.com");
+        chatJob.setInstruction("Be brief");
+        chatJob.setQuestion("What is Play?");
+        chatJob.setIdempotencyKey(idempotencyKey);
+        chatJob.setAttempts(1);
+        return chatJob;
+    }
+
+    private static ChatDialogueDTO dialogue(long id) {
+        return new ChatDialogueDTO(id, "Be brief", "What is Play?", "A web framework",
+            new Timestamp(0), "user@example.com", null);
+    }
+
+    @Test
+    public void testCompletedJobRecordsDialogueUnderDerivedKey() {
+        ChatJobRepository repository = mock(ChatJobRepository.class);
+        ChatService chatService = mock(ChatService.class);
+        when(repository.claim(anyInt(), any(), anyInt()))
+            .thenReturn(CompletableFuture.completedFuture(List.of(job(7, null))));
+        when(repository.complete(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+        when(chatService.processChatJob(any(), anyString()))
+            .thenReturn(CompletableFuture.completedFuture(dialogue(42)));
+
+        new ChatJobWorker(repository, chatService, 4, Duration.ofMinutes(1), 3).poll();
+
+        ArgumentCaptor<ChatQueryDTO> query = ArgumentCaptor.forClass(ChatQueryDTO.class);
+        verify(chatService).processChatJob(query.capture(), eq("user@example.com"));
+        assertEquals("job:7", query.getValue().getIdempotencyKey());
+        verify(repository).complete(7L, 42L);
+    }
+
+    @Test
+    public void testClientKeyIsKept() {
+        ChatJobRepository repository = mock(ChatJobRepository.class);
+        ChatService chatService = mock(ChatService.class);
+        when(repository.claim(anyInt(), any(), anyInt()))
+            .thenReturn(CompletableFuture.completedFuture(List.of(job(7, "client-key"))));
+        when(repository.complete(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+        when(chatService.processChatJob(any(), anyString()))
+            .thenReturn(CompletableFuture.completedFuture(dialogue(42)));
+
+        new ChatJobWorker(repository, chatService, 4, Duration.ofMinutes(1), 3).poll();
+
+        ArgumentCaptor<ChatQueryDTO> query = ArgumentCaptor.forClass(ChatQueryDTO.class);
+        verify(chatService).processChatJob(query.capture(), anyString());
+        assertEquals("client-key", query.getValue().getIdempotencyKey());
+    }
+
+    @Test
+    public void testFailedAttemptReleasesJob() {
+        ChatJobRepository repository = mock(ChatJobRepository.class);
+        ChatService chatService = mock(ChatService.class);
+        when(repository.claim(anyInt(), any(), anyInt()))
+            .thenReturn(CompletableFuture.completedFuture(List.of(job(7, null))));
+        when(repository.release(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+        when(chatService.processChatJob(any(), anyString()))
+            .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("saturated")));
+
+        ChatJobWorker worker = new ChatJobWorker(repository, chatService, 4, Duration.ofMinutes(1), 3);
+        worker.poll();
+
+        verify(repository).release(7L, "saturated");
+        verify(repository, never()).complete(any(), any());
+        assertEquals(0, worker.running());
+    }
+}
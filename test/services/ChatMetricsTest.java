@@ -0,0 +1,36 @@
+package services;
+
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChatMetricsTest {
+
+    @Test
+    public void testAsyncTimingIsTaggedWithOutcome() {
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        ChatMetrics metrics = new ChatMetrics(registry);
+
+        metrics.timeAsync("chat.db", "save", () -> CompletableFuture.completedFuture("saved"));
+        metrics.timeAsync("chat.db", "save", () -> CompletableFuture.failedFuture(new IllegalStateException()));
+
+        assertEquals(1, registry.get("chat.db").tag("outcome", "success").timer().count());
+        assertEquals(1, registry.get("chat.db").tag("outcome", "failure").timer().count());
+    }
+
+    @Test
+    public void testTokenUsageIsExported() {
+        ChatMetrics metrics = new ChatMetrics(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT));
+
+        metrics.recordTokenUsage(12, 30);
+
+        String scrape = metrics.scrape();
+        assertTrue(scrape.contains("chat_upstream_tokens_total{type=\"prompt\",} 12.0"));
+        assertTrue(scrape.contains("chat_upstream_tokens_total{type=\"completion\",} 30.0"));
+    }
+}
@@ -0,0 +1,71 @@
+package services;
+
+import dao.ChatPartitionRepository;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ChatPartitionMaintenanceTest {
+
+    private static final Clock OCTOBER_2026 = Clock.fixed(Instant.parse("2026-10-15T12:00:00Z"), ZoneOffset.UTC);
+
+    @Test
+    public void testCreatesUpcomingPartitions() {
+        ChatPartitionRepository repository = mock(ChatPartitionRepository.class);
+        when(repository.createPartitions(any(), any())).thenReturn(CompletableFuture.completedFuture(2));
+
+        new ChatPartitionMaintenance(repository, OCTOBER_2026, 3, 0, 0).maintain().toCompletableFuture().join();
+
+        verify(repository).createPartitions(YearMonth.of(2026, 10), YearMonth.of(2027, 1));
+        verify(repository, never()).listPartitions();
+    }
+
+    @Test
+    public void testArchivesOnlyMonthsPastRetention() {
+        ChatPartitionRepository repository = mock(ChatPartitionRepository.class);
+        when(repository.createPartitions(any(), any())).thenReturn(CompletableFuture.completedFuture(0));
+        when(repository.listPartitions()).thenReturn(CompletableFuture.completedFuture(Arrays.asList(
+            YearMonth.of(2025, 8), YearMonth.of(2025, 9), YearMonth.of(2025, 10), YearMonth.of(2026, 10))));
+        when(repository.archivePartition(any())).thenReturn(CompletableFuture.completedFuture(5));
+
+        new ChatPartitionMaintenance(repository, OCTOBER_2026, 3, 12, 0).maintain().toCompletableFuture().join();
+
+        verify(repository).archivePartition(YearMonth.of(2025, 8));
+        verify(repository).archivePartition(YearMonth.of(2025, 9));
+        verify(repository, never()).archivePartition(YearMonth.of(2025, 10));
+        verify(repository, never()).archivePartition(YearMonth.of(2026, 10));
+    }
+
+    @Test
+    public void testRecompressesPastMonthsOnce() {
+        ChatPartitionRepository repository = mock(ChatPartitionRepository.class);
+        when(repository.createPartitions(any(), any())).thenReturn(CompletableFuture.completedFuture(0));
+        when(repository.listPartitions()).thenReturn(CompletableFuture.completedFuture(Arrays.asList(
+            YearMonth.of(2026, 9), YearMonth.of(2026, 10))));
+        when(repository.recompress(YearMonth.of(2026, 9), 0L, 100)).thenReturn(CompletableFuture.completedFuture(100L));
+        when(repository.recompress(YearMonth.of(2026, 9), 100L, 100)).thenReturn(CompletableFuture.completedFuture(null));
+
+        ChatPartitionMaintenance maintenance = new ChatPartitionMaintenance(repository, OCTOBER_2026, 3, 0, 100);
+        maintenance.maintain().toCompletableFuture().join();
+        maintenance.maintain().toCompletableFuture().join();
+
+        verify(repository, times(1)).recompress(YearMonth.of(2026, 9), 0L, 100);
+        verify(repository, times(1)).recompress(YearMonth.of(2026, 9), 100L, 100);
+        verify(repository, never()).recompress(eq(YearMonth.of(2026, 10)), anyLong(), anyInt());
+    }
+}
@@ -0,0 +1,99 @@
+package services;
+
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChatProviderRouterTest {
+
+    private static ChatProvider provider(String name) {
+        return new ChatProvider(name, "http://localhost/" + name, "key", true,
+            new UpstreamLimiter(8, 1000, 100_000, 8, Duration.ofSeconds(5)), TimeUnit.SECONDS.toNanos(10), 2,
+            TimeUnit.MINUTES.toNanos(1), TimeUnit.MINUTES.toNanos(5));
+    }
+
+    private static ChatProviderRouter router(ChatProvider... providers) {
+        return new ChatProviderRouter(List.of(providers), null,
+            new ChatMetrics(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT)), null);
+    }
+
+    @Test
+    public void testFasterProviderIsPreferred() {
+        ChatProvider fast = provider("fast");
+        ChatProvider slow = provider("slow");
+        fast.onSuccess(TimeUnit.MILLISECONDS.toNanos(100));
+        slow.onSuccess(TimeUnit.MILLISECONDS.toNanos(900));
+        ChatProviderRouter router = router(fast, slow);
+
+        for (int i = 0; i < 20; i++) {
+            assertSame(fast, router.select());
+        }
+    }
+
+    @Test
+    public void testOutstandingRequestsShiftLoad() {
+        ChatProvider busy = provider("busy");
+        ChatProvider idle = provider("idle");
+        busy.onSuccess(TimeUnit.MILLISECONDS.toNanos(100));
+        idle.onSuccess(TimeUnit.MILLISECONDS.toNanos(200));
+        for (int i = 0; i < 3; i++) {
+            busy.acquire();
+        }
+        ChatProviderRouter router = router(busy, idle);
+
+        assertSame(idle, router.select());
+    }
+
+    @Test
+    public void testFailingProviderIsEjected() {
+        ChatProvider failing = provider("failing");
+        ChatProvider healthy = provider("healthy");
+        failing.onFailure();
+        assertFalse(failing.isEjected());
+        failing.onFailure();
+        assertTrue(failing.isEjected());
+        ChatProviderRouter router = router(failing, healthy);
+
+        for (int i = 0; i < 20; i++) {
+            assertSame(healthy, router.select());
+        }
+    }
+
+    @Test
+    public void testRateLimitedProviderIsSkipped() {
+        ChatProvider limited = provider("limited");
+        ChatProvider healthy = provider("healthy");
+        limited.limiter().observe(429, header -> "retry-after".equals(header) ? Optional.of("30") : Optional.empty());
+        assertFalse(limited.isAvailable());
+        ChatProviderRouter router = router(limited, healthy);
+
+        for (int i = 0; i < 20; i++) {
+            assertSame(healthy, router.select());
+        }
+    }
+
+    @Test
+    public void testFailsFastWhenNoProviderIsLeft() {
+        ChatProvider only = provider("only");
+        only.onFailure();
+        only.onFailure();
+
+        try {
+            router(only).select();
+            fail("Expected the selection to fail");
+        } catch (UpstreamSaturatedException e) {
+            assertTrue(e.getRetryAfter().compareTo(Duration.ZERO) > 0);
+            assertTrue(e.getRetryAfter().compareTo(Duration.ofMinutes(1)) <= 0);
+        }
+    }
+}
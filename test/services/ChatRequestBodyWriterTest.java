@@ -0,0 +1,54 @@
+package services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import dto.ChatMessageDTO;
+import org.junit.Test;
+import play.libs.Json;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChatRequestBodyWriterTest {
+
+    @Test
+    public void testContentIsEscaped() {
+        ChatRequestBodyWriter writer = new ChatRequestBodyWriter("gpt-3.5-turbo", null, null);
+        String question = "Say \"hi\"\nand a backslash \\ please";
+
+        JsonNode body = Json.parse(writer.write(List.of(
+            new ChatMessageDTO("system", "Be brief"),
+            new ChatMessageDTO("user", question)
+        ), false, true).utf8String());
+
+        assertEquals("gpt-3.5-turbo", body.get("model").asText());
+        assertEquals(2, body.get("messages").size());
+        assertEquals(question, body.get("messages").get(1).get("content").asText());
+        assertFalse(body.has("stream"));
+        assertFalse(body.has("temperature"));
+    }
+
+    @Test
+    public void testOptionalParametersAreWritten() {
+        ChatRequestBodyWriter writer = new ChatRequestBodyWriter("gpt-4o-mini", 0.2, 256);
+
+        JsonNode body = Json.parse(writer.write(List.of(new ChatMessageDTO("user", "Hello")), true, true).utf8String());
+
+        assertTrue(body.get("stream").asBoolean());
+        assertTrue(body.path("stream_options").path("include_usage").asBoolean());
+        assertEquals(0.2, body.get("temperature").asDouble(), 0.0);
+        assertEquals(256, body.get("max_tokens").asInt());
+    }
+
+    @Test
+    public void testStreamOptionsAreLeftOutWhenNotSupported() {
+        ChatRequestBodyWriter writer = new ChatRequestBodyWriter("gpt-4o-mini", null, null);
+
+        JsonNode body = Json.parse(writer.write(List.of(new ChatMessageDTO("user", "Hello")), true, false).utf8String());
+
+        assertTrue(body.get("stream").asBoolean());
+        assertFalse(body.has("stream_options"));
+    }
+}
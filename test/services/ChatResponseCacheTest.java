@@ -0,0 +1,89 @@
+package services;
+
+import dto.ChatMessageDTO;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChatResponseCacheTest {
+
+    private static List<ChatMessageDTO> messages(String instruction, String question) {
+        return List.of(new ChatMessageDTO("system", instruction), new ChatMessageDTO("user", question));
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() {
+        ChatResponseCache cache = new ChatResponseCache(true, 1024 * 1024, Duration.ofMinutes(1));
+        CompletableFuture<String> upstream = new CompletableFuture<>();
+        AtomicInteger loads = new AtomicInteger();
+
+        CompletionStage<String> first = cache.get(messages("Be brief", "What is Play?"), "model", () -> {
+            loads.incrementAndGet();
+            return upstream;
+        });
+        CompletionStage<String> second = cache.get(messages("Be brief", "What is Play?"), "model", () -> {
+            loads.incrementAndGet();
+            return upstream;
+        });
+        upstream.complete("A web framework");
+
+        assertEquals(1, loads.get());
+        assertEquals("A web framework", first.toCompletableFuture().join());
+        assertEquals("A web framework", second.toCompletableFuture().join());
+    }
+
+    @Test
+    public void testWhitespaceIsNormalized() {
+        assertEquals(
+            ChatResponseCache.keyFor("Be brief", "What is   Play?", "model"),
+            ChatResponseCache.keyFor(" Be brief", "What is Play?\n", "model")
+        );
+    }
+
+    @Test
+    public void testStandaloneQuestionsShareAnEntry() {
+        ChatResponseCache cache = new ChatResponseCache(true, 1024 * 1024, Duration.ofMinutes(1));
+
+        cache.put(messages("Be brief", "What is Play?"), "model", "A web framework");
+
+        assertEquals("A web framework", cache.getIfPresent(messages("Be brief", "What is  Play?"), "model").get());
+        assertFalse(cache.getIfPresent(List.of(new ChatMessageDTO("user", "What is Play?")), "model").isPresent());
+    }
+
+    @Test
+    public void testRequestsWithEarlierTurnsBypassTheCache() {
+        ChatResponseCache cache = new ChatResponseCache(true, 1024 * 1024, Duration.ofMinutes(1));
+        List<ChatMessageDTO> withContext = List.of(new ChatMessageDTO("system", "Be brief"),
+            new ChatMessageDTO("user", "What is Play?"), new ChatMessageDTO("assistant", "A web framework"),
+            new ChatMessageDTO("user", "Who maintains it?"));
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.put(withContext, "model", "The community");
+        cache.get(withContext, "model", () -> CompletableFuture.completedFuture("The community " + loads.incrementAndGet()))
+            .toCompletableFuture().join();
+
+        assertEquals(1, loads.get());
+        assertFalse(cache.getIfPresent(withContext, "model").isPresent());
+        assertFalse(cache.getIfPresent(messages("Be brief", "Who maintains it?"), "model").isPresent());
+    }
+
+    @Test
+    public void testFailedLoadsAreNotCached() {
+        ChatResponseCache cache = new ChatResponseCache(true, 1024 * 1024, Duration.ofMinutes(1));
+
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("upstream down"));
+        assertTrue(cache.get(messages("i", "q"), "model", () -> failed).toCompletableFuture().isCompletedExceptionally());
+
+        assertFalse(cache.getIfPresent(messages("i", "q"), "model").isPresent());
+        assertEquals("ok", cache.get(messages("i", "q"), "model", () -> CompletableFuture.completedFuture("ok")).toCompletableFuture().join());
+    }
+}
@@ -0,0 +1,211 @@
+package services;
+
+import com.typesafe.config.ConfigFactory;
+import dao.ChatDialogueRepository;
+import dao.ChatJobRepository;
+import dto.ChatBatchResultDTO;
+import dto.ChatDialogueDTO;
+import dto.ChatMessageDTO;
+import dto.ChatQueryDTO;
+import models.ChatDialogue;
+import org.apache.pekko.actor.ActorSystem;
+import org.apache.pekko.stream.Materializer;
+import org.apache.pekko.stream.javadsl.Sink;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ChatServiceImplTest {
+
+    private static final String EMAIL = "user@example.com";
+
+    private final ActorSystem system = ActorSystem.create();
+    private final ChatDialogueRepository chatRequestRepository = mock(ChatDialogueRepository.class);
+    private final ChatResponseCache responseCache = mock(ChatResponseCache.class);
+    private final ConversationContextAssembler contextAssembler = mock(ConversationContextAssembler.class);
+    private final ChatMetrics metrics = mock(ChatMetrics.class);
+    private final IdempotentRequests idempotentRequests = mock(IdempotentRequests.class);
+    private final UsageQuotas usageQuotas = mock(UsageQuotas.class);
+    private final AtomicLong nextId = new AtomicLong();
+    private ChatServiceImpl chatService;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        when(contextAssembler.assemble(anyString(), any(), any(), anyString())).thenAnswer(invocation ->
+            CompletableFuture.completedFuture(List.of(new ChatMessageDTO("user", invocation.getArgument(3)))));
+        when(responseCache.get(anyList(), any(), any())).thenAnswer(invocation -> {
+            List<ChatMessageDTO> messages = invocation.getArgument(0);
+            return answer(messages.get(messages.size() - 1).getContent());
+        });
+        when(metrics.timeAsync(anyString(), anyString(), any())).thenAnswer(invocation ->
+            ((Supplier<CompletionStage<?>>) invocation.getArgument(2)).get());
+        when(chatRequestRepository.saveChatDialogues(anyList())).thenAnswer(invocation -> {
+            List<ChatDialogue> chatDialogues = invocation.getArgument(0);
+            chatDialogues.forEach(this::assignId);
+            return CompletableFuture.completedFuture(chatDialogues);
+        });
+        when(chatRequestRepository.saveChatDialogue(any())).thenAnswer(invocation ->
+            CompletableFuture.completedFuture(assignId(invocation.getArgument(0))));
+        when(idempotentRequests.execute(anyString(), anyString(), any())).thenAnswer(invocation ->
+            ((Supplier<CompletionStage<?>>) invocation.getArgument(2)).get());
+
+        chatService = new ChatServiceImpl(chatRequestRepository, mock(ChatJobRepository.class), responseCache,
+            mock(SemanticResponseCache.class), contextAssembler, mock(ChatRequestBodyWriter.class),
+            mock(UpstreamResilience.class), metrics, idempotentRequests, mock(ChatHistoryBus.class),
+            mock(ChatHistoryVersions.class), mock(RecentHistoryCache.class), usageQuotas,
+            mock(ChatProviderRouter.class), Materializer.matFromSystem(system),
+            ConfigFactory.parseString("openai.limits.completion-token-reserve = 100\n"
+                + "chat.batch { parallelism = 4, save-batch-size = 10, save-interval = 200 ms }\n"
+                + "chat.jobs.poll-interval = 1 second\n"
+                + "chat.idempotency.stream-start-timeout = 1 minute"));
+    }
+
+    @After
+    public void tearDown() {
+        system.terminate();
+    }
+
+    private ChatDialogue assignId(ChatDialogue chatDialogue) {
+        chatDialogue.setId(nextId.incrementAndGet());
+        return chatDialogue;
+    }
+
+    // Questions starting with "fail" fail upstream, and "slow" ones are answered after the others
+    private static CompletionStage<String> answer(String question) {
+        if (question.startsWith("fail")) {
+            return CompletableFuture.failedFuture(new IllegalStateException("upstream down"));
+        }
+        if (question.startsWith("slow")) {
+            return CompletableFuture.supplyAsync(() -> "Answer to " + question,
+                CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS));
+        }
+        return CompletableFuture.completedFuture("Answer to " + question);
+    }
+
+    private static ChatQueryDTO query(String question) {
+        return new ChatQueryDTO("Be brief", question, null, null, null);
+    }
+
+    private List<ChatBatchResultDTO> run(ChatQueryDTO... queries) {
+        return chatService.processBatch(Arrays.asList(queries), EMAIL)
+            .runWith(Sink.seq(), Materializer.matFromSystem(system))
+            .toCompletableFuture().join();
+    }
+
+    private static Map<Long, ChatBatchResultDTO> byIndex(List<ChatBatchResultDTO> results) {
+        Map<Long, ChatBatchResultDTO> byIndex = new HashMap<>();
+        results.forEach(result -> byIndex.put(result.getIndex(), result));
+        assertEquals(results.size(), byIndex.size());
+        return byIndex;
+    }
+
+    @Test
+    public void testFailedQueriesAreReportedWithoutFailingTheBatch() {
+        Map<Long, ChatBatchResultDTO> results = byIndex(run(null, query(" "), query("fail now"), query("What is Play?")));
+
+        assertEquals("Not a valid query", results.get(0L).getError());
+        assertEquals("Question is required", results.get(1L).getError());
+        assertEquals("Failed to answer the query: upstream down", results.get(2L).getError());
+        assertNull(results.get(3L).getError());
+        assertEquals("Answer to What is Play?", results.get(3L).getDialogue().getResponse());
+    }
+
+    @Test
+    public void testAnswersAreSavedInOneTransaction() {
+        List<ChatBatchResultDTO> results = run(query("first"), query("second"), query("third"));
+
+        verify(chatRequestRepository, times(1)).saveChatDialogues(anyList());
+        verify(chatRequestRepository, never()).saveChatDialogue(any());
+        assertEquals(3, results.size());
+        results.forEach(result -> assertNull(result.getError()));
+    }
+
+    @Test
+    public void testFailedTransactionFallsBackToIndividualSaves() {
+        doReturn(CompletableFuture.failedFuture(new IllegalStateException("value too long")))
+            .when(chatRequestRepository).saveChatDialogues(anyList());
+        doAnswer(invocation -> {
+            ChatDialogue chatDialogue = invocation.getArgument(0);
+            return "bad".equals(chatDialogue.getQuestion())
+                ? CompletableFuture.failedFuture(new IllegalStateException("value too long"))
+                : CompletableFuture.completedFuture(assignId(chatDialogue));
+        }).when(chatRequestRepository).saveChatDialogue(any());
+
+        Map<Long, ChatBatchResultDTO> results = byIndex(run(query("good"), query("bad"), query("also good")));
+
+        verify(chatRequestRepository, times(3)).saveChatDialogue(any());
+        assertEquals("good", results.get(0L).getDialogue().getQuestion());
+        assertEquals("Failed to save the dialogue", results.get(1L).getError());
+        assertEquals("also good", results.get(2L).getDialogue().getQuestion());
+    }
+
+    @Test
+    public void testResultsCarryTheIndexOfTheirQuery() {
+        List<ChatBatchResultDTO> inCompletionOrder = run(query("slow one"), query("quick two"), query("quick three"));
+
+        assertEquals(0L, inCompletionOrder.get(2).getIndex());
+        Map<Long, ChatBatchResultDTO> results = byIndex(inCompletionOrder);
+        assertEquals("slow one", results.get(0L).getDialogue().getQuestion());
+        assertEquals("quick two", results.get(1L).getDialogue().getQuestion());
+        assertEquals("quick three", results.get(2L).getDialogue().getQuestion());
+    }
+
+    @Test
+    public void testReplayedKeyDoesNotCountAgainstTheQuota() {
+        ChatDialogueDTO saved = new ChatDialogueDTO(7L, "Be brief", "What is Play?", "A web framework", null, EMAIL, null);
+        when(chatRequestRepository.getByIdempotencyKey(EMAIL, "k1")).thenReturn(CompletableFuture.completedFuture(Optional.of(saved)));
+
+        ChatDialogueDTO replayed = chatService.processChatRequest(
+            new ChatQueryDTO("Be brief", "What is Play?", null, "k1", null), EMAIL).toCompletableFuture().join();
+
+        assertEquals(Long.valueOf(7L), replayed.getId());
+        verify(usageQuotas).refund(EMAIL, 1);
+    }
+
+    @Test
+    public void testAnsweredKeyCountsAgainstTheQuota() {
+        when(chatRequestRepository.getByIdempotencyKey(EMAIL, "k1")).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+
+        chatService.processChatRequest(new ChatQueryDTO("Be brief", "What is Play?", null, "k1", null), EMAIL)
+            .toCompletableFuture().join();
+
+        verify(usageQuotas, never()).refund(anyString(), anyInt());
+    }
+
+    @Test
+    public void testReplayedJobKeepsItsSingleAdmission() {
+        ChatDialogueDTO saved = new ChatDialogueDTO(7L, "Be brief", "What is Play?", "A web framework", null, EMAIL, null);
+        when(chatRequestRepository.getByIdempotencyKey(EMAIL, "job:3")).thenReturn(CompletableFuture.completedFuture(Optional.of(saved)));
+
+        chatService.processChatJob(new ChatQueryDTO("Be brief", "What is Play?", null, "job:3", null), EMAIL)
+            .toCompletableFuture().join();
+
+        verify(usageQuotas, never()).refund(anyString(), anyInt());
+    }
+}
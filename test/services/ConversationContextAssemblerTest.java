@@ -0,0 +1,51 @@
+package services;
+
+import dto.ChatMessageDTO;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConversationContextAssemblerTest {
+
+    private static final String LONG_RESPONSE = "x".repeat(400);
+
+    @Test
+    public void testTurnsAreReplayedOldestFirst() {
+        List<ChatMessageDTO> messages = ConversationContextAssembler.fitToBudget("Be brief",
+            List.of(new ConversationContextAssembler.Turn("q1", "r1"), new ConversationContextAssembler.Turn("q2", "r2")),
+            "q3", 1000);
+
+        assertEquals(6, messages.size());
+        assertEquals("system", messages.get(0).getRole());
+        assertEquals("q1", messages.get(1).getContent());
+        assertEquals("r1", messages.get(2).getContent());
+        assertEquals("assistant", messages.get(4).getRole());
+        assertEquals("q3", messages.get(5).getContent());
+    }
+
+    @Test
+    public void testOlderTurnsAreDroppedOverBudget() {
+        List<ChatMessageDTO> messages = ConversationContextAssembler.fitToBudget("",
+            List.of(new ConversationContextAssembler.Turn("old", LONG_RESPONSE),
+                new ConversationContextAssembler.Turn("new", LONG_RESPONSE)),
+            "question", 150);
+
+        assertEquals(3, messages.size());
+        assertEquals("new", messages.get(0).getContent());
+        assertEquals("question", messages.get(2).getContent());
+    }
+
+    @Test
+    public void testNewestTurnIsTruncatedWhenItDoesNotFit() {
+        List<ChatMessageDTO> messages = ConversationContextAssembler.fitToBudget(null,
+            List.of(new ConversationContextAssembler.Turn("q", LONG_RESPONSE)), "question", 80);
+
+        assertEquals(3, messages.size());
+        String truncated = messages.get(1).getContent();
+        assertTrue(truncated.endsWith("[...]"));
+        assertTrue(truncated.length() < LONG_RESPONSE.length());
+    }
+}
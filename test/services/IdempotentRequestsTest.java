@@ -0,0 +1,84 @@
+package services;
+
+import dto.ChatDialogueDTO;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class IdempotentRequestsTest {
+
+    private static ChatDialogueDTO dialogue(long id) {
+        return new ChatDialogueDTO(id, "Be brief", "What is Play?", "A web framework",
+            new Timestamp(0), "user@example.com", null);
+    }
+
+    @Test
+    public void testRetryJoinsPendingRequest() {
+        IdempotentRequests requests = new IdempotentRequests(100, Duration.ofMinutes(1));
+        CompletableFuture<ChatDialogueDTO> upstream = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+
+        CompletionStage<ChatDialogueDTO> first = requests.execute("user@example.com", "key", () -> {
+            calls.incrementAndGet();
+            return upstream;
+        });
+        CompletionStage<ChatDialogueDTO> retry = requests.execute("user@example.com", "key", () -> {
+            calls.incrementAndGet();
+            return upstream;
+        });
+        upstream.complete(dialogue(1));
+
+        assertEquals(1, calls.get());
+        assertEquals(1L, (long) first.toCompletableFuture().join().getId());
+        assertEquals(1L, (long) retry.toCompletableFuture().join().getId());
+    }
+
+    @Test
+    public void testKeysAreScopedByUser() {
+        IdempotentRequests requests = new IdempotentRequests(100, Duration.ofMinutes(1));
+        requests.execute("a@example.com", "key", () -> CompletableFuture.completedFuture(dialogue(1)));
+
+        ChatDialogueDTO other = requests.execute("b@example.com", "key",
+            () -> CompletableFuture.completedFuture(dialogue(2))).toCompletableFuture().join();
+
+        assertEquals(2L, (long) other.getId());
+    }
+
+    @Test
+    public void testFailedRequestIsForgotten() {
+        IdempotentRequests requests = new IdempotentRequests(100, Duration.ofMinutes(1));
+        CompletableFuture<ChatDialogueDTO> failed = new CompletableFuture<>();
+        assertNull(requests.claim("user@example.com", "key", failed));
+        failed.completeExceptionally(new IllegalStateException("upstream down"));
+
+        CompletableFuture<ChatDialogueDTO> retry = new CompletableFuture<>();
+        assertNull(requests.claim("user@example.com", "key", retry));
+        assertSame(retry, requests.claim("user@example.com", "key", new CompletableFuture<>()));
+    }
+
+    @Test
+    public void testReleasedRequestIsAnsweredAfresh() {
+        IdempotentRequests requests = new IdempotentRequests(100, Duration.ofMinutes(1));
+        CompletableFuture<ChatDialogueDTO> pending = new CompletableFuture<>();
+        CompletionStage<ChatDialogueDTO> first = requests.execute("user@example.com", "key", () -> pending);
+        CompletionStage<ChatDialogueDTO> joined = requests.execute("user@example.com", "key",
+            () -> CompletableFuture.completedFuture(dialogue(3)));
+
+        requests.release("user@example.com", "key");
+        pending.complete(dialogue(1));
+        ChatDialogueDTO retry = requests.execute("user@example.com", "key",
+            () -> CompletableFuture.completedFuture(dialogue(2))).toCompletableFuture().join();
+
+        assertEquals(1L, (long) first.toCompletableFuture().join().getId());
+        assertEquals(1L, (long) joined.toCompletableFuture().join().getId());
+        assertEquals(2L, (long) retry.getId());
+    }
+}
@@ -0,0 +1,32 @@
+package services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuestionEmbedderTest {
+
+    private final QuestionEmbedder embedder = new QuestionEmbedder(512);
+
+    private float similarity(String a, String b) {
+        return QuestionEmbedder.similarity(embedder.embed(a), embedder.embed(b));
+    }
+
+    @Test
+    public void testRewordedQuestionsAreSimilar() {
+        assertTrue(similarity("How do I reset my password?", "how can i reset my password") > 0.95f);
+        assertTrue(similarity("How do I reset my password?", "password reset steps") > 0.6f);
+    }
+
+    @Test
+    public void testUnrelatedQuestionsAreNotSimilar() {
+        assertTrue(similarity("How do I reset my password?", "How do I delete my account?") < 0.3f);
+    }
+
+    @Test
+    public void testEmbeddingsAreNormalized() {
+        float[] vector = embedder.embed("What is the Play framework?");
+        assertEquals(1.0f, QuestionEmbedder.similarity(vector, vector), 1e-4f);
+    }
+}
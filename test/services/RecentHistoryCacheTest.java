@@ -0,0 +1,158 @@
+package services;
+
+import dao.ChatDialogueRepository;
+import dto.ChatDialogueDTO;
+import dto.ChatHistoryCursor;
+import dto.ChatHistoryVersion;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RecentHistoryCacheTest {
+
+    private static ChatDialogueDTO dialogue(long id) {
+        return new ChatDialogueDTO(id, "Be brief", "Question " + id, "Answer " + id,
+            new Timestamp(id * 1000), "a@example.com", null);
+    }
+
+    private static List<Long> ids(Optional<List<ChatDialogueDTO>> dialogues) {
+        return dialogues.get().stream().map(ChatDialogueDTO::getId).collect(Collectors.toList());
+    }
+
+    private static RecentHistoryCache cache(ChatDialogueRepository repository, ChatHistoryEvents events, int size) {
+        return new RecentHistoryCache(repository, events, true, size, 1 << 20, Duration.ofMinutes(1));
+    }
+
+    private static ChatDialogueRepository repository() {
+        ChatDialogueRepository repository = mock(ChatDialogueRepository.class);
+        when(repository.getHistoryVersion("a@example.com")).thenReturn(
+            CompletableFuture.completedFuture(new ChatHistoryVersion(2L, 2L, new Timestamp(2000))));
+        return repository;
+    }
+
+    @Test
+    public void testSavedDialoguesAreServedWithoutQuery() {
+        ChatDialogueRepository repository = repository();
+        when(repository.getPageByUser("a@example.com", null, 4)).thenReturn(
+            CompletableFuture.completedFuture(Arrays.asList(dialogue(2), dialogue(1)).stream()));
+        ChatHistoryEvents events = new ChatHistoryEvents();
+        RecentHistoryCache cache = cache(repository, events, 3);
+
+        assertEquals(Arrays.asList(2L, 1L), ids(cache.get("a@example.com", null, 10).toCompletableFuture().join()));
+
+        events.publish(dialogue(3));
+        events.publish(dialogue(3));
+
+        assertEquals(Arrays.asList(3L, 2L), ids(cache.get("a@example.com", null, 2).toCompletableFuture().join()));
+        assertEquals(Collections.singletonList(1L), ids(cache.get("a@example.com",
+            new ChatHistoryCursor(new Timestamp(2000), 2L), 2).toCompletableFuture().join()));
+        verify(repository, times(1)).getPageByUser("a@example.com", null, 4);
+        assertEquals(2, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void testFullBufferOnlyAnswersWhatItHolds() {
+        ChatDialogueRepository repository = repository();
+        when(repository.getPageByUser("a@example.com", null, 3)).thenReturn(
+            CompletableFuture.completedFuture(Arrays.asList(dialogue(2), dialogue(1)).stream()));
+        ChatHistoryEvents events = new ChatHistoryEvents();
+        RecentHistoryCache cache = cache(repository, events, 2);
+
+        cache.get("a@example.com", null, 2).toCompletableFuture().join();
+        events.publish(dialogue(3));
+
+        assertEquals(Arrays.asList(3L, 2L), ids(cache.get("a@example.com", null, 2).toCompletableFuture().join()));
+        assertFalse(cache.get("a@example.com", null, 3).toCompletableFuture().join().isPresent());
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    public void testVersionDescribesCachedDialogues() {
+        ChatDialogueRepository repository = repository();
+        when(repository.getPageByUser("a@example.com", null, 4)).thenReturn(
+            CompletableFuture.completedFuture(Arrays.asList(dialogue(2), dialogue(1)).stream()));
+        ChatHistoryEvents events = new ChatHistoryEvents();
+        RecentHistoryCache cache = cache(repository, events, 3);
+
+        assertFalse(cache.version("a@example.com").isPresent());
+        cache.get("a@example.com", null, 10).toCompletableFuture().join();
+        assertEquals(new ChatHistoryVersion(2L, 2L, new Timestamp(2000)), cache.version("a@example.com").get());
+
+        events.publish(dialogue(3));
+        events.publish(dialogue(3));
+
+        assertEquals(new ChatHistoryVersion(3L, 3L, new Timestamp(3000)), cache.version("a@example.com").get());
+    }
+
+    @Test
+    public void testBufferExpiresAfterLoadDespiteWrites() {
+        ChatDialogueRepository repository = repository();
+        when(repository.getPageByUser("a@example.com", null, 4)).thenReturn(
+            CompletableFuture.completedFuture(Arrays.asList(dialogue(2), dialogue(1)).stream()),
+            CompletableFuture.completedFuture(Arrays.asList(dialogue(3), dialogue(2), dialogue(1)).stream()));
+        ChatHistoryEvents events = new ChatHistoryEvents();
+        RecentHistoryCache cache = new RecentHistoryCache(repository, events, true, 3, 1 << 20, Duration.ZERO);
+
+        cache.get("a@example.com", null, 10).toCompletableFuture().join();
+        events.publish(dialogue(3));
+
+        assertEquals(Arrays.asList(3L, 2L, 1L), ids(cache.get("a@example.com", null, 10).toCompletableFuture().join()));
+        verify(repository, times(2)).getPageByUser("a@example.com", null, 4);
+        assertEquals(0, cache.hits());
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    public void testDialogueOutOfOrderDropsBuffer() {
+        ChatDialogueRepository repository = repository();
+        when(repository.getPageByUser("a@example.com", null, 3)).thenReturn(
+            CompletableFuture.completedFuture(Collections.singletonList(dialogue(5)).stream()),
+            CompletableFuture.completedFuture(Arrays.asList(dialogue(5), dialogue(4)).stream()));
+        ChatHistoryEvents events = new ChatHistoryEvents();
+        RecentHistoryCache cache = cache(repository, events, 2);
+
+        cache.get("a@example.com", null, 2).toCompletableFuture().join();
+        events.publish(dialogue(4));
+
+        Optional<List<ChatDialogueDTO>> reloaded = cache.get("a@example.com", null, 2).toCompletableFuture().join();
+        assertTrue(reloaded.isPresent());
+        assertEquals(Arrays.asList(5L, 4L), ids(reloaded));
+        verify(repository, times(2)).getPageByUser("a@example.com", null, 3);
+    }
+
+    @Test
+    public void testCursorBreaksCreatedAtTiesById() {
+        Timestamp createdAt = new Timestamp(5000);
+        ChatDialogueRepository repository = repository();
+        when(repository.getPageByUser("a@example.com", null, 5)).thenReturn(CompletableFuture.completedFuture(
+            Arrays.asList(dialogue(9, createdAt), dialogue(8, createdAt), dialogue(7, createdAt), dialogue(3)).stream()));
+        RecentHistoryCache cache = cache(repository, new ChatHistoryEvents(), 4);
+        cache.get("a@example.com", null, 1).toCompletableFuture().join();
+
+        assertEquals(Arrays.asList(7L, 3L), ids(cache.get("a@example.com",
+            new ChatHistoryCursor(createdAt, 8L), 2).toCompletableFuture().join()));
+        assertEquals(Collections.singletonList(3L), ids(cache.get("a@example.com",
+            new ChatHistoryCursor(createdAt, 7L), 1).toCompletableFuture().join()));
+    }
+
+    private static ChatDialogueDTO dialogue(long id, Timestamp createdAt) {
+        return new ChatDialogueDTO(id, "Be brief", "Question " + id, "Answer " + id, createdAt, "a@example.com", null);
+    }
+}
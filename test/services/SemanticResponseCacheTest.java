@@ -0,0 +1,107 @@
+package services;
+
+import dao.ChatDialogueRepository;
+import dto.ChatMessageDTO;
+import models.ChatDialogue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SemanticResponseCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ChatDialogue dialogue(long id, String instruction, String question, String response) {
+        ChatDialogue chatDialogue = new ChatDialogue();
+        chatDialogue.setId(id);
+        chatDialogue.setCreatedAt(new Timestamp(1_000_000_000L + id * 1000));
+        chatDialogue.setInstruction(instruction);
+        chatDialogue.setQuestion(question);
+        chatDialogue.setResponse(response);
+        return chatDialogue;
+    }
+
+    private static List<ChatMessageDTO> messages(String instruction, String question) {
+        return List.of(new ChatMessageDTO("system", instruction), new ChatMessageDTO("user", question));
+    }
+
+    private SemanticResponseCache newCache(ChatDialogueRepository repository, Path indexFile) {
+        return new SemanticResponseCache(repository, "model", true, 0.85, 512, 16, 100, indexFile);
+    }
+
+    @Test
+    public void testSimilarQuestionIsServedForSameInstructionOnly() {
+        SemanticResponseCache cache = newCache(mock(ChatDialogueRepository.class), folder.getRoot().toPath().resolve("index"));
+        cache.add(dialogue(1, "Be brief", "How do I reset my password?", "Use the reset link."),
+            messages("Be brief", "How do I reset my password?"));
+
+        assertEquals("Use the reset link.", cache.lookup(messages("Be brief", "how can I reset my password")).orElse(null));
+        assertFalse(cache.lookup(messages("Be verbose", "how can I reset my password")).isPresent());
+        assertFalse(cache.lookup(messages("Be brief", "How do I delete my account?")).isPresent());
+    }
+
+    @Test
+    public void testFollowUpsAreNotServed() {
+        SemanticResponseCache cache = newCache(mock(ChatDialogueRepository.class), folder.getRoot().toPath().resolve("index"));
+        cache.add(dialogue(1, null, "How do I reset my password?", "Use the reset link."),
+            List.of(new ChatMessageDTO("user", "How do I reset my password?")));
+
+        assertFalse(cache.lookup(List.of(
+            new ChatMessageDTO("user", "What is my username?"),
+            new ChatMessageDTO("assistant", "jdoe"),
+            new ChatMessageDTO("user", "How do I reset my password?"))).isPresent());
+    }
+
+    @Test
+    public void testIndexIsRebuiltFromRepositoryAndPersisted() {
+        ChatDialogueRepository repository = mock(ChatDialogueRepository.class);
+        when(repository.getIndexableAfter(any(), anyLong(), anyInt())).thenReturn(CompletableFuture.completedFuture(Stream.of(
+            dialogue(1, "", "How do I reset my password?", "Use the reset link."),
+            dialogue(2, "", "How do I delete my account?", "Use the account settings."))));
+        Path indexFile = folder.getRoot().toPath().resolve("index");
+
+        SemanticResponseCache cache = newCache(repository, indexFile);
+        cache.catchUp().toCompletableFuture().join();
+        cache.saveIfDirty();
+        verify(repository).getIndexableAfter(new Timestamp(0), 0L, 100);
+        assertEquals(2, cache.size());
+
+        SemanticResponseCache reloaded = newCache(mock(ChatDialogueRepository.class), indexFile);
+        assertEquals(2, reloaded.size());
+        assertEquals("Use the reset link.", reloaded.lookup(messages("", "how can I reset my password")).orElse(null));
+    }
+
+    @Test
+    public void testCatchUpRereadsDialoguesCommittedLate() {
+        ChatDialogue indexed = dialogue(50, "", "How do I reset my password?", "Use the reset link.");
+        ChatDialogue late = dialogue(3, "", "How do I delete my account?", "Use the account settings.");
+        late.setCreatedAt(new Timestamp(indexed.getCreatedAt().getTime() - 1000));
+        ChatDialogueRepository repository = mock(ChatDialogueRepository.class);
+        when(repository.getIndexableAfter(any(), anyLong(), anyInt()))
+            .thenReturn(CompletableFuture.completedFuture(Stream.of(late, indexed)));
+        SemanticResponseCache cache = newCache(repository, folder.getRoot().toPath().resolve("index"));
+        cache.add(indexed, messages("", indexed.getQuestion()));
+
+        cache.catchUp().toCompletableFuture().join();
+
+        verify(repository).getIndexableAfter(new Timestamp(indexed.getCreatedAt().getTime() - 300_000), 0L, 100);
+        assertEquals(2, cache.size());
+        assertEquals("Use the account settings.", cache.lookup(messages("", "how can I delete my account")).orElse(null));
+    }
+}
@@ -0,0 +1,59 @@
+package services;
+
+import org.junit.Test;
+import play.libs.ws.WSClient;
+import play.libs.ws.WSRequest;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UpstreamHttpClientTest {
+
+    private static final String URL = "http://localhost:9999/v1/chat/completions";
+    private static final Instant NOW = Instant.parse("2026-10-15T12:00:00Z");
+
+    private final WSClient wsClient = mock(WSClient.class);
+    private final WSRequest request = mock(WSRequest.class);
+    private final UpstreamHttpClient client = new UpstreamHttpClient(wsClient, Clock.fixed(NOW, ZoneOffset.UTC),
+        Duration.ofSeconds(60), Duration.ofMinutes(3));
+
+    public UpstreamHttpClientTest() {
+        when(wsClient.url(URL)).thenReturn(request);
+        when(request.setRequestTimeout(any())).thenReturn(request);
+    }
+
+    @Test
+    public void testUsesConfiguredTimeoutWithoutDeadline() {
+        client.url(URL, null, false);
+        client.url(URL, null, true);
+
+        verify(request).setRequestTimeout(Duration.ofSeconds(60));
+        verify(request).setRequestTimeout(Duration.ofMinutes(3));
+    }
+
+    @Test
+    public void testDeadlineShortensTimeout() {
+        client.url(URL, NOW.plusSeconds(5), false);
+        client.url(URL, NOW.plusSeconds(600), true);
+
+        verify(request).setRequestTimeout(Duration.ofSeconds(5));
+        verify(request).setRequestTimeout(Duration.ofMinutes(3));
+    }
+
+    @Test(expected = DeadlineExceededException.class)
+    public void testRejectsCallsPastDeadline() {
+        try {
+            client.url(URL, NOW.minusMillis(1), false);
+        } finally {
+            verify(wsClient, never()).url(any());
+        }
+    }
+}
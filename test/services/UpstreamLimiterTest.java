@@ -0,0 +1,96 @@
+package services;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UpstreamLimiterTest {
+
+    @Test
+    public void testQueuedRequestIsAdmittedOnRelease() {
+        UpstreamLimiter limiter = new UpstreamLimiter(1, 1000, 100_000, 1, Duration.ofSeconds(5));
+
+        UpstreamLimiter.Permit first = limiter.acquire(10).toCompletableFuture().join();
+        CompletableFuture<UpstreamLimiter.Permit> second = limiter.acquire(10).toCompletableFuture();
+        assertFalse(second.isDone());
+
+        first.release();
+        assertTrue(second.isDone());
+        assertEquals(1, limiter.inFlight());
+    }
+
+    @Test
+    public void testCancelledRequestLeavesTheQueue() {
+        UpstreamLimiter limiter = new UpstreamLimiter(1, 1000, 100_000, 1, Duration.ofSeconds(5));
+
+        UpstreamLimiter.Permit first = limiter.acquire(10).toCompletableFuture().join();
+        CompletableFuture<UpstreamLimiter.Permit> second = limiter.acquire(10).toCompletableFuture();
+        second.cancel(false);
+        assertEquals(0, limiter.queued());
+
+        first.release();
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    public void testFullQueueIsRejected() {
+        UpstreamLimiter limiter = new UpstreamLimiter(1, 1000, 100_000, 1, Duration.ofSeconds(5));
+
+        limiter.acquire(10);
+        limiter.acquire(10);
+        try {
+            limiter.acquire(10).toCompletableFuture().join();
+            fail("Expected the third request to be rejected");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof UpstreamSaturatedException);
+        }
+    }
+
+    @Test
+    public void testQueuedRequestGivesUpAtItsDeadline() {
+        UpstreamLimiter limiter = new UpstreamLimiter(1, 1000, 100_000, 1, Duration.ofSeconds(30));
+
+        limiter.acquire(10);
+        try {
+            limiter.acquire(10, Instant.now().plusMillis(50)).toCompletableFuture().get(5, TimeUnit.SECONDS);
+            fail("Expected the queued request to give up");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DeadlineExceededException);
+        } catch (InterruptedException | TimeoutException e) {
+            fail("Expected the queued request to give up at its deadline");
+        }
+        assertEquals(0, limiter.queued());
+    }
+
+    @Test
+    public void testRequestPastDeadlineIsNotQueued() {
+        UpstreamLimiter limiter = new UpstreamLimiter(1, 1000, 100_000, 1, Duration.ofSeconds(30));
+
+        try {
+            limiter.acquire(10, Instant.now().minusMillis(1)).toCompletableFuture().join();
+            fail("Expected the request to be rejected");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof DeadlineExceededException);
+        }
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    public void testResetHeaderFormats() {
+        assertEquals(Optional.of(Duration.ofMillis(20)), UpstreamLimiter.parseReset("20ms"));
+        assertEquals(Optional.of(Duration.ofSeconds(360)), UpstreamLimiter.parseReset("6m0s"));
+        assertEquals(Optional.of(Duration.ofMillis(1500)), UpstreamLimiter.parseReset("1.5s"));
+    }
+}
@@ -0,0 +1,157 @@
+package services;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.apache.pekko.actor.ActorSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UpstreamResilienceTest {
+
+    private ActorSystem actorSystem;
+    private UpstreamResilience resilience;
+
+    @Before
+    public void setUp() {
+        actorSystem = ActorSystem.create("UpstreamResilienceTest");
+        Config config = ConfigFactory.parseString(
+            "openai.resilience {\n" +
+            "  max-attempts = 3\n" +
+            "  min-backoff = 1 millisecond\n" +
+            "  max-backoff = 10 milliseconds\n" +
+            "  hedge { enabled = false, percentile = 0.95, min-samples = 100, min-delay = 1 second }\n" +
+            "}");
+        resilience = new UpstreamResilience(actorSystem, config);
+    }
+
+    private UpstreamResilience hedging() {
+        return new UpstreamResilience(actorSystem, ConfigFactory.parseString(
+            "openai.resilience {\n" +
+            "  max-attempts = 1\n" +
+            "  min-backoff = 1 millisecond\n" +
+            "  max-backoff = 10 milliseconds\n" +
+            "  hedge { enabled = true, percentile = 0.5, min-samples = 64, min-delay = 20 milliseconds }\n" +
+            "}"));
+    }
+
+    @After
+    public void tearDown() {
+        actorSystem.terminate();
+    }
+
+    @Test
+    public void testTransientFailuresAreRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = resilience.execute(() -> attempts.incrementAndGet() < 3
+                ? CompletableFuture.<String>failedFuture(new TransientUpstreamException(503, null))
+                : CompletableFuture.completedFuture("ok"), false, null)
+            .toCompletableFuture().join();
+
+        assertEquals("ok", result);
+        assertEquals(3, attempts.get());
+        assertEquals(2, resilience.retries());
+    }
+
+    @Test
+    public void testPermanentFailuresAreNotRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            resilience.execute(() -> {
+                attempts.incrementAndGet();
+                return CompletableFuture.<String>failedFuture(new IllegalStateException("bad request"));
+            }, false, null).toCompletableFuture().join();
+            fail("Expected the call to fail");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testNoRetryWhenTheDeadlineIsCloserThanTheBackoff() {
+        AtomicInteger attempts = new AtomicInteger();
+        Instant deadline = Instant.now().plusSeconds(5);
+
+        try {
+            resilience.execute(() -> {
+                attempts.incrementAndGet();
+                return CompletableFuture.<String>failedFuture(new TransientUpstreamException(429, Duration.ofMinutes(1)));
+            }, false, Instant.now().plusMillis(5)).toCompletableFuture().join();
+            fail("Expected the call to fail");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof TransientUpstreamException);
+        }
+        assertEquals(1, attempts.get());
+        assertEquals(0, resilience.retries());
+
+        String result = resilience.execute(() -> attempts.incrementAndGet() < 3
+                ? CompletableFuture.<String>failedFuture(new TransientUpstreamException(503, null))
+                : CompletableFuture.completedFuture("ok"), false, deadline)
+            .toCompletableFuture().join();
+        assertEquals("ok", result);
+        assertEquals(1, resilience.retries());
+    }
+
+    @Test
+    public void testLosingAttemptIsCancelledWhenTheHedgeWins() throws Exception {
+        UpstreamResilience resilience = hedging();
+        for (int i = 0; i < 64; i++) {
+            resilience.execute(() -> CompletableFuture.completedFuture("warm"), true, null).toCompletableFuture().join();
+        }
+
+        List<CompletableFuture<String>> attempts = new CopyOnWriteArrayList<>();
+        String result = resilience.execute(() -> {
+            CompletableFuture<String> attempt = attempts.isEmpty()
+                ? new CompletableFuture<>()
+                : CompletableFuture.completedFuture("hedge");
+            attempts.add(attempt);
+            return attempt;
+        }, true, null).toCompletableFuture().join();
+
+        assertEquals("hedge", result);
+        assertEquals(2, attempts.size());
+        assertEquals(1, resilience.hedges());
+        try {
+            attempts.get(0).get(1, TimeUnit.SECONDS);
+            fail("Expected the losing attempt to be cancelled");
+        } catch (CancellationException e) {
+            assertTrue(attempts.get(0).isCancelled());
+        }
+    }
+
+    @Test
+    public void testNoHedgeWhenTheDeadlineIsCloserThanTheHedgeDelay() {
+        UpstreamResilience resilience = hedging();
+        for (int i = 0; i < 64; i++) {
+            resilience.execute(() -> CompletableFuture.completedFuture("warm"), true, null).toCompletableFuture().join();
+        }
+
+        AtomicInteger attempts = new AtomicInteger();
+        String result = resilience.execute(() -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.supplyAsync(() -> "slow",
+                CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS));
+        }, true, Instant.now().plusMillis(10)).toCompletableFuture().join();
+
+        assertEquals("slow", result);
+        assertEquals(1, attempts.get());
+        assertEquals(0, resilience.hedges());
+    }
+}
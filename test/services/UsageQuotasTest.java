@@ -0,0 +1,200 @@
+package services;
+
+import dao.ChatUsageRepository;
+import dto.ChatUsageDTO;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UsageQuotasTest {
+
+    private static final Clock NOON = Clock.fixed(Instant.parse("2026-10-15T12:00:00Z"), ZoneOffset.UTC);
+
+    @Test
+    public void testRejectsRequestsOverQuotaUntilWindowEnds() {
+        UsageQuotas quotas = new UsageQuotas(new InMemoryUsage(), NOON, Duration.ofDays(1), 2, 0);
+
+        quotas.admit("a@example.com", 1).toCompletableFuture().join();
+        quotas.admit("a@example.com", 1).toCompletableFuture().join();
+        QuotaExceededException rejected = rejection(quotas.admit("a@example.com", 1));
+
+        assertEquals(Duration.ofHours(12), rejected.getRetryAfter());
+        assertEquals(1, quotas.requestRejections());
+        quotas.admit("b@example.com", 2).toCompletableFuture().join();
+    }
+
+    @Test
+    public void testRejectsRequestsOnceTokensAreUsedUp() {
+        UsageQuotas quotas = new UsageQuotas(new InMemoryUsage(), NOON, Duration.ofDays(1), 0, 100);
+
+        quotas.admit("a@example.com", 1).toCompletableFuture().join();
+        quotas.recordTokens("a@example.com", 40, 70);
+        rejection(quotas.admit("a@example.com", 1));
+
+        assertEquals(1, quotas.tokenRejections());
+    }
+
+    @Test
+    public void testCountsUsageOfOtherInstances() {
+        InMemoryUsage repository = new InMemoryUsage();
+        UsageQuotas other = new UsageQuotas(repository, NOON, Duration.ofDays(1), 3, 0);
+        other.admit("a@example.com", 2).toCompletableFuture().join();
+        other.flush().toCompletableFuture().join();
+
+        UsageQuotas quotas = new UsageQuotas(repository, NOON, Duration.ofDays(1), 3, 0);
+        quotas.admit("a@example.com", 1).toCompletableFuture().join();
+        rejection(quotas.admit("a@example.com", 1));
+    }
+
+    @Test
+    public void testFlushAddsCountsOnce() {
+        InMemoryUsage repository = new InMemoryUsage();
+        UsageQuotas quotas = new UsageQuotas(repository, NOON, Duration.ofDays(1), 0, 0);
+
+        quotas.admit("a@example.com", 1).toCompletableFuture().join();
+        quotas.recordTokens("a@example.com", 12, 30);
+        quotas.flush().toCompletableFuture().join();
+        quotas.flush().toCompletableFuture().join();
+
+        ChatUsageDTO totals = repository.totals.get("a@example.com");
+        assertEquals(1, totals.getRequests());
+        assertEquals(12, totals.getPromptTokens());
+        assertEquals(30, totals.getCompletionTokens());
+        assertEquals(Instant.parse("2026-10-15T00:00:00Z"), totals.getWindowStart().toInstant());
+    }
+
+    @Test
+    public void testKeepsCountsWhenFlushFails() {
+        InMemoryUsage repository = new InMemoryUsage();
+        UsageQuotas quotas = new UsageQuotas(repository, NOON, Duration.ofDays(1), 0, 0);
+        quotas.admit("a@example.com", 1).toCompletableFuture().join();
+
+        repository.failing = true;
+        quotas.flush().toCompletableFuture().join();
+        repository.failing = false;
+        quotas.flush().toCompletableFuture().join();
+
+        assertEquals(1, repository.totals.get("a@example.com").getRequests());
+    }
+
+    @Test
+    public void testReadsUsageAgainAfterAFailedRead() {
+        InMemoryUsage repository = new InMemoryUsage();
+        UsageQuotas other = new UsageQuotas(repository, NOON, Duration.ofDays(1), 2, 0);
+        other.admit("a@example.com", 2).toCompletableFuture().join();
+        other.flush().toCompletableFuture().join();
+
+        repository.failing = true;
+        UsageQuotas quotas = new UsageQuotas(repository, NOON, Duration.ofDays(1), 2, 0);
+        quotas.admit("a@example.com", 1).toCompletableFuture().join();
+        repository.failing = false;
+        rejection(quotas.admit("a@example.com", 1));
+
+        assertEquals(3, repository.reads);
+    }
+
+    @Test
+    public void testReadsUsageOncePerWindow() {
+        InMemoryUsage repository = new InMemoryUsage();
+        UsageQuotas quotas = new UsageQuotas(repository, NOON, Duration.ofDays(1), 0, 0);
+
+        quotas.admit("a@example.com", 1).toCompletableFuture().join();
+        quotas.admit("a@example.com", 1).toCompletableFuture().join();
+
+        assertEquals(1, repository.reads);
+        assertTrue(repository.totals.isEmpty());
+    }
+
+    @Test
+    public void testRefundedRequestsDoNotCount() {
+        UsageQuotas quotas = new UsageQuotas(new InMemoryUsage(), NOON, Duration.ofDays(1), 1, 0);
+
+        quotas.admit("a@example.com", 1).toCompletableFuture().join();
+        quotas.refund("a@example.com", 1);
+        quotas.admit("a@example.com", 1).toCompletableFuture().join();
+        rejection(quotas.admit("a@example.com", 1));
+    }
+
+    @Test
+    public void testFlushedRefundsLowerTheTotals() {
+        InMemoryUsage repository = new InMemoryUsage();
+        UsageQuotas quotas = new UsageQuotas(repository, NOON, Duration.ofDays(1), 2, 0);
+        quotas.admit("a@example.com", 2).toCompletableFuture().join();
+        quotas.flush().toCompletableFuture().join();
+
+        quotas.refund("a@example.com", 1);
+        quotas.flush().toCompletableFuture().join();
+
+        assertEquals(1, repository.totals.get("a@example.com").getRequests());
+        quotas.admit("a@example.com", 1).toCompletableFuture().join();
+        rejection(quotas.admit("a@example.com", 1));
+    }
+
+    @Test
+    public void testAdmittingNoRequestsAlwaysSucceeds() {
+        UsageQuotas quotas = new UsageQuotas(new InMemoryUsage(), NOON, Duration.ofDays(1), 0, 100);
+        quotas.admit("a@example.com", 1).toCompletableFuture().join();
+        quotas.recordTokens("a@example.com", 60, 60);
+
+        quotas.admit("a@example.com", 0).toCompletableFuture().join();
+    }
+
+    private static QuotaExceededException rejection(CompletionStage<Void> admission) {
+        try {
+            admission.toCompletableFuture().join();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof QuotaExceededException);
+            return (QuotaExceededException) e.getCause();
+        }
+        fail("Expected the request to be rejected");
+        return null;
+    }
+
+    private static final class InMemoryUsage implements ChatUsageRepository {
+        private final Map<String, ChatUsageDTO> totals = new HashMap<>();
+        private volatile boolean failing;
+        private int reads;
+
+        @Override
+        public synchronized CompletionStage<List<ChatUsageDTO>> addUsage(List<ChatUsageDTO> usages) {
+            if (failing) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Database unavailable"));
+            }
+            List<ChatUsageDTO> result = new ArrayList<>();
+            for (ChatUsageDTO usage : usages) {
+                ChatUsageDTO total = totals.merge(usage.getEmail(), usage, (a, b) -> new ChatUsageDTO(a.getEmail(),
+                    a.getWindowStart(), a.getRequests() + b.getRequests(), a.getPromptTokens() + b.getPromptTokens(),
+                    a.getCompletionTokens() + b.getCompletionTokens()));
+                result.add(new ChatUsageDTO(total.getEmail(), total.getWindowStart(), total.getRequests(),
+                    total.getPromptTokens(), total.getCompletionTokens()));
+            }
+            return CompletableFuture.completedFuture(result);
+        }
+
+        @Override
+        public synchronized CompletionStage<Optional<ChatUsageDTO>> getUsage(String email, Timestamp windowStart) {
+            reads++;
+            if (failing) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Database unavailable"));
+            }
+            return CompletableFuture.completedFuture(Optional.ofNullable(totals.get(email))
+                .filter(total -> total.getWindowStart().equals(windowStart)));
+        }
+    }
+}